@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.io.IOException;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.impl.client.DecompressingHttpClient;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * {@link DecompressingHttpClient} that hands requests to the backend as they are. DecompressingHttpClient wraps
+ * requests before executing them, so aborting a request (which is how tasks are cancelled) would no longer abort its
+ * connection. This client lets interceptors of the backend do the content encoding instead.
+ */
+class AbortableDecompressingHttpClient extends DecompressingHttpClient {
+    private final DefaultHttpClient backend;
+
+    AbortableDecompressingHttpClient(DefaultHttpClient backend) {
+        this(backend, false);
+    }
+
+    /**
+     * @param pooled decompress with inflaters and buffers from the {@link BufferPool} of the request
+     */
+    AbortableDecompressingHttpClient(DefaultHttpClient backend, boolean pooled) {
+        super(backend);
+        this.backend = backend;
+        backend.addRequestInterceptor(new RequestAcceptEncoding());
+        backend.addResponseInterceptor(pooled ? new PooledContentEncoding() : new ResponseContentEncoding());
+    }
+
+    @Override
+    public HttpResponse execute(HttpHost target, HttpRequest request, HttpContext context) throws IOException, ClientProtocolException {
+        return backend.execute(target, request, context);
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.http.HttpResponse;
+
+/**
+ * Consumes the body of a response in chunks, for
+ * {@link HttpClientWithFuture#executeStreaming(org.apache.http.client.methods.HttpRequestBase, BodySubscriber)}. The
+ * body is only read from the connection as fast as the subscriber asks for chunks with
+ * {@link BodySubscription#request(long)}, so a slow subscriber holds back the server rather than piling up the body in
+ * memory.
+ *
+ * The methods are called one at a time, but not necessarily on the same thread. With the {@link HttpClientBuilder.Engine#NIO}
+ * engine they are called on an I/O reactor thread and should not block.
+ *
+ * @param <T>
+ *            the type of the value produced from the body
+ */
+public interface BodySubscriber<T> {
+    /**
+     * Called when the response headers have been received. No chunks are delivered until you request them.
+     *
+     * @param response the response; do not read its entity
+     * @param subscription
+     * @throws IOException to fail the request
+     */
+    void onResponse(HttpResponse response, BodySubscription subscription) throws IOException;
+
+    /**
+     * Called with the next chunk of the body, once for every chunk requested.
+     *
+     * @param chunk at most the streaming window of the client in size. The buffer is reused for the next chunk, so
+     *            copy what you need to keep before you return.
+     * @throws IOException to fail the request
+     */
+    void onChunk(ByteBuffer chunk) throws IOException;
+
+    /**
+     * Called after the last chunk has been delivered.
+     *
+     * @return the result of the request
+     * @throws IOException to fail the request
+     */
+    T onComplete() throws IOException;
+}
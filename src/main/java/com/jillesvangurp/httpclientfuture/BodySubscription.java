@@ -0,0 +1,40 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+/**
+ * Lets a {@link BodySubscriber} signal how many chunks of the body it is ready for.
+ */
+public interface BodySubscription {
+    /**
+     * Ask for n more chunks. May be called from any thread, including from within
+     * {@link BodySubscriber#onChunk(java.nio.ByteBuffer)}.
+     *
+     * @param n number of chunks, > 0
+     */
+    void request(long n);
+
+    /**
+     * Stop reading the body and abort the request. The task of the request is cancelled.
+     */
+    void cancel();
+}
@@ -0,0 +1,359 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Inflater;
+
+/**
+ * Size classed pool of byte buffers that a {@link HttpClientWithFuture} uses for reading streamed bodies, decompressing
+ * responses and writing request entities, instead of allocating fresh buffers for every request. Buffers are handed
+ * out in powers of two between the minimum and the maximum size; larger buffers are allocated and dropped when
+ * released. The pool also keeps the inflaters used for decompression.
+ *
+ * The buffers a request uses go back to the pool when its task completes or is cancelled. With leak detection on, the
+ * pool remembers where every outstanding buffer was acquired, so that tests can check with {@link #assertNoLeaks()}
+ * that all buffers came back. Configure the pool with {@link HttpClientBuilder#bufferPool(BufferPool)}.
+ */
+public final class BufferPool {
+    public static final int DEFAULT_MIN_SIZE = 4096;
+    public static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_PER_CLASS = 64;
+
+    private final boolean direct;
+    private final int minSize;
+    private final int maxSize;
+    private final int maxPerClass;
+    // indexed by the log2 of the size divided by the minimum size
+    private final ArrayBlockingQueue<ByteBuffer>[] heapClasses;
+    private final ArrayBlockingQueue<ByteBuffer>[] directClasses;
+    // for gzip (no zlib wrapper) and for deflate
+    private final ArrayBlockingQueue<Inflater> gzipInflaters;
+    private final ArrayBlockingQueue<Inflater> zlibInflaters;
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+
+    private volatile boolean leakDetection = false;
+    // outstanding buffers and where they were acquired, guarded by itself
+    private final Map<ByteBuffer, Throwable> outstanding = new IdentityHashMap<ByteBuffer, Throwable>();
+
+    @SuppressWarnings("unchecked")
+    private BufferPool(boolean direct, int minSize, int maxSize, int maxPerClass) {
+        if (Integer.bitCount(minSize) != 1 || maxSize < minSize || maxPerClass < 0) {
+            throw new IllegalArgumentException("minSize should be a power of two, maxSize >= minSize and maxPerClass >= 0");
+        }
+        this.direct = direct;
+        this.minSize = minSize;
+        this.maxSize = Integer.highestOneBit(maxSize);
+        this.maxPerClass = maxPerClass;
+        int classes = Integer.numberOfTrailingZeros(this.maxSize) - Integer.numberOfTrailingZeros(minSize) + 1;
+        heapClasses = new ArrayBlockingQueue[classes];
+        directClasses = new ArrayBlockingQueue[classes];
+        for (int i = 0; i < classes; i++) {
+            heapClasses[i] = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, maxPerClass));
+            directClasses[i] = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, maxPerClass));
+        }
+        gzipInflaters = new ArrayBlockingQueue<Inflater>(Math.max(1, maxPerClass));
+        zlibInflaters = new ArrayBlockingQueue<Inflater>(Math.max(1, maxPerClass));
+    }
+
+    /**
+     * @return a pool of heap buffers with the default sizes
+     */
+    public static BufferPool heap() {
+        return heap(DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_MAX_PER_CLASS);
+    }
+
+    /**
+     * @param minSize size of the smallest buffers, a power of two
+     * @param maxSize size of the largest pooled buffers
+     * @param maxPerClass maximum number of idle buffers kept per size
+     * @return a pool of heap buffers
+     */
+    public static BufferPool heap(int minSize, int maxSize, int maxPerClass) {
+        return new BufferPool(false, minSize, maxSize, maxPerClass);
+    }
+
+    /**
+     * @return a pool of direct buffers with the default sizes
+     */
+    public static BufferPool direct() {
+        return direct(DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_MAX_PER_CLASS);
+    }
+
+    /**
+     * Direct buffers save a copy when bodies are read from or written to channels, e.g. by the
+     * {@link HttpClientBuilder.Engine#NIO} engine. Code that needs a byte array, such as decompression, still gets heap
+     * buffers from the pool.
+     *
+     * @param minSize size of the smallest buffers, a power of two
+     * @param maxSize size of the largest pooled buffers
+     * @param maxPerClass maximum number of idle buffers kept per size
+     * @return a pool of direct buffers
+     */
+    public static BufferPool direct(int minSize, int maxSize, int maxPerClass) {
+        return new BufferPool(true, minSize, maxSize, maxPerClass);
+    }
+
+    /**
+     * @param enabled remember where outstanding buffers were acquired. This is meant for tests; it costs a stack
+     *            trace for every buffer.
+     * @return the pool
+     */
+    public BufferPool leakDetection(boolean enabled) {
+        this.leakDetection = enabled;
+        return this;
+    }
+
+    /**
+     * @param size minimum capacity
+     * @return a cleared buffer of at least the size, direct if this is a direct pool
+     */
+    public ByteBuffer acquire(int size) {
+        return acquire(size, direct);
+    }
+
+    /**
+     * @param size minimum capacity
+     * @return a cleared heap buffer of at least the size
+     */
+    public ByteBuffer acquireHeap(int size) {
+        return acquire(size, false);
+    }
+
+    private ByteBuffer acquire(int size, boolean directBuffer) {
+        acquired.increment();
+        int index = classIndex(size);
+        ByteBuffer buffer = index < 0 ? null : (directBuffer ? directClasses : heapClasses)[index].poll();
+        if (buffer != null) {
+            reused.increment();
+            buffer.clear();
+        } else {
+            int capacity = index < 0 ? size : minSize << index;
+            allocatedBytes.add(capacity);
+            buffer = directBuffer ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        if (leakDetection) {
+            synchronized (outstanding) {
+                outstanding.put(buffer, new Throwable("buffer of " + buffer.capacity() + " bytes acquired here"));
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Return a buffer acquired from this pool. Don't use it afterwards.
+     *
+     * @param buffer
+     */
+    public void release(ByteBuffer buffer) {
+        if (leakDetection) {
+            synchronized (outstanding) {
+                outstanding.remove(buffer);
+            }
+        }
+        int index = classIndex(buffer.capacity());
+        if (maxPerClass > 0 && index >= 0 && minSize << index == buffer.capacity()) {
+            (buffer.isDirect() ? directClasses : heapClasses)[index].offer(buffer);
+        }
+    }
+
+    /**
+     * @param nowrap true for raw deflate data as in gzip, false for the zlib format
+     * @return a reset inflater
+     */
+    Inflater acquireInflater(boolean nowrap) {
+        Inflater inflater = (nowrap ? gzipInflaters : zlibInflaters).poll();
+        return inflater != null ? inflater : new Inflater(nowrap);
+    }
+
+    void releaseInflater(Inflater inflater, boolean nowrap) {
+        inflater.reset();
+        if (maxPerClass == 0 || !(nowrap ? gzipInflaters : zlibInflaters).offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    private int classIndex(int size) {
+        if (size > maxSize) {
+            return -1;
+        }
+        int rounded = size <= minSize ? minSize : Integer.highestOneBit(size - 1) << 1;
+        return Integer.numberOfTrailingZeros(rounded) - Integer.numberOfTrailingZeros(minSize);
+    }
+
+    /**
+     * @return true if the pool hands out direct buffers
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * @return number of buffers handed out
+     */
+    public long acquired() {
+        return acquired.sum();
+    }
+
+    /**
+     * @return number of buffers handed out that were reused rather than allocated
+     */
+    public long reused() {
+        return reused.sum();
+    }
+
+    /**
+     * @return bytes allocated for new buffers
+     */
+    public long allocatedBytes() {
+        return allocatedBytes.sum();
+    }
+
+    /**
+     * @return number of buffers that were acquired and not released since leak detection was turned on
+     */
+    public int outstanding() {
+        synchronized (outstanding) {
+            return outstanding.size();
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if buffers are outstanding; the cause shows where one of them was acquired
+     */
+    public void assertNoLeaks() {
+        synchronized (outstanding) {
+            if (!outstanding.isEmpty()) {
+                throw new IllegalStateException(outstanding.size() + " buffers were not released", outstanding.values().iterator().next());
+            }
+        }
+    }
+
+    /**
+     * @return a lease that keeps track of the buffers acquired for a single request
+     */
+    Lease lease() {
+        return new Lease();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool(" + (direct ? "direct" : "heap") + ", " + minSize + " to " + maxSize + " bytes, " + maxPerClass + " per size)";
+    }
+
+    /**
+     * The buffers and inflaters in use by a request. Whatever the request did not give back itself is released when
+     * it is done.
+     */
+    final class Lease {
+        /**
+         * Attribute under which the lease of a request is available in its HttpContext.
+         */
+        static final String CONTEXT_ATTRIBUTE = "com.jillesvangurp.httpclientfuture.BufferPool.Lease";
+
+        // guarded by this
+        private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        // inflaters and whether they are for gzip
+        private final Map<Inflater, Boolean> inflaters = new IdentityHashMap<Inflater, Boolean>();
+
+        ByteBuffer acquire(int size) {
+            return track(BufferPool.this.acquire(size));
+        }
+
+        ByteBuffer acquireHeap(int size) {
+            return track(BufferPool.this.acquireHeap(size));
+        }
+
+        private synchronized ByteBuffer track(ByteBuffer buffer) {
+            buffers.add(buffer);
+            return buffer;
+        }
+
+        /**
+         * Give a buffer back before the request is done.
+         */
+        void release(ByteBuffer buffer) {
+            boolean held;
+            synchronized (this) {
+                held = remove(buffer);
+            }
+            if (held) {
+                BufferPool.this.release(buffer);
+            }
+        }
+
+        synchronized Inflater acquireInflater(boolean nowrap) {
+            Inflater inflater = BufferPool.this.acquireInflater(nowrap);
+            inflaters.put(inflater, nowrap);
+            return inflater;
+        }
+
+        void releaseInflater(Inflater inflater) {
+            Boolean nowrap;
+            synchronized (this) {
+                nowrap = inflaters.remove(inflater);
+            }
+            if (nowrap != null) {
+                BufferPool.this.releaseInflater(inflater, nowrap);
+            }
+        }
+
+        /**
+         * Release everything the request still holds. May be called more than once.
+         */
+        void close() {
+            List<ByteBuffer> heldBuffers;
+            Map<Inflater, Boolean> heldInflaters;
+            synchronized (this) {
+                heldBuffers = new ArrayList<ByteBuffer>(buffers);
+                heldInflaters = new IdentityHashMap<Inflater, Boolean>(inflaters);
+                buffers.clear();
+                inflaters.clear();
+            }
+            for (ByteBuffer buffer : heldBuffers) {
+                BufferPool.this.release(buffer);
+            }
+            for (Map.Entry<Inflater, Boolean> entry : heldInflaters.entrySet()) {
+                BufferPool.this.releaseInflater(entry.getKey(), entry.getValue());
+            }
+        }
+
+        private boolean remove(ByteBuffer buffer) {
+            for (int i = 0; i < buffers.size(); i++) {
+                if (buffers.get(i) == buffer) {
+                    buffers.remove(i);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
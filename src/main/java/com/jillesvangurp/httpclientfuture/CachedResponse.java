@@ -0,0 +1,405 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpMessage;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.message.HeaderGroup;
+
+/**
+ * A response stored by the {@link ResponseCache}, with its freshness worked out as described in RFC 7234. The body is
+ * either kept on the heap or mapped from a segment of the {@link SegmentStore}. Instances are immutable apart from the
+ * links that the cache uses to order its entries; a revalidated response replaces the stale one.
+ */
+final class CachedResponse {
+    // rough size of the object, the arrays and the map entry, on top of the body and the headers
+    private static final int OVERHEAD = 128;
+
+    final String key;
+    private final StatusLine statusLine;
+    private final Header[] headers;
+    // one of these is set
+    private final byte[] body;
+    final ByteBuffer mapped;
+    private final Header contentType;
+    private final String[] varyNames;
+    private final String[] varyValues;
+
+    private final long requestTime;
+    private final long responseTime;
+    private final long correctedInitialAge;
+    private final long freshnessLifetime;
+    private final boolean noCache;
+    final String etag;
+    final String lastModified;
+    final int weight;
+
+    // guarded by the cache
+    CachedResponse previous;
+    CachedResponse next;
+    ResponseCache.Region region;
+
+    private CachedResponse(String key, StatusLine statusLine, Header[] headers, byte[] body, ByteBuffer mapped, Header contentType, String[] varyValues,
+            long requestTime, long responseTime) {
+        this.key = key;
+        this.statusLine = statusLine;
+        this.headers = headers;
+        this.body = body;
+        this.mapped = mapped;
+        this.contentType = contentType;
+        this.varyNames = elementNames(headers, HttpHeaders.VARY);
+        this.varyValues = varyValues;
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+
+        Map<String, String> cacheControl = cacheControl(headers);
+        long date = date(headers, HttpHeaders.DATE, responseTime);
+        long apparentAge = Math.max(0, responseTime - date);
+        long correctedAgeValue = seconds(firstValue(headers, HttpHeaders.AGE)) * 1000 + responseTime - requestTime;
+        correctedInitialAge = Math.max(apparentAge, correctedAgeValue);
+        freshnessLifetime = freshnessLifetime(cacheControl, headers, date);
+        noCache = cacheControl.containsKey("no-cache");
+        etag = firstValue(headers, HttpHeaders.ETAG);
+        lastModified = firstValue(headers, HttpHeaders.LAST_MODIFIED);
+
+        int size = OVERHEAD + key.length() + (body == null ? 0 : body.length);
+        for (Header header : headers) {
+            size += header.getName().length() + header.getValue().length();
+        }
+        weight = size;
+    }
+
+    /**
+     * @param key
+     * @param request
+     * @param response
+     * @param body the buffered entity of the response
+     * @param requestTime when the request was sent, in milliseconds
+     * @param responseTime when the response was received, in milliseconds
+     * @return the entry
+     */
+    static CachedResponse of(String key, HttpRequest request, HttpResponse response, byte[] body, long requestTime, long responseTime) {
+        Header contentType = response.getEntity() == null ? null : response.getEntity().getContentType();
+        Header[] headers = response.getAllHeaders();
+        return new CachedResponse(key, response.getStatusLine(), headers, body, null, contentType, varyValues(headers, request), requestTime, responseTime);
+    }
+
+    /**
+     * @param mappedBody
+     * @return a copy of this entry with a body mapped from the {@link SegmentStore}
+     */
+    CachedResponse withBody(ByteBuffer mappedBody) {
+        return new CachedResponse(key, statusLine, headers, null, mappedBody, contentType, varyValues, requestTime, responseTime);
+    }
+
+    /**
+     * @param notModified the 304 response to a conditional request for this entry
+     * @param request the conditional request
+     * @param requestTime
+     * @param responseTime
+     * @return a fresh copy of this entry with the headers updated from the 304 response
+     */
+    CachedResponse revalidated(HttpResponse notModified, HttpRequest request, long requestTime, long responseTime) {
+        HeaderGroup merged = new HeaderGroup();
+        merged.setHeaders(headers);
+        for (Header header : notModified.getAllHeaders()) {
+            if (!HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(header.getName())) {
+                for (Header stored : merged.getHeaders(header.getName())) {
+                    merged.removeHeader(stored);
+                }
+            }
+        }
+        for (Header header : notModified.getAllHeaders()) {
+            if (!HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(header.getName())) {
+                merged.addHeader(header);
+            }
+        }
+        Header[] updated = merged.getAllHeaders();
+        return new CachedResponse(key, statusLine, updated, body, mapped, contentType, varyValues(updated, request), requestTime, responseTime);
+    }
+
+    /**
+     * @return everything but the body, for the {@link SegmentStore}
+     */
+    byte[] metadata() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeLong(requestTime);
+            out.writeLong(responseTime);
+            ProtocolVersion version = statusLine.getProtocolVersion();
+            out.writeUTF(version.getProtocol());
+            out.writeInt(version.getMajor());
+            out.writeInt(version.getMinor());
+            out.writeInt(statusLine.getStatusCode());
+            writeString(out, statusLine.getReasonPhrase());
+            out.writeInt(headers.length);
+            for (Header header : headers) {
+                out.writeUTF(header.getName());
+                out.writeUTF(header.getValue());
+            }
+            writeString(out, contentType == null ? null : contentType.getValue());
+            out.writeInt(varyValues.length);
+            for (String value : varyValues) {
+                writeString(out, value);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // cannot happen with a byte array
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param key
+     * @param metadata as written by {@link #metadata()}
+     * @param body the mapped body
+     * @return the entry
+     * @throws IOException if the metadata cannot be read
+     */
+    static CachedResponse read(String key, byte[] metadata, ByteBuffer body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(metadata));
+        long requestTime = in.readLong();
+        long responseTime = in.readLong();
+        ProtocolVersion version = new ProtocolVersion(in.readUTF(), in.readInt(), in.readInt());
+        StatusLine statusLine = new BasicStatusLine(version, in.readInt(), readString(in));
+        Header[] headers = new Header[in.readInt()];
+        for (int i = 0; i < headers.length; i++) {
+            headers[i] = new BasicHeader(in.readUTF(), in.readUTF());
+        }
+        String contentType = readString(in);
+        String[] varyValues = new String[in.readInt()];
+        for (int i = 0; i < varyValues.length; i++) {
+            varyValues[i] = readString(in);
+        }
+        return new CachedResponse(key, statusLine, headers, null, body, contentType == null ? null : new BasicHeader(HttpHeaders.CONTENT_TYPE, contentType),
+                varyValues, requestTime, responseTime);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * @param now
+     * @return true if the entry can be used without asking the origin
+     */
+    boolean fresh(long now) {
+        return !noCache && freshnessLifetime > correctedInitialAge + now - responseTime;
+    }
+
+    boolean hasValidators() {
+        return etag != null || lastModified != null;
+    }
+
+    /**
+     * @param request
+     * @return true if the request has the same values for the headers the response varies on
+     */
+    boolean matches(HttpRequest request) {
+        for (int i = 0; i < varyNames.length; i++) {
+            String value = headerValue(request, varyNames[i]);
+            if (value == null ? varyValues[i] != null : !value.equals(varyValues[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a new response with a copy of the stored headers and an entity with the stored body
+     */
+    HttpResponse toResponse() {
+        BasicHttpResponse response = new BasicHttpResponse(statusLine);
+        response.setHeaders(headers);
+        AbstractHttpEntity entity = null;
+        if (mapped != null) {
+            entity = new ByteBufferEntity(mapped);
+        } else if (contentType != null || body.length > 0) {
+            entity = new ByteArrayEntity(body);
+        }
+        if (entity != null) {
+            entity.setContentType(contentType);
+            response.setEntity(entity);
+        }
+        return response;
+    }
+
+    /**
+     * @return true if the response may be stored at all: it has a cacheable status, no no-store directive and can be
+     *         matched against requests
+     */
+    static boolean storable(HttpResponse response) {
+        switch (response.getStatusLine().getStatusCode()) {
+        case 200: case 203: case 204: case 300: case 301: case 404: case 410:
+            break;
+        default:
+            return false;
+        }
+        Header[] headers = response.getAllHeaders();
+        if (cacheControl(headers).containsKey("no-store")) {
+            return false;
+        }
+        for (String name : elementNames(headers, HttpHeaders.VARY)) {
+            if ("*".equals(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param message
+     * @return the Cache-Control directives of the message by lower case name; directives without a value map to ""
+     */
+    static Map<String, String> cacheControl(HttpMessage message) {
+        return cacheControl(message.getAllHeaders());
+    }
+
+    private static Map<String, String> cacheControl(Header[] headers) {
+        Map<String, String> directives = new HashMap<String, String>();
+        for (Header header : headers) {
+            if (HttpHeaders.CACHE_CONTROL.equalsIgnoreCase(header.getName())) {
+                for (HeaderElement element : header.getElements()) {
+                    directives.put(element.getName().toLowerCase(Locale.ROOT), element.getValue() == null ? "" : element.getValue());
+                }
+            }
+        }
+        return directives;
+    }
+
+    private static long freshnessLifetime(Map<String, String> cacheControl, Header[] headers, long date) {
+        if (cacheControl.containsKey("max-age")) {
+            return seconds(cacheControl.get("max-age")) * 1000;
+        }
+        String expires = firstValue(headers, HttpHeaders.EXPIRES);
+        if (expires != null) {
+            // an invalid date such as 0 means already expired
+            return Math.max(0, date(expires, date) - date);
+        }
+        if (!cacheControl.containsKey("must-revalidate")) {
+            String lastModified = firstValue(headers, HttpHeaders.LAST_MODIFIED);
+            if (lastModified != null) {
+                // the usual heuristic: a tenth of the time since the resource was last modified
+                return Math.max(0, date - date(lastModified, date)) / 10;
+            }
+        }
+        return 0;
+    }
+
+    private static long seconds(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long date(Header[] headers, String name, long defaultValue) {
+        String value = firstValue(headers, name);
+        return value == null ? defaultValue : date(value, defaultValue);
+    }
+
+    private static long date(String value, long invalidValue) {
+        try {
+            return DateUtils.parseDate(value).getTime();
+        } catch (DateParseException e) {
+            return invalidValue;
+        }
+    }
+
+    private static String firstValue(Header[] headers, String name) {
+        for (Header header : headers) {
+            if (name.equalsIgnoreCase(header.getName())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static String[] elementNames(Header[] headers, String name) {
+        StringBuilder names = new StringBuilder();
+        for (Header header : headers) {
+            if (name.equalsIgnoreCase(header.getName())) {
+                for (HeaderElement element : header.getElements()) {
+                    names.append(element.getName().toLowerCase(Locale.ROOT)).append(',');
+                }
+            }
+        }
+        return names.length() == 0 ? new String[0] : names.toString().split(",");
+    }
+
+    private static String[] varyValues(Header[] headers, HttpRequest request) {
+        String[] names = elementNames(headers, HttpHeaders.VARY);
+        String[] values = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            values[i] = headerValue(request, names[i]);
+        }
+        return values;
+    }
+
+    private static String headerValue(HttpRequest request, String name) {
+        Header[] values = request.getHeaders(name);
+        if (values.length == 0) {
+            return null;
+        }
+        StringBuilder buf = new StringBuilder(values[0].getValue());
+        for (int i = 1; i < values.length; i++) {
+            buf.append(',').append(values[i].getValue());
+        }
+        return buf.toString();
+    }
+}
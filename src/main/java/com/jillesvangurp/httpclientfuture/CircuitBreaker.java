@@ -0,0 +1,322 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stops sending requests to a route that is failing or slow, so that callers fail fast instead of tying up threads and
+ * connections waiting for connect timeouts to a host that is down.
+ *
+ * Every route has its own circuit, also routes beyond the maximum number of routes that {@link ConnectionMetrics} keeps
+ * metrics for; those report their transitions with the "other" route. While the circuit is closed, the outcomes of the last window requests of the route
+ * are kept. Once at least minCalls requests completed, the circuit opens when the fraction of failures (exceptions and
+ * 5xx responses) or the fraction of requests slower than slowCallDuration reaches its threshold. Requests to a route
+ * with an open circuit fail right away with a {@link CircuitOpenException}. After openDuration the circuit becomes half
+ * open and lets halfOpenCalls probe requests through: if they all succeed in time the circuit closes, otherwise it opens
+ * again. Requests that were cancelled or lost a hedging race don't count. A circuit that is closed, or open for longer
+ * than openDuration, and that saw no requests for a minute may be forgotten; the route then starts with a closed
+ * circuit.
+ *
+ * Attach the breaker with {@link HttpClientWithFuture#circuitBreaker(CircuitBreaker)}; use one breaker per client.
+ * Transitions are reported to {@link HttpClientTaskLifecycleCallback#circuitStateChanged(RouteMetrics, State, State)}
+ * of the request that caused them, the state of each route by {@link RouteMetrics#circuitState()} and the number of
+ * rejected requests by {@link ConnectionMetrics}.
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private double failureRateThreshold = 0.5;
+    private double slowCallRateThreshold = 0.8;
+    private long slowCallNanos = TimeUnit.SECONDS.toNanos(2);
+    private int window = 100;
+    private int minCalls = 20;
+    private long openNanos = TimeUnit.SECONDS.toNanos(10);
+    private int halfOpenCalls = 5;
+    // circuits that are unused for this long may be dropped
+    long idleNanos = TimeUnit.MINUTES.toNanos(1);
+    final RouteTable<Circuit> circuits = new RouteTable<>(k -> new Circuit(window), this::evict);
+
+    public static CircuitBreaker circuitBreaker() {
+        return new CircuitBreaker();
+    }
+
+    /**
+     * @param threshold open the circuit when at least this fraction of the requests in the window failed, default 0.5
+     * @return the breaker
+     */
+    public CircuitBreaker failureRateThreshold(double threshold) {
+        if (threshold <= 0 || threshold > 1) {
+            throw new IllegalArgumentException("threshold should be larger than 0 and at most 1");
+        }
+        this.failureRateThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * @param threshold open the circuit when at least this fraction of the requests in the window was slow, default 0.8
+     * @param duration requests that take at least this long are slow, default 2 seconds
+     * @param timeUnit
+     * @return the breaker
+     */
+    public CircuitBreaker slowCalls(double threshold, long duration, TimeUnit timeUnit) {
+        if (threshold <= 0 || threshold > 1) {
+            throw new IllegalArgumentException("threshold should be larger than 0 and at most 1");
+        }
+        this.slowCallRateThreshold = threshold;
+        this.slowCallNanos = timeUnit.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * @param window number of most recent requests of a route the rates are computed over, default 100
+     * @param minCalls the circuit does not open before this many requests completed, default 20
+     * @return the breaker
+     */
+    public CircuitBreaker window(int window, int minCalls) {
+        if (minCalls < 1 || window < minCalls) {
+            throw new IllegalArgumentException("window should satisfy 1 <= minCalls <= window");
+        }
+        this.window = window;
+        this.minCalls = minCalls;
+        return this;
+    }
+
+    /**
+     * @param duration how long the circuit stays open before probe requests are let through, default 10 seconds
+     * @param timeUnit
+     * @return the breaker
+     */
+    public CircuitBreaker openDuration(long duration, TimeUnit timeUnit) {
+        this.openNanos = timeUnit.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * @param calls number of probe requests let through while the circuit is half open, default 5
+     * @return the breaker
+     */
+    public CircuitBreaker halfOpenCalls(int calls) {
+        if (calls < 1) {
+            throw new IllegalArgumentException("calls should be at least 1");
+        }
+        this.halfOpenCalls = calls;
+        return this;
+    }
+
+    /**
+     * @param circuit the {@link #circuit(String, RouteMetrics)} of the route of the request
+     * @return the generation of the circuit the request was admitted in, to be passed to
+     *         {@link #release(Circuit, RouteMetrics, long, long, int, boolean, HttpClientTaskLifecycleCallback, ConnectionMetrics)},
+     *         or -1 if the circuit of the route is open
+     */
+    long acquire(Circuit circuit, RouteMetrics route, HttpClientTaskLifecycleCallback callback, ConnectionMetrics metrics) {
+        circuit.used();
+        // read the generation first; if the circuit changes state in between, the sample is ignored on release
+        long generation = circuit.generation;
+        if (circuit.state == State.CLOSED) {
+            return generation;
+        }
+        State from = null;
+        synchronized (circuit) {
+            if (circuit.state == State.OPEN && System.nanoTime() - circuit.openedAt >= openNanos) {
+                from = transition(circuit, State.HALF_OPEN);
+            }
+            if (circuit.state == State.CLOSED) {
+                generation = circuit.generation;
+            } else if (circuit.state == State.HALF_OPEN && circuit.probes < halfOpenCalls) {
+                circuit.probes++;
+                generation = circuit.generation;
+            } else {
+                generation = -1;
+            }
+        }
+        if (from != null) {
+            changed(route, from, State.HALF_OPEN, callback, metrics);
+        }
+        if (generation < 0) {
+            circuit.rejected.increment();
+            metrics.rejectedByCircuit.increment();
+        }
+        return generation;
+    }
+
+    /**
+     * Called once for every request that was admitted.
+     *
+     * @param sample false if the outcome says nothing about the route, e.g. because the request was cancelled
+     */
+    void release(Circuit circuit, RouteMetrics route, long generation, long latencyNanos, int statusCode, boolean sample, HttpClientTaskLifecycleCallback callback,
+            ConnectionMetrics metrics) {
+        State from = null;
+        State to;
+        circuit.used();
+        synchronized (circuit) {
+            if (generation != circuit.generation) {
+                // admitted before the last transition
+                return;
+            }
+            StatusClass statusClass = StatusClass.of(statusCode);
+            boolean failed = statusClass == StatusClass.EXCEPTION || statusClass == StatusClass.SERVER_ERROR;
+            boolean slow = latencyNanos >= slowCallNanos;
+            if (circuit.state == State.HALF_OPEN) {
+                if (!sample) {
+                    circuit.probes--;
+                } else if (failed || slow) {
+                    from = transition(circuit, State.OPEN);
+                } else if (++circuit.probesSucceeded >= halfOpenCalls) {
+                    from = transition(circuit, State.CLOSED);
+                }
+            } else if (circuit.state == State.CLOSED && sample) {
+                circuit.record(failed, slow);
+                if (circuit.calls >= minCalls
+                        && (circuit.failures >= failureRateThreshold * circuit.calls || circuit.slowCalls >= slowCallRateThreshold * circuit.calls)) {
+                    from = transition(circuit, State.OPEN);
+                }
+            }
+            to = circuit.state;
+        }
+        if (from != null) {
+            changed(route, from, to, callback, metrics);
+        }
+    }
+
+    private State transition(Circuit circuit, State to) {
+        State from = circuit.state;
+        circuit.generation++;
+        circuit.state = to;
+        circuit.reset();
+        if (to == State.OPEN) {
+            circuit.openedAt = System.nanoTime();
+        }
+        return from;
+    }
+
+    private static void changed(RouteMetrics route, State from, State to, HttpClientTaskLifecycleCallback callback, ConnectionMetrics metrics) {
+        if (to == State.OPEN) {
+            metrics.circuitsOpened.increment();
+        }
+        callback.circuitStateChanged(route, from, to);
+    }
+
+    /**
+     * @param key the {@link RouteMetrics#key(java.net.URI)} of the route
+     * @param route the metrics of the route; routes with metrics of their own report the state of their circuit
+     * @return the circuit of the route
+     */
+    Circuit circuit(String key, RouteMetrics route) {
+        Circuit circuit = circuits.get(key);
+        if (route.host != null && route.circuit != circuit) {
+            route.circuit = circuit;
+        }
+        return circuit;
+    }
+
+    private boolean evict(Circuit circuit) {
+        long now = System.nanoTime();
+        synchronized (circuit) {
+            return now - circuit.lastUsed >= idleNanos
+                    && (circuit.state == State.CLOSED || circuit.state == State.OPEN && now - circuit.openedAt >= openNanos);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker(failure rate " + failureRateThreshold + ", slow call rate " + slowCallRateThreshold + " over "
+                + TimeUnit.NANOSECONDS.toMillis(slowCallNanos) + "ms, window " + window + "/" + minCalls + ", open "
+                + TimeUnit.NANOSECONDS.toMillis(openNanos) + "ms, half open calls " + halfOpenCalls + ")";
+    }
+
+    /**
+     * State of the circuit of one route. Guarded by its own monitor; state and generation are read without it on the
+     * fast path.
+     */
+    static final class Circuit {
+        private static final byte FAILED = 1;
+        private static final byte SLOW = 2;
+        private static final long USED_GRANULARITY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        volatile State state = State.CLOSED;
+        // incremented on every transition so that outcomes of requests admitted earlier are ignored
+        volatile long generation;
+        long openedAt;
+
+        // outcomes of the last requests while closed, as a ring buffer
+        private final byte[] outcomes;
+        private int next;
+        int calls;
+        int failures;
+        int slowCalls;
+
+        // probes admitted and succeeded while half open
+        int probes;
+        int probesSucceeded;
+
+        final LongAdder rejected = new LongAdder();
+
+        // updated at most once a second, so that requests don't all write to the circuit
+        volatile long lastUsed = System.nanoTime();
+
+        Circuit(int window) {
+            outcomes = new byte[window];
+        }
+
+        void used() {
+            long now = System.nanoTime();
+            if (now - lastUsed >= USED_GRANULARITY_NANOS) {
+                lastUsed = now;
+            }
+        }
+
+        void record(boolean failed, boolean slow) {
+            if (calls == outcomes.length) {
+                byte oldest = outcomes[next];
+                failures -= oldest & FAILED;
+                slowCalls -= (oldest & SLOW) >> 1;
+            } else {
+                calls++;
+            }
+            byte outcome = (byte) ((failed ? FAILED : 0) | (slow ? SLOW : 0));
+            outcomes[next] = outcome;
+            failures += outcome & FAILED;
+            slowCalls += (outcome & SLOW) >> 1;
+            next = (next + 1) % outcomes.length;
+        }
+
+        void reset() {
+            next = 0;
+            calls = 0;
+            failures = 0;
+            slowCalls = 0;
+            probes = 0;
+            probesSucceeded = 0;
+        }
+
+        @Override
+        public String toString() {
+            return state + ", " + failures + " failed and " + slowCalls + " slow of " + calls;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Fails a request without sending it because the {@link CircuitBreaker} of its route is open. It is a
+ * {@link RejectedExecutionException}, so code that already handles requests the client could not take keeps working.
+ */
+public class CircuitOpenException extends RejectedExecutionException {
+    private static final long serialVersionUID = 1L;
+
+    private final transient RouteMetrics route;
+
+    public CircuitOpenException(RouteMetrics route) {
+        this(route, route.toString());
+    }
+
+    /**
+     * @param route the metrics of the route, which may be the "other" route
+     * @param key the route itself
+     */
+    CircuitOpenException(RouteMetrics route, String key) {
+        super("circuit open for " + key);
+        this.route = route;
+    }
+
+    /**
+     * @return the route of the open circuit
+     */
+    public RouteMetrics route() {
+        return route;
+    }
+}
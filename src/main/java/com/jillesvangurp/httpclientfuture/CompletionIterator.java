@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Hands out the tasks of a batch of requests in the order in which they complete, so that you can process the fast
+ * responses while the slow ones are still outstanding. Every task is handed out exactly once and is done when it is,
+ * so calling get() on it does not block.
+ *
+ * When the deadline of the batch passes, or the thread waiting in {@link #next()} is interrupted, the requests that are
+ * still outstanding are cancelled and handed out as cancelled tasks. Closing the iterator cancels them as well, so use
+ * it with try-with-resources if you may stop iterating early.
+ *
+ * Get one with {@link HttpClientWithFuture#executeInCompletionOrder(org.apache.http.protocol.HttpContext, long, TimeUnit,
+ * org.apache.http.client.methods.HttpRequestBase...)}.
+ *
+ * @param <T> the type of the value returned by the response handler of the client
+ */
+public final class CompletionIterator<T> implements Iterator<HttpClientFutureTask<T>>, Closeable {
+    private final List<HttpClientFutureTask<T>> tasks;
+    private final LinkedBlockingQueue<HttpClientFutureTask<T>> completed = new LinkedBlockingQueue<>();
+    private final long deadline;
+    private int remaining;
+
+    /**
+     * @param deadline System.nanoTime() after which outstanding requests are cancelled, or -1 to wait for all of them
+     */
+    CompletionIterator(List<HttpClientFutureTask<T>> tasks, long deadline) {
+        this.tasks = tasks;
+        this.deadline = deadline;
+        this.remaining = tasks.size();
+        for (HttpClientFutureTask<T> task : tasks) {
+            task.toCompletableFuture().whenComplete((result, failure) -> completed.add(task));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return remaining > 0;
+    }
+
+    /**
+     * Waits for the next request to complete.
+     *
+     * @return a task that is done
+     */
+    @Override
+    public HttpClientFutureTask<T> next() {
+        if (remaining == 0) {
+            throw new NoSuchElementException();
+        }
+        HttpClientFutureTask<T> task = completed.poll();
+        if (task == null) {
+            try {
+                if (deadline > 0) {
+                    task = completed.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } else {
+                    task = completed.take();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (task == null) {
+                // deadline passed or interrupted
+                close();
+                task = takeUninterruptibly();
+            }
+        }
+        remaining--;
+        return task;
+    }
+
+    /**
+     * All tasks are done once they are cancelled, but one that was completing concurrently may not have been handed to
+     * the queue yet.
+     */
+    private HttpClientFutureTask<T> takeUninterruptibly() {
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (true) {
+                try {
+                    return completed.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the remaining tasks as a sequential stream in completion order
+     */
+    public Stream<HttpClientFutureTask<T>> stream() {
+        return StreamSupport.stream(Spliterators.spliterator(this, remaining, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Cancel the requests that have not completed yet.
+     */
+    @Override
+    public void close() {
+        for (HttpClientFutureTask<T> task : tasks) {
+            if (!task.isDone()) {
+                task.cancel(true);
+            }
+        }
+    }
+}
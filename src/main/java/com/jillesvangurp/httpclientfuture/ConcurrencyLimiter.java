@@ -0,0 +1,254 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adapts the number of requests in flight per route to the latency and errors of that route, so that you don't have to
+ * guess the right number of connections and threads up front. Requests over the limit of their route wait in a per
+ * route queue until a request of that route finishes, or are rejected right away if the queue is full.
+ *
+ * The limit follows an additive increase, multiplicative decrease scheme. Every request that completes within
+ * tolerance times the lowest latency seen for the route raises the limit by about one per round trip, as long as the
+ * limit is actually used. Slower requests, exceptions, 5xx and 429 responses lower it by the backoff ratio.
+ *
+ * Configure the limiter fluently and attach it with {@link HttpClientWithFuture#concurrencyLimiter(ConcurrencyLimiter)}.
+ * The current limit of each route is reported by {@link RouteMetrics#concurrencyLimit()}. Routes beyond the maximum
+ * number of routes that {@link ConnectionMetrics} keeps metrics for still have limits of their own; they are just not
+ * reported. The limit of a route that had no requests for a minute may be forgotten, after which the route starts
+ * over at the initial limit.
+ */
+public class ConcurrencyLimiter {
+    private int initialLimit = 20;
+    private int minLimit = 1;
+    private int maxLimit = 1000;
+    private double backoffRatio = 0.9;
+    private double tolerance = 2.0;
+    private int maxQueued = Integer.MAX_VALUE;
+    private int minLatencyWindow = 1000;
+    // limits that are unused for this long may be dropped
+    long idleNanos = TimeUnit.MINUTES.toNanos(1);
+    final RouteTable<Limit> limits = new RouteTable<>(k -> new Limit(initialLimit), this::evict);
+
+    public static ConcurrencyLimiter limiter() {
+        return new ConcurrencyLimiter();
+    }
+
+    /**
+     * @param initial limit of a route before any requests completed
+     * @param min the limit never drops below this
+     * @param max the limit never grows beyond this
+     * @return the limiter
+     */
+    public ConcurrencyLimiter limits(int initial, int min, int max) {
+        if (min < 1 || initial < min || max < initial) {
+            throw new IllegalArgumentException("limits should satisfy 1 <= min <= initial <= max");
+        }
+        initialLimit = initial;
+        minLimit = min;
+        maxLimit = max;
+        return this;
+    }
+
+    /**
+     * @param backoffRatio the limit is multiplied with this when a request is slow or fails, default 0.9
+     * @return the limiter
+     */
+    public ConcurrencyLimiter backoffRatio(double backoffRatio) {
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("backoffRatio should be between 0 and 1");
+        }
+        this.backoffRatio = backoffRatio;
+        return this;
+    }
+
+    /**
+     * @param tolerance requests that take longer than tolerance times the lowest latency of the route count as slow,
+     *            default 2
+     * @return the limiter
+     */
+    public ConcurrencyLimiter tolerance(double tolerance) {
+        if (tolerance < 1) {
+            throw new IllegalArgumentException("tolerance should be at least 1");
+        }
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    /**
+     * @param maxQueued maximum number of requests per route waiting for the limit; use 0 to reject requests over the
+     *            limit right away. Unbounded by default.
+     * @return the limiter
+     */
+    public ConcurrencyLimiter maxQueued(int maxQueued) {
+        this.maxQueued = maxQueued;
+        return this;
+    }
+
+    /**
+     * @param samples the lowest latency of a route is forgotten after this many requests, so that the limiter adapts
+     *            when the baseline latency of a route changes, default 1000
+     * @return the limiter
+     */
+    public ConcurrencyLimiter minLatencyWindow(int samples) {
+        this.minLatencyWindow = samples;
+        return this;
+    }
+
+    /**
+     * Dispatches the request if its route is below its limit, queues it otherwise or fails the task if the queue is
+     * full.
+     */
+    void submit(String routeKey, RouteMetrics route, PendingRequest pending) {
+        Limit limit;
+        while (true) {
+            limit = limit(routeKey, route);
+            synchronized (limit) {
+                if (!limit.evicted) {
+                    limit.lastUsed = System.nanoTime();
+                    break;
+                }
+            }
+        }
+        synchronized (limit) {
+            if (limit.inFlight < (int) limit.limit) {
+                limit.inFlight++;
+                pending.callable.acquiredPermit(this, limit);
+            } else if (limit.queue.size() < maxQueued) {
+                limit.queue.add(pending);
+                return;
+            } else {
+                limit.rejected.increment();
+                pending.task.fail(new RejectedExecutionException("concurrency limit of " + (int) limit.limit + " reached for "
+                        + (routeKey != null ? routeKey : route)));
+                return;
+            }
+        }
+        pending.dispatch.run();
+    }
+
+    /**
+     * Called once for every request that acquired a permit.
+     *
+     * @param sample false if the request did not run, e.g. because it was cancelled before it started
+     */
+    void release(Limit limit, long latencyNanos, int statusCode, boolean sample) {
+        ArrayDeque<PendingRequest> runnable = null;
+        synchronized (limit) {
+            limit.inFlight--;
+            if (sample) {
+                adjust(limit, latencyNanos, statusCode);
+            }
+            while (limit.inFlight < (int) limit.limit && !limit.queue.isEmpty()) {
+                PendingRequest pending = limit.queue.poll();
+                if (pending.task.isDone()) {
+                    continue;
+                }
+                limit.inFlight++;
+                pending.callable.acquiredPermit(this, limit);
+                if (runnable == null) {
+                    runnable = new ArrayDeque<PendingRequest>();
+                }
+                runnable.add(pending);
+            }
+        }
+        if (runnable != null) {
+            for (PendingRequest pending : runnable) {
+                try {
+                    pending.dispatch.run();
+                } catch (RejectedExecutionException e) {
+                    pending.task.fail(e);
+                }
+            }
+        }
+    }
+
+    private void adjust(Limit limit, long latencyNanos, int statusCode) {
+        if (limit.samples++ >= minLatencyWindow) {
+            limit.samples = 0;
+            limit.minLatency = Long.MAX_VALUE;
+        }
+        StatusClass statusClass = StatusClass.of(statusCode);
+        boolean dropped = statusClass == StatusClass.EXCEPTION || statusClass == StatusClass.SERVER_ERROR || statusCode == 429;
+        if (!dropped && latencyNanos < limit.minLatency) {
+            limit.minLatency = latencyNanos;
+        }
+        if (dropped || latencyNanos > limit.minLatency * tolerance) {
+            limit.limit = Math.max(minLimit, limit.limit * backoffRatio);
+        } else if (limit.inFlight + 1 >= limit.limit / 2) {
+            // only grow when the limit is actually used, otherwise it drifts up to the maximum when load is low
+            limit.limit = Math.min(maxLimit, limit.limit + 1 / limit.limit);
+        }
+    }
+
+    Limit limit(String routeKey, RouteMetrics route) {
+        // requests without a host all end up in the "other" route
+        Limit limit = limits.get(routeKey != null ? routeKey : route.name());
+        if (route.host != null && route.limit != limit) {
+            route.limit = limit;
+        }
+        return limit;
+    }
+
+    private boolean evict(Limit limit) {
+        synchronized (limit) {
+            if (limit.inFlight == 0 && limit.queue.isEmpty() && System.nanoTime() - limit.lastUsed >= idleNanos) {
+                limit.evicted = true;
+            }
+            return limit.evicted;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrencyLimiter(limits " + initialLimit + "/" + minLimit + "/" + maxLimit + ", backoff " + backoffRatio + ", tolerance " + tolerance
+                + ", min latency window " + minLatencyWindow + ", max queued " + maxQueued + ")";
+    }
+
+    /**
+     * State of the limit of one route. Guarded by its own monitor.
+     */
+    static final class Limit {
+        volatile double limit;
+        volatile int inFlight;
+        long minLatency = Long.MAX_VALUE;
+        int samples;
+        final ArrayDeque<PendingRequest> queue = new ArrayDeque<PendingRequest>();
+        final LongAdder rejected = new LongAdder();
+        long lastUsed = System.nanoTime();
+        // set when the limit was dropped; requests that still found it look up the new one
+        boolean evicted;
+
+        Limit(int initialLimit) {
+            limit = initialLimit;
+        }
+
+        @Override
+        public String toString() {
+            return "limit " + (int) limit + ", in flight " + inFlight + ", min latency " + TimeUnit.NANOSECONDS.toMicros(minLatency) + "us";
+        }
+    }
+}
@@ -21,15 +21,33 @@
  */
 package com.jillesvangurp.httpclientfuture;
 
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
 
 import com.jillesvangurp.metrics.Countable;
 import com.jillesvangurp.metrics.CounterRegistry;
 import com.jillesvangurp.metrics.DurationCounter;
+import com.jillesvangurp.metrics.HistogramSnapshot;
 
+/**
+ * Metrics for the requests executed by a {@link HttpClientWithFuture}. Besides the totals, requests are broken down by
+ * route (scheme, host and port) and by {@link StatusClass}. The number of routes is bounded; requests for routes
+ * beyond the maximum are counted in a single "other" route.
+ */
 public class ConnectionMetrics {
+    public static final int DEFAULT_MAX_ROUTES = 64;
+
     enum Counters implements Countable {
-        activeConnections,scheduledConnections,successfulConnections,failedConnections,totalConnections,requests,tasks;
+        activeConnections,scheduledConnections,successfulConnections,failedConnections,totalConnections,requests,tasks,poolLeaseWait,shedRequests,expiredRequests,hedgesSent,hedgesWon,coalescedRequests,cacheHits,cacheMisses,cacheRevalidations,retries,retryBudgetExhausted,circuitsOpened,rejectedByCircuit,throttledRequests,rateLimitedRequests,throttleWait;
     }
 
     final AtomicLong activeConnections;
@@ -38,24 +56,450 @@ public class ConnectionMetrics {
     final DurationCounter failedConnections;
     final DurationCounter requests;
     final DurationCounter tasks;
+    final DurationCounter poolLeaseWait;
+    final LongAdder shedRequests;
+    final LongAdder expiredRequests;
+    final LongAdder hedgesSent;
+    final LongAdder hedgesWon;
+    final LongAdder coalescedRequests;
+    final LongAdder cacheHits;
+    final LongAdder cacheMisses;
+    final LongAdder cacheRevalidations;
+    final LongAdder retries;
+    final LongAdder retryBudgetExhausted;
+    final LongAdder circuitsOpened;
+    final LongAdder rejectedByCircuit;
+    final LongAdder throttledRequests;
+    final LongAdder rateLimitedRequests;
+    final DurationCounter throttleWait;
+    private volatile ResponseCache responseCache;
+    private volatile RequestQueue requestQueue;
+    private volatile ConnPoolControl<HttpRoute> pool;
+    private static final RequestPhase[] PHASES = RequestPhase.values();
+
+    // indexed by RequestPhase.ordinal()
+    final DurationCounter[] phases = new DurationCounter[PHASES.length];
+
+    private static final StatusClass[] STATUS_CLASSES = StatusClass.values();
+
+    // indexed by StatusClass.ordinal()
+    final DurationCounter[] statusClasses = new DurationCounter[STATUS_CLASSES.length];
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    // time from scheduling until the request started, indexed by Priority.ordinal()
+    final DurationCounter[] priorityWaits = new DurationCounter[PRIORITIES.length];
+
+    // routes by host; the few routes sharing a host are told apart by scheme and port. Arrays are copied on write.
+    private final ConcurrentHashMap<String, RouteMetrics[]> routes = new ConcurrentHashMap<>();
+    private final RouteMetrics otherRoute = new RouteMetrics(null, null, -1);
+    private final int maxRoutes;
+    private int routeCount;
 
     public ConnectionMetrics(CounterRegistry counterRegistry) {
+        this(counterRegistry, DEFAULT_MAX_ROUTES);
+    }
+
+    /**
+     * @param counterRegistry
+     * @param maxRoutes maximum number of routes that get their own metrics
+     */
+    public ConnectionMetrics(CounterRegistry counterRegistry, int maxRoutes) {
+        this.maxRoutes = maxRoutes;
         activeConnections = counterRegistry.getCounter(Counters.activeConnections);
         scheduledConnections = counterRegistry.getCounter(Counters.scheduledConnections);
         successfulConnections = counterRegistry.getDurationCounter(Counters.successfulConnections);
         failedConnections = counterRegistry.getDurationCounter(Counters.failedConnections);
         requests = counterRegistry.getDurationCounter(Counters.requests);
         tasks = counterRegistry.getDurationCounter(Counters.tasks);
+        poolLeaseWait = counterRegistry.getDurationCounter(Counters.poolLeaseWait);
+        shedRequests = counterRegistry.getStripedCounter(Counters.shedRequests);
+        expiredRequests = counterRegistry.getStripedCounter(Counters.expiredRequests);
+        hedgesSent = counterRegistry.getStripedCounter(Counters.hedgesSent);
+        hedgesWon = counterRegistry.getStripedCounter(Counters.hedgesWon);
+        coalescedRequests = counterRegistry.getStripedCounter(Counters.coalescedRequests);
+        cacheHits = counterRegistry.getStripedCounter(Counters.cacheHits);
+        cacheMisses = counterRegistry.getStripedCounter(Counters.cacheMisses);
+        cacheRevalidations = counterRegistry.getStripedCounter(Counters.cacheRevalidations);
+        retries = counterRegistry.getStripedCounter(Counters.retries);
+        retryBudgetExhausted = counterRegistry.getStripedCounter(Counters.retryBudgetExhausted);
+        circuitsOpened = counterRegistry.getStripedCounter(Counters.circuitsOpened);
+        rejectedByCircuit = counterRegistry.getStripedCounter(Counters.rejectedByCircuit);
+        throttledRequests = counterRegistry.getStripedCounter(Counters.throttledRequests);
+        rateLimitedRequests = counterRegistry.getStripedCounter(Counters.rateLimitedRequests);
+        throttleWait = counterRegistry.getDurationCounter(Counters.throttleWait);
+        for (RequestPhase phase : PHASES) {
+            phases[phase.ordinal()] = counterRegistry.getDurationCounter(phase);
+        }
+        for (StatusClass statusClass : STATUS_CLASSES) {
+            statusClasses[statusClass.ordinal()] = new DurationCounter();
+        }
+        for (Priority priority : PRIORITIES) {
+            priorityWaits[priority.ordinal()] = new DurationCounter();
+        }
+    }
+
+    /**
+     * Looks up the metrics for the route of the uri, creating them if needed. Requests resolve their route once when
+     * they are scheduled so that recording their metrics does not need any further lookups.
+     *
+     * @param uri
+     * @return the metrics for the route of the uri, or the "other" route if there are already maxRoutes routes or the
+     *         uri has no host
+     */
+    public RouteMetrics route(URI uri) {
+        String host = uri.getHost();
+        String scheme = uri.getScheme();
+        if (host == null || scheme == null) {
+            return otherRoute;
+        }
+        int port = uri.getPort();
+        if (port < 0) {
+            port = "https".equalsIgnoreCase(scheme) ? 443 : 80;
+        }
+        RouteMetrics route = find(routes.get(host), scheme, port);
+        if (route != null) {
+            return route;
+        }
+        synchronized (routes) {
+            RouteMetrics[] existing = routes.get(host);
+            route = find(existing, scheme, port);
+            if (route != null) {
+                return route;
+            }
+            if (routeCount >= maxRoutes) {
+                return otherRoute;
+            }
+            route = new RouteMetrics(scheme.toLowerCase(), host, port);
+            RouteMetrics[] updated = existing == null ? new RouteMetrics[1] : Arrays.copyOf(existing, existing.length + 1);
+            updated[updated.length - 1] = route;
+            routes.put(host, updated);
+            routeCount++;
+            return route;
+        }
+    }
+
+    /**
+     * Report the occupancy of the connection pool. Pools created by {@link HttpClientBuilder} also report how long
+     * requests wait to lease a connection.
+     *
+     * @param pool
+     */
+    void pool(ConnPoolControl<HttpRoute> pool) {
+        this.pool = pool;
+        if (pool instanceof InstrumentedPool) {
+            ((InstrumentedPool) pool).recordLeaseWaits(poolLeaseWait);
+        }
+    }
+
+    void requestQueue(RequestQueue requestQueue) {
+        this.requestQueue = requestQueue;
+    }
+
+    /**
+     * @return number of requests waiting in the {@link RequestQueue}, 0 if the client has none
+     */
+    public int queuedRequests() {
+        RequestQueue queue = requestQueue;
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * @param priority
+     * @return number of requests of the priority class waiting in the {@link RequestQueue}, 0 if the client has none
+     */
+    public int queuedRequests(Priority priority) {
+        RequestQueue queue = requestQueue;
+        return queue == null ? 0 : queue.size(priority);
+    }
+
+    /**
+     * @param priority
+     * @return distribution of the time requests of the priority class waited before they started in nanoseconds
+     */
+    public HistogramSnapshot queueLatencies(Priority priority) {
+        return priorityWaits[priority.ordinal()].histogram();
+    }
+
+    /**
+     * @return number of requests that were shed because the {@link RequestQueue} was full
+     */
+    public long shedRequests() {
+        return shedRequests.sum();
+    }
+
+    /**
+     * @return number of requests that were dropped because their deadline passed before they started
+     */
+    public long expiredRequests() {
+        return expiredRequests.sum();
+    }
+
+    /**
+     * @return number of hedged copies of requests sent by the {@link HedgingPolicy}
+     */
+    public long hedgesSent() {
+        return hedgesSent.sum();
+    }
+
+    /**
+     * @return number of hedged copies that responded before the original request
+     */
+    public long hedgesWon() {
+        return hedgesWon.sum();
+    }
+
+    /**
+     * @return number of requests that shared the execution of an identical request that was already in flight
+     */
+    public long coalescedRequests() {
+        return coalescedRequests.sum();
+    }
+
+    /**
+     * @return number of retries scheduled by the {@link RetryPolicy}
+     */
+    public long retries() {
+        return retries.sum();
+    }
+
+    /**
+     * @return number of failed requests that were not retried because the retry budget was exhausted
+     */
+    public long retryBudgetExhausted() {
+        return retryBudgetExhausted.sum();
+    }
+
+    /**
+     * @return number of times the {@link CircuitBreaker} opened the circuit of a route
+     */
+    public long circuitsOpened() {
+        return circuitsOpened.sum();
+    }
+
+    /**
+     * @return number of requests failed without sending them because the circuit of their route was open
+     */
+    public long rejectedByCircuit() {
+        return rejectedByCircuit.sum();
+    }
+
+    /**
+     * @return number of requests the {@link RateLimiter} delayed to stay within the rate of their route
+     */
+    public long throttledRequests() {
+        return throttledRequests.sum();
+    }
+
+    /**
+     * @return number of requests the {@link RateLimiter} rejected because they would have had to wait too long
+     */
+    public long rateLimitedRequests() {
+        return rateLimitedRequests.sum();
+    }
+
+    /**
+     * @return distribution of the delays of throttled requests in nanoseconds; they are also part of the queue wait
+     */
+    public HistogramSnapshot throttleLatencies() {
+        return throttleWait.histogram();
+    }
+
+    void responseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * @return number of requests that were answered with a fresh response from the {@link ResponseCache}
+     */
+    public long cacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * @return number of cacheable requests for which the {@link ResponseCache} had no usable response
+     */
+    public long cacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    /**
+     * @return number of conditional requests sent to revalidate a stale response in the {@link ResponseCache}
+     */
+    public long cacheRevalidations() {
+        return cacheRevalidations.sum();
+    }
+
+    /**
+     * @return size of the responses in the {@link ResponseCache}, 0 if the client has none
+     */
+    public long cachedBytes() {
+        ResponseCache cache = responseCache;
+        return cache == null ? 0 : cache.bytes();
+    }
+
+    /**
+     * @return leased, pending, available and maximum connections of the whole pool, or null if the client does not
+     *         use a pooling connection manager
+     */
+    public PoolStats poolStats() {
+        ConnPoolControl<HttpRoute> currentPool = pool;
+        return currentPool == null ? null : currentPool.getTotalStats();
+    }
+
+    /**
+     * @param route
+     * @return leased, pending, available and maximum connections for the route, or null if the client does not use a
+     *         pooling connection manager or the route is the "other" route
+     */
+    public PoolStats poolStats(RouteMetrics route) {
+        ConnPoolControl<HttpRoute> currentPool = pool;
+        if (currentPool == null || route.poolRoutes.length == 0) {
+            return null;
+        }
+        int leased = 0, pending = 0, available = 0, max = 0;
+        for (HttpRoute poolRoute : route.poolRoutes) {
+            PoolStats stats = currentPool.getStats(poolRoute);
+            leased += stats.getLeased();
+            pending += stats.getPending();
+            available += stats.getAvailable();
+            max = Math.max(max, stats.getMax());
+        }
+        return new PoolStats(leased, pending, available, max);
+    }
+
+    /**
+     * @return distribution of the time requests waited to lease a connection from the pool in nanoseconds
+     */
+    public HistogramSnapshot poolLeaseLatencies() {
+        return poolLeaseWait.histogram();
+    }
+
+    private static RouteMetrics find(RouteMetrics[] candidates, String scheme, int port) {
+        if (candidates != null) {
+            for (RouteMetrics candidate : candidates) {
+                if (candidate.matches(scheme, port)) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the metrics of all routes, including the "other" route
+     */
+    public List<RouteMetrics> routes() {
+        List<RouteMetrics> result = new ArrayList<>();
+        for (RouteMetrics[] sameHost : routes.values()) {
+            result.addAll(Arrays.asList(sameHost));
+        }
+        result.add(otherRoute);
+        return result;
+    }
+
+    /**
+     * @return the route for requests beyond the maximum number of routes
+     */
+    public RouteMetrics otherRoute() {
+        return otherRoute;
+    }
+
+    /**
+     * Record the request, task and phase durations of a finished request. Phases that were not measured are skipped.
+     */
+    void record(RequestTimings timings, RouteMetrics route, int statusCode) {
+        StatusClass statusClass = StatusClass.of(statusCode);
+        statusClasses[statusClass.ordinal()].recordNanos(timings.requestNanos());
+        route.record(timings, statusClass);
+        requests.recordNanos(timings.requestNanos());
+        tasks.recordNanos(timings.totalNanos());
+        for (RequestPhase phase : PHASES) {
+            if (timings.measured(phase)) {
+                phases[phase.ordinal()].recordNanos(timings.nanos(phase));
+            }
+        }
     }
 
     public String metricsAsJson() {
         StringBuilder buf = new StringBuilder();
         buf.append("{\n");
         buf.append("  \"totalConnections\":" + requests.count() + ",\n");
-        buf.append("  \"failedConnections\":" + failedConnections + ",\n");
-        buf.append("  \"successfulConnections\":" + successfulConnections + ",\n");
+        buf.append("  \"failedConnections\":" + failedConnections.count() + ",\n");
+        buf.append("  \"successfulConnections\":" + successfulConnections.count() + ",\n");
         buf.append("  \"averageRequestDuration\":" + requests.averageDuration() + ",\n");
         buf.append("  \"averageTaskDuration\":" + tasks.averageDuration() + ",\n");
+        appendLatencies(buf, "requestLatency", requests.histogram());
+        appendLatencies(buf, "taskLatency", tasks.histogram());
+        appendLatencies(buf, "successfulConnectionLatency", successfulConnections.histogram());
+        appendLatencies(buf, "failedConnectionLatency", failedConnections.histogram());
+        for (RequestPhase phase : PHASES) {
+            appendLatencies(buf, phase.name() + "Latency", phases[phase.ordinal()].histogram());
+        }
+        buf.append("  \"statusClasses\":{");
+        String separator = "\n";
+        for (StatusClass statusClass : STATUS_CLASSES) {
+            buf.append(separator + "    \"" + statusClass.label() + "\":" + latencies(statusClasses[statusClass.ordinal()].histogram()));
+            separator = ",\n";
+        }
+        buf.append("\n  },\n");
+        buf.append("  \"routes\":{");
+        separator = "\n";
+        for (RouteMetrics route : routes()) {
+            buf.append(separator + "    \"" + route.name() + "\":{");
+            buf.append("\"activeConnections\":" + route.activeConnections());
+            buf.append(",\"scheduledConnections\":" + route.scheduledConnections());
+            for (StatusClass statusClass : STATUS_CLASSES) {
+                buf.append(",\"" + statusClass.label() + "\":" + route.count(statusClass));
+            }
+            if (route.concurrencyLimit() > 0) {
+                buf.append(",\"concurrencyLimit\":" + route.concurrencyLimit());
+                buf.append(",\"queuedForLimit\":" + route.queuedForLimit());
+                buf.append(",\"rejectedByLimit\":" + route.rejectedByLimit());
+            }
+            if (route.circuitState() != null) {
+                buf.append(",\"circuit\":\"" + route.circuitState() + "\"");
+                buf.append(",\"rejectedByCircuit\":" + route.rejectedByCircuit());
+            }
+            PoolStats routePool = poolStats(route);
+            if (routePool != null) {
+                buf.append(",\"pool\":" + poolJson(routePool));
+            }
+            buf.append(",\"requestLatency\":" + latencies(route.requestLatencies()) + "}");
+            separator = ",\n";
+        }
+        buf.append("\n  },\n");
+        PoolStats totalPool = poolStats();
+        if (totalPool != null) {
+            buf.append("  \"pool\":" + poolJson(totalPool) + ",\n");
+            appendLatencies(buf, "poolLeaseLatency", poolLeaseWait.histogram());
+        }
+        buf.append("  \"queuedRequests\":" + queuedRequests() + ",\n");
+        buf.append("  \"priorities\":{");
+        separator = "\n";
+        for (Priority priority : PRIORITIES) {
+            buf.append(separator + "    \"" + priority.label() + "\":{\"queued\":" + queuedRequests(priority) + ",\"queueLatency\":"
+                    + latencies(queueLatencies(priority)) + "}");
+            separator = ",\n";
+        }
+        buf.append("\n  },\n");
+        buf.append("  \"shedRequests\":" + shedRequests() + ",\n");
+        buf.append("  \"expiredRequests\":" + expiredRequests() + ",\n");
+        buf.append("  \"hedgesSent\":" + hedgesSent() + ",\n");
+        buf.append("  \"hedgesWon\":" + hedgesWon() + ",\n");
+        buf.append("  \"coalescedRequests\":" + coalescedRequests() + ",\n");
+        buf.append("  \"retries\":" + retries() + ",\n");
+        buf.append("  \"retryBudgetExhausted\":" + retryBudgetExhausted() + ",\n");
+        buf.append("  \"circuitsOpened\":" + circuitsOpened() + ",\n");
+        buf.append("  \"rejectedByCircuit\":" + rejectedByCircuit() + ",\n");
+        buf.append("  \"throttledRequests\":" + throttledRequests() + ",\n");
+        buf.append("  \"rateLimitedRequests\":" + rateLimitedRequests() + ",\n");
+        appendLatencies(buf, "throttleLatency", throttleWait.histogram());
+        ResponseCache cache = responseCache;
+        if (cache != null) {
+            buf.append("  \"cache\":{\"hits\":" + cacheHits() + ",\"misses\":" + cacheMisses() + ",\"revalidations\":" + cacheRevalidations()
+                    + ",\"responses\":" + cache.size() + ",\"bytes\":" + cache.bytes() + ",\"diskBytes\":" + cache.diskBytes() + "},\n");
+        }
         buf.append("  \"activeConnections\":" + activeConnections + ",\n");
         buf.append("  \"scheduledConnections\":" + scheduledConnections + "\n");
         buf.append("}\n");
@@ -63,6 +507,34 @@ public class ConnectionMetrics {
         return buf.toString();
     }
 
+    /**
+     * Appends the percentiles of the histogram in milliseconds.
+     */
+    static void appendLatencies(StringBuilder buf, String name, HistogramSnapshot histogram) {
+        buf.append("  \"" + name + "\":" + latencies(histogram) + ",\n");
+    }
+
+    static String latencies(HistogramSnapshot histogram) {
+        StringBuilder buf = new StringBuilder("{");
+        buf.append("\"count\":" + histogram.count());
+        buf.append(",\"p50\":" + millis(histogram.valueAtPercentile(50)));
+        buf.append(",\"p90\":" + millis(histogram.valueAtPercentile(90)));
+        buf.append(",\"p99\":" + millis(histogram.valueAtPercentile(99)));
+        buf.append(",\"p999\":" + millis(histogram.valueAtPercentile(99.9)));
+        buf.append(",\"max\":" + millis(histogram.max()));
+        buf.append("}");
+        return buf.toString();
+    }
+
+    static String poolJson(PoolStats stats) {
+        return "{\"leased\":" + stats.getLeased() + ",\"pending\":" + stats.getPending() + ",\"available\":" + stats.getAvailable() + ",\"max\":"
+                + stats.getMax() + "}";
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+
     public long activeConnections() {
         return activeConnections.get();
     }
@@ -71,6 +543,36 @@ public class ConnectionMetrics {
         return scheduledConnections.get();
     }
 
+    /**
+     * @return distribution of the request durations in nanoseconds
+     */
+    public HistogramSnapshot requestLatencies() {
+        return requests.histogram();
+    }
+
+    /**
+     * @param phase
+     * @return distribution of the durations of that phase of requests in nanoseconds
+     */
+    public HistogramSnapshot phaseLatencies(RequestPhase phase) {
+        return phases[phase.ordinal()].histogram();
+    }
+
+    /**
+     * @param statusClass
+     * @return distribution of the durations of requests with a response of that status class in nanoseconds
+     */
+    public HistogramSnapshot statusClassLatencies(StatusClass statusClass) {
+        return statusClasses[statusClass.ordinal()].histogram();
+    }
+
+    /**
+     * @return distribution of the task durations (including time spent waiting for the executor) in nanoseconds
+     */
+    public HistogramSnapshot taskLatencies() {
+        return tasks.histogram();
+    }
+
     @Override
     public String toString() {
         return metricsAsJson();
@@ -0,0 +1,185 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.nio.conn.PoolingClientAsyncConnectionManager;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.params.HttpParams;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.BasicHttpContext;
+
+/**
+ * Opens connections ahead of the requests that need them, so that the first requests after a client is built don't
+ * pay for connecting. For every route it opens the connections that are missing to reach the target, all at once, and
+ * returns them to the pool. The idle connection monitor calls it again after closing idle connections to top the
+ * routes up. Routes that still have idle connections are left alone: leasing those would hand out the idle connections
+ * rather than new ones, and returning them would replace the keep alive time the server gave them.
+ * <p>
+ * The non blocking pool only takes back connections that went through an exchange, so with the non blocking engine
+ * every connection is opened by sending OPTIONS * to the host through the client.
+ */
+final class ConnectionWarmer {
+    private final List<HttpRoute> routes;
+    private final int connectionsPerRoute;
+    private final ConnPoolControl<HttpRoute> pool;
+    private final ClientConnectionManager connectionManager;
+    private final HttpAsyncClient asyncClient;
+    private final HttpParams params;
+    private final long connectTimeout;
+
+    private ConnectionWarmer(List<HttpRoute> routes, int connectionsPerRoute, ConnPoolControl<HttpRoute> pool, ClientConnectionManager connectionManager,
+            HttpAsyncClient asyncClient, HttpParams params, long connectTimeout) {
+        this.routes = routes;
+        this.connectionsPerRoute = connectionsPerRoute;
+        this.pool = pool;
+        this.connectionManager = connectionManager;
+        this.asyncClient = asyncClient;
+        this.params = params;
+        this.connectTimeout = connectTimeout;
+    }
+
+    static <M extends ClientConnectionManager & ConnPoolControl<HttpRoute>> ConnectionWarmer blocking(List<HttpRoute> routes, int connectionsPerRoute, M connectionManager,
+            HttpParams params, long connectTimeout) {
+        return new ConnectionWarmer(routes, connectionsPerRoute, connectionManager, connectionManager, null, params, connectTimeout);
+    }
+
+    static ConnectionWarmer async(List<HttpRoute> routes, int connectionsPerRoute, PoolingClientAsyncConnectionManager connectionManager, HttpAsyncClient asyncClient) {
+        return new ConnectionWarmer(routes, connectionsPerRoute, connectionManager, null, asyncClient, null, 0);
+    }
+
+    /**
+     * @param host
+     * @return the route of requests to the host that don't go through a proxy
+     */
+    static HttpRoute route(HttpHost host) {
+        return new HttpRoute(host, null, "https".equalsIgnoreCase(host.getSchemeName()));
+    }
+
+    /**
+     * Open the connections that are missing to reach the target for every route.
+     *
+     * @param executor runs the blocking connects; with a single thread the connections are opened one by one. Not used
+     *            by the non blocking engine, which connects on its I/O threads.
+     * @return completes with the number of pooled connections to the routes once the connects are done. Connections
+     *         that could not be opened are not counted; the future does not fail.
+     */
+    CompletableFuture<Integer> warm(Executor executor) {
+        List<CompletableFuture<Void>> connects = new ArrayList<CompletableFuture<Void>>();
+        for (HttpRoute route : routes) {
+            PoolStats stats = pool.getStats(route);
+            int missing = Math.min(connectionsPerRoute, pool.getMaxPerRoute(route)) - stats.getLeased() - stats.getPending();
+            if (missing <= 0 || stats.getAvailable() > 0) {
+                continue;
+            }
+            if (asyncClient != null) {
+                for (int i = 0; i < missing; i++) {
+                    connects.add(openAsync(route));
+                }
+            } else {
+                for (ManagedClientConnection connection : lease(route, missing)) {
+                    connects.add(CompletableFuture.runAsync(() -> open(route, connection), executor));
+                }
+            }
+        }
+        return CompletableFuture.allOf(connects.toArray(new CompletableFuture[0])).thenApply(ignored -> pooled());
+    }
+
+    private int pooled() {
+        int pooled = 0;
+        for (HttpRoute route : routes) {
+            PoolStats stats = pool.getStats(route);
+            pooled += stats.getAvailable() + stats.getLeased();
+        }
+        return pooled;
+    }
+
+    private List<ManagedClientConnection> lease(HttpRoute route, int count) {
+        List<ManagedClientConnection> leased = new ArrayList<ManagedClientConnection>();
+        try {
+            for (int i = 0; i < count; i++) {
+                leased.add(connectionManager.requestConnection(route, null).getConnection(connectTimeout, TimeUnit.MILLISECONDS));
+            }
+        } catch (ConnectionPoolTimeoutException e) {
+            // the route is busy with requests; open what we have
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return leased;
+    }
+
+    private void open(HttpRoute route, ManagedClientConnection connection) {
+        try {
+            if (connection.isOpen()) {
+                // a request returned an idle connection after the check; its keep alive time is unknown here, so
+                // replace it rather than giving it one that never expires
+                connection.close();
+            }
+            connection.open(route, new BasicHttpContext(), params);
+            connection.markReusable();
+        } catch (IOException e) {
+            // the pool connects again when a request needs the connection
+        } finally {
+            connectionManager.releaseConnection(connection, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * The requests are sent at the same time and there are no idle connections to the route, so each of them opens a
+     * connection, which the client returns to the pool when the response is kept alive.
+     */
+    private CompletableFuture<Void> openAsync(HttpRoute route) {
+        final CompletableFuture<Void> opened = new CompletableFuture<Void>();
+        asyncClient.execute(route.getTargetHost(), new BasicHttpRequest("OPTIONS", "*"), new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                opened.complete(null);
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                opened.complete(null);
+            }
+
+            @Override
+            public void cancelled() {
+                opened.complete(null);
+            }
+        });
+        return opened;
+    }
+}
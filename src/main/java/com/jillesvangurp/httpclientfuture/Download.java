@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+
+/**
+ * A download started with one of the download methods of {@link HttpClientWithFuture}. It completes with the number of
+ * bytes written, once all parts of the download have been written. If a part fails, the other parts are cancelled.
+ * Cancelling the download cancels and aborts all of its requests.
+ */
+public final class Download extends CompletableFuture<Long> {
+    private final List<Future<?>> requests = new CopyOnWriteArrayList<Future<?>>();
+
+    Download() {
+    }
+
+    /**
+     * Cancel the request when the download is cancelled or fails.
+     */
+    void add(Future<?> request) {
+        requests.add(request);
+        if (isDone()) {
+            request.cancel(true);
+        }
+    }
+
+    /**
+     * @return number of requests sent for the download so far, including the request for the size of a parallel
+     *         download
+     */
+    public int requests() {
+        return requests.size();
+    }
+
+    @Override
+    public boolean completeExceptionally(Throwable ex) {
+        boolean failed = super.completeExceptionally(ex);
+        if (failed) {
+            cancelRequests();
+        }
+        return failed;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            cancelRequests();
+        }
+        return cancelled;
+    }
+
+    private void cancelRequests() {
+        for (Future<?> request : requests) {
+            if (!request.isDone()) {
+                request.cancel(true);
+            }
+        }
+    }
+}
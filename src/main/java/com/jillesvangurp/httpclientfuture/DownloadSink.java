@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.FileContentDecoder;
+
+/**
+ * Writes the body of a download to a file channel at a position, or into a byte buffer such as a memory mapped region.
+ * With the non blocking engine the body goes from the connection to the file without passing through the heap: the
+ * decoder transfers it to the channel, or reads it into the region directly.
+ */
+final class DownloadSink<T> implements BodySubscriber<T> {
+    private final FileChannel channel;
+    private final ByteBuffer region;
+    // first byte of the requested range, -1 if the whole resource was requested
+    private final long rangeStart;
+    // whether the download may start over when the server ignores the range
+    private final boolean restartable;
+
+    private long position;
+    private long written;
+    private boolean complete;
+
+    private DownloadSink(FileChannel channel, long position, ByteBuffer region, long rangeStart, boolean restartable) {
+        this.channel = channel;
+        this.position = position;
+        this.region = region;
+        this.rangeStart = rangeStart;
+        this.restartable = restartable;
+    }
+
+    /**
+     * @param channel
+     * @param position where the body goes in the file
+     * @param rangeStart first byte of the range the request asks for, or -1
+     * @param restartable true if the body goes at the start of the file when the server sends all of it rather than
+     *            the range
+     */
+    static <T> DownloadSink<T> toChannel(FileChannel channel, long position, long rangeStart, boolean restartable) {
+        return new DownloadSink<T>(channel, position, null, rangeStart, restartable);
+    }
+
+    static <T> DownloadSink<T> toRegion(ByteBuffer region) {
+        return new DownloadSink<T>(null, 0, region, -1, false);
+    }
+
+    @Override
+    public void onResponse(HttpResponse response, BodySubscription subscription) throws IOException {
+        int status = response.getStatusLine().getStatusCode();
+        if (status == HttpStatus.SC_PARTIAL_CONTENT && rangeStart >= 0) {
+            long start = contentRange(response, true);
+            if (start != rangeStart) {
+                throw new IOException("requested content from byte " + rangeStart + " but got it from byte " + start);
+            }
+        } else if (status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && rangeStart >= 0 && contentRange(response, false) == rangeStart) {
+            // the file was complete already
+            complete = true;
+        } else if (status == HttpStatus.SC_OK) {
+            if (rangeStart > 0) {
+                if (!restartable) {
+                    throw new IOException("the server does not support range requests");
+                }
+                channel.truncate(0);
+                position = 0;
+            }
+        } else {
+            throw new HttpResponseException(status, response.getStatusLine().getReasonPhrase());
+        }
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    /**
+     * @param start true for the first byte of the range, false for the length of the resource
+     * @return the value from the Content-Range header, -1 if it is missing or not understood
+     */
+    private static long contentRange(HttpResponse response, boolean start) {
+        Header header = response.getFirstHeader(HttpHeaders.CONTENT_RANGE);
+        if (header == null) {
+            return -1;
+        }
+        // bytes 100-199/1000 or bytes */1000
+        String value = header.getValue().trim();
+        int space = value.indexOf(' ');
+        int dash = value.indexOf('-', space);
+        int slash = value.indexOf('/', space);
+        try {
+            if (start) {
+                return dash < 0 ? -1 : Long.parseLong(value.substring(space + 1, dash).trim());
+            } else {
+                return slash < 0 ? -1 : Long.parseLong(value.substring(slash + 1).trim());
+            }
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void onChunk(ByteBuffer chunk) throws IOException {
+        if (complete) {
+            return;
+        }
+        if (region != null) {
+            if (chunk.remaining() > region.remaining()) {
+                throw new IOException("the body does not fit in the region");
+            }
+            written += chunk.remaining();
+            region.put(chunk);
+        } else {
+            while (chunk.hasRemaining()) {
+                int count = channel.write(chunk, position);
+                position += count;
+                written += count;
+            }
+        }
+    }
+
+    /**
+     * Move the body from the decoder of the non blocking client to the target without an intermediate buffer.
+     *
+     * @return false if the decoder does not support that and the body should be delivered in chunks
+     */
+    boolean consume(ContentDecoder decoder) throws IOException {
+        if (complete) {
+            return false;
+        }
+        if (region != null) {
+            if (!region.hasRemaining()) {
+                throw new IOException("the body does not fit in the region");
+            }
+            int count = decoder.read(region);
+            if (count > 0) {
+                written += count;
+            }
+            return true;
+        }
+        if (decoder instanceof FileContentDecoder) {
+            long count = ((FileContentDecoder) decoder).transfer(channel, position, Integer.MAX_VALUE);
+            if (count > 0) {
+                position += count;
+                written += count;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public T onComplete() {
+        return null;
+    }
+
+    /**
+     * @return number of bytes of the body written so far
+     */
+    long written() {
+        return written;
+    }
+}
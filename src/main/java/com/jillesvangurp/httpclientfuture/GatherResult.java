@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Outcome of a group of requests sent with {@link HttpClientWithFuture#gatherQuorum(int, org.apache.http.protocol.HttpContext, long,
+ * java.util.concurrent.TimeUnit, org.apache.http.client.methods.HttpRequestBase...)} or one of its variants. It is a
+ * snapshot taken when the outcome was decided: requests that were still outstanding at that point are cancelled and
+ * reported as such, even if they completed while being cancelled.
+ *
+ * @param <T> the type of the value returned by the response handler of the client
+ */
+public final class GatherResult<T> {
+    public enum Outcome {
+        /** enough requests succeeded */
+        QUORUM,
+        /** so many requests failed that the quorum could no longer be reached */
+        FAILED,
+        /** the deadline of the group passed before the outcome was decided */
+        DEADLINE
+    }
+
+    public enum Status {
+        SUCCEEDED, FAILED, CANCELLED
+    }
+
+    private final Outcome outcome;
+    private final HttpUriRequest[] requests;
+    private final Status[] statuses;
+    private final Object[] values;
+    private final Throwable[] failures;
+    private final List<T> successes;
+
+    GatherResult(Outcome outcome, HttpUriRequest[] requests, Status[] statuses, Object[] values, Throwable[] failures, List<T> successes) {
+        this.outcome = outcome;
+        this.requests = requests;
+        this.statuses = statuses;
+        this.values = values;
+        this.failures = failures;
+        this.successes = Collections.unmodifiableList(successes);
+    }
+
+    public Outcome outcome() {
+        return outcome;
+    }
+
+    /**
+     * @return true if the quorum was reached
+     */
+    public boolean succeeded() {
+        return outcome == Outcome.QUORUM;
+    }
+
+    /**
+     * @return the values of the requests that succeeded, in the order in which they completed
+     */
+    public List<T> values() {
+        return successes;
+    }
+
+    /**
+     * @return number of requests in the group
+     */
+    public int size() {
+        return requests.length;
+    }
+
+    /**
+     * @param index position of the request in the group
+     * @return the request
+     */
+    public HttpUriRequest request(int index) {
+        return requests[index];
+    }
+
+    /**
+     * @param index position of the request in the group
+     * @return the status of the request
+     */
+    public Status status(int index) {
+        return statuses[index];
+    }
+
+    /**
+     * @param index position of the request in the group
+     * @return the value of the request, or null if it did not succeed
+     */
+    @SuppressWarnings("unchecked")
+    public T value(int index) {
+        return (T) values[index];
+    }
+
+    /**
+     * @param index position of the request in the group
+     * @return why the request failed, or null if it did not fail
+     */
+    public Throwable failure(int index) {
+        return failures[index];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder(outcome.name());
+        for (int i = 0; i < requests.length; i++) {
+            buf.append(i == 0 ? " " : ", ").append(requests[i].getURI()).append(": ").append(statuses[i]);
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Coordinates a request and its hedged copy for a {@link HedgingPolicy}. The task of the original request is the one
+ * the caller holds; if the copy responds first, its result completes that task and the original request is aborted.
+ * If the original request fails while the copy is outstanding, the failure is held back until the copy is done.
+ */
+final class Hedge<V> {
+    private final HttpClientWithFuture<V> client;
+    private final HttpClientFutureTask<V> primary;
+    private final HttpRequestBase request;
+    private final HttpContext context;
+    private final RequestOptions options;
+    private final HedgingPolicy policy;
+    private final ConnectionMetrics metrics;
+    private final long delayNanos;
+
+    // guarded by this
+    private ScheduledFuture<?> timer;
+    private HttpClientFutureTask<V> copy;
+    private boolean copyOutstanding;
+    private Throwable deferredFailure;
+    private boolean rescheduled;
+
+    Hedge(HttpClientWithFuture<V> client, HttpClientFutureTask<V> primary, HttpRequestBase request, HttpContext context, RequestOptions options, HedgingPolicy policy,
+            ConnectionMetrics metrics, long delayNanos) {
+        this.client = client;
+        this.primary = primary;
+        this.request = request;
+        this.context = context;
+        this.options = options;
+        this.policy = policy;
+        this.metrics = metrics;
+        this.delayNanos = delayNanos;
+    }
+
+    synchronized void schedule(ScheduledExecutorService scheduler, long delay) {
+        if (!primary.isDone()) {
+            timer = scheduler.schedule(() -> fire(scheduler), delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void fire(ScheduledExecutorService scheduler) {
+        if (primary.isDone()) {
+            return;
+        }
+        RequestTimings timings = primary.timings();
+        if (!timings.measured(RequestPhase.queueWait)) {
+            // still waiting for a thread or a permit; a copy would wait as well
+            return;
+        }
+        long remaining = delayNanos - (System.nanoTime() - timings.started);
+        synchronized (this) {
+            if (remaining > 0 && !rescheduled) {
+                rescheduled = true;
+                timer = scheduler.schedule(() -> fire(scheduler), remaining, TimeUnit.NANOSECONDS);
+                return;
+            }
+        }
+        if (!policy.spend()) {
+            return;
+        }
+        HttpRequestBase copyRequest;
+        try {
+            copyRequest = (HttpRequestBase) request.clone();
+        } catch (CloneNotSupportedException e) {
+            return;
+        }
+        HttpClientFutureTask<V> copyTask;
+        try {
+            copyTask = client.submit(copyRequest, context, null, options, false);
+        } catch (RuntimeException e) {
+            return;
+        }
+        metrics.hedgesSent.increment();
+        synchronized (this) {
+            copy = copyTask;
+            copyOutstanding = true;
+        }
+        copyTask.toCompletableFuture().whenComplete((result, failure) -> copyDone(result, failure));
+        if (primary.isDone()) {
+            copyTask.cancel(true);
+        }
+    }
+
+    private void copyDone(V result, Throwable failure) {
+        Throwable primaryFailure;
+        synchronized (this) {
+            copyOutstanding = false;
+            primaryFailure = deferredFailure;
+        }
+        if (failure == null) {
+            if (!primary.isDone()) {
+                metrics.hedgesWon.increment();
+                primary.completeFromHedge(result);
+                primary.abortRequest();
+            }
+        } else if (primaryFailure != null) {
+            primary.failNow(primaryFailure);
+        }
+    }
+
+    /**
+     * @return true if the failure of the original request should wait for the outcome of the copy
+     */
+    synchronized boolean deferFailure(Throwable failure) {
+        if (copyOutstanding) {
+            deferredFailure = failure;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called when the task of the original request is done, one way or another.
+     */
+    void primaryDone() {
+        HttpClientFutureTask<V> outstanding;
+        synchronized (this) {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            outstanding = copyOutstanding ? copy : null;
+        }
+        if (outstanding != null) {
+            outstanding.lostRace();
+            outstanding.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+import com.jillesvangurp.metrics.HistogramSnapshot;
+import com.jillesvangurp.metrics.LatencyHistogram;
+
+/**
+ * Sends a second copy of an idempotent request when the first has been outstanding longer than a percentile of the
+ * latencies of its route. Whichever copy responds first wins and the other is aborted. This cuts the tail latency
+ * caused by the occasional slow server, connection or garbage collection pause at the price of a little extra load.
+ *
+ * The extra load is bounded by a budget: every eligible request earns budget hedges, e.g. 0.05 for at most 5% extra
+ * requests, and every hedge costs one. Routes don't get hedged until they have minSamples latencies.
+ *
+ * Every route has a delay of its own. Routes that {@link ConnectionMetrics} keeps metrics for use the latencies of those
+ * metrics; the policy records the latencies of routes beyond the maximum number of routes itself, and forgets them
+ * after a minute without requests.
+ *
+ * Attach the policy with {@link HttpClientWithFuture#hedging(HedgingPolicy)}; use one policy per client. Hedges sent
+ * and won are reported by {@link ConnectionMetrics}.
+ */
+public class HedgingPolicy {
+    private double percentile = 95;
+    private double budget = 0.05;
+    private int maxBurst = 10;
+    private long minSamples = 100;
+    private long minDelayNanos = TimeUnit.MILLISECONDS.toNanos(1);
+    private long refreshNanos = TimeUnit.SECONDS.toNanos(1);
+
+    private volatile TokenBudget tokens = new TokenBudget(budget, maxBurst, 0);
+    // routes that are unused for this long may be dropped
+    long idleNanos = TimeUnit.MINUTES.toNanos(1);
+    final RouteTable<RouteDelay> routes = new RouteTable<>(k -> new RouteDelay(), this::evict);
+
+    public static HedgingPolicy hedging() {
+        return new HedgingPolicy();
+    }
+
+    /**
+     * @param percentile hedge requests that are outstanding longer than this percentile of the latencies of their
+     *            route, default 95
+     * @return the policy
+     */
+    public HedgingPolicy percentile(double percentile) {
+        if (percentile <= 0 || percentile >= 100) {
+            throw new IllegalArgumentException("percentile should be between 0 and 100");
+        }
+        this.percentile = percentile;
+        return this;
+    }
+
+    /**
+     * @param budget maximum number of hedges as a fraction of the eligible requests, default 0.05
+     * @param maxBurst maximum number of hedges that can be saved up, default 10
+     * @return the policy
+     */
+    public HedgingPolicy budget(double budget, int maxBurst) {
+        this.tokens = new TokenBudget(budget, maxBurst, 0);
+        this.budget = budget;
+        this.maxBurst = maxBurst;
+        return this;
+    }
+
+    /**
+     * @param minSamples number of latencies of a route needed before its requests get hedged, default 100
+     * @return the policy
+     */
+    public HedgingPolicy minSamples(long minSamples) {
+        this.minSamples = minSamples;
+        return this;
+    }
+
+    /**
+     * @param minDelay never hedge sooner than this, default 1ms
+     * @param tu
+     * @return the policy
+     */
+    public HedgingPolicy minDelay(long minDelay, TimeUnit tu) {
+        this.minDelayNanos = tu.toNanos(minDelay);
+        return this;
+    }
+
+    /**
+     * @param request
+     * @param options may be null
+     * @return true if the request may be hedged: GET, HEAD and OPTIONS requests unless the options say otherwise
+     */
+    boolean eligible(HttpRequestBase request, RequestOptions options) {
+        if (options != null && options.hedgeable() != null) {
+            return options.hedgeable();
+        }
+        String method = request.getMethod();
+        return "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method);
+    }
+
+    /**
+     * Adds to the budget for an eligible request.
+     */
+    void earn() {
+        tokens.earn();
+    }
+
+    /**
+     * @return true if the budget allows another hedge, which is then taken from the budget
+     */
+    boolean spend() {
+        return tokens.spend();
+    }
+
+    /**
+     * @param key the {@link RouteMetrics#key(java.net.URI)} of the request, may be null
+     * @param route
+     * @return how long a request of the route should be outstanding before it is hedged in nanoseconds, or -1 if the
+     *         route does not have enough samples yet
+     */
+    long delayNanos(String key, RouteMetrics route) {
+        RouteDelay state = route(key, route);
+        long now = System.nanoTime();
+        if (state.computed != 0 && now - state.computed < refreshNanos) {
+            return state.delayNanos;
+        }
+        // takes a snapshot of the histogram, so only do this once in a while
+        HistogramSnapshot latencies = route.host != null ? route.requestLatencies() : state.latencies().snapshot();
+        long delay = latencies.count() < minSamples ? -1 : Math.max(minDelayNanos, latencies.valueAtPercentile(percentile));
+        state.delayNanos = delay;
+        state.computed = now;
+        state.lastUsed = now;
+        return delay;
+    }
+
+    /**
+     * @param key the {@link RouteMetrics#key(java.net.URI)} of the request, may be null
+     * @param route a route without metrics of its own
+     * @return the histogram that requests of the route record their latencies in for the policy
+     */
+    LatencyHistogram latencies(String key, RouteMetrics route) {
+        RouteDelay state = route(key, route);
+        long now = System.nanoTime();
+        if (now - state.lastUsed >= refreshNanos) {
+            // keeps the route from being forgotten while it only has requests that are not hedged
+            state.lastUsed = now;
+        }
+        return state.latencies();
+    }
+
+    private RouteDelay route(String key, RouteMetrics route) {
+        // requests without a host all end up in the "other" route
+        return routes.get(key != null ? key : route.name());
+    }
+
+    private boolean evict(RouteDelay state) {
+        return System.nanoTime() - state.lastUsed >= idleNanos;
+    }
+
+    /**
+     * Hedge delay of one route, recomputed at most once every refresh interval.
+     */
+    static final class RouteDelay {
+        volatile long delayNanos;
+        volatile long computed;
+        // updated at most once every refresh interval
+        volatile long lastUsed = System.nanoTime();
+        private volatile LatencyHistogram latencies;
+
+        LatencyHistogram latencies() {
+            LatencyHistogram current = latencies;
+            if (current == null) {
+                synchronized (this) {
+                    current = latencies;
+                    if (current == null) {
+                        current = new LatencyHistogram();
+                        latencies = current;
+                    }
+                }
+            }
+            return current;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HedgingPolicy(p" + percentile + ", budget " + budget + ", max burst " + maxBurst + ", min samples " + minSamples + ")";
+    }
+}
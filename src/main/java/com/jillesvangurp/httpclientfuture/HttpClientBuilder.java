@@ -1,18 +1,34 @@
 package com.jillesvangurp.httpclientfuture;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.http.HttpHost;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.params.ClientPNames;
 import org.apache.http.client.params.CookiePolicy;
 import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.impl.client.DecompressingHttpClient;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.nio.client.DefaultHttpAsyncClient;
+import org.apache.http.impl.nio.conn.PoolingClientAsyncConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.reactor.IOReactorException;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.CoreConnectionPNames;
 import org.apache.http.params.HttpParams;
+import org.apache.http.pool.ConnPoolControl;
 
 /**
  * Helper class that allows you to construct an http client that is configured for durability and robustness.
@@ -24,15 +40,53 @@ import org.apache.http.params.HttpParams;
  * configured maximums for the total amount of connections and the per route connections.
  */
 public class HttpClientBuilder {
+    /**
+     * Default for {@link #validateAfterInactivity(int, TimeUnit)} when no idle connection monitoring is scheduled.
+     */
+    public static final int DEFAULT_VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+
+    /**
+     * The engine that executes requests for a {@link HttpClientWithFuture}.
+     */
+    public enum Engine {
+        /**
+         * Each request blocks a thread of the executor while it is in flight.
+         */
+        BLOCKING,
+        /**
+         * Each request runs blocking code on its own virtual thread, so the number of requests in flight is only
+         * limited by the connection pool. Requires a JVM with virtual threads (Java 21 or later).
+         */
+        VIRTUAL_THREADS,
+        /**
+         * Requests are multiplexed over a few I/O threads using a selector based non blocking transport.
+         */
+        NIO;
+    }
+
     private int timeout = 3000;
     private int connectTimeout = 3000;
     private int maxConnectionsPerRoute = 10;
     private int maxConnections = 100;
+    private boolean connectionsConfigured = false;
+    private long leaseTimeout = -1;
+    private long validateAfterInactivity = -1;
+    private long connectionTimeToLive = -1;
     boolean handleRedirect = true;
     private ScheduledExecutorService executor = null;
     private int staleConnectionCleanupInterval;
     private int idleConnectionCloseTime;
     private boolean disableGzipCompression=false;
+    private Engine engine = Engine.BLOCKING;
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+    private ConnPoolControl<HttpRoute> connectionPool;
+    private RateLimiter rateLimiter;
+    private ScheduledExecutorService rateLimiterScheduler;
+    private BufferPool bufferPool;
+    private List<HttpRoute> warmRoutes = Collections.emptyList();
+    private int warmConnectionsPerRoute;
+    private boolean warmInBackground;
+    private CompletableFuture<Integer> warmedUp;
 
     private HttpClientBuilder() {
     }
@@ -63,6 +117,57 @@ public class HttpClientBuilder {
     public HttpClientBuilder connections(int max, int maxPerRoute) {
         maxConnections = max;
         maxConnectionsPerRoute = maxPerRoute;
+        connectionsConfigured = true;
+        return this;
+    }
+
+    /**
+     * Configure how long a request may wait for a connection from the pool. By default httpclient uses the connect
+     * timeout for this, except with {@link Engine#VIRTUAL_THREADS} where requests wait until a connection
+     * becomes available. Cancelling the future of a waiting request aborts the wait.
+     * @param leaseTimeout 0 means wait indefinitely
+     * @param tu
+     * @return the builder
+     */
+    public HttpClientBuilder leaseTimeout(int leaseTimeout, TimeUnit tu) {
+        this.leaseTimeout = tu.toMillis(leaseTimeout);
+        return this;
+    }
+
+    /**
+     * Check whether a pooled connection was closed by the server before it is used, but only if it has been idle for
+     * longer than the given time. The check blocks on a read of the socket, so checking on every lease adds up to a
+     * millisecond to every request. Without idle connection monitoring, connections that were idle for more than
+     * {@link #DEFAULT_VALIDATE_AFTER_INACTIVITY_MILLIS} are checked; with monitoring, connections are not checked
+     * unless this is set. Applies to the {@link Engine#BLOCKING} and {@link Engine#VIRTUAL_THREADS} engines.
+     *
+     * @param inactivity 0 to check every time a connection is leased
+     * @param tu
+     * @return the builder
+     */
+    public HttpClientBuilder validateAfterInactivity(int inactivity, TimeUnit tu) {
+        if (inactivity < 0) {
+            throw new IllegalArgumentException("inactivity should be >= 0");
+        }
+        this.validateAfterInactivity = tu.toMillis(inactivity);
+        return this;
+    }
+
+    /**
+     * Limit how long a connection is reused, regardless of the keep alive time the server asks for with its
+     * Keep-Alive: timeout= header. Connections past their time to live or their keep alive time are closed when they
+     * would be leased, and by the idle connection monitor if one is scheduled. Applies to the {@link Engine#BLOCKING}
+     * and {@link Engine#VIRTUAL_THREADS} engines.
+     *
+     * @param timeToLive
+     * @param tu
+     * @return the builder
+     */
+    public HttpClientBuilder connectionTimeToLive(int timeToLive, TimeUnit tu) {
+        if (timeToLive <= 0) {
+            throw new IllegalArgumentException("timeToLive should be > 0");
+        }
+        this.connectionTimeToLive = tu.toMillis(timeToLive);
         return this;
     }
 
@@ -84,9 +189,38 @@ public class HttpClientBuilder {
         return this;
     }
 
+    /**
+     * Select the engine used by {@link #buildClientWithFuture(ExecutorService, ResponseHandler)}. Defaults to {@link Engine#BLOCKING}.
+     *
+     * With {@link Engine#VIRTUAL_THREADS}, the per route maximum defaults to the total maximum unless you configure
+     * {@link #connections(int, int)}: since threads are no longer the scarce resource, the pool is what limits the
+     * number of requests in flight and requests for the same host should not queue behind a small per route limit. For
+     * the same reason, requests wait for a pooled connection without a lease timeout (see
+     * {@link #leaseTimeout(int, TimeUnit)}). Connections are validated after inactivity like with the blocking engine
+     * (see {@link #validateAfterInactivity(int, TimeUnit)}); a virtual thread that blocks in that check costs no
+     * platform thread.
+     * @param engine
+     * @return the builder
+     */
+    public HttpClientBuilder engine(Engine engine) {
+        this.engine = engine;
+        return this;
+    }
+
+    /**
+     * Configure the number of I/O reactor threads for the {@link Engine#NIO} engine. Defaults to the number of processors.
+     * @param ioThreads
+     * @return the builder
+     */
+    public HttpClientBuilder ioThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+        return this;
+    }
+
     /**
      * Configure an idle connection monitoring task that well periodically close idle and expired connections.
-     * Note. this disables the default staleConnectionChecking.
+     * Note. this disables the default validation of connections that were idle for a while, see
+     * {@link #validateAfterInactivity(int, TimeUnit)}.
      * Important, some webservers have configured timeouts on the server side. So, make sure you stay below this,
      * otherwise you may have connections in your
      * pool that are closed on the other side. Normally this behavior results in retries on the client side, which of
@@ -113,6 +247,82 @@ public class HttpClientBuilder {
         return this;
     }
 
+    /**
+     * Limit the request rate per route of the clients built with {@link #buildClientWithFuture(ResponseHandler)}.
+     *
+     * @param rateLimiter
+     * @param scheduler on which delayed requests wait; may be null if the limiter rejects requests over the rate
+     *            rather than delaying them. It is not shut down when the client is closed.
+     * @return the builder
+     */
+    public HttpClientBuilder rateLimiter(RateLimiter rateLimiter, ScheduledExecutorService scheduler) {
+        this.rateLimiter = rateLimiter;
+        this.rateLimiterScheduler = scheduler;
+        return this;
+    }
+
+    /**
+     * Share a pool of buffers between the requests of the clients built by this builder; see
+     * {@link HttpClientWithFuture#bufferPool(BufferPool)}.
+     *
+     * @param bufferPool
+     * @return the builder
+     */
+    public HttpClientBuilder bufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        return this;
+    }
+
+    /**
+     * Open connections to the given hosts when a client is built, so that the first requests don't wait for
+     * connects and TLS handshakes. The connections are opened in parallel. If idle connection monitoring is scheduled,
+     * the monitor opens new connections for a route that dropped below the target and has no idle connections left, e.g.
+     * after idle connections were closed. With the {@link Engine#NIO} engine, each connection is opened by an OPTIONS *
+     * request to the host; only connections that the host keeps alive after it are pooled.
+     *
+     * @param connectionsPerRoute target number of pooled connections per host; capped at the maximum per route
+     * @param background if true, the client is returned right away and {@link #warmedUp()} tells when the connections
+     *            are open; otherwise building the client waits for them
+     * @param hosts hosts that are requested without a proxy, in the same form as the requests address them
+     * @return the builder
+     */
+    public HttpClientBuilder warmConnections(int connectionsPerRoute, boolean background, HttpHost... hosts) {
+        List<HttpRoute> routes = new ArrayList<HttpRoute>();
+        for (HttpHost host : hosts) {
+            routes.add(ConnectionWarmer.route(host));
+        }
+        return warmConnections(connectionsPerRoute, background, routes);
+    }
+
+    /**
+     * Same as {@link #warmConnections(int, boolean, HttpHost...)} for arbitrary routes. Connections to routes through a
+     * proxy are connected to the proxy only. The {@link Engine#NIO} engine sends its requests to the target host of the
+     * route, so they take the route that the client picks for that host.
+     *
+     * @param connectionsPerRoute
+     * @param background
+     * @param routes
+     * @return the builder
+     */
+    public HttpClientBuilder warmConnections(int connectionsPerRoute, boolean background, Collection<HttpRoute> routes) {
+        if (connectionsPerRoute < 1) {
+            throw new IllegalArgumentException("connectionsPerRoute should be > 0");
+        }
+        this.warmRoutes = new ArrayList<HttpRoute>(routes);
+        this.warmConnectionsPerRoute = connectionsPerRoute;
+        this.warmInBackground = background;
+        return this;
+    }
+
+    /**
+     * @return completes with the number of pooled connections to the warmed routes once the client that was built last
+     *         has opened them, or null if no connections are warmed. Connections that could not be opened are not
+     *         counted; the future does not fail.
+     */
+    public CompletableFuture<Integer> warmedUp() {
+        return warmedUp;
+    }
+
     public HttpClient get() {
         HttpParams params = new BasicHttpParams();
         // work around as described here: http://code.google.com/p/crawler4j/issues/detail?id=136
@@ -120,26 +330,155 @@ public class HttpClientBuilder {
         params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, timeout);
         params.setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, connectTimeout);
         params.setParameter(ClientPNames.HANDLE_REDIRECTS, handleRedirect);
+        if (leaseTimeout >= 0) {
+            params.setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, leaseTimeout);
+        } else if (engine == Engine.VIRTUAL_THREADS) {
+            params.setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, 0);
+        }
 
-        PoolingClientConnectionManager connectionManager = new PoolingClientConnectionManager();
-        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        PoolingClientConnectionManager connectionManager = new InstrumentedConnectionManager(connectionTimeToLive);
+        connectionManager.setDefaultMaxPerRoute(effectiveMaxConnectionsPerRoute());
         connectionManager.setMaxTotal(maxConnections);
-        if (executor == null) {
+        connectionPool = connectionManager;
+        ConnectionWarmer warmer = warmRoutes.isEmpty() ? null
+                : ConnectionWarmer.blocking(warmRoutes, warmConnectionsPerRoute, connectionManager, params, connectTimeout);
+        long validation = validateAfterInactivity >= 0 ? validateAfterInactivity : executor == null ? DEFAULT_VALIDATE_AFTER_INACTIVITY_MILLIS : -1;
+        if (validation >= 0) {
             params.setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, true);
+            params.setLongParameter(ValidatingClientConnection.VALIDATE_AFTER_INACTIVITY, validation);
         } else {
-            IdleConnectionMonitor idleConnectionMonitor = new IdleConnectionMonitor(connectionManager, idleConnectionCloseTime);
+            params.setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, false);
+        }
+        if (executor != null) {
+            IdleConnectionMonitor idleConnectionMonitor = new IdleConnectionMonitor(connectionManager, idleConnectionCloseTime, warmer);
             executor.scheduleWithFixedDelay(idleConnectionMonitor, staleConnectionCleanupInterval, staleConnectionCleanupInterval, TimeUnit.MILLISECONDS);
         }
+        warm(warmer);
 
         DefaultHttpClient httpClient = new DefaultHttpClient(connectionManager, params);
+        httpClient.setKeepAliveStrategy(new KeepAliveStrategy());
+        RequestTimingInterceptor timingInterceptor = new RequestTimingInterceptor();
+        httpClient.addRequestInterceptor(timingInterceptor);
+        httpClient.addResponseInterceptor(timingInterceptor, 0);
 
         if(disableGzipCompression) {
             return httpClient;
         } else {
-            return new DecompressingHttpClient(httpClient);
+            return new AbortableDecompressingHttpClient(httpClient, bufferPool != null);
+        }
+    }
+
+    /**
+     * Build a started non blocking client with the configured timeouts and connection maximums. Gzip compression is not
+     * supported by this client. You need to shut it down when you are done with it.
+     * @return the async client
+     */
+    public HttpAsyncClient getAsync() {
+        IOReactorConfig ioReactorConfig = new IOReactorConfig();
+        ioReactorConfig.setIoThreadCount(ioThreads);
+        ioReactorConfig.setSoTimeout(timeout);
+        ioReactorConfig.setConnectTimeout(connectTimeout);
+        try {
+            PoolingClientAsyncConnectionManager connectionManager = new InstrumentedAsyncConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig));
+            connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+            connectionManager.setMaxTotal(maxConnections);
+            connectionPool = connectionManager;
+            DefaultHttpAsyncClient httpClient = new DefaultHttpAsyncClient(connectionManager);
+            RequestTimingInterceptor timingInterceptor = new RequestTimingInterceptor();
+            httpClient.addRequestInterceptor(timingInterceptor);
+            httpClient.addResponseInterceptor(timingInterceptor, 0);
+            HttpParams params = httpClient.getParams();
+            params.setParameter(ClientPNames.COOKIE_POLICY, CookiePolicy.BROWSER_COMPATIBILITY);
+            params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, timeout);
+            params.setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, connectTimeout);
+            params.setParameter(ClientPNames.HANDLE_REDIRECTS, handleRedirect);
+            httpClient.start();
+            ConnectionWarmer warmer = warmRoutes.isEmpty() ? null : ConnectionWarmer.async(warmRoutes, warmConnectionsPerRoute, connectionManager, httpClient);
+            if (executor != null) {
+                AsyncIdleConnectionMonitor idleConnectionMonitor = new AsyncIdleConnectionMonitor(connectionManager, idleConnectionCloseTime, warmer);
+                executor.scheduleWithFixedDelay(idleConnectionMonitor, staleConnectionCleanupInterval, staleConnectionCleanupInterval, TimeUnit.MILLISECONDS);
+            }
+            warm(warmer);
+            return httpClient;
+        } catch (IOReactorException e) {
+            throw new IllegalStateException("could not create I/O reactor: " + e.getMessage(), e);
         }
     }
 
+    /**
+     * @return the connection pool of the client that was built last, or null if no client was built yet. Use this to
+     *         inspect the pool or to change the maximum number of connections for specific routes. The occupancy of
+     *         the pool is also reported by {@link ConnectionMetrics#poolStats()}.
+     */
+    public ConnPoolControl<HttpRoute> connectionPool() {
+        return connectionPool;
+    }
+
+    private void warm(ConnectionWarmer warmer) {
+        if (warmer == null) {
+            warmedUp = null;
+            return;
+        }
+        // the connects block, so they get threads of their own that go away when they are done
+        final ExecutorService connectors = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "connection-warmer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        warmedUp = warmer.warm(connectors).whenComplete((pooled, failure) -> connectors.shutdown());
+        if (!warmInBackground) {
+            warmedUp.join();
+        }
+    }
+
+    private int effectiveMaxConnectionsPerRoute() {
+        if (engine == Engine.VIRTUAL_THREADS && !connectionsConfigured) {
+            return maxConnections;
+        }
+        return maxConnectionsPerRoute;
+    }
+
+    /**
+     * Build a {@link HttpClientWithFuture} that uses the configured {@link Engine}.
+     * @param executorService
+     *            executor for the {@link Engine#BLOCKING} engine; ignored by the other engines.
+     * @param responseHandler
+     * @return the client; call close on it to release its connections when you are done with it.
+     */
+    public <T> HttpClientWithFuture<T> buildClientWithFuture(ExecutorService executorService, ResponseHandler<T> responseHandler) {
+        HttpClientWithFuture<T> client;
+        switch (engine) {
+        case NIO:
+            client = new HttpClientWithFuture<T>(getAsync(), responseHandler);
+            break;
+        case VIRTUAL_THREADS:
+            client = new HttpClientWithFuture<T>(get(), VirtualThreads.newVirtualThreadPerTaskExecutor(), responseHandler, true);
+            break;
+        default:
+            client = new HttpClientWithFuture<T>(get(), executorService, responseHandler);
+        }
+        if (rateLimiter != null) {
+            client.scheduler(rateLimiterScheduler).rateLimiter(rateLimiter);
+        }
+        if (bufferPool != null) {
+            client.bufferPool(bufferPool);
+        }
+        return client;
+    }
+
+    /**
+     * Build a {@link HttpClientWithFuture} for the {@link Engine#VIRTUAL_THREADS} or {@link Engine#NIO} engine, which
+     * don't need an executor from you.
+     * @param responseHandler
+     * @return the client; call close on it to release its connections when you are done with it.
+     */
+    public <T> HttpClientWithFuture<T> buildClientWithFuture(ResponseHandler<T> responseHandler) {
+        if (engine == Engine.BLOCKING) {
+            throw new IllegalStateException("the blocking engine needs an executor service");
+        }
+        return buildClientWithFuture(null, responseHandler);
+    }
+
     /**
      * Adapted from http://hc.apache.org/httpcomponents-client/tutorial/html/connmgmt.html .
      */
@@ -147,16 +486,46 @@ public class HttpClientBuilder {
 
         private final ClientConnectionManager connectionManager;
         private final int idleConnectionCloseTimeSeconds;
+        private final ConnectionWarmer warmer;
 
-        public IdleConnectionMonitor(final ClientConnectionManager connMgr, int idleConnectionCloseTime) {
+        public IdleConnectionMonitor(final ClientConnectionManager connMgr, int idleConnectionCloseTime, ConnectionWarmer warmer) {
             this.connectionManager = connMgr;
             this.idleConnectionCloseTimeSeconds = idleConnectionCloseTime;
+            this.warmer = warmer;
         }
 
         public final void run() {
             // Close expired connections
             this.connectionManager.closeExpiredConnections();
             this.connectionManager.closeIdleConnections(idleConnectionCloseTimeSeconds, TimeUnit.MILLISECONDS);
+            if (warmer != null) {
+                // top up the warm connections on the monitor thread
+                warmer.warm(Runnable::run);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link IdleConnectionMonitor} for the connection pool of the non blocking client.
+     */
+    private static class AsyncIdleConnectionMonitor implements Runnable {
+
+        private final PoolingClientAsyncConnectionManager connectionManager;
+        private final int idleConnectionCloseTime;
+        private final ConnectionWarmer warmer;
+
+        public AsyncIdleConnectionMonitor(final PoolingClientAsyncConnectionManager connMgr, int idleConnectionCloseTime, ConnectionWarmer warmer) {
+            this.connectionManager = connMgr;
+            this.idleConnectionCloseTime = idleConnectionCloseTime;
+            this.warmer = warmer;
+        }
+
+        public final void run() {
+            this.connectionManager.closeExpiredConnections();
+            this.connectionManager.closeIdleConnections(idleConnectionCloseTime, TimeUnit.MILLISECONDS);
+            if (warmer != null) {
+                warmer.warm(Runnable::run);
+            }
         }
     }
 }
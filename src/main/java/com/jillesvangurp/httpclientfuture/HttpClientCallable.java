@@ -21,15 +21,34 @@
  */
 package com.jillesvangurp.httpclientfuture;
 
+import java.io.IOException;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.DefaultedHttpContext;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 
-final class HttpClientCallable<V> implements Callable<V> {
+import com.jillesvangurp.metrics.LatencyHistogram;
+
+/**
+ * Executes a request and keeps track of its timings. It wraps the response handler so it can tell when the response
+ * headers arrived and when the handler was done with the body.
+ */
+final class HttpClientCallable<V> implements Callable<V>, ResponseHandler<V> {
 
     private final ResponseHandler<V> responseHandler;
 
@@ -45,46 +64,406 @@ final class HttpClientCallable<V> implements Callable<V> {
     long started = -1;
     long ended = -1;
 
+    final RequestTimings timings = new RequestTimings();
+
     private final HttpClientTaskLifecycleCallback callback;
 
     private final ConnectionMetrics metrics;
 
-    HttpClientCallable(HttpClient httpClient, ResponseHandler<V> responseHandler, HttpUriRequest request, HttpContext context, HttpClientTaskLifecycleCallback callback, ConnectionMetrics metrics) {
+    private final RouteMetrics route;
+
+    // set once the request leaves the scheduled state, either because it started or because it was abandoned
+    private final AtomicBoolean dequeued = new AtomicBoolean(false);
+
+    // the limiter this request holds a permit of, if any
+    private volatile ConcurrencyLimiter limiter;
+    private volatile ConcurrencyLimiter.Limit limit;
+    private final AtomicBoolean permitHeld = new AtomicBoolean(false);
+
+    // the request queue this request holds a slot of, if any
+    private volatile RequestQueue requestQueue;
+    private final AtomicBoolean slotHeld = new AtomicBoolean(false);
+
+    // the circuit breaker that admitted this request, if any, and the generation of the circuit it was admitted in
+    private volatile CircuitBreaker circuitBreaker;
+    private volatile CircuitBreaker.Circuit circuit;
+    private volatile long circuitGeneration;
+    private final AtomicBoolean circuitHeld = new AtomicBoolean(false);
+
+    private final RequestOptions options;
+
+    // set when a hedged copy of the request won, or this is a hedged copy that lost; its latency says little about the route
+    volatile boolean lostRace = false;
+
+    // where the hedging policy wants the latency of a route without metrics of its own, if any
+    private volatile LatencyHistogram hedgeLatencies;
+
+    // status code of the response, -1 if no response was received
+    private int statusCode = -1;
+
+    private volatile ResponseCache responseCache;
+
+    private volatile Retry<V> retry;
+
+    private volatile StreamingBody<V> streaming;
+
+    private volatile BufferPool.Lease lease;
+
+    HttpClientCallable(HttpClient httpClient, ResponseHandler<V> responseHandler, HttpUriRequest request, HttpContext context, HttpClientTaskLifecycleCallback callback, ConnectionMetrics metrics, RouteMetrics route, RequestOptions options) {
         this.httpclient = httpClient;
         this.responseHandler = responseHandler;
         this.request = request;
-        this.context = context;
+        // each request gets its own context for its timings and any other attributes set during execution; attributes
+        // of a context you provide remain visible
+        this.context = context == null ? new BasicHttpContext() : new DefaultedHttpContext(new BasicHttpContext(), context);
+        this.context.setAttribute(RequestTimings.CONTEXT_ATTRIBUTE, timings);
         this.callback = callback;
         this.metrics = metrics;
+        this.route = route;
+        this.options = options;
     }
 
     @Override
 	public V call() throws Exception {
         if (!cancelled.get()) {
+            if (expired()) {
+                metrics.expiredRequests.increment();
+                dequeue();
+                throw expiredException();
+            }
+            boundLeaseTimeout();
             try {
-                metrics.activeConnections.incrementAndGet();
-                started = System.currentTimeMillis();
                 try {
-                    callback.startRequest();
-                    metrics.scheduledConnections.decrementAndGet();
-                    V result = httpclient.execute(request, responseHandler, context);
-                    ended = System.currentTimeMillis();
-                    metrics.successfulConnections.increment(started);
-                    callback.success();
+                    poolRequestEntity();
+                    start();
+                    V result = httpclient.execute(request, this, context);
+                    succeeded();
                     return result;
                 } catch (Exception e) {
-                    metrics.failedConnections.increment(started);
-                    ended = System.currentTimeMillis();
-                    callback.failure(e);
+                    failed(e);
                     throw e;
                 }
             } finally {
-                metrics.requests.increment(started);
-                metrics.tasks.increment(started);
-                metrics.activeConnections.decrementAndGet();
+                finished();
             }
         } else {
             throw new IllegalStateException("call has been cancelled for request " + request.getURI());
         }
     }
+
+    /**
+     * Non blocking counterpart of {@link #call()}. The request is handed to the I/O reactor of the asyncHttpClient and the
+     * task is completed from the reactor thread once the response has been received. The response handler runs on
+     * that thread as well, after the entity has been buffered, so it should not block. For the same reason the response
+     * cache does not write these responses to its disk tier.
+     */
+    void callAsync(HttpAsyncClient asyncHttpClient, final HttpClientFutureTask<V> task) {
+        if (cancelled.get()) {
+            task.fail(new IllegalStateException("call has been cancelled for request " + request.getURI()));
+            return;
+        }
+        if (expired()) {
+            expire(task);
+            return;
+        }
+        try {
+            start();
+        } catch (RuntimeException e) {
+            failed(e);
+            finished();
+            task.fail(e);
+            return;
+        }
+        if (streaming != null) {
+            streamAsync(asyncHttpClient, task);
+            return;
+        }
+        task.exchange(asyncHttpClient.execute(request, context, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                V result;
+                try {
+                    result = handleResponse(response, false);
+                    succeeded();
+                } catch (Exception e) {
+                    failed(e);
+                    finished();
+                    task.fail(e);
+                    return;
+                }
+                finished();
+                task.complete(result);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                HttpClientCallable.this.failed(e);
+                finished();
+                task.fail(e);
+            }
+
+            @Override
+            public void cancelled() {
+                HttpClientCallable.this.failed(new IllegalStateException("request was cancelled " + request.getURI()));
+                finished();
+            }
+        }));
+    }
+
+    /**
+     * Let the I/O reactor feed the body to the subscriber of a streaming request as it arrives, rather than buffering
+     * it first.
+     */
+    private void streamAsync(HttpAsyncClient asyncHttpClient, final HttpClientFutureTask<V> task) {
+        task.exchange(asyncHttpClient.execute(HttpAsyncMethods.create(request), streaming.consumer(this), context, new FutureCallback<V>() {
+            @Override
+            public void completed(V result) {
+                succeeded();
+                finished();
+                task.complete(result);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                HttpClientCallable.this.failed(e);
+                finished();
+                task.fail(e);
+            }
+
+            @Override
+            public void cancelled() {
+                HttpClientCallable.this.failed(new IllegalStateException("request was cancelled " + request.getURI()));
+                finished();
+            }
+        }));
+    }
+
+    @Override
+    public V handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+        return handleResponse(response, true);
+    }
+
+    private V handleResponse(HttpResponse response, boolean mayBlock) throws ClientProtocolException, IOException {
+        responseReceived(response);
+        Retry<V> currentRetry = retry;
+        if (currentRetry != null) {
+            long delay = currentRetry.retryStatus(response);
+            if (delay >= 0) {
+                EntityUtils.consume(response.getEntity());
+                throw new RetryableStatusException(statusCode, request.getURI(), delay);
+            }
+        }
+        ResponseCache cache = responseCache;
+        if (cache != null) {
+            response = cache.handle(request, response, started, mayBlock);
+        }
+        return responseHandler.handleResponse(response);
+    }
+
+    void responseReceived(HttpResponse response) {
+        // in case the client has no RequestTimingInterceptor
+        timings.responseReceived();
+        statusCode = response.getStatusLine().getStatusCode();
+    }
+
+    private void start() {
+        metrics.activeConnections.incrementAndGet();
+        route.active.incrementAndGet();
+        started = System.currentTimeMillis();
+        timings.started();
+        metrics.priorityWaits[priority().ordinal()].recordNanos(timings.queueNanos());
+        callback.startRequest();
+        dequeue();
+    }
+
+    /**
+     * Called when the task is done, so that requests that were cancelled before they started are no longer counted as
+     * scheduled.
+     */
+    void abandoned() {
+        dequeue();
+        releaseSlot();
+        releasePermit(false);
+        releaseCircuit(false);
+        if (!timings.measured(RequestPhase.queueWait)) {
+            // a request that started releases its buffers when it finishes; it may still be using them
+            releaseBuffers();
+        }
+    }
+
+    Priority priority() {
+        return options == null ? Priority.NORMAL : options.priority();
+    }
+
+    /**
+     * @return true if the deadline of the request has passed
+     */
+    boolean expired() {
+        return options != null && options.expired();
+    }
+
+    /**
+     * Drop the request because its deadline passed before it started.
+     */
+    void expire(HttpClientFutureTask<?> task) {
+        metrics.expiredRequests.increment();
+        dequeue();
+        task.fail(expiredException());
+    }
+
+    private TimeoutException expiredException() {
+        return new TimeoutException("deadline passed before the request started " + request.getURI());
+    }
+
+    /**
+     * Don't wait longer for a connection from the pool than the deadline allows.
+     */
+    private void boundLeaseTimeout() {
+        if (options != null && options.hasDeadline()) {
+            long remaining = Math.max(1, TimeUnit.NANOSECONDS.toMillis(options.remainingNanos()));
+            long configured = httpclient.getParams().getLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, 0);
+            if (configured <= 0 || remaining < configured) {
+                request.getParams().setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, remaining);
+            }
+        }
+    }
+
+    /**
+     * For tasks that wait for a request executed by another task: they were never counted as scheduled.
+     */
+    void detach() {
+        dequeued.set(true);
+    }
+
+    /**
+     * Record the latency of the request for a {@link HedgingPolicy}, for routes that the metrics don't keep apart.
+     */
+    void hedgeLatencies(LatencyHistogram hedgeLatencies) {
+        this.hedgeLatencies = hedgeLatencies;
+    }
+
+    /**
+     * Let the cache see the response before the response handler does.
+     */
+    void responseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * Feed the body to a subscriber as it arrives when the request is executed by the non blocking client. With a
+     * blocking client, the streaming body is the response handler.
+     */
+    void streaming(StreamingBody<V> streaming) {
+        this.streaming = streaming;
+        streaming.lease(lease);
+    }
+
+    /**
+     * Take the buffers for reading, decompressing and writing the bodies of the request from the pool. They go back
+     * when the request is done.
+     */
+    void bufferPool(BufferPool pool) {
+        lease = pool.lease();
+        context.setAttribute(BufferPool.Lease.CONTEXT_ATTRIBUTE, lease);
+    }
+
+    /**
+     * Let the retry see the status of the response before the response handler does.
+     */
+    void retry(Retry<V> retry) {
+        this.retry = retry;
+    }
+
+    void acquiredSlot(RequestQueue requestQueue) {
+        this.requestQueue = requestQueue;
+        slotHeld.set(true);
+    }
+
+    private void releaseSlot() {
+        if (slotHeld.compareAndSet(true, false)) {
+            requestQueue.release(metrics);
+        }
+    }
+
+    void acquiredPermit(ConcurrencyLimiter limiter, ConcurrencyLimiter.Limit limit) {
+        this.limiter = limiter;
+        this.limit = limit;
+        permitHeld.set(true);
+    }
+
+    private void releasePermit(boolean sample) {
+        if (permitHeld.compareAndSet(true, false)) {
+            limiter.release(limit, timings.requestNanos(), statusCode, sample && !lostRace);
+        }
+    }
+
+    void acquiredCircuit(CircuitBreaker circuitBreaker, CircuitBreaker.Circuit circuit, long generation) {
+        this.circuitBreaker = circuitBreaker;
+        this.circuit = circuit;
+        this.circuitGeneration = generation;
+        circuitHeld.set(true);
+    }
+
+    private void releaseCircuit(boolean sample) {
+        if (circuitHeld.compareAndSet(true, false)) {
+            circuitBreaker.release(circuit, route, circuitGeneration, timings.requestNanos(), statusCode, sample && !lostRace && !cancelled.get(), callback, metrics);
+        }
+    }
+
+    private void dequeue() {
+        if (dequeued.compareAndSet(false, true)) {
+            metrics.scheduledConnections.decrementAndGet();
+            route.scheduled.decrementAndGet();
+        }
+    }
+
+    private void succeeded() {
+        ended = System.currentTimeMillis();
+        timings.ended();
+        metrics.successfulConnections.recordNanos(timings.requestNanos());
+        callback.success();
+    }
+
+    private void failed(Exception e) {
+        timings.ended();
+        metrics.failedConnections.recordNanos(timings.requestNanos());
+        ended = System.currentTimeMillis();
+        callback.failure(e);
+    }
+
+    private void finished() {
+        metrics.record(timings, route, statusCode);
+        LatencyHistogram latencies = hedgeLatencies;
+        if (latencies != null && !lostRace) {
+            latencies.record(timings.requestNanos());
+        }
+        route.active.decrementAndGet();
+        metrics.activeConnections.decrementAndGet();
+        releaseSlot();
+        releasePermit(true);
+        releaseCircuit(true);
+        releaseBuffers();
+    }
+
+    /**
+     * Write the request entity through a pooled buffer.
+     */
+    private void poolRequestEntity() {
+        if (lease != null && request instanceof HttpEntityEnclosingRequest) {
+            HttpEntityEnclosingRequest withEntity = (HttpEntityEnclosingRequest) request;
+            withEntity.setEntity(PooledEntity.wrap(withEntity.getEntity(), lease));
+        }
+    }
+
+    private void releaseBuffers() {
+        if (lease != null) {
+            if (request instanceof HttpEntityEnclosingRequest) {
+                HttpEntityEnclosingRequest withEntity = (HttpEntityEnclosingRequest) request;
+                if (withEntity.getEntity() instanceof PooledEntity) {
+                    withEntity.setEntity(((PooledEntity) withEntity.getEntity()).unwrap());
+                }
+            }
+            lease.close();
+        }
+    }
 }
\ No newline at end of file
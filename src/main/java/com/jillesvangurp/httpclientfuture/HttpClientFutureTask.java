@@ -21,6 +21,9 @@
  */
 package com.jillesvangurp.httpclientfuture;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -36,6 +39,20 @@ public class HttpClientFutureTask<V> extends FutureTask<V> {
 
     private final HttpClientTaskLifecycleCallback callback;
 
+    private final AbortingCompletableFuture completableFuture = new AbortingCompletableFuture();
+
+    // only used by the nio engine, where the request is not executed by a thread running this task
+    private volatile Future<?> exchange;
+
+    // set when the request may be hedged
+    volatile Hedge<V> hedge;
+
+    // set when the request may be retried
+    volatile Retry<V> retry;
+
+    // set when this task waits for the result of a request it shares with other tasks
+    volatile RequestCoalescer<V>.Flight flight;
+
     public HttpClientFutureTask(final HttpUriRequest request, HttpClientCallable<V> httpCallable, AtomicBoolean cancelled, HttpClientTaskLifecycleCallback callback) {
         super(httpCallable);
         this.request = request;
@@ -48,12 +65,96 @@ public class HttpClientFutureTask<V> extends FutureTask<V> {
     @Override
     public boolean cancel(boolean mayInterruptIfRunning) {
         cancelled.set(true);
+        // cancel before aborting so that the failure caused by the abort cannot complete the task first
+        boolean result = super.cancel(mayInterruptIfRunning);
         if (mayInterruptIfRunning) {
             request.abort();
         }
-        callback.cancelled();
+        Future<?> pendingExchange = exchange;
+        if (pendingExchange != null) {
+            pendingExchange.cancel(mayInterruptIfRunning);
+        }
+        if (result) {
+            callback.cancelled();
+        }
+
+        return result;
+    }
 
-        return super.cancel(mayInterruptIfRunning);
+    /**
+     * @return a {@link CompletableFuture} that completes when this task is done. This allows you to react to the
+     *         result with callbacks (thenApply, thenCompose, etc.) instead of blocking a thread in get(). Cancelling
+     *         the returned future cancels this task and aborts the request.
+     */
+    public CompletableFuture<V> toCompletableFuture() {
+        return completableFuture;
+    }
+
+    /**
+     * @return the request executed by this task
+     */
+    public HttpUriRequest request() {
+        return request;
+    }
+
+    void exchange(Future<?> exchange) {
+        this.exchange = exchange;
+        if (isCancelled()) {
+            exchange.cancel(true);
+        }
+    }
+
+    void complete(V result) {
+        set(result);
+    }
+
+    void fail(Throwable t) {
+        setException(t);
+    }
+
+    @Override
+    protected void setException(Throwable t) {
+        Hedge<V> currentHedge = hedge;
+        if (currentHedge != null && currentHedge.deferFailure(t)) {
+            // the hedged copy may still succeed
+            return;
+        }
+        Retry<V> currentRetry = retry;
+        if (currentRetry != null && currentRetry.retry(t)) {
+            // the next attempt completes this task
+            return;
+        }
+        super.setException(t);
+    }
+
+    /**
+     * Fails the task, even if a hedged copy is outstanding.
+     */
+    void failNow(Throwable t) {
+        super.setException(t);
+    }
+
+    /**
+     * Complete this task with the result of its hedged copy.
+     */
+    void completeFromHedge(V result) {
+        set(result);
+    }
+
+    /**
+     * Abort the request of a task that lost the race with its hedged copy, without changing the outcome of the task.
+     */
+    void abortRequest() {
+        lostRace();
+        request.abort();
+        Future<?> pendingExchange = exchange;
+        if (pendingExchange != null) {
+            pendingExchange.cancel(true);
+        }
+    }
+
+    void lostRace() {
+        callable.lostRace = true;
     }
 
     public AtomicBoolean cancelled() {
@@ -88,6 +189,21 @@ public class HttpClientFutureTask<V> extends FutureTask<V> {
         }
     }
 
+    /**
+     * @return breakdown of the duration of the request into queue wait, lease wait, connect, time to first byte and
+     *         body read
+     */
+    public RequestTimings timings() {
+        RequestCoalescer<V>.Flight currentFlight = flight;
+        if (currentFlight != null) {
+            RequestTimings shared = currentFlight.timings();
+            if (shared != null) {
+                return shared;
+            }
+        }
+        return callable.timings;
+    }
+
     @Override
     public String toString() {
         return request.getRequestLine().getUri();
@@ -95,5 +211,50 @@ public class HttpClientFutureTask<V> extends FutureTask<V> {
 
     @Override
     protected void done() {
+        callable.abandoned();
+        Hedge<V> currentHedge = hedge;
+        if (currentHedge != null) {
+            currentHedge.primaryDone();
+        }
+        Retry<V> currentRetry = retry;
+        if (currentRetry != null) {
+            currentRetry.primaryDone();
+        }
+        RequestCoalescer<V>.Flight currentFlight = flight;
+        if (currentFlight != null && isCancelled()) {
+            currentFlight.cancelled();
+        }
+        if (isCancelled()) {
+            // the task is cancelled already; going through the override would cancel it again
+            completableFuture.cancelWithoutTask();
+        } else {
+            try {
+                completableFuture.complete(get());
+            } catch (ExecutionException e) {
+                completableFuture.completeExceptionally(e.getCause());
+            } catch (InterruptedException e) {
+                // cannot happen since the task is done
+                Thread.currentThread().interrupt();
+                completableFuture.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Propagates cancellation back to the task so that the request gets aborted.
+     */
+    private final class AbortingCompletableFuture extends CompletableFuture<V> {
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                HttpClientFutureTask.this.cancel(true);
+            }
+            return cancelled;
+        }
+
+        private void cancelWithoutTask() {
+            super.cancel(false);
+        }
     }
 }
\ No newline at end of file
@@ -35,4 +35,15 @@ public interface HttpClientTaskLifecycleCallback {
     void failure(Throwable t);
 
     void cancelled();
+
+    /**
+     * Called when the outcome of this request, or its admission, changed the state of the {@link CircuitBreaker} of
+     * its route. Does nothing by default.
+     *
+     * @param route
+     * @param from
+     * @param to
+     */
+    default void circuitStateChanged(RouteMetrics route, CircuitBreaker.State from, CircuitBreaker.State to) {
+    }
 }
\ No newline at end of file
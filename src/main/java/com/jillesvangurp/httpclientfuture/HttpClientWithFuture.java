@@ -21,16 +21,37 @@
  */
 package com.jillesvangurp.httpclientfuture;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.pool.ConnPoolControl;
 import org.apache.http.protocol.HttpContext;
 
 import com.jillesvangurp.metrics.CounterRegistry;
@@ -42,19 +63,51 @@ import com.jillesvangurp.metrics.CounterRegistry;
  * the
  * number of threads in the executor with the number of connections available to httpclient.
  *
+ * Alternatively, you can construct it with a {@link HttpAsyncClient}. In that case requests are executed by the
+ * non blocking I/O reactor of that client and no thread is tied up for the duration of a request; a few I/O threads can
+ * then drive a large number of concurrent requests. See {@link HttpClientBuilder#engine(HttpClientBuilder.Engine)}.
+ *
  * @param <T>
  *            the type of the value returned by the response handler you use
  */
-public final class HttpClientWithFuture<T> {
+public final class HttpClientWithFuture<T> implements Closeable {
+    public static final int DEFAULT_STREAMING_WINDOW = 64 * 1024;
+
     final HttpClient httpclient;
 
+    final HttpAsyncClient asyncHttpClient;
+
     private final ExecutorService executorService;
 
+    private final boolean shutdownExecutorOnClose;
+
     private final ResponseHandler<T> responseHandler;
 
     // FIXME inject this
     private final ConnectionMetrics metrics = new ConnectionMetrics(new CounterRegistry());
 
+    private volatile ConcurrencyLimiter concurrencyLimiter;
+
+    private volatile RequestQueue requestQueue;
+
+    private volatile ScheduledExecutorService scheduler;
+
+    private volatile HedgingPolicy hedgingPolicy;
+
+    private volatile RetryPolicy retryPolicy;
+
+    private volatile CircuitBreaker circuitBreaker;
+
+    private volatile RateLimiter rateLimiter;
+
+    private volatile RequestCoalescer<T> coalescer;
+
+    private volatile ResponseCache responseCache;
+
+    private volatile int streamingWindow = DEFAULT_STREAMING_WINDOW;
+
+    private volatile BufferPool bufferPool;
+
     /**
      * Create a new client instance. The instance is thread safe and you should only need one. You may want to create
      * multiple clients for each web service type instead of having them share the executor pool. That way, you have
@@ -74,9 +127,43 @@ public final class HttpClientWithFuture<T> {
      *            extracting whichever value T you need. It must be thread-safe.
      */
     public HttpClientWithFuture(HttpClient httpclient, ExecutorService executorService, ResponseHandler<T> responseHandler) {
+        this(httpclient, executorService, responseHandler, false);
+    }
+
+    HttpClientWithFuture(HttpClient httpclient, ExecutorService executorService, ResponseHandler<T> responseHandler, boolean shutdownExecutorOnClose) {
         this.httpclient = httpclient;
+        this.asyncHttpClient = null;
         this.executorService = executorService;
         this.responseHandler = responseHandler;
+        this.shutdownExecutorOnClose = shutdownExecutorOnClose;
+        monitorPool(httpclient.getConnectionManager());
+    }
+
+    /**
+     * Create a new client instance that uses the non blocking engine.
+     *
+     * @param asyncHttpClient
+     *            a started async client. The number of concurrent requests is limited by its connection pool and not by
+     *            a number of threads.
+     * @param responseHandler
+     *            a httpclient response handler. It is invoked on an I/O reactor thread after the response entity has
+     *            been received, so it should not block. It must be thread-safe.
+     */
+    public HttpClientWithFuture(HttpAsyncClient asyncHttpClient, ResponseHandler<T> responseHandler) {
+        this.httpclient = null;
+        this.asyncHttpClient = asyncHttpClient;
+        this.executorService = null;
+        this.responseHandler = responseHandler;
+        this.shutdownExecutorOnClose = false;
+        monitorPool(asyncHttpClient.getConnectionManager());
+    }
+
+    @SuppressWarnings("unchecked")
+    private void monitorPool(Object connectionManager) {
+        // both the blocking and the non blocking pooling connection managers pool connections by HttpRoute
+        if (connectionManager instanceof ConnPoolControl) {
+            metrics.pool((ConnPoolControl<HttpRoute>) connectionManager);
+        }
     }
 
     public HttpClientFutureTask<T> execute(final HttpRequestBase request) throws InterruptedException {
@@ -87,37 +174,774 @@ public final class HttpClientWithFuture<T> {
         return executeMultiple(null, -1, null, requests);
     }
 
+    /**
+     * Execute several requests concurrently and wait for them to finish.
+     * @param context optional context, may be null
+     * @param timeout maximum time to wait; requests that have not completed by then are cancelled. Use -1 to wait until all requests complete.
+     * @param timeUnit
+     * @param requests
+     * @return the futures for the requests, in the same order as the requests
+     * @throws InterruptedException
+     */
     public List<Future<T>> executeMultiple(HttpContext context, long timeout, TimeUnit timeUnit, HttpRequestBase...requests) throws InterruptedException {
-        metrics.scheduledConnections.incrementAndGet();
-        List<Callable<T>> callables = new ArrayList<Callable<T>>();
+        List<Future<T>> futures = new ArrayList<Future<T>>();
         for (HttpRequestBase request: requests) {
-            LoggingHttpClientTaskLifecycleCallback callback = new LoggingHttpClientTaskLifecycleCallback(request.getURI().toString());
-            HttpClientCallable<T> callable = new HttpClientCallable<T>(httpclient, responseHandler, request, context, callback,metrics);
-            callables.add(callable);
+            futures.add(execute(request, context, null));
         }
-        if(timeout > 0) {
-            return executorService.invokeAll(callables, timeout, timeUnit);
-        } else {
-            return executorService.invokeAll(callables);
+        long deadline = timeout > 0 ? System.nanoTime() + timeUnit.toNanos(timeout) : -1;
+        try {
+            for (Future<T> future : futures) {
+                if(future.isDone()) {
+                    continue;
+                }
+                try {
+                    if(deadline > 0) {
+                        future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    } else {
+                        future.get();
+                    }
+                } catch (ExecutionException e) {
+                    // callers inspect the individual futures
+                } catch (TimeoutException e) {
+                    break;
+                }
+            }
+        } finally {
+            for (Future<T> future : futures) {
+                if(!future.isDone()) {
+                    future.cancel(true);
+                }
+            }
         }
+        return futures;
+    }
 
+    /**
+     * Execute several requests concurrently and get them back as they complete, rather than waiting for the slowest
+     * one as {@link #executeMultiple(HttpContext, long, TimeUnit, HttpRequestBase...)} does.
+     *
+     * @param context optional context, may be null. Every request gets its own context that falls back to this one,
+     *            so attributes set while executing one request are not visible to the others.
+     * @param timeout requests that have not completed by then are cancelled. Use -1 to wait until all requests
+     *            complete.
+     * @param timeUnit
+     * @param requests
+     * @return the tasks of the requests in the order in which they complete
+     * @throws InterruptedException
+     */
+    public CompletionIterator<T> executeInCompletionOrder(HttpContext context, long timeout, TimeUnit timeUnit, HttpRequestBase... requests)
+            throws InterruptedException {
+        List<HttpClientFutureTask<T>> tasks = new ArrayList<HttpClientFutureTask<T>>();
+        try {
+            for (HttpRequestBase request : requests) {
+                tasks.add(execute(request, context, null));
+            }
+        } catch (InterruptedException | RuntimeException e) {
+            for (HttpClientFutureTask<T> task : tasks) {
+                task.cancel(true);
+            }
+            throw e;
+        }
+        return new CompletionIterator<T>(tasks, timeout > 0 ? System.nanoTime() + timeUnit.toNanos(timeout) : -1);
     }
 
+    /**
+     * Send the requests concurrently and settle for the first one that succeeds. See
+     * {@link #gatherQuorum(int, HttpContext, long, TimeUnit, HttpRequestBase...)}.
+     */
+    public CompletableFuture<GatherResult<T>> gatherFirst(HttpContext context, long timeout, TimeUnit timeUnit, HttpRequestBase... requests)
+            throws InterruptedException {
+        return gatherQuorum(1, context, timeout, timeUnit, requests);
+    }
+
+    /**
+     * Send the requests concurrently and wait for all of them to succeed, but give up as soon as one fails. See
+     * {@link #gatherQuorum(int, HttpContext, long, TimeUnit, HttpRequestBase...)}.
+     */
+    public CompletableFuture<GatherResult<T>> gatherAll(HttpContext context, long timeout, TimeUnit timeUnit, HttpRequestBase... requests)
+            throws InterruptedException {
+        return gatherQuorum(requests.length, context, timeout, timeUnit, requests);
+    }
+
+    /**
+     * Send the requests concurrently and settle as soon as quorum of them succeeded, or so many failed that the quorum
+     * can no longer be reached. The requests that are still outstanding at that point are cancelled and aborted. The
+     * requests share one deadline: requests that have not started by then are dropped, and the result is completed
+     * with what succeeded so far when it passes. A deadline requires a {@link #scheduler(ScheduledExecutorService)}.
+     *
+     * @param quorum number of requests that have to succeed, between 1 and the number of requests
+     * @param context optional context, may be null. Every request gets its own context that falls back to this one.
+     * @param timeout deadline of the group. Use -1 to wait until the outcome is decided.
+     * @param timeUnit
+     * @param requests
+     * @return a future that completes with the status of every request once the outcome is decided; it does not
+     *         complete exceptionally when the quorum is not reached. Cancelling it cancels the outstanding requests.
+     * @throws InterruptedException
+     */
+    public CompletableFuture<GatherResult<T>> gatherQuorum(int quorum, HttpContext context, long timeout, TimeUnit timeUnit, HttpRequestBase... requests)
+            throws InterruptedException {
+        if (quorum < 1 || quorum > requests.length) {
+            throw new IllegalArgumentException("quorum should be between 1 and the number of requests");
+        }
+        ScheduledExecutorService currentScheduler = scheduler;
+        if (timeout > 0 && currentScheduler == null) {
+            throw new IllegalStateException("a deadline for a group of requests needs a scheduler");
+        }
+        RequestOptions options = timeout > 0 ? RequestOptions.options().deadline(timeout, timeUnit) : null;
+        List<HttpClientFutureTask<T>> tasks = new ArrayList<HttpClientFutureTask<T>>();
+        try {
+            for (HttpRequestBase request : requests) {
+                tasks.add(execute(request, context, null, options));
+            }
+        } catch (InterruptedException | RuntimeException e) {
+            for (HttpClientFutureTask<T> task : tasks) {
+                task.cancel(true);
+            }
+            throw e;
+        }
+        return new ScatterGather<T>(tasks, quorum).start(currentScheduler, timeout > 0 ? timeUnit.toNanos(timeout) : -1).result;
+    }
 
     public HttpClientFutureTask<T> execute(HttpRequestBase request, HttpContext context, HttpClientTaskLifecycleCallback callback) throws InterruptedException {
+        return execute(request, context, callback, null);
+    }
+
+    /**
+     * @param request
+     * @param options per request options such as a deadline
+     * @return the task
+     * @throws InterruptedException
+     */
+    public HttpClientFutureTask<T> execute(HttpRequestBase request, RequestOptions options) throws InterruptedException {
+        return execute(request, null, null, options);
+    }
+
+    /**
+     * @param request
+     * @param priority the priority class of the request; see {@link #requestQueue(RequestQueue)}
+     * @return the task
+     * @throws InterruptedException
+     */
+    public HttpClientFutureTask<T> execute(HttpRequestBase request, Priority priority) throws InterruptedException {
+        return execute(request, null, null, RequestOptions.options().priority(priority));
+    }
+
+    /**
+     * @param request
+     * @param context optional context, may be null
+     * @param callback optional callback, may be null
+     * @param options optional per request options, may be null
+     * @return the task
+     * @throws InterruptedException
+     */
+    public HttpClientFutureTask<T> execute(HttpRequestBase request, HttpContext context, HttpClientTaskLifecycleCallback callback, RequestOptions options) throws InterruptedException {
+        ResponseCache cache = responseCache;
+        if(cache != null) {
+            CachedResponse cached = cache.lookup(request, metrics);
+            if(cached != null) {
+                return cached(request, context, callback, cached);
+            }
+        }
+        RequestCoalescer<T> currentCoalescer = coalescer;
+        if(currentCoalescer != null && currentCoalescer.eligible(request)) {
+            return currentCoalescer.execute(request, context, callback, options);
+        }
+        return submit(request, context, callback, options, true);
+    }
+
+    /**
+     * Execute a request and hand its body to the subscriber in chunks as it arrives, instead of to the response handler.
+     * At most the streaming window of the body is held in memory at any time (see {@link #streamingWindow(int)}), and
+     * the body is read from the connection no faster than the subscriber requests chunks. Streaming requests pass
+     * through the rate limiter, circuit breaker, concurrency limiter and request queue, but they are not cached,
+     * coalesced, hedged or retried.
+     *
+     * @param request
+     * @param subscriber consumes the body and produces the result of the task
+     * @return the task
+     */
+    public HttpClientFutureTask<T> executeStreaming(HttpRequestBase request, BodySubscriber<T> subscriber) {
+        return executeStreaming(request, null, null, null, subscriber);
+    }
+
+    /**
+     * See {@link #executeStreaming(HttpRequestBase, BodySubscriber)}.
+     *
+     * @param request
+     * @param context optional context, may be null
+     * @param callback optional callback, may be null
+     * @param options optional per request options, may be null
+     * @param subscriber consumes the body and produces the result of the task
+     * @return the task
+     */
+    public HttpClientFutureTask<T> executeStreaming(HttpRequestBase request, HttpContext context, HttpClientTaskLifecycleCallback callback, RequestOptions options,
+            BodySubscriber<T> subscriber) {
+        return submit(request, context, callback, options, false, null, new StreamingBody<T>(subscriber, streamingWindow));
+    }
+
+    /**
+     * Download the body of a response into a file channel. With the {@link HttpClientBuilder.Engine#NIO} engine the
+     * body is transferred from the connection to the file without copying it to the heap; the other engines copy it
+     * through a single buffer of the streaming window. Responses other than 200 fail the download.
+     *
+     * @param request
+     * @param channel a writable channel; it is not closed
+     * @param position where the body goes in the file
+     * @return the download
+     */
+    public Download download(HttpRequestBase request, FileChannel channel, long position) {
+        Download download = new Download();
+        DownloadSink<T> sink = DownloadSink.toChannel(channel, position, -1, false);
+        startDownload(download, request, sink, null);
+        return download;
+    }
+
+    /**
+     * Download the body of a response into a buffer, e.g. a region of a file mapped with
+     * {@link FileChannel#map(java.nio.channels.FileChannel.MapMode, long, long)}. With the
+     * {@link HttpClientBuilder.Engine#NIO} engine the body is read from the connection into the region directly. The
+     * download fails if the body does not fit.
+     *
+     * @param request
+     * @param region the body is put at the position of the region
+     * @return the download
+     */
+    public Download download(HttpRequestBase request, ByteBuffer region) {
+        Download download = new Download();
+        startDownload(download, request, DownloadSink.<T> toRegion(region), null);
+        return download;
+    }
+
+    /**
+     * Download the body of a response into a file. If the file exists, the download resumes where it left off with a
+     * Range request; if the server does not support ranges, the file is overwritten.
+     *
+     * @param request a GET request
+     * @param file
+     * @return the download; it completes with the number of bytes written by this download
+     * @throws IOException if the file cannot be opened
+     */
+    public Download download(HttpRequestBase request, Path file) throws IOException {
+        Download download = new Download();
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        long existing = channel.size();
+        if (existing > 0) {
+            request.setHeader(HttpHeaders.RANGE, "bytes=" + existing + "-");
+        }
+        startDownload(download, request, DownloadSink.<T> toChannel(channel, existing, existing > 0 ? existing : -1, true), channel);
+        return download;
+    }
+
+    /**
+     * Download a large resource into a file over several connections at once. A HEAD request finds out the size of
+     * the resource; if the server accepts range requests, the file is split into parts that are downloaded with
+     * concurrent Range requests, each writing to its own part of the file. Otherwise the resource is downloaded with a
+     * single request. If a part fails, the other parts are cancelled.
+     *
+     * @param request a GET request; its headers are sent with every part
+     * @param file the file is overwritten
+     * @param parts maximum number of concurrent requests
+     * @return the download; it completes with the number of bytes written
+     */
+    public Download downloadInParallel(final HttpRequestBase request, final Path file, final int parts) {
+        if (parts < 1) {
+            throw new IllegalArgumentException("parts should be > 0");
+        }
+        final Download download = new Download();
+        final HttpHead head = new HttpHead(request.getURI());
+        head.setHeaders(request.getAllHeaders());
+        final ResourceSize size = new ResourceSize();
+        HttpClientFutureTask<T> headTask = executeStreaming(head, size);
+        download.add(headTask);
+        headTask.toCompletableFuture().whenComplete((ignored, failure) -> {
+            if (failure != null) {
+                download.completeExceptionally(failure);
+                return;
+            }
+            try {
+                FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                if (!size.rangesAccepted || size.length <= 0 || parts == 1) {
+                    startDownload(download, copy(request, null), DownloadSink.<T> toChannel(channel, 0, -1, false), channel);
+                    return;
+                }
+                channel.close();
+                downloadParts(download, request, file, size.length, parts);
+            } catch (IOException | RuntimeException e) {
+                download.completeExceptionally(e);
+            }
+        });
+        return download;
+    }
+
+    private void downloadParts(final Download download, HttpRequestBase request, Path file, long length, int parts) throws IOException {
+        long partSize = (length + parts - 1) / parts;
+        List<CompletableFuture<Long>> written = new ArrayList<CompletableFuture<Long>>();
+        for (long start = 0; start < length && !download.isDone(); start += partSize) {
+            long end = Math.min(length, start + partSize) - 1;
+            // every part gets its own channel: the non blocking transfer to a channel moves its position
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+            Download part = new Download();
+            startDownload(part, copy(request, "bytes=" + start + "-" + end), DownloadSink.<T> toChannel(channel, start, start, false), channel);
+            download.add(part);
+            written.add(part);
+        }
+        CompletableFuture.allOf(written.toArray(new CompletableFuture[0])).whenComplete((ignored, failure) -> {
+            if (failure != null) {
+                download.completeExceptionally(failure instanceof CompletionException ? failure.getCause() : failure);
+            } else {
+                long total = 0;
+                for (CompletableFuture<Long> part : written) {
+                    total += part.join();
+                }
+                download.complete(total);
+            }
+        });
+        for (CompletableFuture<Long> part : written) {
+            // fail the download as soon as one part fails
+            part.whenComplete((ignored, failure) -> {
+                if (failure != null) {
+                    download.completeExceptionally(failure);
+                }
+            });
+        }
+    }
+
+    private static HttpRequestBase copy(HttpRequestBase request, String range) {
+        HttpGet copy = new HttpGet(request.getURI());
+        copy.setHeaders(request.getAllHeaders());
+        if (range != null) {
+            copy.setHeader(HttpHeaders.RANGE, range);
+        }
+        return copy;
+    }
+
+    /**
+     * @param channel closed when the download is done, may be null
+     */
+    private void startDownload(final Download download, HttpRequestBase request, final DownloadSink<T> sink, final FileChannel channel) {
+        HttpClientFutureTask<T> task = executeStreaming(request, sink);
+        download.add(task);
+        task.toCompletableFuture().whenComplete((ignored, failure) -> {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    if (failure == null) {
+                        download.completeExceptionally(e);
+                        return;
+                    }
+                }
+            }
+            if (failure != null) {
+                download.completeExceptionally(failure);
+            } else {
+                download.complete(sink.written());
+            }
+        });
+    }
+
+    /**
+     * Takes the length of a resource and whether its server accepts range requests from the response to a HEAD
+     * request.
+     */
+    private final class ResourceSize implements BodySubscriber<T> {
+        volatile long length = -1;
+        volatile boolean rangesAccepted;
+
+        @Override
+        public void onResponse(HttpResponse response, BodySubscription subscription) throws IOException {
+            int status = response.getStatusLine().getStatusCode();
+            if (status != HttpStatus.SC_OK) {
+                throw new HttpResponseException(status, response.getStatusLine().getReasonPhrase());
+            }
+            Header contentLength = response.getFirstHeader(HttpHeaders.CONTENT_LENGTH);
+            Header acceptRanges = response.getFirstHeader(HttpHeaders.ACCEPT_RANGES);
+            try {
+                length = contentLength == null ? -1 : Long.parseLong(contentLength.getValue().trim());
+            } catch (NumberFormatException e) {
+                length = -1;
+            }
+            rangesAccepted = acceptRanges != null && "bytes".equalsIgnoreCase(acceptRanges.getValue().trim());
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onChunk(ByteBuffer chunk) {
+        }
+
+        @Override
+        public T onComplete() {
+            return null;
+        }
+    }
+
+    /**
+     * @return a task that is already completed with the result of the response handler for the cached response
+     */
+    private HttpClientFutureTask<T> cached(HttpRequestBase request, HttpContext context, HttpClientTaskLifecycleCallback callback, CachedResponse cached) {
+        HttpClientFutureTask<T> task = waiter(request, context, callback);
+        try {
+            task.complete(responseHandler.handleResponse(cached.toResponse()));
+        } catch (IOException | RuntimeException e) {
+            task.fail(e);
+        }
+        return task;
+    }
+
+    /**
+     * @return a task that is completed with the result of a request executed by another task
+     */
+    HttpClientFutureTask<T> waiter(HttpRequestBase request, HttpContext context, HttpClientTaskLifecycleCallback callback) {
+        if(callback == null) {
+            callback = new LoggingHttpClientTaskLifecycleCallback(request.getURI().toString());
+        }
+        HttpClientCallable<T> callable = new HttpClientCallable<T>(httpclient, responseHandler, request, context, callback, metrics, metrics.route(request.getURI()), null);
+        callable.detach();
+        return new HttpClientFutureTask<T>(request, callable, callable.cancelled, callback);
+    }
+
+    /**
+     * @param primary true for the request of a caller, false for hedged copies. Only the requests of callers are
+     *            hedged and retried.
+     */
+    HttpClientFutureTask<T> submit(HttpRequestBase request, HttpContext context, HttpClientTaskLifecycleCallback callback, RequestOptions options, boolean primary) {
+        Retry<T> retry = null;
+        RetryPolicy retries = retryPolicy;
+        if(primary && retries != null && retries.eligible(options)) {
+            retries.earn();
+            retry = new Retry<T>(this, request, context, options, retries, metrics, scheduler);
+        }
+        return submit(request, context, callback, options, primary, retry);
+    }
+
+    /**
+     * Submit the next attempt of a request that is retried.
+     */
+    HttpClientFutureTask<T> attempt(HttpRequestBase request, HttpContext context, RequestOptions options, Retry<T> retry) {
+        return submit(request, context, null, options, false, retry);
+    }
+
+    private HttpClientFutureTask<T> submit(HttpRequestBase request, HttpContext context, HttpClientTaskLifecycleCallback callback, RequestOptions options, boolean primary, Retry<T> retry) {
+        return submit(request, context, callback, options, primary, retry, null);
+    }
+
+    private HttpClientFutureTask<T> submit(HttpRequestBase request, HttpContext context, HttpClientTaskLifecycleCallback callback, RequestOptions options, boolean primary, Retry<T> retry,
+            StreamingBody<T> streaming) {
+        RouteMetrics route = metrics.route(request.getURI());
         metrics.scheduledConnections.incrementAndGet();
+        route.scheduled.incrementAndGet();
         if(callback == null) {
             callback = new LoggingHttpClientTaskLifecycleCallback(request.getURI().toString());
         }
-        HttpClientCallable<T> callable = new HttpClientCallable<T>(httpclient, responseHandler, request, context, callback,metrics);
-        HttpClientFutureTask<T> httpRequestFutureTask = new HttpClientFutureTask<T>(request, callable, callable.cancelled,callback);
+        HttpClientCallable<T> callable = new HttpClientCallable<T>(httpclient, streaming != null ? streaming : responseHandler, request, context, callback,metrics, route, options);
+        final HttpClientFutureTask<T> httpRequestFutureTask = new HttpClientFutureTask<T>(request, callable, callable.cancelled,callback);
+        ResponseCache cache = responseCache;
+        BufferPool pool = bufferPool;
+        if(pool != null) {
+            callable.bufferPool(pool);
+        }
+        if(streaming != null) {
+            callable.streaming(streaming);
+            streaming.task(httpRequestFutureTask);
+        } else if(cache != null) {
+            callable.responseCache(cache);
+        }
+        if(retry != null) {
+            callable.retry(retry);
+            if(primary) {
+                httpRequestFutureTask.retry = retry;
+                retry.primary(httpRequestFutureTask);
+            }
+        }
+
+        String routeKey = RouteMetrics.key(request.getURI());
+        CircuitBreaker breaker = circuitBreaker;
+        if(breaker != null && routeKey != null) {
+            CircuitBreaker.Circuit circuit = breaker.circuit(routeKey, route);
+            long generation = breaker.acquire(circuit, route, callback, metrics);
+            if(generation < 0) {
+                httpRequestFutureTask.fail(new CircuitOpenException(route, routeKey));
+                return httpRequestFutureTask;
+            }
+            callable.acquiredCircuit(breaker, circuit, generation);
+        }
+
+        RateLimiter rates = rateLimiter;
+        long throttle = rates == null ? 0 : rates.acquire(routeKey);
+        if(throttle < 0) {
+            metrics.rateLimitedRequests.increment();
+            httpRequestFutureTask.fail(new RejectedExecutionException("rate limit reached for " + route));
+            return httpRequestFutureTask;
+        }
 
-        executorService.execute(httpRequestFutureTask);
+        HedgingPolicy hedging = hedgingPolicy;
+        if(hedging != null && route.host == null) {
+            callable.hedgeLatencies(hedging.latencies(routeKey, route));
+        }
+        if(primary && hedging != null && hedging.eligible(request, options)) {
+            hedging.earn();
+            long delay = hedging.delayNanos(routeKey, route);
+            if(delay > 0) {
+                Hedge<T> hedge = new Hedge<T>(this, httpRequestFutureTask, request, context, options, hedging, metrics, delay);
+                httpRequestFutureTask.hedge = hedge;
+                hedge.schedule(scheduler, delay);
+            }
+        }
+
+        PendingRequest pending = new PendingRequest(callable, httpRequestFutureTask, () -> enqueue(callable, httpRequestFutureTask));
+        if(throttle > 0) {
+            metrics.throttledRequests.increment();
+            metrics.throttleWait.recordNanos(throttle);
+            scheduler.schedule(() -> {
+                if(!httpRequestFutureTask.isDone()) {
+                    try {
+                        admit(routeKey, route, pending);
+                    } catch (RejectedExecutionException e) {
+                        // the task has been failed with it
+                    }
+                }
+            }, throttle, TimeUnit.NANOSECONDS);
+        } else {
+            admit(routeKey, route, pending);
+        }
 
         return httpRequestFutureTask;
     }
 
+    private void admit(String routeKey, RouteMetrics route, PendingRequest pending) {
+        ConcurrencyLimiter limiter = concurrencyLimiter;
+        if(limiter != null) {
+            limiter.submit(routeKey, route, pending);
+        } else {
+            pending.dispatch.run();
+        }
+    }
+
+    private void enqueue(HttpClientCallable<T> callable, HttpClientFutureTask<T> task) {
+        RequestQueue queue = requestQueue;
+        if(queue != null) {
+            queue.submit(new PendingRequest(callable, task, () -> dispatch(callable, task)), metrics);
+        } else {
+            dispatch(callable, task);
+        }
+    }
+
+    private void dispatch(HttpClientCallable<T> callable, HttpClientFutureTask<T> task) {
+        if(asyncHttpClient != null) {
+            callable.callAsync(asyncHttpClient, task);
+        } else {
+            try {
+                executorService.execute(task);
+            } catch (RejectedExecutionException e) {
+                // release what the task holds; the caller still gets the exception as before
+                task.fail(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Limit the number of requests in flight per route with a limit that adapts to the latency and errors of the route.
+     * Requests over the limit wait until a request to the same route finishes or are rejected, depending on the
+     * configuration of the limiter.
+     *
+     * @param limiter the limiter, or null to stop limiting
+     * @return this client
+     */
+    public HttpClientWithFuture<T> concurrencyLimiter(ConcurrencyLimiter limiter) {
+        this.concurrencyLimiter = limiter;
+        return this;
+    }
+
+    /**
+     * @param scheduler used for timed work such as sending hedged requests. It is not shut down when the client is
+     *            closed.
+     * @return this client
+     */
+    public HttpClientWithFuture<T> scheduler(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+        return this;
+    }
+
+    /**
+     * Hedge idempotent requests that take longer than usual for their route by sending a second copy; whichever
+     * responds first wins. Requires a {@link #scheduler(ScheduledExecutorService)}.
+     *
+     * @param policy the policy, or null to stop hedging. Use a new policy for every client.
+     * @return this client
+     */
+    public HttpClientWithFuture<T> hedging(HedgingPolicy policy) {
+        if (policy != null && scheduler == null) {
+            throw new IllegalStateException("hedging needs a scheduler");
+        }
+        this.hedgingPolicy = policy;
+        return this;
+    }
+
+    /**
+     * Retry requests that failed with a transient error, with exponential backoff and within a budget. Requires a
+     * {@link #scheduler(ScheduledExecutorService)}, on which the retries wait.
+     *
+     * @param policy the policy, or null to stop retrying. Use a new policy for every client.
+     * @return this client
+     */
+    public HttpClientWithFuture<T> retrying(RetryPolicy policy) {
+        if (policy != null && scheduler == null) {
+            throw new IllegalStateException("retrying needs a scheduler");
+        }
+        this.retryPolicy = policy;
+        return this;
+    }
+
+    /**
+     * Fail requests right away while their route is failing or slow, rather than letting them wait for timeouts.
+     * Every route has a circuit, including routes that are counted in the "other" route of the {@link #metrics()}.
+     *
+     * @param breaker the breaker, or null to stop breaking circuits. Use a new breaker for every client.
+     * @return this client
+     */
+    public HttpClientWithFuture<T> circuitBreaker(CircuitBreaker breaker) {
+        this.circuitBreaker = breaker;
+        return this;
+    }
+
+    /**
+     * Keep the request rate of every route within its quota. Requests over the rate are delayed on the
+     * {@link #scheduler(ScheduledExecutorService)}, which is required if the limiter delays requests, or rejected.
+     *
+     * @param limiter the limiter, or null to stop limiting the rate. Use a new limiter for every client.
+     * @return this client
+     */
+    public HttpClientWithFuture<T> rateLimiter(RateLimiter limiter) {
+        if (limiter != null && limiter.delays() && scheduler == null) {
+            throw new IllegalStateException("delaying requests needs a scheduler");
+        }
+        this.rateLimiter = limiter;
+        return this;
+    }
+
+    /**
+     * Let concurrent identical GET and HEAD requests share a single execution, e.g. to avoid a stampede of requests
+     * for the same resource when a cache expires. Requests are identical when their method, uri and the values of the
+     * key headers are the same. Every caller gets its own task; the shared request is only aborted when all of them
+     * are cancelled. The callbacks of requests that share the execution of another request only see scheduling and
+     * cancellation, and their timings are those of the shared request.
+     *
+     * @param enabled
+     * @param keyHeaders headers that distinguish otherwise identical requests, e.g. Authorization or Accept
+     * @return this client
+     */
+    public HttpClientWithFuture<T> coalescing(boolean enabled, String... keyHeaders) {
+        this.coalescer = enabled ? new RequestCoalescer<T>(this, keyHeaders) : null;
+        return this;
+    }
+
+    /**
+     * Cache responses to GET requests according to their Cache-Control, Expires, ETag and Last-Modified headers. Fresh
+     * responses are handed to the response handler on the calling thread, without sending a request; the returned
+     * task is already done. Stale responses are revalidated with a conditional request. With the non blocking engine,
+     * new responses are stored in memory only, see {@link ResponseCache}.
+     *
+     * @param cache the cache, or null to stop caching. Use a new cache for every client.
+     * @return this client
+     */
+    public HttpClientWithFuture<T> responseCache(ResponseCache cache) {
+        this.responseCache = cache;
+        metrics.responseCache(cache);
+        return this;
+    }
+
+    /**
+     * Let requests wait in a bounded queue rather than in the queue of the executor, so that requests are shed when the
+     * client is overloaded, requests that passed their deadline are dropped before they are sent and requests are
+     * sent by {@link Priority}.
+     *
+     * @param queue the queue, or null to hand requests to the executor directly. Use a new queue for every client.
+     * @return this client
+     */
+    public HttpClientWithFuture<T> requestQueue(RequestQueue queue) {
+        this.requestQueue = queue;
+        metrics.requestQueue(queue);
+        return this;
+    }
+
+    /**
+     * @param bytes size of the chunks handed to the {@link BodySubscriber} of a streaming request, which is also how
+     *            much of the body of a streaming request is held in memory at most. Defaults to
+     *            {@link #DEFAULT_STREAMING_WINDOW}.
+     * @return this client
+     */
+    public HttpClientWithFuture<T> streamingWindow(int bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("window should be > 0");
+        }
+        this.streamingWindow = bytes;
+        return this;
+    }
+
+    /**
+     * Take the buffers for streamed bodies, gzip decompression and writing request entities from a pool. Buffers go
+     * back to the pool when the task of their request completes or is cancelled. Decompression only uses the pool if
+     * the httpclient was built by a {@link HttpClientBuilder} with the same pool.
+     *
+     * @param pool the pool, or null to allocate buffers for every request
+     * @return this client
+     */
+    public HttpClientWithFuture<T> bufferPool(BufferPool pool) {
+        this.bufferPool = pool;
+        return this;
+    }
+
+    /**
+     * Non blocking variant of {@link #execute(HttpRequestBase)}.
+     * @param request
+     * @return a {@link CompletableFuture} that completes with the value produced by the response handler. Cancelling it aborts the request.
+     */
+    public CompletableFuture<T> executeAsync(HttpRequestBase request) {
+        return executeAsync(request, null, null);
+    }
+
+    /**
+     * Non blocking variant of {@link #execute(HttpRequestBase, HttpContext, HttpClientTaskLifecycleCallback)}. Use this
+     * if you want to compose results using e.g. thenApply, thenCompose or CompletableFuture.allOf without
+     * blocking a thread per request in get().
+     * @param request
+     * @param context optional context, may be null
+     * @param callback optional callback, may be null
+     * @return a {@link CompletableFuture} that completes with the value produced by the response handler. Cancelling it aborts the request.
+     */
+    public CompletableFuture<T> executeAsync(HttpRequestBase request, HttpContext context, HttpClientTaskLifecycleCallback callback) {
+        try {
+            return execute(request, context, callback).toCompletableFuture();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CompletableFuture<T> failed = new CompletableFuture<T>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
     public ConnectionMetrics metrics() {
         return metrics;
     }
+
+    /**
+     * Shuts down the underlying client and its connections. The executor service is not shut down if you
+     * provided it.
+     */
+    @Override
+    public void close() throws IOException {
+        if(asyncHttpClient != null) {
+            try {
+                asyncHttpClient.shutdown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            httpclient.getConnectionManager().shutdown();
+        }
+        if(shutdownExecutorOnClose) {
+            executorService.shutdownNow();
+        }
+    }
 }
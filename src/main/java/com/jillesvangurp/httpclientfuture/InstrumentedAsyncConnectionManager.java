@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.nio.conn.ManagedClientAsyncConnection;
+import org.apache.http.nio.reactor.ConnectingIOReactor;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.impl.nio.conn.PoolingClientAsyncConnectionManager;
+
+import com.jillesvangurp.metrics.DurationCounter;
+
+/**
+ * Pooling connection manager for the non blocking engine that reports lease wait times to the
+ * {@link ConnectionMetrics} of the client. Unlike the blocking pool, a lease of a new connection completes once the
+ * connection is established, so the lease wait includes connecting.
+ */
+class InstrumentedAsyncConnectionManager extends PoolingClientAsyncConnectionManager implements InstrumentedPool {
+    private volatile DurationCounter leaseWaits;
+
+    InstrumentedAsyncConnectionManager(ConnectingIOReactor ioreactor) throws IOReactorException {
+        super(ioreactor);
+    }
+
+    @Override
+    public void recordLeaseWaits(DurationCounter leaseWaits) {
+        this.leaseWaits = leaseWaits;
+    }
+
+    @Override
+    public Future<ManagedClientAsyncConnection> leaseConnection(HttpRoute route, Object state, long connectTimeout, TimeUnit tunit,
+            final FutureCallback<ManagedClientAsyncConnection> callback) {
+        final DurationCounter counter = leaseWaits;
+        if (counter == null) {
+            return super.leaseConnection(route, state, connectTimeout, tunit, callback);
+        }
+        final long start = System.nanoTime();
+        return super.leaseConnection(route, state, connectTimeout, tunit, new FutureCallback<ManagedClientAsyncConnection>() {
+            @Override
+            public void completed(ManagedClientAsyncConnection result) {
+                counter.recordNanos(System.nanoTime() - start);
+                if (callback != null) {
+                    callback.completed(result);
+                }
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                counter.recordNanos(System.nanoTime() - start);
+                if (callback != null) {
+                    callback.failed(ex);
+                }
+            }
+
+            @Override
+            public void cancelled() {
+                if (callback != null) {
+                    callback.cancelled();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+
+import com.jillesvangurp.metrics.DurationCounter;
+
+/**
+ * Pooling connection manager used by {@link HttpClientBuilder} that reports connect times to the
+ * {@link RequestTimings} of requests and lease wait times to the {@link ConnectionMetrics} of the client. Its
+ * connections are {@link ValidatingClientConnection}s.
+ */
+class InstrumentedConnectionManager extends PoolingClientConnectionManager implements InstrumentedPool {
+    private volatile DurationCounter leaseWaits;
+
+    InstrumentedConnectionManager() {
+        this(-1);
+    }
+
+    /**
+     * @param timeToLive maximum life time of connections in milliseconds, or -1 to keep them as long as they are
+     *            reusable. Expired connections are closed when they would be leased.
+     */
+    InstrumentedConnectionManager(long timeToLive) {
+        super(SchemeRegistryFactory.createDefault(), timeToLive, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schreg) {
+        return new RequestTimingInterceptor.TimingConnectionOperator(new ValidatingClientConnection.Operator(super.createConnectionOperator(schreg)));
+    }
+
+    @Override
+    public void recordLeaseWaits(DurationCounter leaseWaits) {
+        this.leaseWaits = leaseWaits;
+    }
+
+    @Override
+    public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+        final ClientConnectionRequest connectionRequest = super.requestConnection(route, state);
+        final DurationCounter counter = leaseWaits;
+        if (counter == null) {
+            return connectionRequest;
+        }
+        return new ClientConnectionRequest() {
+            @Override
+            public ManagedClientConnection getConnection(long timeout, TimeUnit tunit) throws InterruptedException, ConnectionPoolTimeoutException {
+                long start = System.nanoTime();
+                try {
+                    return connectionRequest.getConnection(timeout, tunit);
+                } finally {
+                    counter.recordNanos(System.nanoTime() - start);
+                }
+            }
+
+            @Override
+            public void abortRequest() {
+                connectionRequest.abortRequest();
+            }
+        };
+    }
+}
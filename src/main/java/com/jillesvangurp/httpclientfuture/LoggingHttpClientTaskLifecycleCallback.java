@@ -71,4 +71,9 @@ public class LoggingHttpClientTaskLifecycleCallback implements HttpClientTaskLif
 	public void cancelled() {
         LOG.debug("cancelled  " + name);
     }
-}
\ No newline at end of file
+
+    @Override
+    public void circuitStateChanged(RouteMetrics route, CircuitBreaker.State from, CircuitBreaker.State to) {
+        LOG.info("circuit for " + route + " changed from " + from + " to " + to + " by " + name);
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+/**
+ * A request that waits for a {@link ConcurrencyLimiter} or a {@link RequestQueue}, with what is needed to send it on
+ * its way later.
+ */
+final class PendingRequest {
+    final HttpClientCallable<?> callable;
+    final HttpClientFutureTask<?> task;
+    final Runnable dispatch;
+    // System.nanoTime() when the request was added to a RequestQueue
+    long queuedAt;
+
+    PendingRequest(HttpClientCallable<?> callable, HttpClientFutureTask<?> task, Runnable dispatch) {
+        this.callable = callable;
+        this.task = task;
+        this.dispatch = dispatch;
+    }
+}
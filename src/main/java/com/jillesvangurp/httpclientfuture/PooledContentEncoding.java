@@ -0,0 +1,275 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Decompresses gzip responses with an inflater and an input buffer from the {@link BufferPool} of the request, rather
+ * than allocating both for every response as {@link ResponseContentEncoding} does. Other encodings, and requests that
+ * have no pool, are left to ResponseContentEncoding.
+ */
+class PooledContentEncoding implements HttpResponseInterceptor {
+    private static final int INPUT_BUFFER_SIZE = 4096;
+
+    private final ResponseContentEncoding fallback = new ResponseContentEncoding();
+
+    @Override
+    public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+        HttpEntity entity = response.getEntity();
+        Object lease = context == null ? null : context.getAttribute(BufferPool.Lease.CONTEXT_ATTRIBUTE);
+        if (entity != null && lease instanceof BufferPool.Lease) {
+            Header contentEncoding = entity.getContentEncoding();
+            if (contentEncoding != null) {
+                HeaderElement[] codecs = contentEncoding.getElements();
+                if (codecs.length == 1) {
+                    String codec = codecs[0].getName().toLowerCase(Locale.US);
+                    if ("gzip".equals(codec) || "x-gzip".equals(codec)) {
+                        response.setEntity(new GzipEntity(entity, (BufferPool.Lease) lease));
+                        context.setAttribute(ResponseContentEncoding.UNCOMPRESSED, true);
+                        return;
+                    }
+                }
+            }
+        }
+        fallback.process(response, context);
+    }
+
+    private static final class GzipEntity extends HttpEntityWrapper {
+        private final BufferPool.Lease lease;
+        private InputStream content;
+
+        GzipEntity(HttpEntity wrapped, BufferPool.Lease lease) {
+            super(wrapped);
+            this.lease = lease;
+        }
+
+        /**
+         * Like DecompressingEntity, a streamed body gets one stream: EntityUtils.consume asks for it again after the
+         * response handler has read and closed it.
+         */
+        @Override
+        public InputStream getContent() throws IOException {
+            if (wrappedEntity.isStreaming()) {
+                if (content == null) {
+                    content = new GzipInputStream(wrappedEntity.getContent(), lease);
+                }
+                return content;
+            }
+            return new GzipInputStream(wrappedEntity.getContent(), lease);
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return null;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            ByteBuffer buffer = lease.acquireHeap(INPUT_BUFFER_SIZE);
+            InputStream in = getContent();
+            try {
+                byte[] bytes = buffer.array();
+                int read;
+                while ((read = in.read(bytes, 0, INPUT_BUFFER_SIZE)) >= 0) {
+                    out.write(bytes, 0, read);
+                }
+            } finally {
+                in.close();
+                lease.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Inflates a gzip stream like {@link java.util.zip.GZIPInputStream}: the CRC32 and size in the trailer of every
+     * member are checked and members that follow each other are read as one stream.
+     */
+    private static final class GzipInputStream extends InflaterInputStream {
+        private static final int FHCRC = 2;
+        private static final int FEXTRA = 4;
+        private static final int FNAME = 8;
+        private static final int FCOMMENT = 16;
+
+        private final BufferPool.Lease lease;
+        private final ByteBuffer pooled;
+        private final CRC32 crc = new CRC32();
+        // reads what the inflater did not consume from buf before reading on from the underlying stream
+        private final InputStream tail = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                if (tailPos < len) {
+                    return buf[tailPos++] & 0xff;
+                }
+                return in.read();
+            }
+        };
+        private int tailPos;
+        private boolean eos;
+        private boolean closed;
+
+        GzipInputStream(InputStream in, BufferPool.Lease lease) throws IOException {
+            super(in, lease.acquireInflater(true), 1);
+            this.lease = lease;
+            this.pooled = lease.acquireHeap(INPUT_BUFFER_SIZE);
+            buf = pooled.array();
+            try {
+                if (!readHeader(tail, readByte(tail))) {
+                    throw new ZipException("Not in GZIP format");
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int n) throws IOException {
+            if (eos) {
+                return -1;
+            }
+            int read = super.read(b, off, n);
+            while (read < 0) {
+                if (endOfMember()) {
+                    eos = true;
+                    return -1;
+                }
+                read = super.read(b, off, n);
+            }
+            crc.update(b, off, read);
+            return read;
+        }
+
+        /**
+         * Checks the trailer of the member that was just inflated and starts on the next member, if any.
+         *
+         * @return true if there are no more members
+         */
+        private boolean endOfMember() throws IOException {
+            tailPos = len - inf.getRemaining();
+            long expectedCrc = readInt(tail);
+            long expectedSize = readInt(tail);
+            if (expectedCrc != crc.getValue()) {
+                throw new ZipException("Corrupt GZIP trailer: CRC32 mismatch");
+            }
+            if (expectedSize != (inf.getBytesWritten() & 0xffffffffL)) {
+                throw new ZipException("Corrupt GZIP trailer: size mismatch");
+            }
+            int next = tail.read();
+            // like GZIPInputStream, anything after the last member that is not a gzip header is ignored
+            if (next < 0 || !readHeader(tail, next)) {
+                return true;
+            }
+            inf.reset();
+            crc.reset();
+            if (tailPos < len) {
+                inf.setInput(buf, tailPos, len - tailPos);
+                tailPos = len;
+            }
+            return false;
+        }
+
+        /**
+         * @return false if the stream does not start with the gzip magic number
+         */
+        private static boolean readHeader(InputStream in, int first) throws IOException {
+            if (first != 0x1f || readByte(in) != 0x8b) {
+                return false;
+            }
+            if (readByte(in) != 8) {
+                throw new ZipException("Unsupported compression method");
+            }
+            int flags = readByte(in);
+            // modification time, extra flags and operating system
+            skip(in, 6);
+            if ((flags & FEXTRA) != 0) {
+                skip(in, readByte(in) | readByte(in) << 8);
+            }
+            if ((flags & FNAME) != 0) {
+                while (readByte(in) != 0) {
+                }
+            }
+            if ((flags & FCOMMENT) != 0) {
+                while (readByte(in) != 0) {
+                }
+            }
+            if ((flags & FHCRC) != 0) {
+                skip(in, 2);
+            }
+            return true;
+        }
+
+        private static long readInt(InputStream in) throws IOException {
+            return (readByte(in) | readByte(in) << 8 | readByte(in) << 16 | (long) readByte(in) << 24) & 0xffffffffL;
+        }
+
+        private static int readByte(InputStream in) throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Unexpected end of GZIP stream");
+            }
+            return b;
+        }
+
+        private static void skip(InputStream in, int n) throws IOException {
+            for (int i = 0; i < n; i++) {
+                readByte(in);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                try {
+                    super.close();
+                } finally {
+                    lease.releaseInflater(inf);
+                    lease.release(pooled);
+                }
+            }
+        }
+    }
+}
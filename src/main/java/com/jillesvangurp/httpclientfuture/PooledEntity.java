@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.utils.CloneUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.entity.StringEntity;
+
+/**
+ * Writes a request entity through a buffer from the {@link BufferPool} of the request, rather than through a buffer
+ * that the entity allocates for every request. Entities backed by a byte array are written without a buffer anyway
+ * and are not wrapped.
+ */
+final class PooledEntity extends HttpEntityWrapper implements Cloneable {
+    private static final int CHUNK_SIZE = 8192;
+
+    private final BufferPool.Lease lease;
+
+    private PooledEntity(HttpEntity wrapped, BufferPool.Lease lease) {
+        super(wrapped);
+        this.lease = lease;
+    }
+
+    /**
+     * @return the entity wrapped if writing it would use a buffer, otherwise the entity itself
+     */
+    static HttpEntity wrap(HttpEntity entity, BufferPool.Lease lease) {
+        if (entity == null || entity instanceof ByteArrayEntity || entity instanceof StringEntity || entity instanceof PooledEntity) {
+            return entity;
+        }
+        return new PooledEntity(entity, lease);
+    }
+
+    HttpEntity unwrap() {
+        return wrappedEntity;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        ByteBuffer buffer = lease.acquireHeap(CHUNK_SIZE);
+        try {
+            InputStream in = wrappedEntity.getContent();
+            try {
+                byte[] bytes = buffer.array();
+                int read;
+                while ((read = in.read(bytes, 0, CHUNK_SIZE)) >= 0) {
+                    out.write(bytes, 0, read);
+                }
+                out.flush();
+            } finally {
+                in.close();
+            }
+        } finally {
+            lease.release(buffer);
+        }
+    }
+
+    /**
+     * Clones of requests, e.g. for hedging, get a clone of the entity itself.
+     */
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        return CloneUtils.clone(wrappedEntity);
+    }
+}
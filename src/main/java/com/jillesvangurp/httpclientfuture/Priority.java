@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+/**
+ * Priority class of a request, see {@link RequestOptions#priority(Priority)}. A {@link RequestQueue} hands waiting
+ * requests to the executor in proportion to the weights of their classes, so a flood of batch requests slows
+ * interactive requests down only a little, while batch requests still make progress.
+ */
+public enum Priority {
+    /**
+     * requests a user is waiting for
+     */
+    INTERACTIVE(8),
+    /**
+     * the default
+     */
+    NORMAL(4),
+    /**
+     * background work such as batch refreshes
+     */
+    BATCH(1);
+
+    private final int weight;
+
+    private Priority(int weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * @return share of the dispatched requests that this class gets relative to the other classes with waiting requests
+     */
+    public int weight() {
+        return weight;
+    }
+
+    /**
+     * @return label used in the metrics, e.g. batch
+     */
+    public String label() {
+        return name().toLowerCase();
+    }
+}
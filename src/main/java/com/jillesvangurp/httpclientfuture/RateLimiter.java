@@ -0,0 +1,194 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the request rate per route within a quota, e.g. for upstream APIs that enforce a maximum number of queries
+ * per second. Every route has a token bucket that refills at its rate and holds at most burst tokens. Requests that
+ * find the bucket empty wait on the scheduler of the client until a token is available, without tying up a thread,
+ * or are rejected if they would have to wait longer than maxDelay.
+ *
+ * The buckets are implemented with the generic cell rate algorithm: the state of a route is a single timestamp that
+ * is updated with compare and set, so concurrent requests don't contend on a lock. Every route that is limited gets a
+ * bucket of its own, also routes beyond the maximum number of routes that {@link ConnectionMetrics} keeps metrics for.
+ * A bucket that has filled up again is no different from a new one, so those are dropped when there are many routes.
+ *
+ * Attach the limiter with {@link HttpClientWithFuture#rateLimiter(RateLimiter)} or
+ * {@link HttpClientBuilder#rateLimiter(RateLimiter)}; use one limiter per client. The time requests were delayed is
+ * part of their queue wait and, together with the number of delayed and rejected requests, reported by
+ * {@link ConnectionMetrics}.
+ */
+public class RateLimiter {
+    private static final Bucket UNLIMITED = new Bucket(0, 1);
+
+    private double defaultRate = 0;
+    private int defaultBurst = 1;
+    private final Map<String, double[]> routeRates = new ConcurrentHashMap<>();
+    final RouteTable<Bucket> buckets = new RouteTable<>(this::newBucket, RateLimiter::evict);
+    private long maxDelayNanos = 0;
+
+    public static RateLimiter rateLimiter() {
+        return new RateLimiter();
+    }
+
+    /**
+     * @param permitsPerSecond rate of routes that have no rate of their own; 0 leaves them unlimited, which is the
+     *            default
+     * @param burst number of requests that may be sent at once after a quiet period
+     * @return the limiter
+     */
+    public RateLimiter rate(double permitsPerSecond, int burst) {
+        validate(permitsPerSecond, burst);
+        this.defaultRate = permitsPerSecond;
+        this.defaultBurst = burst;
+        return this;
+    }
+
+    /**
+     * Configure routes before the client sends requests to them; the rate of a route is fixed once it got its first
+     * request.
+     *
+     * @param uri any uri of the route, e.g. https://api.example.com
+     * @param permitsPerSecond rate of the route
+     * @param burst number of requests that may be sent at once after a quiet period
+     * @return the limiter
+     */
+    public RateLimiter rate(URI uri, double permitsPerSecond, int burst) {
+        validate(permitsPerSecond, burst);
+        String route = RouteMetrics.key(uri);
+        if (route == null) {
+            throw new IllegalArgumentException("uri should have a scheme and a host");
+        }
+        routeRates.put(route, new double[] { permitsPerSecond, burst });
+        return this;
+    }
+
+    /**
+     * @param maxDelay requests that would have to wait longer than this for a token are rejected; 0, the default,
+     *            rejects requests over the rate right away. Delaying requests requires a scheduler on the client.
+     * @param timeUnit
+     * @return the limiter
+     */
+    public RateLimiter maxDelay(long maxDelay, TimeUnit timeUnit) {
+        this.maxDelayNanos = timeUnit.toNanos(maxDelay);
+        return this;
+    }
+
+    boolean delays() {
+        return maxDelayNanos > 0;
+    }
+
+    private static void validate(double permitsPerSecond, int burst) {
+        if (permitsPerSecond < 0 || burst < 1) {
+            throw new IllegalArgumentException("permitsPerSecond should not be negative and burst should be at least 1");
+        }
+    }
+
+    /**
+     * Takes a token for a request to the route.
+     *
+     * @param route the {@link RouteMetrics#key(URI)} of the request
+     * @return 0 if the request may be sent right away, the number of nanoseconds to delay it with, or -1 if it would
+     *         have to wait longer than maxDelay, in which case no token was taken
+     */
+    long acquire(String route) {
+        Bucket bucket = bucket(route);
+        if (bucket == UNLIMITED) {
+            return 0;
+        }
+        while (true) {
+            long now = System.nanoTime();
+            long tat = bucket.get();
+            if (tat == Bucket.EVICTED) {
+                bucket = bucket(route);
+                continue;
+            }
+            // theoretical arrival time: when the bucket would be full again after this request
+            long next = Math.max(tat, now) + bucket.intervalNanos;
+            long delay = next - bucket.capacityNanos - now;
+            if (delay > maxDelayNanos) {
+                return -1;
+            }
+            if (bucket.compareAndSet(tat, next)) {
+                return Math.max(0, delay);
+            }
+        }
+    }
+
+    private Bucket bucket(String route) {
+        if (route == null) {
+            return UNLIMITED;
+        }
+        double[] rate = routeRates.get(route);
+        if ((rate == null ? defaultRate : rate[0]) == 0) {
+            // unlimited routes need no state
+            return UNLIMITED;
+        }
+        return buckets.get(route);
+    }
+
+    private Bucket newBucket(String route) {
+        double[] rate = routeRates.get(route);
+        double permitsPerSecond = rate == null ? defaultRate : rate[0];
+        int burst = rate == null ? defaultBurst : (int) rate[1];
+        return new Bucket((long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond), burst);
+    }
+
+    /**
+     * A bucket is full once its theoretical arrival time has passed. Marking it makes requests that still found it look
+     * up the new one, rather than take a token from both.
+     */
+    private static boolean evict(Bucket bucket) {
+        long tat = bucket.get();
+        return tat - System.nanoTime() <= 0 && bucket.compareAndSet(tat, Bucket.EVICTED);
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimiter(" + defaultRate + "/s, burst " + defaultBurst + ", " + routeRates.size() + " routes with their own rate, max delay "
+                + TimeUnit.NANOSECONDS.toMillis(maxDelayNanos) + "ms)";
+    }
+
+    /**
+     * Token bucket of one route. Its value is the theoretical arrival time of the next request in System.nanoTime().
+     */
+    static final class Bucket extends AtomicLong {
+        private static final long serialVersionUID = 1L;
+        // the value of a bucket that was dropped
+        static final long EVICTED = Long.MAX_VALUE;
+
+        final long intervalNanos;
+        final long capacityNanos;
+
+        Bucket(long intervalNanos, int burst) {
+            super(System.nanoTime() - intervalNanos * burst);
+            this.intervalNanos = intervalNanos;
+            this.capacityNanos = intervalNanos * burst;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.Header;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Lets concurrent identical GET and HEAD requests share a single execution. Requests are identical when their method,
+ * uri and the values of the key headers are the same. Every caller gets its own task that completes with the shared
+ * result; the shared request is only aborted when all of those tasks are cancelled.
+ */
+final class RequestCoalescer<T> {
+    private final HttpClientWithFuture<T> client;
+    private final String[] keyHeaders;
+    private final ConcurrentHashMap<Key, Flight> flights = new ConcurrentHashMap<Key, Flight>();
+
+    RequestCoalescer(HttpClientWithFuture<T> client, String[] keyHeaders) {
+        this.client = client;
+        this.keyHeaders = keyHeaders.clone();
+    }
+
+    boolean eligible(HttpRequestBase request) {
+        String method = request.getMethod();
+        return "GET".equals(method) || "HEAD".equals(method);
+    }
+
+    HttpClientFutureTask<T> execute(HttpRequestBase request, HttpContext context, HttpClientTaskLifecycleCallback callback, RequestOptions options) {
+        Key key = key(request);
+        while (true) {
+            Flight flight = flights.get(key);
+            if (flight == null) {
+                Flight created = new Flight(key);
+                flight = flights.putIfAbsent(key, created);
+                if (flight == null) {
+                    // the caller that starts the flight gets a task like everyone else, so that cancelling it does not
+                    // abort the request for the others
+                    HttpClientFutureTask<T> waiter = client.waiter(request, context, null);
+                    created.join(waiter);
+                    created.start(copy(request), context, callback, options);
+                    return waiter;
+                }
+            }
+            HttpClientFutureTask<T> waiter = client.waiter(request, context, callback);
+            if (flight.join(waiter)) {
+                client.metrics().coalescedRequests.increment();
+                return waiter;
+            }
+            // the flight just finished
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * The shared request is a copy, since cancelling a task aborts its request.
+     */
+    private static HttpRequestBase copy(HttpRequestBase request) {
+        try {
+            return (HttpRequestBase) request.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("cannot copy request " + request.getURI(), e);
+        }
+    }
+
+    private Key key(HttpRequestBase request) {
+        String[] values = new String[keyHeaders.length];
+        for (int i = 0; i < keyHeaders.length; i++) {
+            Header header = request.getFirstHeader(keyHeaders[i]);
+            values[i] = header == null ? null : header.getValue();
+        }
+        return new Key(request.getMethod(), request.getURI().toString(), values);
+    }
+
+    /**
+     * One execution of a request and the tasks waiting for it.
+     */
+    final class Flight {
+        private final Key key;
+        // guarded by this
+        private final List<HttpClientFutureTask<T>> waiters = new ArrayList<HttpClientFutureTask<T>>();
+        private int live;
+        private boolean closed;
+        private HttpClientFutureTask<T> task;
+
+        Flight(Key key) {
+            this.key = key;
+        }
+
+        synchronized boolean join(HttpClientFutureTask<T> waiter) {
+            if (closed) {
+                return false;
+            }
+            waiters.add(waiter);
+            live++;
+            waiter.flight = this;
+            return true;
+        }
+
+        void start(HttpRequestBase request, HttpContext context, HttpClientTaskLifecycleCallback callback, RequestOptions options) {
+            HttpClientFutureTask<T> started;
+            try {
+                started = client.submit(request, context, callback, options, true);
+            } catch (RuntimeException e) {
+                finish(null, e);
+                throw e;
+            }
+            boolean abandoned;
+            synchronized (this) {
+                task = started;
+                abandoned = live == 0;
+            }
+            if (abandoned) {
+                started.cancel(true);
+            }
+            started.toCompletableFuture().whenComplete((result, failure) -> finish(result, failure));
+        }
+
+        /**
+         * Called when a waiting task was cancelled.
+         */
+        void cancelled() {
+            HttpClientFutureTask<T> abandoned = null;
+            boolean last;
+            synchronized (this) {
+                live--;
+                last = live == 0 && !closed;
+                if (last) {
+                    closed = true;
+                    abandoned = task;
+                }
+            }
+            if (last) {
+                flights.remove(key, this);
+                if (abandoned != null) {
+                    abandoned.cancel(true);
+                }
+            }
+        }
+
+        private void finish(T result, Throwable failure) {
+            List<HttpClientFutureTask<T>> done;
+            synchronized (this) {
+                closed = true;
+                done = new ArrayList<HttpClientFutureTask<T>>(waiters);
+            }
+            // later requests start a new flight
+            flights.remove(key, this);
+            for (HttpClientFutureTask<T> waiter : done) {
+                if (failure == null) {
+                    waiter.complete(result);
+                } else {
+                    waiter.fail(failure);
+                }
+            }
+        }
+
+        RequestTimings timings() {
+            HttpClientFutureTask<T> current;
+            synchronized (this) {
+                current = task;
+            }
+            return current == null ? null : current.timings();
+        }
+    }
+
+    static final class Key {
+        private final String method;
+        private final String uri;
+        private final String[] headerValues;
+        private final int hashCode;
+
+        Key(String method, String uri, String[] headerValues) {
+            this.method = method;
+            this.uri = uri;
+            this.headerValues = headerValues;
+            this.hashCode = 31 * (31 * method.hashCode() + uri.hashCode()) + Arrays.hashCode(headerValues);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hashCode == other.hashCode && method.equals(other.method) && uri.equals(other.uri) && Arrays.equals(headerValues, other.headerValues);
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + uri;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per request options for {@link HttpClientWithFuture#execute(org.apache.http.client.methods.HttpRequestBase, RequestOptions)}.
+ */
+public final class RequestOptions {
+    private long deadline;
+    private boolean hasDeadline = false;
+    private Boolean hedgeable;
+    private Boolean retryable;
+    private Priority priority = Priority.NORMAL;
+
+    public static RequestOptions options() {
+        return new RequestOptions();
+    }
+
+    /**
+     * Give up on the request if it has not started within the timeout. Requests that are still queued when their
+     * deadline passes are dropped before they lease a connection and fail with a
+     * {@link java.util.concurrent.TimeoutException}. The deadline also bounds how long the request waits for a
+     * connection from the pool.
+     *
+     * @param timeout relative to now
+     * @param tu
+     * @return the options
+     */
+    public RequestOptions deadline(long timeout, TimeUnit tu) {
+        deadline = System.nanoTime() + tu.toNanos(timeout);
+        hasDeadline = true;
+        return this;
+    }
+
+    /**
+     * By default a {@link HedgingPolicy} only hedges GET, HEAD and OPTIONS requests. Use this to hedge other idempotent
+     * requests, or to not hedge a request.
+     *
+     * @param hedgeable
+     * @return the options
+     */
+    public RequestOptions hedgeable(boolean hedgeable) {
+        this.hedgeable = hedgeable;
+        return this;
+    }
+
+    /**
+     * @return whether the request may be hedged, or null to leave it to the {@link HedgingPolicy}
+     */
+    Boolean hedgeable() {
+        return hedgeable;
+    }
+
+    /**
+     * By default a {@link RetryPolicy} only retries idempotent requests once they were sent. Use this to retry a request
+     * that is safe to repeat, e.g. a POST with an idempotency key, or to never retry a request.
+     *
+     * @param retryable
+     * @return the options
+     */
+    public RequestOptions retryable(boolean retryable) {
+        this.retryable = retryable;
+        return this;
+    }
+
+    /**
+     * @return whether the request may be retried, or null to leave it to the {@link RetryPolicy}
+     */
+    Boolean retryable() {
+        return retryable;
+    }
+
+    /**
+     * Set the priority class of the request. Waiting requests are handed to the executor by priority if the client has
+     * a {@link RequestQueue}; without one requests start in the order in which they were executed.
+     *
+     * @param priority
+     * @return the options
+     */
+    public RequestOptions priority(Priority priority) {
+        if (priority == null) {
+            throw new IllegalArgumentException("priority should not be null");
+        }
+        this.priority = priority;
+        return this;
+    }
+
+    Priority priority() {
+        return priority;
+    }
+
+    boolean hasDeadline() {
+        return hasDeadline;
+    }
+
+    /**
+     * @return the deadline as a System.nanoTime() value
+     */
+    long deadline() {
+        return deadline;
+    }
+
+    /**
+     * @return true if the options have a deadline that has passed
+     */
+    boolean expired() {
+        return hasDeadline && System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * @return nanoseconds left until the deadline
+     */
+    long remainingNanos() {
+        return deadline - System.nanoTime();
+    }
+}
@@ -0,0 +1,316 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue in front of the executor (or the I/O reactor of the non blocking engine). At most maxInFlight requests
+ * are handed to the executor at any time and at most capacity requests wait in this queue; when it is full, requests
+ * are shed according to the {@link RejectionPolicy}. Requests whose deadline (see {@link RequestOptions}) passes while
+ * they wait are dropped without ever touching the connection pool.
+ *
+ * Waiting requests are handed to the executor by {@link Priority}: each class with waiting requests gets a share of the
+ * free slots in proportion to its weight, and within a class requests go first come, first served. So that a steady
+ * stream of interactive requests cannot starve batch requests, a request that waited longer than the aging threshold
+ * goes before requests that did not.
+ *
+ * Set maxInFlight to the number of threads of your executor, so that requests wait here rather than in the unbounded
+ * queue of a typical executor. Attach the queue with {@link HttpClientWithFuture#requestQueue(RequestQueue)}; shed and
+ * expired requests and the queue depth and wait time per priority class are reported by {@link ConnectionMetrics}.
+ */
+public class RequestQueue {
+    public static final long DEFAULT_AGING_MILLIS = 1000;
+
+    /**
+     * What to do with a request when the queue is full. Requests with an expired deadline are always dropped first.
+     * When a request of a lower priority class is waiting, that request is shed instead of a new request of a higher
+     * class.
+     */
+    public enum RejectionPolicy {
+        /**
+         * Fail the new request, or the most recent request of the lowest priority class.
+         */
+        REJECT,
+        /**
+         * Fail the request that waited longest and queue the new one. Its caller is the most likely to have given up.
+         */
+        DROP_OLDEST;
+    }
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final int capacity;
+    private final int maxInFlight;
+    private RejectionPolicy rejectionPolicy = RejectionPolicy.REJECT;
+    private long agingNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_AGING_MILLIS);
+
+    // indexed by Priority.ordinal()
+    private final ArrayDeque<PendingRequest>[] queues;
+    // credit of each class for smooth weighted round robin; the class with the most credit goes next
+    private final int[] credits = new int[PRIORITIES.length];
+    private int size;
+    private int inFlight;
+
+    @SuppressWarnings("unchecked")
+    private RequestQueue(int capacity, int maxInFlight) {
+        if (capacity < 0 || maxInFlight < 1) {
+            throw new IllegalArgumentException("capacity should be >= 0 and maxInFlight >= 1");
+        }
+        this.capacity = capacity;
+        this.maxInFlight = maxInFlight;
+        queues = new ArrayDeque[PRIORITIES.length];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ArrayDeque<PendingRequest>();
+        }
+    }
+
+    /**
+     * @param capacity maximum number of waiting requests
+     * @param maxInFlight maximum number of requests handed to the executor
+     * @return the queue
+     */
+    public static RequestQueue bounded(int capacity, int maxInFlight) {
+        return new RequestQueue(capacity, maxInFlight);
+    }
+
+    public RequestQueue rejectionPolicy(RejectionPolicy rejectionPolicy) {
+        this.rejectionPolicy = rejectionPolicy;
+        return this;
+    }
+
+    /**
+     * Configure after how long a waiting request goes before requests of higher priority classes. Defaults to
+     * {@link #DEFAULT_AGING_MILLIS}.
+     *
+     * @param aging 0 hands requests to the executor in the order in which they were queued, regardless of priority
+     * @param tu
+     * @return the queue
+     */
+    public synchronized RequestQueue aging(long aging, TimeUnit tu) {
+        if (aging < 0) {
+            throw new IllegalArgumentException("aging should be >= 0");
+        }
+        this.agingNanos = tu.toNanos(aging);
+        return this;
+    }
+
+    /**
+     * @return number of waiting requests
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @param priority
+     * @return number of waiting requests of the priority class
+     */
+    public synchronized int size(Priority priority) {
+        return queues[priority.ordinal()].size();
+    }
+
+    /**
+     * @return number of requests handed to the executor that have not finished yet
+     */
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    void submit(PendingRequest pending, ConnectionMetrics metrics) {
+        List<PendingRequest> expired = null;
+        PendingRequest shed = null;
+        boolean dispatch = false;
+        synchronized (this) {
+            if (inFlight < maxInFlight && size == 0) {
+                inFlight++;
+                pending.callable.acquiredSlot(this);
+                dispatch = true;
+            } else {
+                if (size >= capacity) {
+                    expired = removeExpired();
+                }
+                if (size >= capacity) {
+                    shed = victim(pending.callable.priority());
+                    if (shed == null) {
+                        shed = pending;
+                    }
+                }
+                if (shed != pending) {
+                    pending.queuedAt = System.nanoTime();
+                    queues[pending.callable.priority().ordinal()].add(pending);
+                    size++;
+                }
+            }
+        }
+        expire(expired);
+        if (shed != null) {
+            metrics.shedRequests.increment();
+            shed.task.fail(new RejectedExecutionException("request queue is full, shed " + shed.task));
+        }
+        if (dispatch) {
+            pending.dispatch.run();
+        }
+    }
+
+    /**
+     * Called once for every request that was handed to the executor.
+     */
+    void release(ConnectionMetrics metrics) {
+        List<PendingRequest> expired = null;
+        List<PendingRequest> runnable = null;
+        synchronized (this) {
+            inFlight--;
+            while (inFlight < maxInFlight && size > 0) {
+                PendingRequest pending = next();
+                if (pending.task.isDone()) {
+                    continue;
+                }
+                if (pending.callable.expired()) {
+                    if (expired == null) {
+                        expired = new ArrayList<PendingRequest>();
+                    }
+                    expired.add(pending);
+                    continue;
+                }
+                inFlight++;
+                pending.callable.acquiredSlot(this);
+                if (runnable == null) {
+                    runnable = new ArrayList<PendingRequest>();
+                }
+                runnable.add(pending);
+            }
+        }
+        expire(expired);
+        if (runnable != null) {
+            for (PendingRequest pending : runnable) {
+                try {
+                    pending.dispatch.run();
+                } catch (RejectedExecutionException e) {
+                    pending.task.fail(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Take the request that goes next: the request that waited longest if it waited longer than the aging threshold,
+     * otherwise the oldest request of the class picked by smooth weighted round robin.
+     */
+    private PendingRequest next() {
+        long now = System.nanoTime();
+        int aged = -1;
+        long longestWait = -1;
+        for (int i = 0; i < queues.length; i++) {
+            PendingRequest head = queues[i].peek();
+            if (head != null) {
+                long waited = now - head.queuedAt;
+                if (waited >= agingNanos && waited > longestWait) {
+                    aged = i;
+                    longestWait = waited;
+                }
+            }
+        }
+        if (aged >= 0) {
+            return take(aged, false);
+        }
+        int total = 0;
+        int best = -1;
+        for (int i = 0; i < queues.length; i++) {
+            if (queues[i].isEmpty()) {
+                credits[i] = 0;
+            } else {
+                int weight = PRIORITIES[i].weight();
+                credits[i] += weight;
+                total += weight;
+                if (best < 0 || credits[i] > credits[best]) {
+                    best = i;
+                }
+            }
+        }
+        credits[best] -= total;
+        return take(best, false);
+    }
+
+    /**
+     * @return the waiting request to shed to make room for a request of the priority, or null to shed that request
+     *         itself
+     */
+    private PendingRequest victim(Priority priority) {
+        if (capacity > 0) {
+            boolean oldest = rejectionPolicy == RejectionPolicy.DROP_OLDEST;
+            for (int i = queues.length - 1; i > priority.ordinal(); i--) {
+                if (!queues[i].isEmpty()) {
+                    return take(i, !oldest);
+                }
+            }
+            if (oldest && !queues[priority.ordinal()].isEmpty()) {
+                return take(priority.ordinal(), false);
+            }
+        }
+        return null;
+    }
+
+    private PendingRequest take(int priority, boolean newest) {
+        size--;
+        return newest ? queues[priority].pollLast() : queues[priority].poll();
+    }
+
+    private List<PendingRequest> removeExpired() {
+        List<PendingRequest> expired = null;
+        for (ArrayDeque<PendingRequest> queue : queues) {
+            for (Iterator<PendingRequest> it = queue.iterator(); it.hasNext();) {
+                PendingRequest pending = it.next();
+                if (pending.task.isDone()) {
+                    it.remove();
+                    size--;
+                } else if (pending.callable.expired()) {
+                    it.remove();
+                    size--;
+                    if (expired == null) {
+                        expired = new ArrayList<PendingRequest>();
+                    }
+                    expired.add(pending);
+                }
+            }
+        }
+        return expired;
+    }
+
+    private static void expire(List<PendingRequest> expired) {
+        if (expired != null) {
+            for (PendingRequest pending : expired) {
+                pending.callable.expire(pending.task);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RequestQueue(capacity " + capacity + ", max in flight " + maxInFlight + ", " + rejectionPolicy + ")";
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Hooks that fill in the {@link RequestTimings} found in the context of a request. Request interceptors run once the
+ * client has a connection for the request, response interceptors once the response headers have been received.
+ */
+final class RequestTimingInterceptor implements HttpRequestInterceptor, HttpResponseInterceptor {
+
+    @Override
+    public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+        RequestTimings timings = timings(context);
+        if (timings != null) {
+            timings.connectionReady();
+        }
+    }
+
+    @Override
+    public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+        RequestTimings timings = timings(context);
+        if (timings != null) {
+            timings.responseReceived();
+        }
+    }
+
+    static RequestTimings timings(HttpContext context) {
+        if (context == null) {
+            return null;
+        }
+        return (RequestTimings) context.getAttribute(RequestTimings.CONTEXT_ATTRIBUTE);
+    }
+
+    /**
+     * Measures how long it takes to open new connections.
+     */
+    static final class TimingConnectionOperator implements ClientConnectionOperator {
+        private final ClientConnectionOperator delegate;
+
+        TimingConnectionOperator(ClientConnectionOperator delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public OperatedClientConnection createConnection() {
+            return delegate.createConnection();
+        }
+
+        @Override
+        public void openConnection(OperatedClientConnection conn, HttpHost target, InetAddress local, HttpContext context, HttpParams params) throws IOException {
+            RequestTimings timings = timings(context);
+            if (timings != null) {
+                timings.connectStarted();
+            }
+            try {
+                delegate.openConnection(conn, target, local, context, params);
+            } finally {
+                if (timings != null) {
+                    timings.connected();
+                }
+            }
+        }
+
+        @Override
+        public void updateSecureConnection(OperatedClientConnection conn, HttpHost target, HttpContext context, HttpParams params) throws IOException {
+            RequestTimings timings = timings(context);
+            if (timings != null) {
+                timings.connectStarted();
+            }
+            try {
+                delegate.updateSecureConnection(conn, target, context, params);
+            } finally {
+                if (timings != null) {
+                    timings.connected();
+                }
+            }
+        }
+    }
+}
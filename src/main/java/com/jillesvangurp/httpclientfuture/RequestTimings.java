@@ -0,0 +1,180 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+/**
+ * Nanosecond precision breakdown of where the time of a request went. Phases that could not be measured are reported
+ * as 0: the connection phases are only known for clients created with {@link HttpClientBuilder}, and the connect phase
+ * only when a new connection had to be opened.
+ *
+ * <ul>
+ * <li>queue: from scheduling the request until a thread (or the I/O reactor) starts executing it</li>
+ * <li>lease: waiting for a connection from the pool</li>
+ * <li>connect: opening a new connection, including the TLS handshake</li>
+ * <li>time to first byte: from having a connection until the response headers have been received</li>
+ * <li>body: from receiving the response headers until the response handler has finished with the entity</li>
+ * </ul>
+ */
+public final class RequestTimings {
+    /**
+     * Attribute under which the timings of a request are available in its HttpContext.
+     */
+    public static final String CONTEXT_ATTRIBUTE = "com.jillesvangurp.httpclientfuture.RequestTimings";
+
+    private static final long UNSET = Long.MIN_VALUE;
+
+    final long scheduled = System.nanoTime();
+    volatile long started = UNSET;
+    volatile long connectStarted = UNSET;
+    volatile long connected = UNSET;
+    volatile long connectionReady = UNSET;
+    volatile long responseReceived = UNSET;
+    volatile long ended = UNSET;
+
+    void started() {
+        started = System.nanoTime();
+    }
+
+    void connectStarted() {
+        if (connectStarted == UNSET) {
+            connectStarted = System.nanoTime();
+        }
+    }
+
+    void connected() {
+        connected = System.nanoTime();
+    }
+
+    void connectionReady() {
+        if (connectionReady == UNSET) {
+            connectionReady = System.nanoTime();
+        }
+    }
+
+    void responseReceived() {
+        if (responseReceived == UNSET) {
+            responseReceived = System.nanoTime();
+        }
+    }
+
+    void ended() {
+        ended = System.nanoTime();
+    }
+
+    /**
+     * @param phase
+     * @return false if the phase was not measured for this request, e.g. connect when a pooled connection was reused
+     */
+    public boolean measured(RequestPhase phase) {
+        switch (phase) {
+        case queueWait:
+            return started != UNSET;
+        case leaseWait:
+            return connectionReady != UNSET;
+        case connect:
+            return connected != UNSET;
+        default:
+            return responseReceived != UNSET;
+        }
+    }
+
+    /**
+     * @param phase
+     * @return duration of the phase in nanoseconds
+     */
+    public long nanos(RequestPhase phase) {
+        switch (phase) {
+        case queueWait:
+            return queueNanos();
+        case leaseWait:
+            return leaseNanos();
+        case connect:
+            return connectNanos();
+        case timeToFirstByte:
+            return timeToFirstByteNanos();
+        default:
+            return bodyNanos();
+        }
+    }
+
+    /**
+     * @return time spent waiting for the executor
+     */
+    public long queueNanos() {
+        return between(scheduled, started);
+    }
+
+    /**
+     * @return time spent waiting for a connection from the pool
+     */
+    public long leaseNanos() {
+        return Math.max(0, between(started, connectionReady) - connectNanos());
+    }
+
+    /**
+     * @return time spent opening a new connection, 0 if a pooled connection was reused
+     */
+    public long connectNanos() {
+        return between(connectStarted, connected);
+    }
+
+    /**
+     * @return time from having a connection (or from starting, if that is unknown) until the response headers were
+     *         received
+     */
+    public long timeToFirstByteNanos() {
+        return between(connectionReady != UNSET ? connectionReady : started, responseReceived);
+    }
+
+    /**
+     * @return time spent by the response handler reading the response
+     */
+    public long bodyNanos() {
+        return between(responseReceived, ended);
+    }
+
+    /**
+     * @return time spent executing the request, excluding the queue time
+     */
+    public long requestNanos() {
+        return between(started, ended);
+    }
+
+    /**
+     * @return time from scheduling until the request ended
+     */
+    public long totalNanos() {
+        return between(scheduled, ended);
+    }
+
+    private static long between(long from, long to) {
+        if (from == UNSET || to == UNSET) {
+            return 0;
+        }
+        return Math.max(0, to - from);
+    }
+
+    @Override
+    public String toString() {
+        return "queue=" + queueNanos() + "ns, lease=" + leaseNanos() + "ns, connect=" + connectNanos() + "ns, ttfb=" + timeToFirstByteNanos() + "ns, body=" + bodyNanos() + "ns";
+    }
+}
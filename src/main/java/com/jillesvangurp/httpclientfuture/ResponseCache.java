@@ -0,0 +1,570 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In memory cache for responses to GET requests that follows the caching rules of HTTP: responses are stored unless
+ * they say no-store, are fresh for as long as Cache-Control max-age or Expires say and stale responses with an ETag or
+ * Last-Modified header are revalidated with a conditional request. Fresh responses are served without using a thread
+ * of the executor or a connection: the response handler runs on the calling thread and the task is already done when
+ * execute returns. It is a private cache, so responses to requests with an Authorization header and responses marked
+ * private are stored as well. Successful POST, PUT and DELETE requests invalidate the stored response for their uri.
+ *
+ * The cache is bounded by the size of the stored responses rather than their number. Eviction is scan resistant, like
+ * W-TinyLFU: new responses enter a small LRU window and only replace responses in the main area when they were
+ * requested more often recently, as estimated by a {@link FrequencySketch}. A burst of requests for responses that are
+ * used only once therefore doesn't flush the responses that are used all the time.
+ *
+ * Large responses, such as data sets of several megabytes, can be stored on disk instead, see
+ * {@link #persistent(File, long)}. They are kept in memory mapped segment files that survive restarts and are handed
+ * to the response handler as a {@link ByteBufferEntity}, without copying them to the heap. Responses received by the
+ * non blocking engine are only stored in memory, because writing them to disk would block the I/O reactor thread; they
+ * are still served from disk when they are there. Without a disk tier, responses are buffered in memory up to the size
+ * of the cache before they are stored.
+ *
+ * Attach the cache with {@link HttpClientWithFuture#responseCache(ResponseCache)}; use one cache per client. Hits,
+ * misses and revalidations are reported by {@link ConnectionMetrics}.
+ */
+public final class ResponseCache implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(ResponseCache.class);
+
+    enum Region {
+        WINDOW, PROBATION, PROTECTED;
+    }
+
+    // request parameter with the entry that a conditional request revalidates
+    static final String REVALIDATING = "httpclientfuture.cache.revalidating";
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // size of the average response, only used to size the frequency sketch
+    private static final int EXPECTED_RESPONSE_BYTES = 4096;
+
+    private static final long DEFAULT_MIN_DISK_BYTES = 256 * 1024;
+    private static final long MAX_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    private final long maxBytes;
+    private final long maxWindowBytes;
+    private final long maxProtectedBytes;
+
+    // guarded by this
+    private final Map<String, CachedResponse> entries = new HashMap<String, CachedResponse>();
+    private final Lru window = new Lru(Region.WINDOW);
+    private final Lru probation = new Lru(Region.PROBATION);
+    private final Lru protectedArea = new Lru(Region.PROTECTED);
+    private final FrequencySketch sketch;
+
+    private volatile SegmentStore disk;
+    private volatile long minDiskBytes = DEFAULT_MIN_DISK_BYTES;
+
+    private ResponseCache(long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes should be positive");
+        }
+        this.maxBytes = maxBytes;
+        maxWindowBytes = Math.max(1, maxBytes / 100);
+        maxProtectedBytes = (maxBytes - maxWindowBytes) * 8 / 10;
+        sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, maxBytes / EXPECTED_RESPONSE_BYTES));
+    }
+
+    /**
+     * @param maxBytes maximum size of the stored responses, including their headers
+     * @return the cache
+     */
+    public static ResponseCache bounded(long maxBytes) {
+        return new ResponseCache(maxBytes);
+    }
+
+    /**
+     * Store responses of at least {@link #minDiskBytes(long)} in segment files in the directory rather than in memory.
+     * The responses that are in the directory are available right away. Bodies are memory mapped when they are used;
+     * when the segments take more than the disk budget, the oldest segment is deleted. A response that was not written
+     * completely when the process stopped is dropped when the directory is opened again.
+     *
+     * @param directory a directory that is not used by another cache
+     * @param maxDiskBytes disk budget
+     * @return the cache
+     * @throws IOException if the directory cannot be used
+     */
+    public ResponseCache persistent(File directory, long maxDiskBytes) throws IOException {
+        if (disk != null) {
+            throw new IllegalStateException("the cache is already persistent");
+        }
+        disk = SegmentStore.open(directory, maxDiskBytes, Math.max(1, Math.min(MAX_SEGMENT_BYTES, maxDiskBytes / 8)));
+        return this;
+    }
+
+    /**
+     * @param minDiskBytes responses of at least this size are stored on disk if the cache is persistent, default 256KB
+     * @return the cache
+     */
+    public ResponseCache minDiskBytes(long minDiskBytes) {
+        this.minDiskBytes = minDiskBytes;
+        return this;
+    }
+
+    /**
+     * @return size of the responses stored in memory
+     */
+    public synchronized long bytes() {
+        return window.bytes + probation.bytes + protectedArea.bytes;
+    }
+
+    /**
+     * @return size of the segment files, 0 if the cache is not persistent
+     */
+    public long diskBytes() {
+        SegmentStore store = disk;
+        return store == null ? 0 : store.bytes();
+    }
+
+    /**
+     * @return number of stored responses, in memory and on disk
+     */
+    public int size() {
+        SegmentStore store = disk;
+        synchronized (this) {
+            return entries.size() + (store == null ? 0 : store.size());
+        }
+    }
+
+    /**
+     * Removes all responses, including those on disk.
+     *
+     * @throws IOException
+     */
+    public void clear() throws IOException {
+        synchronized (this) {
+            entries.clear();
+            window.clear();
+            probation.clear();
+            protectedArea.clear();
+        }
+        SegmentStore store = disk;
+        if (store != null) {
+            store.clear();
+        }
+    }
+
+    /**
+     * Closes the segment files of a persistent cache. The client should no longer use the cache.
+     */
+    @Override
+    public void close() throws IOException {
+        SegmentStore store = disk;
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    /**
+     * Looks up the response for a request before it is executed. If there is a stale response that can be revalidated,
+     * the request is turned into a conditional request.
+     *
+     * @param request
+     * @param metrics
+     * @return a fresh response for the request or null if the request has to be executed
+     */
+    CachedResponse lookup(HttpUriRequest request, ConnectionMetrics metrics) {
+        if (request.getParams().getParameter(REVALIDATING) != null) {
+            // the request is executed again; drop the validators added the last time
+            request.removeHeaders(HttpHeaders.IF_NONE_MATCH);
+            request.removeHeaders(HttpHeaders.IF_MODIFIED_SINCE);
+            request.getParams().removeParameter(REVALIDATING);
+        }
+        if (!"GET".equals(request.getMethod()) || request.containsHeader(HttpHeaders.RANGE) || conditional(request)) {
+            return null;
+        }
+        Map<String, String> cacheControl = CachedResponse.cacheControl(request);
+        if (cacheControl.containsKey("no-cache") || cacheControl.containsKey("no-store") || "0".equals(cacheControl.get("max-age"))
+                || noCachePragma(request)) {
+            return null;
+        }
+        String key = key(request);
+        CachedResponse entry;
+        synchronized (this) {
+            sketch.increment(key.hashCode());
+            entry = entries.get(key);
+            if (entry != null) {
+                accessed(entry);
+            }
+        }
+        if (entry == null) {
+            entry = fromDisk(key);
+        }
+        if (entry == null || !entry.matches(request)) {
+            metrics.cacheMisses.increment();
+            return null;
+        }
+        if (entry.fresh(System.currentTimeMillis())) {
+            metrics.cacheHits.increment();
+            return entry;
+        }
+        if (!entry.hasValidators()) {
+            metrics.cacheMisses.increment();
+            return null;
+        }
+        if (entry.etag != null) {
+            request.setHeader(HttpHeaders.IF_NONE_MATCH, entry.etag);
+        }
+        if (entry.lastModified != null) {
+            request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, entry.lastModified);
+        }
+        request.getParams().setParameter(REVALIDATING, entry);
+        metrics.cacheRevalidations.increment();
+        return null;
+    }
+
+    /**
+     * Stores the response if it may be cached. Called before the response handler sees the response.
+     *
+     * @param request
+     * @param response
+     * @param requestTime when the request was sent, in milliseconds
+     * @param mayBlock false on an I/O reactor thread: the response is not written to the disk tier, which copies the body
+     *        and syncs the segment file
+     * @return the response for the response handler. This is the stored response if the origin said the stale response
+     *         is still valid and a response with a buffered entity if the response was stored.
+     * @throws IOException
+     */
+    HttpResponse handle(HttpUriRequest request, HttpResponse response, long requestTime, boolean mayBlock) throws IOException {
+        String method = request.getMethod();
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (!"GET".equals(method)) {
+            if (("POST".equals(method) || "PUT".equals(method) || "DELETE".equals(method) || "PATCH".equals(method)) && statusCode < 400) {
+                invalidate(key(request));
+            }
+            return response;
+        }
+        CachedResponse revalidating = (CachedResponse) request.getParams().getParameter(REVALIDATING);
+        if (request.containsHeader(HttpHeaders.RANGE) || (revalidating == null && conditional(request))
+                || CachedResponse.cacheControl(request).containsKey("no-store")) {
+            return response;
+        }
+        long now = System.currentTimeMillis();
+        if (statusCode == HttpStatus.SC_NOT_MODIFIED && revalidating != null) {
+            EntityUtils.consume(response.getEntity());
+            CachedResponse revalidated = revalidating.revalidated(response, request, requestTime, now);
+            if (revalidated.mapped == null) {
+                put(revalidated);
+            } else if (mayBlock) {
+                // otherwise the record on disk keeps its old headers and is revalidated again
+                revalidatedOnDisk(revalidating, revalidated);
+            }
+            return revalidated.toResponse();
+        }
+        String key = key(request);
+        if (!CachedResponse.storable(response)) {
+            invalidate(key);
+            return response;
+        }
+        CachedResponse stored = CachedResponse.of(key, request, response, EMPTY, requestTime, now);
+        if (!stored.fresh(now) && !stored.hasValidators()) {
+            invalidate(key);
+            return response;
+        }
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            put(stored);
+            return response;
+        }
+        SegmentStore store = mayBlock ? disk : null;
+        long length = entity.getContentLength();
+        boolean diskTier = store != null && (length < 0 || length >= minDiskBytes);
+        if (!diskTier && length > maxBytes) {
+            invalidate(key);
+            return response;
+        }
+        // a chunked body has no length; buffer no more than the tier it goes to can hold
+        InputStream content = entity.getContent();
+        byte[] body = readUpTo(content, diskTier ? minDiskBytes : maxBytes + 1);
+        if (diskTier && body.length == minDiskBytes) {
+            return toDisk(store, stored, response, body, content);
+        }
+        if (body.length > maxBytes) {
+            invalidate(key);
+            InputStreamEntity uncached = new InputStreamEntity(new SequenceInputStream(new ByteArrayInputStream(body), content), length);
+            uncached.setContentType(entity.getContentType());
+            response.setEntity(uncached);
+            return response;
+        }
+        content.close();
+        ByteArrayEntity buffered = new ByteArrayEntity(body);
+        buffered.setContentType(entity.getContentType());
+        response.setEntity(buffered);
+        put(CachedResponse.of(key, request, response, body, requestTime, now));
+        return response;
+    }
+
+    /**
+     * Stores the body on disk and gives the response handler the mapped body.
+     */
+    private HttpResponse toDisk(SegmentStore store, CachedResponse stored, HttpResponse response, byte[] head, InputStream rest) throws IOException {
+        Header contentType = response.getEntity().getContentType();
+        SegmentStore.Spill spill = store.spill(head, rest);
+        try {
+            synchronized (this) {
+                remove(stored.key);
+            }
+            SegmentStore.Record record = store.append(stored.key, stored.metadata(), spill);
+            if (record != null) {
+                CachedResponse mapped = stored.withBody(record.body());
+                record.parsed = mapped;
+                return mapped.toResponse();
+            }
+            // too large for the disk budget; the response handler reads the temporary file
+            store.remove(stored.key);
+            InputStreamEntity unstored = new InputStreamEntity(new FileInputStream(spill.file), spill.length);
+            unstored.setContentType(contentType);
+            response.setEntity(unstored);
+            return response;
+        } finally {
+            // an open file can still be read
+            spill.delete();
+        }
+    }
+
+    private CachedResponse fromDisk(String key) {
+        SegmentStore store = disk;
+        if (store == null) {
+            return null;
+        }
+        try {
+            SegmentStore.Record record = store.get(key);
+            if (record == null) {
+                return null;
+            }
+            CachedResponse parsed = record.parsed;
+            if (parsed == null) {
+                parsed = CachedResponse.read(key, record.metadata, record.body());
+                record.parsed = parsed;
+            }
+            return parsed;
+        } catch (IOException e) {
+            LOG.warn("cannot read the stored response for " + key + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static byte[] readUpTo(InputStream in, long limit) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (out.size() < limit) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, limit - out.size()));
+            if (read < 0) {
+                break;
+            }
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean conditional(HttpUriRequest request) {
+        return request.containsHeader(HttpHeaders.IF_NONE_MATCH) || request.containsHeader(HttpHeaders.IF_MODIFIED_SINCE)
+                || request.containsHeader(HttpHeaders.IF_MATCH) || request.containsHeader(HttpHeaders.IF_UNMODIFIED_SINCE)
+                || request.containsHeader(HttpHeaders.IF_RANGE);
+    }
+
+    private static boolean noCachePragma(HttpUriRequest request) {
+        for (Header pragma : request.getHeaders("Pragma")) {
+            if (pragma.getValue().toLowerCase(Locale.ROOT).contains("no-cache")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String key(HttpUriRequest request) {
+        return request.getURI().toString();
+    }
+
+    /**
+     * Writes the new headers of a response on disk; its body stays where it is.
+     */
+    private void revalidatedOnDisk(CachedResponse stale, CachedResponse revalidated) throws IOException {
+        SegmentStore.Record record = disk.update(revalidated.key, revalidated.metadata(), stale);
+        if (record != null) {
+            record.parsed = revalidated.withBody(record.body());
+        }
+    }
+
+    private void put(CachedResponse entry) throws IOException {
+        SegmentStore store = disk;
+        synchronized (this) {
+            remove(entry.key);
+            if (entry.weight <= maxBytes) {
+                entries.put(entry.key, entry);
+                window.add(entry);
+                evict();
+            }
+        }
+        if (store != null) {
+            store.remove(entry.key);
+        }
+    }
+
+    private void invalidate(String key) throws IOException {
+        synchronized (this) {
+            remove(key);
+        }
+        SegmentStore store = disk;
+        if (store != null) {
+            store.remove(key);
+        }
+    }
+
+    private void remove(String key) {
+        CachedResponse existing = entries.remove(key);
+        if (existing != null) {
+            lru(existing.region).remove(existing);
+        }
+    }
+
+    private void accessed(CachedResponse entry) {
+        switch (entry.region) {
+        case WINDOW:
+            window.remove(entry);
+            window.add(entry);
+            break;
+        case PROBATION:
+            probation.remove(entry);
+            protectedArea.add(entry);
+            while (protectedArea.bytes > maxProtectedBytes) {
+                CachedResponse demoted = protectedArea.first;
+                protectedArea.remove(demoted);
+                probation.add(demoted);
+            }
+            break;
+        case PROTECTED:
+            protectedArea.remove(entry);
+            protectedArea.add(entry);
+            break;
+        }
+    }
+
+    /**
+     * Moves responses that don't fit in the window to probation and then evicts until the cache fits. The response that
+     * entered probation last competes with the least recently used response in probation; the one that was requested
+     * less often recently is evicted.
+     */
+    private void evict() {
+        while (window.bytes > maxWindowBytes) {
+            CachedResponse candidate = window.first;
+            window.remove(candidate);
+            probation.add(candidate);
+        }
+        while (window.bytes + probation.bytes + protectedArea.bytes > maxBytes) {
+            CachedResponse victim = probation.first != null ? probation.first : protectedArea.first != null ? protectedArea.first : window.first;
+            CachedResponse candidate = probation.last;
+            if (victim.region == Region.PROBATION && candidate != victim
+                    && sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+                victim = candidate;
+            }
+            lru(victim.region).remove(victim);
+            entries.remove(victim.key);
+        }
+    }
+
+    private Lru lru(Region region) {
+        switch (region) {
+        case WINDOW:
+            return window;
+        case PROBATION:
+            return probation;
+        default:
+            return protectedArea;
+        }
+    }
+
+    /**
+     * Doubly linked list of entries from least to most recently used.
+     */
+    private static final class Lru {
+        private final Region region;
+        CachedResponse first;
+        CachedResponse last;
+        long bytes;
+
+        Lru(Region region) {
+            this.region = region;
+        }
+
+        void add(CachedResponse entry) {
+            entry.region = region;
+            entry.previous = last;
+            entry.next = null;
+            if (last == null) {
+                first = entry;
+            } else {
+                last.next = entry;
+            }
+            last = entry;
+            bytes += entry.weight;
+        }
+
+        void remove(CachedResponse entry) {
+            if (entry.previous == null) {
+                first = entry.next;
+            } else {
+                entry.previous.next = entry.next;
+            }
+            if (entry.next == null) {
+                last = entry.previous;
+            } else {
+                entry.next.previous = entry.previous;
+            }
+            entry.previous = null;
+            entry.next = null;
+            bytes -= entry.weight;
+        }
+
+        void clear() {
+            first = null;
+            last = null;
+            bytes = 0;
+        }
+    }
+}
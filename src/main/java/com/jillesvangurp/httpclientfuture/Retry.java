@@ -0,0 +1,222 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Retries a request for a {@link RetryPolicy}. The task of the first attempt is the one the caller holds; when an
+ * attempt fails with a transient error, the next attempt is scheduled after a backoff and its outcome completes that
+ * task. Cancelling the task cancels the scheduled or running attempt.
+ */
+final class Retry<V> {
+    private final HttpClientWithFuture<V> client;
+    private final HttpRequestBase request;
+    private final HttpContext context;
+    private final RequestOptions options;
+    private final RetryPolicy policy;
+    private final ConnectionMetrics metrics;
+    private final ScheduledExecutorService scheduler;
+    private final boolean idempotent;
+
+    private volatile HttpClientFutureTask<V> primary;
+
+    // guarded by this
+    private int attempts = 1;
+    private ScheduledFuture<?> timer;
+    private HttpClientFutureTask<V> current;
+
+    Retry(HttpClientWithFuture<V> client, HttpRequestBase request, HttpContext context, RequestOptions options, RetryPolicy policy, ConnectionMetrics metrics,
+            ScheduledExecutorService scheduler) {
+        this.client = client;
+        this.request = request;
+        this.context = context;
+        this.options = options;
+        this.policy = policy;
+        this.metrics = metrics;
+        this.scheduler = scheduler;
+        this.idempotent = policy.idempotent(request, options);
+    }
+
+    void primary(HttpClientFutureTask<V> primary) {
+        this.primary = primary;
+    }
+
+    /**
+     * Called by an attempt that got a response, before the response handler sees it.
+     *
+     * @param response
+     * @return how long to wait before the request is retried in nanoseconds, or -1 if the response should be handed to
+     *         the response handler
+     */
+    long retryStatus(HttpResponse response) {
+        if (!idempotent || !policy.retryableStatus(response.getStatusLine().getStatusCode())) {
+            return -1;
+        }
+        long retryAfter = retryAfterNanos(response);
+        if (retryAfter > policy.maxBackoffNanos()) {
+            // the server asks to wait longer than we would
+            return -1;
+        }
+        long delay = Math.max(retryAfter, policy.backoffNanos(attempts()));
+        return grant(delay) ? delay : -1;
+    }
+
+    /**
+     * Called when an attempt failed.
+     *
+     * @param failure
+     * @return true if another attempt will complete the task
+     */
+    boolean retry(Throwable failure) {
+        long delay;
+        if (failure instanceof RetryableStatusException) {
+            // granted when the response came in
+            delay = ((RetryableStatusException) failure).delayNanos;
+        } else if (policy.retryable(failure, idempotent)) {
+            delay = policy.backoffNanos(attempts());
+            if (!grant(delay)) {
+                return false;
+            }
+        } else {
+            return false;
+        }
+        return schedule(delay);
+    }
+
+    private synchronized int attempts() {
+        return attempts;
+    }
+
+    /**
+     * @return true if another attempt is allowed, which is then counted
+     */
+    private boolean grant(long delayNanos) {
+        HttpClientFutureTask<V> task = primary;
+        synchronized (this) {
+            if (task == null || task.isDone() || attempts >= policy.maxAttempts()) {
+                return false;
+            }
+            if (options != null && options.hasDeadline() && options.remainingNanos() < delayNanos) {
+                return false;
+            }
+            if (!policy.spend()) {
+                metrics.retryBudgetExhausted.increment();
+                return false;
+            }
+            attempts++;
+            return true;
+        }
+    }
+
+    private boolean schedule(long delayNanos) {
+        HttpClientFutureTask<V> task = primary;
+        synchronized (this) {
+            if (task.isDone()) {
+                return false;
+            }
+            metrics.retries.increment();
+            timer = scheduler.schedule(this::attempt, delayNanos, TimeUnit.NANOSECONDS);
+            return true;
+        }
+    }
+
+    private void attempt() {
+        HttpClientFutureTask<V> task = primary;
+        if (task.isDone()) {
+            return;
+        }
+        HttpClientFutureTask<V> attempt;
+        try {
+            attempt = client.attempt((HttpRequestBase) request.clone(), context, options, this);
+        } catch (CloneNotSupportedException e) {
+            task.failNow(e);
+            return;
+        } catch (RuntimeException e) {
+            if (!retry(e)) {
+                task.failNow(e);
+            }
+            return;
+        }
+        synchronized (this) {
+            current = attempt;
+        }
+        attempt.toCompletableFuture().whenComplete((result, failure) -> attemptDone(result, failure));
+        if (task.isDone()) {
+            attempt.cancel(true);
+        }
+    }
+
+    private void attemptDone(V result, Throwable failure) {
+        HttpClientFutureTask<V> task = primary;
+        if (failure == null) {
+            task.complete(result);
+        } else if (!retry(failure)) {
+            task.failNow(failure);
+        }
+    }
+
+    /**
+     * Called when the task of the first attempt is done, one way or another.
+     */
+    void primaryDone() {
+        HttpClientFutureTask<V> running;
+        synchronized (this) {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            running = current;
+        }
+        if (running != null && !running.isDone()) {
+            running.cancel(true);
+        }
+    }
+
+    /**
+     * @return the wait asked for by a Retry-After header in seconds or as a date, 0 if there is none
+     */
+    private static long retryAfterNanos(HttpResponse response) {
+        Header header = response.getFirstHeader("Retry-After");
+        if (header == null) {
+            return 0;
+        }
+        String value = header.getValue().trim();
+        try {
+            return TimeUnit.SECONDS.toNanos(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            try {
+                return TimeUnit.MILLISECONDS.toNanos(DateUtils.parseDate(value).getTime() - System.currentTimeMillis());
+            } catch (DateParseException invalid) {
+                return 0;
+            }
+        }
+    }
+}
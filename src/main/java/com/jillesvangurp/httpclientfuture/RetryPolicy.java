@@ -0,0 +1,233 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+
+/**
+ * Retries requests that failed with a transient error: an exception such as a refused connection or a read timeout,
+ * or a status such as 503. Retries wait with exponential backoff and jitter; the wait is scheduled on the scheduler of
+ * the client, so no thread is blocked while waiting. A 429 or 503 response with a Retry-After header is retried no
+ * sooner than the header says.
+ *
+ * Only idempotent requests (GET, HEAD, OPTIONS, PUT, DELETE and TRACE) are retried, unless the request was never sent
+ * because the connection could not be established, or {@link RequestOptions#retryable(boolean)} says otherwise.
+ * A request that timed out waiting for a pooled connection is not retried, since a retry only adds to the wait of a
+ * pool that is already exhausted, unless {@link #retryOn(Class...)} names ConnectionPoolTimeoutException.
+ * Retries are bounded by a budget: every request earns budget retries, e.g. 0.1 for at most 10% extra requests, and
+ * every retry costs one. When a backend is down, retries therefore don't multiply the load on it.
+ *
+ * Attach the policy with {@link HttpClientWithFuture#retrying(RetryPolicy)}; use one policy per client. Retries and
+ * retries that were not sent because the budget was exhausted are reported by {@link ConnectionMetrics}.
+ */
+public class RetryPolicy {
+    private int maxAttempts = 3;
+    private long initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(50);
+    private long maxBackoffNanos = TimeUnit.SECONDS.toNanos(5);
+    private double budget = 0.1;
+    private int maxBurst = 10;
+    private Class<?>[] exceptions = { ConnectException.class, ConnectTimeoutException.class, NoHttpResponseException.class, SocketTimeoutException.class };
+    private int[] statusCodes = { 429, 502, 503, 504 };
+
+    private volatile TokenBudget tokens = new TokenBudget(budget, maxBurst, maxBurst);
+
+    public static RetryPolicy retrying() {
+        return new RetryPolicy();
+    }
+
+    /**
+     * @param maxAttempts maximum number of times a request is sent, including the first time, default 3
+     * @return the policy
+     */
+    public RetryPolicy maxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts should be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * @param initial wait before the first retry, default 50ms. Every retry waits twice as long as the previous one,
+     *            give or take half of that for jitter.
+     * @param max maximum wait, default 5s
+     * @param tu
+     * @return the policy
+     */
+    public RetryPolicy backoff(long initial, long max, TimeUnit tu) {
+        if (initial <= 0 || max < initial) {
+            throw new IllegalArgumentException("initial should be positive and max at least initial");
+        }
+        this.initialBackoffNanos = tu.toNanos(initial);
+        this.maxBackoffNanos = tu.toNanos(max);
+        return this;
+    }
+
+    /**
+     * @param budget maximum number of retries as a fraction of the requests, default 0.1
+     * @param maxBurst maximum number of retries that can be saved up, default 10. The budget starts with this many
+     *            retries, so that the first failures of a new client can be retried.
+     * @return the policy
+     */
+    public RetryPolicy budget(double budget, int maxBurst) {
+        this.tokens = new TokenBudget(budget, maxBurst, maxBurst);
+        this.budget = budget;
+        this.maxBurst = maxBurst;
+        return this;
+    }
+
+    /**
+     * @param exceptions retry requests that failed with one of these exceptions or a subclass, by default
+     *            ConnectException, ConnectTimeoutException, NoHttpResponseException and SocketTimeoutException.
+     *            ConnectionPoolTimeoutException is only retried when it or a subclass is listed, even though it extends
+     *            ConnectTimeoutException.
+     * @return the policy
+     */
+    @SafeVarargs
+    public final RetryPolicy retryOn(Class<? extends Throwable>... exceptions) {
+        this.exceptions = exceptions.clone();
+        return this;
+    }
+
+    /**
+     * @param statusCodes retry requests that got a response with one of these status codes, by default 429, 502, 503
+     *            and 504. When the last attempt gets such a response, it is handed to the response handler.
+     * @return the policy
+     */
+    public RetryPolicy retryOnStatus(int... statusCodes) {
+        this.statusCodes = statusCodes.clone();
+        return this;
+    }
+
+    int maxAttempts() {
+        return maxAttempts;
+    }
+
+    long maxBackoffNanos() {
+        return maxBackoffNanos;
+    }
+
+    /**
+     * @param options may be null
+     * @return false if the options say the request should never be retried
+     */
+    boolean eligible(RequestOptions options) {
+        return options == null || options.retryable() == null || options.retryable();
+    }
+
+    /**
+     * @param request
+     * @param options may be null
+     * @return true if the request may be retried after it was sent
+     */
+    boolean idempotent(HttpRequestBase request, RequestOptions options) {
+        if (options != null && options.retryable() != null) {
+            return options.retryable();
+        }
+        switch (request.getMethod()) {
+        case "GET": case "HEAD": case "OPTIONS": case "PUT": case "DELETE": case "TRACE":
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @param failure
+     * @param idempotent
+     * @return true if the failure is worth a retry
+     */
+    boolean retryable(Throwable failure, boolean idempotent) {
+        if (!idempotent && !notSent(failure)) {
+            return false;
+        }
+        boolean poolTimeout = failure instanceof ConnectionPoolTimeoutException;
+        for (Class<?> exception : exceptions) {
+            if (exception.isInstance(failure) && (!poolTimeout || ConnectionPoolTimeoutException.class.isAssignableFrom(exception))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean retryableStatus(int statusCode) {
+        for (int code : statusCodes) {
+            if (code == statusCode) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the request failed before it was sent, so that even a request that is not idempotent can be
+     *         retried. A pool timeout is not counted: the request was not sent either, but it should wait for the pool
+     *         rather than retry.
+     */
+    private static boolean notSent(Throwable failure) {
+        if (failure instanceof ConnectionPoolTimeoutException) {
+            return false;
+        }
+        return failure instanceof ConnectException || failure instanceof ConnectTimeoutException;
+    }
+
+    /**
+     * @param attempt the attempt that failed, starting at 1
+     * @return how long to wait before the next attempt in nanoseconds
+     */
+    long backoffNanos(int attempt) {
+        long backoff = initialBackoffNanos << Math.min(attempt - 1, 30);
+        if (backoff <= 0 || backoff > maxBackoffNanos) {
+            backoff = maxBackoffNanos;
+        }
+        // half of it is jitter, so that requests that failed together don't retry together
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    /**
+     * Adds to the budget for a request.
+     */
+    void earn() {
+        tokens.earn();
+    }
+
+    /**
+     * @return true if the budget allows another retry, which is then taken from the budget
+     */
+    boolean spend() {
+        return tokens.spend();
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy(" + maxAttempts + " attempts, budget " + budget + ", max burst " + maxBurst + ", statuses " + Arrays.toString(statusCodes) + ")";
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.net.URI;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+
+import com.jillesvangurp.metrics.DurationCounter;
+import com.jillesvangurp.metrics.HistogramSnapshot;
+
+/**
+ * Metrics for the requests to one route (scheme, host and port). Get these from
+ * {@link ConnectionMetrics#route(java.net.URI)}. Requests resolve their route once when they are scheduled and
+ * then update it directly.
+ */
+public final class RouteMetrics {
+    private static final StatusClass[] STATUS_CLASSES = StatusClass.values();
+
+    final String scheme;
+    final String host;
+    final int port;
+
+    final AtomicLong active = new AtomicLong();
+    final AtomicLong scheduled = new AtomicLong();
+    final DurationCounter requests = new DurationCounter();
+    private final LongAdder[] statusClasses = new LongAdder[STATUS_CLASSES.length];
+
+    // the connection pool routes of this route; uris with and without the default port map to different pool routes
+    final HttpRoute[] poolRoutes;
+
+    // set by the ConcurrencyLimiter on the first request for this route
+    volatile ConcurrencyLimiter.Limit limit;
+
+    // set by the CircuitBreaker on the first request for this route
+    volatile CircuitBreaker.Circuit circuit;
+
+    RouteMetrics(String scheme, String host, int port) {
+        this.scheme = scheme;
+        this.host = host;
+        this.port = port;
+        for (int i = 0; i < statusClasses.length; i++) {
+            statusClasses[i] = new LongAdder();
+        }
+        if (host == null) {
+            poolRoutes = new HttpRoute[0];
+        } else {
+            boolean secure = "https".equals(scheme);
+            HttpRoute route = new HttpRoute(new HttpHost(host, port, scheme), null, secure);
+            if (port == (secure ? 443 : 80)) {
+                poolRoutes = new HttpRoute[] { route, new HttpRoute(new HttpHost(host, -1, scheme), null, secure) };
+            } else {
+                poolRoutes = new HttpRoute[] { route };
+            }
+        }
+    }
+
+    /**
+     * Identifies the route of a uri for state that is kept for every route, such as rate limits, rather than only for
+     * the routes that get their own metrics.
+     *
+     * @param uri
+     * @return scheme://host:port of the uri in lower case with the default port filled in, or null if the uri has no
+     *         host
+     */
+    static String key(URI uri) {
+        String host = uri.getHost();
+        String scheme = uri.getScheme();
+        if (host == null || scheme == null) {
+            return null;
+        }
+        int port = uri.getPort();
+        if (port < 0) {
+            port = "https".equalsIgnoreCase(scheme) ? 443 : 80;
+        }
+        return scheme.toLowerCase(Locale.ROOT) + "://" + host.toLowerCase(Locale.ROOT) + ":" + port;
+    }
+
+    boolean matches(String scheme, int port) {
+        return this.port == port && this.scheme.equalsIgnoreCase(scheme);
+    }
+
+    void record(RequestTimings timings, StatusClass statusClass) {
+        requests.recordNanos(timings.requestNanos());
+        statusClasses[statusClass.ordinal()].increment();
+    }
+
+    /**
+     * @return the route, e.g. http://localhost:8080, or "other" for the route that collects requests for routes beyond
+     *         the maximum number of routes.
+     */
+    public String name() {
+        if (host == null) {
+            return "other";
+        }
+        return scheme + "://" + host + ":" + port;
+    }
+
+    public long activeConnections() {
+        return active.get();
+    }
+
+    public long scheduledConnections() {
+        return scheduled.get();
+    }
+
+    /**
+     * @return the current limit on requests in flight for this route, or -1 if the client has no
+     *         {@link ConcurrencyLimiter}
+     */
+    public int concurrencyLimit() {
+        ConcurrencyLimiter.Limit current = limit;
+        return current == null ? -1 : (int) current.limit;
+    }
+
+    /**
+     * @return number of requests waiting for the concurrency limit of this route
+     */
+    public int queuedForLimit() {
+        ConcurrencyLimiter.Limit current = limit;
+        if (current == null) {
+            return 0;
+        }
+        synchronized (current) {
+            return current.queue.size();
+        }
+    }
+
+    /**
+     * @return number of requests rejected because the concurrency limit of this route was reached and its queue was
+     *         full
+     */
+    public long rejectedByLimit() {
+        ConcurrencyLimiter.Limit current = limit;
+        return current == null ? 0 : current.rejected.sum();
+    }
+
+    /**
+     * @return the state of the circuit of this route, or null if the client has no {@link CircuitBreaker}
+     */
+    public CircuitBreaker.State circuitState() {
+        CircuitBreaker.Circuit current = circuit;
+        return current == null ? null : current.state;
+    }
+
+    /**
+     * @return number of requests failed without sending them because the circuit of this route was open
+     */
+    public long rejectedByCircuit() {
+        CircuitBreaker.Circuit current = circuit;
+        return current == null ? 0 : current.rejected.sum();
+    }
+
+    public long count(StatusClass statusClass) {
+        return statusClasses[statusClass.ordinal()].sum();
+    }
+
+    /**
+     * @return distribution of the request durations for this route in nanoseconds
+     */
+    public HistogramSnapshot requestLatencies() {
+        return requests.histogram();
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+}
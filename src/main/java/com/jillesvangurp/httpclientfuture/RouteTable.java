@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * State that a component such as the {@link RateLimiter} keeps for every route, by {@link RouteMetrics#key(java.net.URI)}.
+ * Unlike the metrics, the routes are not capped, so a client that talks to many hosts would keep state for all of them.
+ * Instead, whenever the table has doubled in size since it was last swept, the states that the component says are idle
+ * are dropped. A route that is used again afterwards starts with fresh state.
+ */
+final class RouteTable<S> {
+    private static final int MIN_SWEEP_SIZE = 1024;
+
+    private final Map<String, S> states = new ConcurrentHashMap<>();
+    private final Function<String, S> create;
+    private final Predicate<S> evict;
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private volatile int sweepSize = MIN_SWEEP_SIZE;
+
+    /**
+     * @param create creates the state of a route on its first use
+     * @param evict called during a sweep; returns true if the state is idle and may be dropped. States that are in use
+     *            must not be dropped, or requests that hold on to them would be counted apart from new requests.
+     */
+    RouteTable(Function<String, S> create, Predicate<S> evict) {
+        this.create = create;
+        this.evict = evict;
+    }
+
+    S get(String key) {
+        S state = states.get(key);
+        if (state == null) {
+            state = states.computeIfAbsent(key, create);
+            if (states.size() >= sweepSize) {
+                sweep();
+            }
+        }
+        return state;
+    }
+
+    int size() {
+        return states.size();
+    }
+
+    private void sweep() {
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            for (Map.Entry<String, S> entry : states.entrySet()) {
+                if (evict.test(entry.getValue())) {
+                    states.remove(entry.getKey(), entry.getValue());
+                }
+            }
+            sweepSize = Math.max(MIN_SWEEP_SIZE, states.size() * 2);
+        } finally {
+            sweeping.set(false);
+        }
+    }
+}
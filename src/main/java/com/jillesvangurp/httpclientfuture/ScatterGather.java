@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Tracks a group of requests until the quorum is reached, can no longer be reached, or the deadline passes, and then
+ * cancels the requests that are still outstanding so that their connections and threads are freed right away.
+ */
+final class ScatterGather<T> {
+    private final List<HttpClientFutureTask<T>> tasks;
+    private final int quorum;
+    private final GatherResult.Status[] statuses;
+    private final Object[] values;
+    private final Throwable[] failures;
+    private final List<T> successes = new ArrayList<T>();
+    private int succeeded;
+    private int failed;
+    // guarded by this
+    private boolean decided;
+    private volatile ScheduledFuture<?> timer;
+
+    final CompletableFuture<GatherResult<T>> result = new CancellingFuture();
+
+    ScatterGather(List<HttpClientFutureTask<T>> tasks, int quorum) {
+        this.tasks = tasks;
+        this.quorum = quorum;
+        statuses = new GatherResult.Status[tasks.size()];
+        values = new Object[tasks.size()];
+        failures = new Throwable[tasks.size()];
+    }
+
+    /**
+     * Start tracking once all requests have been submitted, so that a request that completes right away cannot decide
+     * the outcome before the others are known.
+     *
+     * @param scheduler decides the outcome when the deadline passes; may be null if timeoutNanos is not positive
+     */
+    ScatterGather<T> start(ScheduledExecutorService scheduler, long timeoutNanos) {
+        if (timeoutNanos > 0) {
+            timer = scheduler.schedule(() -> decide(GatherResult.Outcome.DEADLINE), timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+            final int index = i;
+            tasks.get(i).toCompletableFuture().whenComplete((value, failure) -> completed(index, value, failure));
+        }
+        return this;
+    }
+
+    private void completed(int index, T value, Throwable failure) {
+        GatherResult<T> decision = null;
+        synchronized (this) {
+            if (decided) {
+                return;
+            }
+            if (failure == null) {
+                statuses[index] = GatherResult.Status.SUCCEEDED;
+                values[index] = value;
+                successes.add(value);
+                succeeded++;
+            } else {
+                statuses[index] = failure instanceof CancellationException ? GatherResult.Status.CANCELLED : GatherResult.Status.FAILED;
+                failures[index] = failure;
+                failed++;
+            }
+            if (succeeded >= quorum) {
+                decision = decision(GatherResult.Outcome.QUORUM);
+            } else if (tasks.size() - failed < quorum) {
+                decision = decision(GatherResult.Outcome.FAILED);
+            }
+        }
+        if (decision != null) {
+            finish(decision);
+        }
+    }
+
+    private void decide(GatherResult.Outcome outcome) {
+        GatherResult<T> decision;
+        synchronized (this) {
+            if (decided) {
+                return;
+            }
+            decision = decision(outcome);
+        }
+        finish(decision);
+    }
+
+    // call with the monitor held
+    private GatherResult<T> decision(GatherResult.Outcome outcome) {
+        decided = true;
+        HttpUriRequest[] requests = new HttpUriRequest[tasks.size()];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = tasks.get(i).request();
+            if (statuses[i] == null) {
+                statuses[i] = GatherResult.Status.CANCELLED;
+            }
+        }
+        return new GatherResult<T>(outcome, requests, statuses, values, failures, successes);
+    }
+
+    private void finish(GatherResult<T> decision) {
+        cancelOutstanding();
+        result.complete(decision);
+    }
+
+    private void cancelOutstanding() {
+        ScheduledFuture<?> currentTimer = timer;
+        if (currentTimer != null) {
+            currentTimer.cancel(false);
+        }
+        for (HttpClientFutureTask<T> task : tasks) {
+            if (!task.isDone()) {
+                task.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Cancelling the result cancels all outstanding requests.
+     */
+    private final class CancellingFuture extends CompletableFuture<GatherResult<T>> {
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                synchronized (ScatterGather.this) {
+                    decided = true;
+                }
+                cancelOutstanding();
+            }
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,523 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores bodies with their metadata in append only segment files in a directory, so that they survive restarts.
+ * Bodies are memory mapped when they are read, which keeps large bodies off the heap.
+ *
+ * Every record has a header with the lengths and CRC32 checksums of its parts. When the store is opened, the segments
+ * are scanned to rebuild the index of keys, which keeps the metadata and where the body is. A record that was not
+ * written completely, e.g. because the process crashed, fails its checksum; the segment is truncated there. Removing a
+ * key appends a tombstone record. New metadata for a body that is already stored, e.g. the headers of a revalidated
+ * response, is appended as a record without a body that refers to the body of the record it replaces. When the segments take more than the disk budget, the oldest segment is deleted as a
+ * whole.
+ *
+ * Only one store at a time can use a directory; it is locked while the store is open.
+ */
+final class SegmentStore implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentStore.class);
+
+    private static final int MAGIC = 0x48434653;
+    // magic, key length, metadata length, body length or one of the markers below, metadata checksum, body checksum
+    static final int HEADER_BYTES = 4 + 4 + 4 + 8 + 4 + 4;
+    private static final long TOMBSTONE = -1;
+    // new metadata for the body of the record of the key
+    private static final long UPDATE = -2;
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String SPILL_PREFIX = "spill-";
+    private static final int COPY_BUFFER_SIZE = 65536;
+
+    private final File directory;
+    private final long maxBytes;
+    private final long maxSegmentBytes;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final AtomicLong spills = new AtomicLong();
+
+    // guarded by this
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final Map<String, Record> index = new HashMap<String, Record>();
+    private long bytes;
+    private boolean closed;
+
+    private SegmentStore(File directory, long maxBytes, long maxSegmentBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxSegmentBytes = maxSegmentBytes;
+        lockChannel = FileChannel.open(new File(directory, "lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock acquired;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            acquired = null;
+        }
+        if (acquired == null) {
+            lockChannel.close();
+            throw new IOException(directory + " is used by another cache");
+        }
+        lock = acquired;
+        try {
+            File[] files = directory.listFiles();
+            for (File file : files == null ? new File[0] : files) {
+                String name = file.getName();
+                if (name.startsWith(SPILL_PREFIX)) {
+                    // left behind by a crash
+                    delete(file);
+                } else if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16);
+                        segments.put(id, new Segment(file));
+                    } catch (NumberFormatException e) {
+                        LOG.warn("ignoring " + file);
+                    }
+                }
+            }
+            for (Segment segment : segments.values()) {
+                recover(segment);
+                bytes += segment.size;
+            }
+            evict();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param directory
+     * @param maxBytes disk budget for the segments
+     * @param maxSegmentBytes size at which a new segment is started; this is how much is evicted at a time
+     * @return the store, with the records that were in the directory
+     * @throws IOException if the directory cannot be used
+     */
+    static SegmentStore open(File directory, long maxBytes, long maxSegmentBytes) throws IOException {
+        return new SegmentStore(directory, maxBytes, maxSegmentBytes);
+    }
+
+    /**
+     * @param key
+     * @return the record with its body mapped, or null
+     * @throws IOException
+     */
+    synchronized Record get(String key) throws IOException {
+        Record record = index.get(key);
+        if (record != null && record.body == null) {
+            record.body = record.segment.channel.map(FileChannel.MapMode.READ_ONLY, record.bodyOffset, record.bodyLength);
+        }
+        return record;
+    }
+
+    /**
+     * Copies a body to a temporary file in the directory before it is appended. This happens outside the lock of the
+     * store so that slow responses don't block it.
+     *
+     * @param head bytes of the body that were already read
+     * @param rest the remainder of the body
+     * @return the temporary file
+     * @throws IOException
+     */
+    Spill spill(byte[] head, InputStream rest) throws IOException {
+        File file = new File(directory, SPILL_PREFIX + spills.incrementAndGet());
+        CRC32 crc = new CRC32();
+        long length = head.length;
+        OutputStream out = new FileOutputStream(file);
+        try {
+            crc.update(head);
+            out.write(head);
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while ((read = rest.read(buffer)) >= 0) {
+                crc.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+                length += read;
+            }
+        } catch (IOException e) {
+            out.close();
+            delete(file);
+            throw e;
+        } finally {
+            out.close();
+        }
+        return new Spill(file, length, (int) crc.getValue());
+    }
+
+    /**
+     * @param key
+     * @param metadata
+     * @param spill the body; the file is not deleted
+     * @return the new record with its body mapped, or null if the body is too large for the disk budget
+     * @throws IOException
+     */
+    synchronized Record append(String key, byte[] metadata, final Spill spill) throws IOException {
+        return append(key, metadata, spill.length, spill.crc, new BodyWriter() {
+            @Override
+            public void write(FileChannel channel, long position) throws IOException {
+                FileChannel source = FileChannel.open(spill.file.toPath(), StandardOpenOption.READ);
+                try {
+                    long written = 0;
+                    while (written < spill.length) {
+                        long transferred = channel.transferFrom(source, position + written, spill.length - written);
+                        if (transferred <= 0) {
+                            throw new IOException("could not copy " + spill.file);
+                        }
+                        written += transferred;
+                    }
+                } finally {
+                    source.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * @param key
+     * @param metadata
+     * @param body the remaining bytes of the buffer are the body
+     * @return the new record with its body mapped, or null if the body is too large for the disk budget
+     * @throws IOException
+     */
+    synchronized Record append(String key, byte[] metadata, ByteBuffer body) throws IOException {
+        final ByteBuffer content = body.duplicate();
+        CRC32 crc = new CRC32();
+        crc.update(content.duplicate());
+        return append(key, metadata, content.remaining(), (int) crc.getValue(), new BodyWriter() {
+            @Override
+            public void write(FileChannel channel, long position) throws IOException {
+                writeFully(channel, content, position);
+            }
+        });
+    }
+
+    /**
+     * Replaces the metadata of a key without copying its body.
+     *
+     * @param key
+     * @param metadata
+     * @param expected the response parsed from the record that the metadata is for
+     * @return the new record with the body of the old one, or null if the key has no record or a record with another
+     *         body by now, in which case nothing is written
+     * @throws IOException
+     */
+    synchronized Record update(String key, byte[] metadata, CachedResponse expected) throws IOException {
+        Record current = get(key);
+        if (current == null || current.parsed != expected) {
+            return null;
+        }
+        return append(key, metadata, UPDATE, 0, null);
+    }
+
+    /**
+     * Removes the key; a tombstone makes sure it stays removed after a restart.
+     *
+     * @param key
+     * @throws IOException
+     */
+    synchronized void remove(String key) throws IOException {
+        if (index.remove(key) != null) {
+            append(key, new byte[0], TOMBSTONE, 0, null);
+        }
+    }
+
+    /**
+     * @return size of the segments
+     */
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return number of keys
+     */
+    synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Deletes all segments.
+     *
+     * @throws IOException
+     */
+    synchronized void clear() throws IOException {
+        index.clear();
+        while (!segments.isEmpty()) {
+            deleteSegment(segments.pollFirstEntry().getValue());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        index.clear();
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+        segments.clear();
+        if (lock != null) {
+            lock.release();
+        }
+        lockChannel.close();
+    }
+
+    private Record append(String key, byte[] metadata, long bodyLength, int bodyCrc, BodyWriter body) throws IOException {
+        if (closed) {
+            throw new IOException("store is closed");
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long recordBytes = HEADER_BYTES + keyBytes.length + metadata.length + Math.max(0, bodyLength);
+        if (recordBytes > maxBytes || bodyLength > Integer.MAX_VALUE) {
+            return null;
+        }
+        Segment segment = segmentFor(recordBytes);
+        long position = segment.size;
+        ByteBuffer head = ByteBuffer.allocate(HEADER_BYTES + keyBytes.length + metadata.length);
+        CRC32 metadataCrc = new CRC32();
+        metadataCrc.update(keyBytes);
+        metadataCrc.update(metadata);
+        head.putInt(MAGIC).putInt(keyBytes.length).putInt(metadata.length).putLong(bodyLength).putInt((int) metadataCrc.getValue()).putInt(bodyCrc);
+        head.put(keyBytes).put(metadata);
+        head.flip();
+        try {
+            writeFully(segment.channel, head, position);
+            if (body != null) {
+                body.write(segment.channel, position + head.limit());
+            }
+            segment.channel.force(false);
+        } catch (IOException e) {
+            segment.channel.truncate(position);
+            throw e;
+        }
+        segment.size = position + recordBytes;
+        bytes += recordBytes;
+        Record record = null;
+        if (bodyLength == UPDATE) {
+            Record current = index.get(key);
+            record = new Record(current.segment, current.bodyOffset, current.bodyLength, metadata);
+            record.body = current.body;
+            index.put(key, record);
+        } else if (bodyLength >= 0) {
+            record = new Record(segment, position + head.limit(), bodyLength, metadata);
+            index.put(key, record);
+            record.body = segment.channel.map(FileChannel.MapMode.READ_ONLY, record.bodyOffset, record.bodyLength);
+        }
+        evict();
+        return record;
+    }
+
+    private Segment segmentFor(long recordBytes) throws IOException {
+        Map.Entry<Long, Segment> last = segments.lastEntry();
+        if (last != null && (last.getValue().size == 0 || last.getValue().size + recordBytes <= maxSegmentBytes)) {
+            return last.getValue();
+        }
+        long id = last == null ? 1 : last.getKey() + 1;
+        Segment segment = new Segment(new File(directory, String.format("%016x", id) + SEGMENT_SUFFIX));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private void evict() throws IOException {
+        while (bytes > maxBytes && segments.size() > 1) {
+            final Segment oldest = segments.pollFirstEntry().getValue();
+            index.values().removeIf(record -> record.segment == oldest);
+            deleteSegment(oldest);
+        }
+    }
+
+    private void deleteSegment(Segment segment) throws IOException {
+        bytes -= segment.size;
+        // mapped bodies that are still in use remain valid
+        segment.channel.close();
+        delete(segment.file);
+    }
+
+    /**
+     * Indexes the records of a segment and truncates it at the first record that is incomplete or corrupt.
+     */
+    private void recover(Segment segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        long position = 0;
+        while (position < segment.size) {
+            long end = -1;
+            if (position + HEADER_BYTES <= segment.size) {
+                header.clear();
+                readFully(segment.channel, header, position);
+                int magic = header.getInt();
+                int keyLength = header.getInt();
+                int metadataLength = header.getInt();
+                long bodyLength = header.getLong();
+                int metadataCrc = header.getInt();
+                int bodyCrc = header.getInt();
+                long recordEnd = position + HEADER_BYTES + keyLength + metadataLength + Math.max(0, bodyLength);
+                if (magic == MAGIC && keyLength > 0 && metadataLength >= 0 && bodyLength >= UPDATE && bodyLength <= Integer.MAX_VALUE
+                        && recordEnd <= segment.size) {
+                    ByteBuffer keyAndMetadata = ByteBuffer.allocate(keyLength + metadataLength);
+                    readFully(segment.channel, keyAndMetadata, position + HEADER_BYTES);
+                    long bodyOffset = position + HEADER_BYTES + keyLength + metadataLength;
+                    if (crc(keyAndMetadata) == metadataCrc && (bodyLength <= 0 || crc(segment.channel.map(FileChannel.MapMode.READ_ONLY, bodyOffset, bodyLength)) == bodyCrc)) {
+                        byte[] bytes = keyAndMetadata.array();
+                        String key = new String(bytes, 0, keyLength, StandardCharsets.UTF_8);
+                        byte[] metadata = new byte[metadataLength];
+                        System.arraycopy(bytes, keyLength, metadata, 0, metadataLength);
+                        if (bodyLength == TOMBSTONE) {
+                            index.remove(key);
+                        } else if (bodyLength == UPDATE) {
+                            // the body may have been evicted with its segment
+                            Record current = index.get(key);
+                            if (current != null) {
+                                index.put(key, new Record(current.segment, current.bodyOffset, current.bodyLength, metadata));
+                            }
+                        } else {
+                            index.put(key, new Record(segment, bodyOffset, bodyLength, metadata));
+                        }
+                        end = recordEnd;
+                    }
+                }
+            }
+            if (end < 0) {
+                LOG.warn("truncating " + segment.file + " at " + position + " after an incomplete or corrupt record");
+                segment.channel.truncate(position);
+                segment.size = position;
+                return;
+            }
+            position = end;
+        }
+    }
+
+    private static int crc(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("unexpected end of segment");
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            LOG.warn("could not delete " + file);
+        }
+    }
+
+    private interface BodyWriter {
+        void write(FileChannel channel, long position) throws IOException;
+    }
+
+    private static final class Segment {
+        final File file;
+        final FileChannel channel;
+        long size;
+
+        Segment(File file) throws IOException {
+            this.file = file;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            size = channel.size();
+        }
+    }
+
+    /**
+     * A body and its metadata in a segment.
+     */
+    static final class Record {
+        private final Segment segment;
+        private final long bodyOffset;
+        private final long bodyLength;
+        final byte[] metadata;
+        // mapped when first read, guarded by the store
+        private ByteBuffer body;
+        // so that the metadata is only parsed once
+        volatile CachedResponse parsed;
+
+        Record(Segment segment, long bodyOffset, long bodyLength, byte[] metadata) {
+            this.segment = segment;
+            this.bodyOffset = bodyOffset;
+            this.bodyLength = bodyLength;
+            this.metadata = metadata;
+        }
+
+        /**
+         * @return the mapped body
+         */
+        ByteBuffer body() {
+            return body.duplicate();
+        }
+    }
+
+    /**
+     * A body in a temporary file.
+     */
+    static final class Spill {
+        final File file;
+        final long length;
+        final int crc;
+
+        Spill(File file, long length, int crc) {
+            this.file = file;
+            this.length = length;
+            this.crc = crc;
+        }
+
+        void delete() {
+            SegmentStore.delete(file);
+        }
+    }
+}
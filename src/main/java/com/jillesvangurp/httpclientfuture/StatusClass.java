@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+/**
+ * Outcome of a request by class of the response status, or {@link #EXCEPTION} if no response was received.
+ */
+public enum StatusClass {
+    INFORMATIONAL("1xx"), SUCCESS("2xx"), REDIRECTION("3xx"), CLIENT_ERROR("4xx"), SERVER_ERROR("5xx"), EXCEPTION("exception");
+
+    private static final StatusClass[] BY_HUNDREDS = { EXCEPTION, INFORMATIONAL, SUCCESS, REDIRECTION, CLIENT_ERROR, SERVER_ERROR };
+
+    private final String label;
+
+    private StatusClass(String label) {
+        this.label = label;
+    }
+
+    /**
+     * @return label used in the metrics, e.g. 2xx
+     */
+    public String label() {
+        return label;
+    }
+
+    /**
+     * @param statusCode a http status code, or -1 if no response was received
+     * @return the status class
+     */
+    public static StatusClass of(int statusCode) {
+        int hundreds = statusCode / 100;
+        if (hundreds <= 0 || hundreds >= BY_HUNDREDS.length) {
+            return EXCEPTION;
+        }
+        return BY_HUNDREDS[hundreds];
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Feeds the body of a response to a {@link BodySubscriber} through a single buffer of the size of the window, reading
+ * from the connection only when the subscriber has asked for a chunk. The buffer comes from the {@link BufferPool} of
+ * the client, if it has one.
+ *
+ * With a blocking client this is the response handler of the request and the executing thread waits for demand; as it
+ * stops reading, the socket buffers fill up and TCP flow control holds back the server. With the non blocking client
+ * the input of the connection is suspended until there is demand again.
+ */
+final class StreamingBody<T> implements ResponseHandler<T>, BodySubscription {
+    private final BodySubscriber<T> subscriber;
+    private final int window;
+    private volatile BufferPool.Lease lease;
+    private ByteBuffer buffer;
+
+    // guarded by this
+    private long demand;
+    private boolean cancelled;
+    private IOControl suspended;
+
+    private volatile HttpClientFutureTask<T> task;
+
+    StreamingBody(BodySubscriber<T> subscriber, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window should be > 0");
+        }
+        this.subscriber = subscriber;
+        this.window = window;
+    }
+
+    /**
+     * Take the buffer from a pool; it goes back when the request is done.
+     */
+    void lease(BufferPool.Lease lease) {
+        this.lease = lease;
+    }
+
+    /**
+     * @param heap true if the buffer has to be backed by an array
+     * @return the buffer for the chunks, limited to the window
+     */
+    private ByteBuffer buffer(boolean heap) {
+        if (buffer == null) {
+            BufferPool.Lease currentLease = lease;
+            if (currentLease == null) {
+                buffer = ByteBuffer.allocate(window);
+            } else {
+                buffer = heap ? currentLease.acquireHeap(window) : currentLease.acquire(window);
+            }
+        }
+        buffer.clear();
+        buffer.limit(window);
+        return buffer;
+    }
+
+    void task(HttpClientFutureTask<T> task) {
+        this.task = task;
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("n should be > 0");
+        }
+        IOControl resume;
+        synchronized (this) {
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            resume = suspended;
+            suspended = null;
+            notifyAll();
+        }
+        if (resume != null) {
+            resume.requestInput();
+        }
+    }
+
+    @Override
+    public void cancel() {
+        synchronized (this) {
+            cancelled = true;
+            notifyAll();
+        }
+        HttpClientFutureTask<T> currentTask = task;
+        if (currentTask != null) {
+            currentTask.cancel(true);
+        }
+    }
+
+    @Override
+    public T handleResponse(HttpResponse response) throws IOException {
+        subscriber.onResponse(response, this);
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            InputStream in = entity.getContent();
+            try {
+                while (true) {
+                    awaitDemand();
+                    ByteBuffer chunk = buffer(true);
+                    int read = in.read(chunk.array(), chunk.arrayOffset(), window);
+                    if (read < 0) {
+                        break;
+                    }
+                    if (read > 0) {
+                        chunk.limit(read);
+                        subscriber.onChunk(chunk);
+                    } else {
+                        returnDemand();
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return subscriber.onComplete();
+    }
+
+    /**
+     * Wait until the subscriber asks for a chunk and take it.
+     *
+     * @throws IOException when the subscription was cancelled
+     */
+    private void awaitDemand() throws IOException {
+        synchronized (this) {
+            try {
+                while (demand == 0 && !cancelled) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for demand");
+            }
+            if (cancelled) {
+                throw new IOException("body subscription was cancelled");
+            }
+            demand--;
+        }
+    }
+
+    private synchronized void returnDemand() {
+        demand++;
+    }
+
+    /**
+     * @return consumer for the non blocking client
+     */
+    Consumer consumer(HttpClientCallable<T> callable) {
+        return new Consumer(callable);
+    }
+
+    final class Consumer extends AbstractAsyncResponseConsumer<T> {
+        private final HttpClientCallable<T> callable;
+
+        Consumer(HttpClientCallable<T> callable) {
+            this.callable = callable;
+        }
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) throws IOException {
+            callable.responseReceived(response);
+            subscriber.onResponse(response, StreamingBody.this);
+        }
+
+        @Override
+        protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+        }
+
+        @Override
+        protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+            synchronized (StreamingBody.this) {
+                if (cancelled) {
+                    throw new IOException("body subscription was cancelled");
+                }
+                if (demand == 0) {
+                    // leave the data in the connection until the subscriber asks for it
+                    suspended = ioctrl;
+                    ioctrl.suspendInput();
+                    return;
+                }
+                demand--;
+            }
+            if (subscriber instanceof DownloadSink && ((DownloadSink<T>) subscriber).consume(decoder)) {
+                return;
+            }
+            ByteBuffer chunk = buffer(false);
+            int read = decoder.read(chunk);
+            if (read > 0) {
+                chunk.flip();
+                subscriber.onChunk(chunk);
+            } else {
+                returnDemand();
+            }
+        }
+
+        @Override
+        protected T buildResult(HttpContext context) throws Exception {
+            return subscriber.onComplete();
+        }
+
+        @Override
+        protected void releaseResources() {
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket that limits extra requests, such as hedges and retries, to a fraction of the requests. Every request
+ * earns ratio tokens, every extra request costs one and at most maxBurst tokens can be saved up.
+ */
+final class TokenBudget {
+    private final long earned;
+    private final long max;
+
+    // in thousandths of a token
+    private final AtomicLong tokens = new AtomicLong();
+
+    /**
+     * @param ratio
+     * @param maxBurst
+     * @param initial number of tokens to start with
+     */
+    TokenBudget(double ratio, int maxBurst, int initial) {
+        if (ratio <= 0 || maxBurst < 1) {
+            throw new IllegalArgumentException("ratio should be positive and maxBurst at least 1");
+        }
+        earned = (long) (ratio * 1000);
+        max = maxBurst * 1000L;
+        tokens.set(Math.min(initial, maxBurst) * 1000L);
+    }
+
+    void earn() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current >= max) {
+                return;
+            }
+        } while (!tokens.compareAndSet(current, Math.min(max, current + earned)));
+    }
+
+    /**
+     * @return true if there was a token, which is then taken
+     */
+    boolean spend() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current < 1000) {
+                return false;
+            }
+        } while (!tokens.compareAndSet(current, current - 1000));
+        return true;
+    }
+}
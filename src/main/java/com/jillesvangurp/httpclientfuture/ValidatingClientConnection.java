@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.impl.conn.DefaultClientConnection;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Connection that only runs the stale connection check when it has been idle for longer than a threshold. The check
+ * blocks on a read of the socket for up to a millisecond, which is a lot to add to every request; a connection that was
+ * used a moment ago is very unlikely to have been closed by the server. Connections that outlive the keep alive time
+ * of the server or their time to live are evicted by the pool when they are leased, so the check only needs to catch
+ * connections that the server closed without telling.
+ */
+class ValidatingClientConnection extends DefaultClientConnection {
+    /**
+     * Parameter with the time in milliseconds that a connection may be idle before the stale connection check runs
+     * when it is leased. 0 checks on every lease.
+     */
+    static final String VALIDATE_AFTER_INACTIVITY = "com.jillesvangurp.httpclientfuture.ValidatingClientConnection.validateAfterInactivity";
+
+    private volatile long validateAfterInactivity;
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    @Override
+    public void openCompleted(boolean secure, HttpParams params) throws IOException {
+        super.openCompleted(secure, params);
+        validateAfterInactivity = params.getLongParameter(VALIDATE_AFTER_INACTIVITY, 0);
+        lastUsed = System.currentTimeMillis();
+    }
+
+    @Override
+    public void update(Socket sock, HttpHost target, boolean secure, HttpParams params) throws IOException {
+        super.update(sock, target, secure, params);
+        lastUsed = System.currentTimeMillis();
+    }
+
+    @Override
+    public void sendRequestHeader(HttpRequest request) throws HttpException, IOException {
+        super.sendRequestHeader(request);
+        lastUsed = System.currentTimeMillis();
+    }
+
+    @Override
+    public HttpResponse receiveResponseHeader() throws HttpException, IOException {
+        HttpResponse response = super.receiveResponseHeader();
+        lastUsed = System.currentTimeMillis();
+        return response;
+    }
+
+    @Override
+    public void receiveResponseEntity(HttpResponse response) throws HttpException, IOException {
+        super.receiveResponseEntity(response);
+        // reading the body takes a while longer, so the idle time is overestimated, which only costs a check
+        lastUsed = System.currentTimeMillis();
+    }
+
+    @Override
+    public boolean isStale() {
+        if (isOpen() && System.currentTimeMillis() - lastUsed < validateAfterInactivity) {
+            return false;
+        }
+        return super.isStale();
+    }
+
+    /**
+     * Creates {@link ValidatingClientConnection}s and leaves the rest to the operator it wraps.
+     */
+    static final class Operator implements ClientConnectionOperator {
+        private final ClientConnectionOperator delegate;
+
+        Operator(ClientConnectionOperator delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public OperatedClientConnection createConnection() {
+            return new ValidatingClientConnection();
+        }
+
+        @Override
+        public void openConnection(OperatedClientConnection conn, HttpHost target, InetAddress local, HttpContext context, HttpParams params) throws IOException {
+            delegate.openConnection(conn, target, local, context, params);
+        }
+
+        @Override
+        public void updateSecureConnection(OperatedClientConnection conn, HttpHost target, HttpContext context, HttpParams params) throws IOException {
+            delegate.updateSecureConnection(conn, target, context, params);
+        }
+    }
+}
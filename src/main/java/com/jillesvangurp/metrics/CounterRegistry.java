@@ -21,43 +21,56 @@
  */
 package com.jillesvangurp.metrics;
 
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
+/**
+ * Registry of named counters. A countable can be registered as one kind of counter only.
+ *
+ * Use {@link #getCounter(Countable)} for gauges that go up and down and need to be read exactly, e.g. the number of
+ * active connections. Use {@link #getStripedCounter(Countable)} for write heavy counters that are only read
+ * occasionally: increments are spread over cells so that threads on different cores don't contend on one cache line.
+ * {@link DurationCounter}s are striped as well.
+ *
+ * Lookups of registered counters don't lock, so it's fine to call these methods on a hot path, although keeping a
+ * reference to the counter is cheaper still.
+ */
 public class CounterRegistry {
-    private final Map<Countable, AtomicLong> counters = new ConcurrentHashMap<Countable, AtomicLong>();
-    private final Map<Countable, DurationCounter> durationCounters = new ConcurrentHashMap<Countable, DurationCounter>();
+    private final ConcurrentHashMap<Countable, Object> counters = new ConcurrentHashMap<Countable, Object>();
 
     public AtomicLong getCounter(Countable countable) {
-        AtomicLong l = counters.get(countable);
-        if(l == null) {
-            synchronized(this) {
-                if(durationCounters.containsKey(countable)) {
-                    throw new IllegalArgumentException("Countable " + countable.name() + " is already registered via getDurationCounter()");
-                }
-                if(l == null) {
-                    l = new AtomicLong();
-                    counters.put(countable, l);
-                }
-            }
-        }
-        return l;
+        return register(countable, AtomicLong.class, c -> new AtomicLong());
+    }
+
+    public LongAdder getStripedCounter(Countable countable) {
+        return register(countable, LongAdder.class, c -> new LongAdder());
     }
 
     public DurationCounter getDurationCounter(Countable countable) {
-        DurationCounter durationCounter = durationCounters.get(countable);
-        if(durationCounter == null) {
-            synchronized(this) {
-                if(counters.containsKey(countable)) {
-                    throw new IllegalArgumentException("Countable " + countable.name() + " is already registered via getCounter()");
-                }
-                if(durationCounter == null) {
-                    durationCounter = new DurationCounter();
-                    durationCounters.put(countable, durationCounter);
-                }
-            }
+        return register(countable, DurationCounter.class, c -> new DurationCounter());
+    }
+
+    private <C> C register(Countable countable, Class<C> type, Function<Countable, Object> factory) {
+        Object counter = counters.get(countable);
+        if(counter == null) {
+            // computeIfAbsent locks the bin even if the key is present, so only use it to register
+            counter = counters.computeIfAbsent(countable, factory);
+        }
+        if(!type.isInstance(counter)) {
+            throw new IllegalArgumentException("Countable " + countable.name() + " is already registered via " + registeredVia(counter));
+        }
+        return type.cast(counter);
+    }
+
+    private static String registeredVia(Object counter) {
+        if(counter instanceof AtomicLong) {
+            return "getCounter()";
+        } else if(counter instanceof LongAdder) {
+            return "getStripedCounter()";
+        } else {
+            return "getDurationCounter()";
         }
-        return durationCounter;
     }
 }
@@ -21,27 +21,56 @@
  */
 package com.jillesvangurp.metrics;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * A counter that can measure duration and number of events.
+ * A counter that can measure duration and number of events. Durations are also recorded in a {@link LatencyHistogram}
+ * so that percentiles can be reported in addition to the average. The count and cumulative duration are striped
+ * {@link LongAdder}s and the histogram stripes its counts the same way, so concurrent recording does not contend on a
+ * single cache line.
  *
  */
 public class DurationCounter {
-    private final AtomicLong count = new AtomicLong(0);
-    private final AtomicLong cumulativeDuration = new AtomicLong(0);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder cumulativeDuration = new LongAdder();
+    private final LatencyHistogram histogram = new LatencyHistogram();
 
+    /**
+     * @param startTime start time in milliseconds, as returned by System.currentTimeMillis()
+     */
     public void increment(long startTime) {
-        count.incrementAndGet();
-        cumulativeDuration.addAndGet(System.currentTimeMillis() - startTime);
+        recordNanos(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - startTime));
+    }
+
+    /**
+     * @param durationNanos duration of the event in nanoseconds, e.g. the difference between two System.nanoTime() calls
+     */
+    public void recordNanos(long durationNanos) {
+        count.increment();
+        cumulativeDuration.add(durationNanos);
+        histogram.record(durationNanos);
     }
 
     public long count() {
-        return count.get();
+        return count.sum();
     }
 
+    /**
+     * @return average duration in milliseconds, 0 if nothing was counted yet
+     */
     public long averageDuration() {
-        long counter = count.get();
-        return cumulativeDuration.get()/counter;
+        long counter = count.sum();
+        if (counter == 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(cumulativeDuration.sum()/counter);
+    }
+
+    /**
+     * @return the distribution of the recorded durations in nanoseconds
+     */
+    public HistogramSnapshot histogram() {
+        return histogram.snapshot();
     }
 }
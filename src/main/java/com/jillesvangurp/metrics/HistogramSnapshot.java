@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.metrics;
+
+/**
+ * Immutable copy of the counts of a {@link LatencyHistogram}. Snapshots can be merged, e.g. to combine histograms of
+ * several clients, or diffed to get the distribution of the values recorded between two snapshots.
+ */
+public final class HistogramSnapshot {
+    private final long[] counts;
+    private final long count;
+    private final long min;
+    private final long max;
+
+    HistogramSnapshot(long[] counts, long min, long max) {
+        this.counts = counts;
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        this.count = total;
+        this.min = total == 0 ? 0 : min;
+        this.max = total == 0 ? 0 : max;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public long min() {
+        return min;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    /**
+     * @return the mean, based on the middle of the buckets
+     */
+    public double mean() {
+        if (count == 0) {
+            return 0;
+        }
+        double total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                total += counts[i] * ((LatencyHistogram.lowestValue(i) + LatencyHistogram.highestValue(i)) / 2.0);
+            }
+        }
+        return total / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100, e.g. 99.9
+     * @return the value that percentile of the recorded values is less than or equal to, within the precision of
+     *         the histogram; 0 if nothing was recorded.
+     */
+    public long valueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.max(min, Math.min(max, LatencyHistogram.highestValue(i)));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @param other
+     * @return a snapshot with the values of both snapshots
+     */
+    public HistogramSnapshot merge(HistogramSnapshot other) {
+        long[] merged = new long[counts.length];
+        for (int i = 0; i < merged.length; i++) {
+            merged[i] = counts[i] + other.counts[i];
+        }
+        if (count == 0) {
+            return new HistogramSnapshot(merged, other.min, other.max);
+        } else if (other.count == 0) {
+            return new HistogramSnapshot(merged, min, max);
+        }
+        return new HistogramSnapshot(merged, Math.min(min, other.min), Math.max(max, other.max));
+    }
+
+    /**
+     * @param earlier an earlier snapshot of the same histogram
+     * @return a snapshot with only the values recorded after the earlier snapshot was taken. The min and max of the
+     *         result are derived from the buckets, so they are only as precise as the buckets.
+     */
+    public HistogramSnapshot diff(HistogramSnapshot earlier) {
+        long[] diff = new long[counts.length];
+        int lowest = -1;
+        int highest = -1;
+        for (int i = 0; i < diff.length; i++) {
+            diff[i] = Math.max(0, counts[i] - earlier.counts[i]);
+            if (diff[i] > 0) {
+                if (lowest < 0) {
+                    lowest = i;
+                }
+                highest = i;
+            }
+        }
+        if (lowest < 0) {
+            return new HistogramSnapshot(diff, 0, 0);
+        }
+        return new HistogramSnapshot(diff, Math.max(min, LatencyHistogram.lowestValue(lowest)), Math.min(max, LatencyHistogram.highestValue(highest)));
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed memory, lock free histogram for latencies in nanoseconds. Values are counted in log-linear buckets, similar to
+ * HdrHistogram: each power of two range is split into 64 linear sub buckets, so the relative error of a reported
+ * value is below 1.6%. Values up to 2^44 ns (almost five hours) are tracked; larger values are counted in the last
+ * bucket.
+ *
+ * Recording is a compare and set on an array slot, plus one when a new minimum or maximum is seen; it does not
+ * allocate. Like a {@link java.util.concurrent.atomic.LongAdder}, the histogram starts with a single stripe of counts
+ * and adds stripes, up to the number of processors, when threads that record at the same time collide. Each thread
+ * then mostly records in a stripe of its own, with its own minimum and maximum, so recording on many cores does not
+ * contend on shared cache lines. Use {@link #snapshot()} to read percentiles; it adds up the stripes.
+ */
+public class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 7;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+    static final long HIGHEST_TRACKABLE_VALUE = (1L << 44) - 1;
+    static final int BUCKETS = bucketIndex(HIGHEST_TRACKABLE_VALUE) + 1;
+    private static final int MAX_STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+    private volatile Stripe[] stripes = { new Stripe() };
+
+    /**
+     * @param nanos duration to record, negative values are counted as 0
+     */
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), HIGHEST_TRACKABLE_VALUE);
+        int index = bucketIndex(value);
+        Stripe[] current = stripes;
+        Stripe stripe = current[stripe(current.length)];
+        long count = stripe.counts.get(index);
+        if (!stripe.counts.compareAndSet(index, count, count + 1)) {
+            // another thread records in the same stripe
+            grow(current);
+            stripe.counts.incrementAndGet(index);
+        }
+        long extreme;
+        while (value > (extreme = stripe.max.get()) && !stripe.max.compareAndSet(extreme, value)) {
+            // lost the race against another thread, retry
+        }
+        while (value < (extreme = stripe.min.get()) && !stripe.min.compareAndSet(extreme, value)) {
+            // lost the race against another thread, retry
+        }
+    }
+
+    /**
+     * @return a copy of the current counts. Values recorded concurrently may or may not be included.
+     */
+    public HistogramSnapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (Stripe stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] += stripe.counts.get(i);
+            }
+            min = Math.min(min, stripe.min.get());
+            max = Math.max(max, stripe.max.get());
+        }
+        return new HistogramSnapshot(copy, min, max);
+    }
+
+    private static int stripe(int stripeCount) {
+        int h = System.identityHashCode(Thread.currentThread());
+        // spread the bits, identity hash codes of threads created one after another are close together
+        h ^= (h >>> 16);
+        h *= 0x45d9f3b;
+        h ^= (h >>> 16);
+        return h & (stripeCount - 1);
+    }
+
+    private void grow(Stripe[] current) {
+        if (current.length < MAX_STRIPES) {
+            synchronized (this) {
+                if (stripes == current) {
+                    Stripe[] grown = Arrays.copyOf(current, current.length * 2);
+                    for (int i = current.length; i < grown.length; i++) {
+                        grown[i] = new Stripe();
+                    }
+                    stripes = grown;
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts, minimum and maximum recorded by the threads that map to it.
+     */
+    private static final class Stripe {
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+        final AtomicLong max = new AtomicLong(0);
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (int) ((value >>> shift) - SUB_BUCKET_HALF);
+    }
+
+    static long lowestValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+        long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return subBucket << shift;
+    }
+
+    static long highestValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+        return lowestValue(index) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares a client with and without a {@link BufferPool} on gzip compressed responses that are read in the response
+ * handler. Run it with the gc profiler to see the bytes allocated per request (gc.alloc.rate.norm), e.g. mvn
+ * -Pbenchmark test-compile exec:exec -Dbenchmark="BufferPoolBenchmark -prof gc".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BufferPoolBenchmark {
+    private static final int PORT = 6685;
+
+    @Param({ "false", "true" })
+    public boolean pooled;
+
+    private final byte[] sink = new byte[8192];
+    private LocalWebServer webServer;
+    private ExecutorService executorService;
+    private HttpClientWithFuture<Integer> client;
+    private String url;
+
+    @Setup
+    public void setup() {
+        webServer = new LocalWebServer(PORT, 4).addServlet(BufferPoolTest.GzipServlet.class, "/gzip").start();
+        executorService = Executors.newFixedThreadPool(4);
+        HttpClientBuilder builder = HttpClientBuilder.client();
+        if (pooled) {
+            builder.bufferPool(BufferPool.heap());
+        }
+        client = builder.buildClientWithFuture(executorService, new ResponseHandler<Integer>() {
+            @Override
+            public Integer handleResponse(HttpResponse response) throws IOException {
+                // read the body without building a string, so that what remains is what the client allocates
+                InputStream in = response.getEntity().getContent();
+                try {
+                    int total = 0;
+                    int read;
+                    while ((read = in.read(sink)) >= 0) {
+                        total += read;
+                    }
+                    return total;
+                } finally {
+                    in.close();
+                }
+            }
+        });
+        url = "http://localhost:" + PORT + "/gzip";
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        executorService.shutdownNow();
+        webServer.stop();
+    }
+
+    @Benchmark
+    public int gzipRequest() throws Exception {
+        return client.execute(new HttpGet(url)).get(10, TimeUnit.SECONDS);
+    }
+}
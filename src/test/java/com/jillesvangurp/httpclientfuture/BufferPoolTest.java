@@ -0,0 +1,285 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.jillesvangurp.urlbuilder.UrlBuilder;
+
+@Test
+public class BufferPoolTest {
+    private static final String TEXT = "the quick brown fox jumps over the lazy dog ";
+
+    private final int port = 6684;
+    private LocalWebServer webServer;
+    private ExecutorService executorService;
+    private BufferPool pool;
+    private HttpClientWithFuture<String> client;
+
+    @BeforeClass
+    public void beforeClass() {
+        webServer = new LocalWebServer(port, 5).addServlet(GzipServlet.class, "/gzip").start();
+        executorService = Executors.newFixedThreadPool(5);
+        pool = BufferPool.heap().leakDetection(true);
+        client = HttpClientBuilder.client().bufferPool(pool).buildClientWithFuture(executorService, new ResponseHandler<String>() {
+            @Override
+            public String handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+                return EntityUtils.toString(response.getEntity());
+            }
+        });
+    }
+
+    @AfterClass
+    public void afterClass() throws IOException {
+        client.close();
+        executorService.shutdownNow();
+        webServer.stop();
+    }
+
+    public void shouldReuseBuffersOfTheSameSize() {
+        BufferPool heap = BufferPool.heap(1024, 8192, 4);
+        ByteBuffer buffer = heap.acquire(3000);
+        assertThat(buffer.capacity(), is(4096));
+        heap.release(buffer);
+
+        assertThat(heap.acquire(2049), sameInstance(buffer));
+        assertThat(heap.reused(), is(1l));
+        assertThat(heap.allocatedBytes(), is(4096l));
+    }
+
+    public void shouldNotPoolLargerBuffers() {
+        BufferPool heap = BufferPool.heap(1024, 8192, 4);
+        ByteBuffer buffer = heap.acquire(10000);
+        assertThat(buffer.capacity(), is(10000));
+        heap.release(buffer);
+
+        assertThat(heap.acquire(10000), not(sameInstance(buffer)));
+    }
+
+    public void shouldHandOutDirectBuffers() {
+        BufferPool direct = BufferPool.direct();
+        assertThat(direct.acquire(100).isDirect(), is(true));
+        assertThat(direct.acquireHeap(100).hasArray(), is(true));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldDetectLeaks() {
+        BufferPool leaky = BufferPool.heap().leakDetection(true);
+        leaky.acquire(100);
+        assertThat(leaky.outstanding(), is(1));
+        leaky.assertNoLeaks();
+    }
+
+    public void shouldDecompressWithPooledInflaters() throws Exception {
+        String expected = text();
+        for (int i = 0; i < 3; i++) {
+            HttpClientFutureTask<String> task = client.execute(new HttpGet(url()));
+            assertThat(task.get(1, TimeUnit.SECONDS), is(expected));
+        }
+        pool.assertNoLeaks();
+        assertThat(pool.reused(), greaterThan(0l));
+    }
+
+    public void shouldRejectCorruptGzipTrailer() throws Exception {
+        byte[] body = gzip(text());
+        // flip a bit of the CRC32; the deflate stream itself still ends cleanly
+        body[body.length - 8] ^= 1;
+        BufferPool.Lease lease = pool.lease();
+        try {
+            EntityUtils.toString(decode(body, lease));
+            throw new AssertionError("the corrupt trailer should have been detected");
+        } catch (ZipException e) {
+            assertThat(e.getMessage().contains("CRC32"), is(true));
+        } finally {
+            lease.close();
+        }
+        pool.assertNoLeaks();
+    }
+
+    public void shouldReadConcatenatedGzipMembers() throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(gzip(text()));
+        body.write(gzip("and the end"));
+        BufferPool.Lease lease = pool.lease();
+        try {
+            assertThat(EntityUtils.toString(decode(body.toByteArray(), lease)), is(text() + "and the end"));
+        } finally {
+            lease.close();
+        }
+        pool.assertNoLeaks();
+    }
+
+    public void shouldConsumeAStreamedGzipBodyAfterItWasRead() throws Exception {
+        byte[] body = gzip(text());
+        BufferPool.Lease lease = pool.lease();
+        try {
+            HttpEntity entity = decode(new InputStreamEntity(new ByteArrayInputStream(body), body.length), lease);
+            assertThat(EntityUtils.toString(entity), is(text()));
+            // what DecompressingHttpClient does after the response handler
+            EntityUtils.consume(entity);
+        } finally {
+            lease.close();
+        }
+        pool.assertNoLeaks();
+    }
+
+    private static HttpEntity decode(byte[] body, BufferPool.Lease lease) throws Exception {
+        return decode(new ByteArrayEntity(body), lease);
+    }
+
+    private static HttpEntity decode(AbstractHttpEntity entity, BufferPool.Lease lease) throws Exception {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        entity.setContentEncoding("gzip");
+        response.setEntity(entity);
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute(BufferPool.Lease.CONTEXT_ATTRIBUTE, lease);
+        new PooledContentEncoding().process(response, context);
+        return response.getEntity();
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(text.getBytes("UTF-8"));
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    public void shouldWriteRequestEntitiesThroughPooledBuffers() throws Exception {
+        HttpPost post = new HttpPost(url());
+        byte[] body = text().getBytes("UTF-8");
+        InputStream content = new ByteArrayInputStream(body);
+        post.setEntity(new InputStreamEntity(content, body.length));
+        HttpClientFutureTask<String> task = client.execute(post);
+
+        assertThat(task.get(1, TimeUnit.SECONDS), is(text()));
+        assertThat(post.getEntity() instanceof InputStreamEntity, is(true));
+        pool.assertNoLeaks();
+    }
+
+    public void shouldReleaseBuffersOfCancelledStreamingRequests() throws Exception {
+        HttpClientFutureTask<String> task = client.executeStreaming(new HttpGet(url()), new BodySubscriber<String>() {
+            @Override
+            public void onResponse(HttpResponse response, BodySubscription subscription) {
+                subscription.request(1);
+            }
+
+            @Override
+            public void onChunk(ByteBuffer chunk) {
+            }
+
+            @Override
+            public String onComplete() {
+                return "";
+            }
+        });
+        Thread.sleep(100);
+        task.cancel(true);
+        long deadline = System.currentTimeMillis() + 1000;
+        while (pool.outstanding() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        pool.assertNoLeaks();
+    }
+
+    private static String text() {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            buf.append(TEXT);
+        }
+        return buf.toString();
+    }
+
+    private String url() {
+        return UrlBuilder.url("localhost", port).append("gzip").build();
+    }
+
+    /**
+     * Responds with a gzip compressed text to GET requests and with the request body to POST requests.
+     */
+    public static class GzipServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            resp.setHeader("Content-Encoding", "gzip");
+            resp.setContentType("text/plain; charset=UTF-8");
+            GZIPOutputStream out = new GZIPOutputStream(resp.getOutputStream());
+            out.write(text().getBytes("UTF-8"));
+            out.finish();
+            out.flush();
+        }
+
+        @Override
+        protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            resp.setContentType("text/plain; charset=UTF-8");
+            InputStream in = req.getInputStream();
+            OutputStream out = resp.getOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.jillesvangurp.metrics.CounterRegistry;
+import com.jillesvangurp.urlbuilder.UrlBuilder;
+
+@Test
+public class CircuitBreakerTest {
+    private final int port = 6680;
+    private LocalWebServer webServer;
+    private ExecutorService executorService;
+    private HttpClientWithFuture<Integer> client;
+    private final List<String> transitions = new CopyOnWriteArrayList<>();
+
+    @BeforeClass
+    public void beforeClass() {
+        webServer = new LocalWebServer(port, 10).addServlet(StatusServlet.class, "/status").start();
+        executorService = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterClass
+    public void afterClass() {
+        executorService.shutdownNow();
+        webServer.stop();
+    }
+
+    @BeforeMethod
+    public void beforeMethod() {
+        transitions.clear();
+        client = HttpClientBuilder.client().connections(4, 4).buildClientWithFuture(executorService, new ResponseHandler<Integer>() {
+            @Override
+            public Integer handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+                return response.getStatusLine().getStatusCode();
+            }
+        });
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        client.close();
+    }
+
+    public void shouldOpenOnFailuresAndFailFast() throws Exception {
+        client.circuitBreaker(CircuitBreaker.circuitBreaker().window(4, 4).openDuration(1, TimeUnit.MINUTES));
+        RouteMetrics route = route();
+        assertThat(route.circuitState(), nullValue());
+        for (int i = 0; i < 4; i++) {
+            assertThat(get(500, 0), is(500));
+        }
+        assertThat(route.circuitState(), is(CircuitBreaker.State.OPEN));
+        assertThat(transitions, contains("CLOSED->OPEN"));
+
+        HttpClientFutureTask<Integer> rejected = client.execute(new HttpGet(url(200, 0)), null, new Transitions(), null);
+        assertThat(rejected.isDone(), is(true));
+        try {
+            rejected.get();
+            throw new AssertionError("should have failed");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(CircuitOpenException.class));
+        }
+        assertThat(route.rejectedByCircuit(), is(1l));
+        assertThat(client.metrics().rejectedByCircuit(), is(1l));
+        assertThat(client.metrics().circuitsOpened(), is(1l));
+        assertThat(client.metrics().scheduledConnections(), is(0l));
+    }
+
+    public void shouldStayClosedBelowThreshold() throws Exception {
+        client.circuitBreaker(CircuitBreaker.circuitBreaker().window(4, 4).failureRateThreshold(0.5));
+        assertThat(get(500, 0), is(500));
+        for (int i = 0; i < 6; i++) {
+            assertThat(get(200, 0), is(200));
+        }
+        assertThat(get(500, 0), is(500));
+        assertThat(route().circuitState(), is(CircuitBreaker.State.CLOSED));
+        assertThat(transitions.isEmpty(), is(true));
+    }
+
+    public void shouldCloseAfterSuccessfulProbes() throws Exception {
+        client.circuitBreaker(CircuitBreaker.circuitBreaker().window(2, 2).openDuration(100, TimeUnit.MILLISECONDS).halfOpenCalls(2));
+        get(503, 0);
+        get(503, 0);
+        assertThat(route().circuitState(), is(CircuitBreaker.State.OPEN));
+        Thread.sleep(150);
+        assertThat(get(200, 0), is(200));
+        assertThat(route().circuitState(), is(CircuitBreaker.State.HALF_OPEN));
+        assertThat(get(200, 0), is(200));
+        assertThat(route().circuitState(), is(CircuitBreaker.State.CLOSED));
+        assertThat(transitions, contains("CLOSED->OPEN", "OPEN->HALF_OPEN", "HALF_OPEN->CLOSED"));
+    }
+
+    public void shouldReopenWhenAProbeFails() throws Exception {
+        client.circuitBreaker(CircuitBreaker.circuitBreaker().window(2, 2).openDuration(100, TimeUnit.MILLISECONDS).halfOpenCalls(2));
+        get(503, 0);
+        get(503, 0);
+        Thread.sleep(150);
+        assertThat(get(503, 0), is(503));
+        assertThat(route().circuitState(), is(CircuitBreaker.State.OPEN));
+        assertThat(transitions, contains("CLOSED->OPEN", "OPEN->HALF_OPEN", "HALF_OPEN->OPEN"));
+        assertThat(client.metrics().circuitsOpened(), is(2l));
+    }
+
+    public void shouldKeepACircuitPerRouteBeyondTheMetricsCap() {
+        CircuitBreaker breaker = CircuitBreaker.circuitBreaker().window(2, 2);
+        ConnectionMetrics metrics = new ConnectionMetrics(new CounterRegistry(), 0);
+        RouteMetrics other = metrics.route(URI.create("http://a.example.com/"));
+        Transitions callback = new Transitions();
+        CircuitBreaker.Circuit failing = breaker.circuit(RouteMetrics.key(URI.create("http://a.example.com/")), other);
+        CircuitBreaker.Circuit healthy = breaker.circuit(RouteMetrics.key(URI.create("http://b.example.com/")), other);
+        for (int i = 0; i < 2; i++) {
+            long generation = breaker.acquire(failing, other, callback, metrics);
+            breaker.release(failing, other, generation, 0, 500, true, callback, metrics);
+        }
+
+        assertThat(breaker.acquire(failing, other, callback, metrics), is(-1l));
+        assertThat("a route sharing the other metrics has a circuit of its own", breaker.acquire(healthy, other, callback, metrics), is(0l));
+        assertThat(other.circuitState(), nullValue());
+    }
+
+    public void shouldForgetIdleCircuits() {
+        CircuitBreaker breaker = CircuitBreaker.circuitBreaker().window(2, 2);
+        breaker.idleNanos = 0;
+        ConnectionMetrics metrics = new ConnectionMetrics(new CounterRegistry(), 0);
+        RouteMetrics other = metrics.route(URI.create("http://a.example.com/"));
+        Transitions callback = new Transitions();
+        String failingKey = RouteMetrics.key(URI.create("http://a.example.com/"));
+        CircuitBreaker.Circuit failing = breaker.circuit(failingKey, other);
+        for (int i = 0; i < 2; i++) {
+            long generation = breaker.acquire(failing, other, callback, metrics);
+            breaker.release(failing, other, generation, 0, 500, true, callback, metrics);
+        }
+        for (int i = 0; i < 10000; i++) {
+            breaker.circuit(RouteMetrics.key(URI.create("http://host" + i + ".example.com/")), other);
+        }
+        assertThat(breaker.circuits.size(), lessThanOrEqualTo(2048));
+        assertThat("an open circuit is kept until it may probe", breaker.circuit(failingKey, other) == failing, is(true));
+    }
+
+    public void shouldOpenOnSlowCalls() throws Exception {
+        client.circuitBreaker(CircuitBreaker.circuitBreaker().window(2, 2).slowCalls(1, 50, TimeUnit.MILLISECONDS));
+        assertThat(get(200, 100), is(200));
+        assertThat(get(200, 100), is(200));
+        assertThat(route().circuitState(), is(CircuitBreaker.State.OPEN));
+        assertThat(client.metrics().metricsAsJson().contains("\"circuit\":\"OPEN\""), is(true));
+    }
+
+    private int get(int status, int sleep) throws Exception {
+        return client.execute(new HttpGet(url(status, sleep)), null, new Transitions(), null).get(2, TimeUnit.SECONDS);
+    }
+
+    private RouteMetrics route() {
+        return client.metrics().route(URI.create(url(200, 0)));
+    }
+
+    private String url(int status, int sleep) {
+        return UrlBuilder.url("localhost", port).append("status").queryParam("status", "" + status).queryParam("sleep", "" + sleep).build();
+    }
+
+    private class Transitions extends LoggingHttpClientTaskLifecycleCallback {
+        Transitions() {
+            super("circuit test");
+        }
+
+        @Override
+        public void circuitStateChanged(RouteMetrics route, CircuitBreaker.State from, CircuitBreaker.State to) {
+            transitions.add(from + "->" + to);
+        }
+    }
+
+    public static class StatusServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            try {
+                Thread.sleep(Long.parseLong(req.getParameter("sleep")));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            resp.setStatus(Integer.parseInt(req.getParameter("status")));
+            resp.getWriter().write("status");
+        }
+    }
+}
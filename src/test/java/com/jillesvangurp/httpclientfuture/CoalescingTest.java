@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.jillesvangurp.urlbuilder.UrlBuilder;
+
+@Test
+public class CoalescingTest {
+    private final int port = 6676;
+    private LocalWebServer webServer;
+    private ExecutorService executorService;
+    private HttpClientWithFuture<String> client;
+
+    @BeforeClass
+    public void beforeClass() {
+        webServer = new LocalWebServer(port, 10).start();
+        executorService = Executors.newFixedThreadPool(5);
+    }
+
+    @AfterClass
+    public void afterClass() {
+        executorService.shutdownNow();
+        webServer.stop();
+    }
+
+    @BeforeMethod
+    public void beforeMethod() {
+        client = HttpClientBuilder.client().connections(5, 5).buildClientWithFuture(executorService, new ResponseHandler<String>() {
+            @Override
+            public String handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+                return EntityUtils.toString(response.getEntity());
+            }
+        }).coalescing(true, "Accept");
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        client.close();
+    }
+
+    public void shouldShareOneExecution() throws Exception {
+        long served = LocalWebServer.PingServlet.counter.get();
+        List<HttpClientFutureTask<String>> tasks = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            tasks.add(client.execute(new HttpGet(url(100))));
+        }
+        for (HttpClientFutureTask<String> task : tasks) {
+            assertThat(task.get(1, TimeUnit.SECONDS), is(pingUrl()));
+        }
+        assertThat(LocalWebServer.PingServlet.counter.get(), is(served + 1));
+        assertThat(client.metrics().coalescedRequests(), is(4l));
+        assertThat(client.metrics().requestLatencies().count(), is(1l));
+
+        // the flight is over, so this is a new request
+        client.execute(new HttpGet(url(100))).get(1, TimeUnit.SECONDS);
+        assertThat(LocalWebServer.PingServlet.counter.get(), is(served + 2));
+    }
+
+    public void shouldNotShareWhenKeyHeadersDiffer() throws Exception {
+        long served = LocalWebServer.PingServlet.counter.get();
+        HttpGet json = new HttpGet(url(100));
+        json.setHeader("Accept", "application/json");
+        HttpGet xml = new HttpGet(url(100));
+        xml.setHeader("Accept", "application/xml");
+        HttpClientFutureTask<String> first = client.execute(json);
+        HttpClientFutureTask<String> second = client.execute(xml);
+        first.get(1, TimeUnit.SECONDS);
+        second.get(1, TimeUnit.SECONDS);
+        assertThat(LocalWebServer.PingServlet.counter.get(), is(served + 2));
+        assertThat(client.metrics().coalescedRequests(), is(0l));
+    }
+
+    public void shouldOnlyAbortWhenAllWaitersCancelled() throws Exception {
+        HttpClientFutureTask<String> first = client.execute(new HttpGet(url(200)));
+        HttpClientFutureTask<String> second = client.execute(new HttpGet(url(200)));
+        first.cancel(true);
+        assertThat(second.get(1, TimeUnit.SECONDS), is(pingUrl()));
+
+        HttpClientFutureTask<String> third = client.execute(new HttpGet(url(300)));
+        HttpClientFutureTask<String> fourth = client.execute(new HttpGet(url(300)));
+        awaitActive(1);
+        long start = System.nanoTime();
+        third.cancel(true);
+        fourth.cancel(true);
+        awaitActive(0);
+        assertThat(System.nanoTime() - start, lessThan(TimeUnit.MILLISECONDS.toNanos(200)));
+    }
+
+    private void awaitActive(long active) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (client.metrics().activeConnections() != active && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(client.metrics().activeConnections(), is(active));
+    }
+
+    // what the ping servlet responds with
+    private String pingUrl() {
+        return UrlBuilder.url("localhost", port).append("ping").build();
+    }
+
+    private String url(int sleep) {
+        return UrlBuilder.url("localhost", port).append("ping").queryParam("sleep", sleep).build();
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.jillesvangurp.metrics.CounterRegistry;
+import com.jillesvangurp.urlbuilder.UrlBuilder;
+
+@Test
+public class ConcurrencyLimiterTest {
+    private final int port = 6673;
+    private LocalWebServer webServer;
+    private ExecutorService executorService;
+    private HttpClientWithFuture<String> client;
+
+    @BeforeClass
+    public void beforeClass() {
+        webServer = new LocalWebServer(port, 20).addServlet(CountingServlet.class, "/count").start();
+        executorService = Executors.newFixedThreadPool(10);
+    }
+
+    @AfterClass
+    public void afterClass() {
+        executorService.shutdownNow();
+        webServer.stop();
+    }
+
+    @BeforeMethod
+    public void beforeMethod() {
+        client = HttpClientBuilder.client().connections(10, 10).buildClientWithFuture(executorService, new ResponseHandler<String>() {
+            @Override
+            public String handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+                return EntityUtils.toString(response.getEntity());
+            }
+        });
+        CountingServlet.maxConcurrent.set(0);
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        client.close();
+    }
+
+    public void shouldQueueRequestsOverTheLimit() throws Exception {
+        client.concurrencyLimiter(ConcurrencyLimiter.limiter().limits(2, 2, 2));
+        List<HttpClientFutureTask<String>> tasks = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            // slow enough that the first requests are still in flight when the queue is checked
+            tasks.add(client.execute(new HttpGet(url("count") + "?sleep=100")));
+        }
+        RouteMetrics route = client.metrics().route(URI.create(url("count")));
+        assertThat(route.queuedForLimit(), is(6));
+        for (HttpClientFutureTask<String> task : tasks) {
+            assertThat(task.get(2, TimeUnit.SECONDS), is("ok"));
+        }
+        assertThat(CountingServlet.maxConcurrent.get(), lessThanOrEqualTo(2));
+        assertThat(route.concurrencyLimit(), is(2));
+        assertThat(route.queuedForLimit(), is(0));
+    }
+
+    public void shouldBackOffOnErrorsAndRejectOverTheLimit() throws Exception {
+        client.concurrencyLimiter(ConcurrencyLimiter.limiter().limits(10, 1, 10).backoffRatio(0.5).maxQueued(0));
+        for (int i = 0; i < 5; i++) {
+            client.execute(new HttpGet(url("ping") + "?status=503")).get(1, TimeUnit.SECONDS);
+        }
+        RouteMetrics route = client.metrics().route(URI.create(url("ping")));
+        assertThat(route.concurrencyLimit(), is(1));
+
+        HttpClientFutureTask<String> slow = client.execute(new HttpGet(url("ping") + "?sleep=200"));
+        HttpClientFutureTask<String> rejected = client.execute(new HttpGet(url("ping")));
+        try {
+            rejected.get(1, TimeUnit.SECONDS);
+            throw new AssertionError("should have been rejected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(RejectedExecutionException.class));
+        }
+        slow.get(1, TimeUnit.SECONDS);
+        assertThat(route.rejectedByLimit(), is(1l));
+        assertThat(client.metrics().scheduledConnections(), is(0l));
+    }
+
+    public void shouldKeepALimitPerRouteBeyondTheMetricsCap() {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.limiter().limits(10, 1, 100).backoffRatio(0.5);
+        RouteMetrics other = new ConnectionMetrics(new CounterRegistry(), 0).route(URI.create("http://a.example.com/"));
+        ConcurrencyLimiter.Limit degraded = limiter.limit(RouteMetrics.key(URI.create("http://a.example.com/")), other);
+        ConcurrencyLimiter.Limit healthy = limiter.limit(RouteMetrics.key(URI.create("http://b.example.com/")), other);
+        synchronized (degraded) {
+            degraded.inFlight++;
+        }
+        limiter.release(degraded, 0, 500, true);
+
+        assertThat((int) degraded.limit, is(5));
+        assertThat("a route sharing the other metrics keeps its own limit", (int) healthy.limit, is(10));
+        assertThat(other.concurrencyLimit(), is(-1));
+    }
+
+    public void shouldForgetIdleLimits() {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.limiter();
+        limiter.idleNanos = 0;
+        RouteMetrics other = new ConnectionMetrics(new CounterRegistry(), 0).route(URI.create("http://busy.example.com/"));
+        String busyKey = RouteMetrics.key(URI.create("http://busy.example.com/"));
+        ConcurrencyLimiter.Limit busy = limiter.limit(busyKey, other);
+        synchronized (busy) {
+            busy.inFlight++;
+        }
+        for (int i = 0; i < 10000; i++) {
+            limiter.limit(RouteMetrics.key(URI.create("http://host" + i + ".example.com/")), other);
+        }
+        assertThat(limiter.limits.size(), lessThanOrEqualTo(2048));
+        assertThat("a limit with requests in flight is kept", limiter.limit(busyKey, other) == busy, is(true));
+    }
+
+    public void shouldGrowTheLimitWhenItIsUsed() throws Exception {
+        client.concurrencyLimiter(ConcurrencyLimiter.limiter().limits(2, 1, 100).tolerance(100));
+        for (int round = 0; round < 20; round++) {
+            List<HttpClientFutureTask<String>> tasks = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                tasks.add(client.execute(new HttpGet(url("count"))));
+            }
+            for (HttpClientFutureTask<String> task : tasks) {
+                task.get(2, TimeUnit.SECONDS);
+            }
+        }
+        RouteMetrics route = client.metrics().route(URI.create(url("count")));
+        assertThat(2, lessThan(route.concurrencyLimit()));
+    }
+
+    private String url(String path) {
+        return UrlBuilder.url("localhost", port).append(path).build();
+    }
+
+    public static class CountingServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+        static final AtomicInteger concurrent = new AtomicInteger();
+        static final AtomicInteger maxConcurrent = new AtomicInteger();
+
+        @Override
+        protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            int now = concurrent.incrementAndGet();
+            try {
+                maxConcurrent.accumulateAndGet(now, Math::max);
+                String sleep = req.getParameter("sleep");
+                Thread.sleep(sleep == null ? 20 : Long.parseLong(sleep));
+                resp.getWriter().print("ok");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrent.decrementAndGet();
+            }
+        }
+    }
+}
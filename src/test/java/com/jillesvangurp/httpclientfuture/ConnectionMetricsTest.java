@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.jillesvangurp.metrics.CounterRegistry;
+import com.jillesvangurp.urlbuilder.UrlBuilder;
+
+@Test
+public class ConnectionMetricsTest {
+    private final int port = 6671;
+    // nothing listens on this port
+    private final int closedPort = 6672;
+    private LocalWebServer webServer;
+    private ExecutorService executorService;
+    private HttpClientWithFuture<String> client;
+
+    @BeforeClass
+    public void beforeClass() {
+        webServer = new LocalWebServer(port, 5).start();
+        executorService = Executors.newSingleThreadExecutor();
+        client = HttpClientBuilder.client().connections(1, 1).buildClientWithFuture(executorService, new ResponseHandler<String>() {
+            @Override
+            public String handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+                return EntityUtils.toString(response.getEntity());
+            }
+        });
+    }
+
+    @AfterClass
+    public void afterClass() throws IOException {
+        client.close();
+        executorService.shutdownNow();
+        webServer.stop();
+    }
+
+    public void shouldBreakDownByRouteAndStatusClass() throws Exception {
+        client.execute(new HttpGet(url(port, 200))).get(1, TimeUnit.SECONDS);
+        client.execute(new HttpGet(url(port, 404))).get(1, TimeUnit.SECONDS);
+        client.execute(new HttpGet(url(port, 503))).get(1, TimeUnit.SECONDS);
+        try {
+            client.execute(new HttpGet(url(closedPort, 200))).get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            // expected, connection refused
+        }
+
+        ConnectionMetrics metrics = client.metrics();
+        RouteMetrics route = metrics.route(URI.create(url(port, 200)));
+        assertThat(route.name(), is("http://localhost:" + port));
+        assertThat(route.requestLatencies().count(), is(3l));
+        assertThat(route.count(StatusClass.SUCCESS), is(1l));
+        assertThat(route.count(StatusClass.CLIENT_ERROR), is(1l));
+        assertThat(route.count(StatusClass.SERVER_ERROR), is(1l));
+        assertThat(route.count(StatusClass.EXCEPTION), is(0l));
+        assertThat(route.activeConnections(), is(0l));
+        assertThat(route.scheduledConnections(), is(0l));
+
+        RouteMetrics closedRoute = metrics.route(URI.create(url(closedPort, 200)));
+        assertThat(closedRoute.count(StatusClass.EXCEPTION), is(1l));
+
+        assertThat(metrics.statusClassLatencies(StatusClass.SUCCESS).count(), is(1l));
+        assertThat(metrics.statusClassLatencies(StatusClass.EXCEPTION).count(), is(1l));
+        assertThat(metrics.metricsAsJson().contains("\"http://localhost:" + port + "\""), is(true));
+    }
+
+    public void shouldNotCountCancelledRequestsAsScheduled() throws Exception {
+        HttpClientFutureTask<String> slow = client.execute(new HttpGet(url(port, 200) + "&sleep=200"));
+        RouteMetrics route = client.metrics().route(URI.create(url(port, 200)));
+        long deadline = System.currentTimeMillis() + 1000;
+        while (route.activeConnections() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        HttpClientFutureTask<String> queued = client.execute(new HttpGet(url(port, 200)));
+        assertThat(route.scheduledConnections(), is(1l));
+        queued.cancel(true);
+        slow.get(1, TimeUnit.SECONDS);
+        assertThat(route.scheduledConnections(), is(0l));
+        assertThat(client.metrics().scheduledConnections(), is(0l));
+    }
+
+    public void shouldReportPoolOccupancy() throws Exception {
+        ConnectionMetrics metrics = client.metrics();
+        RouteMetrics route = metrics.route(URI.create(url(port, 200)));
+        long leases = metrics.poolLeaseLatencies().count();
+        HttpClientFutureTask<String> slow = client.execute(new HttpGet(url(port, 200) + "&sleep=200"));
+        long deadline = System.currentTimeMillis() + 1000;
+        while (metrics.poolStats().getLeased() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(metrics.poolStats().getLeased(), is(1));
+        assertThat(metrics.poolStats(route).getLeased(), is(1));
+        assertThat(metrics.poolStats(route).getMax(), is(1));
+        slow.get(1, TimeUnit.SECONDS);
+
+        assertThat(metrics.poolStats(route).getLeased(), is(0));
+        assertThat(metrics.poolStats(route).getAvailable(), is(1));
+        assertThat(metrics.poolLeaseLatencies().count(), is(leases + 1));
+        assertThat(metrics.metricsAsJson().contains("\"poolLeaseLatency\""), is(true));
+    }
+
+    public void shouldCountRoutesBeyondMaximumAsOther() {
+        ConnectionMetrics metrics = new ConnectionMetrics(new CounterRegistry(), 2);
+        RouteMetrics first = metrics.route(URI.create("http://a.example.com/"));
+        RouteMetrics second = metrics.route(URI.create("https://a.example.com/"));
+        RouteMetrics third = metrics.route(URI.create("http://b.example.com/"));
+
+        assertThat(first, not(sameInstance(second)));
+        assertThat(metrics.route(URI.create("http://a.example.com:80/foo")), sameInstance(first));
+        assertThat(second.name(), is("https://a.example.com:443"));
+        assertThat(third, sameInstance(metrics.otherRoute()));
+        assertThat(metrics.routes().size(), is(3));
+    }
+
+    private String url(int port, int status) {
+        return UrlBuilder.url("localhost", port).append("ping").queryParam("status", status).build();
+    }
+}
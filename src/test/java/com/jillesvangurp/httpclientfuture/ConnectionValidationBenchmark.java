@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures what the stale connection check costs per request: checking every connection when it is leased (the
+ * behaviour without idle connection monitoring before connections were validated after inactivity) against checking
+ * only connections that were idle for a while. Requests go one after the other over a kept alive connection, so the
+ * difference is the blocking read of the check, e.g. mvn -Pbenchmark test-compile exec:exec
+ * -Dbenchmark="ConnectionValidationBenchmark".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ConnectionValidationBenchmark {
+    private static final int PORT = 6688;
+
+    /**
+     * Milliseconds a connection may be idle before it is checked; 0 checks on every lease.
+     */
+    @Param({ "0", "2000" })
+    public int validateAfterInactivity;
+
+    private LocalWebServer webServer;
+    private ExecutorService executorService;
+    private HttpClientWithFuture<Integer> client;
+    private String url;
+
+    @Setup
+    public void setup() {
+        webServer = new LocalWebServer(PORT, 4).start();
+        executorService = Executors.newFixedThreadPool(1);
+        client = HttpClientBuilder.client().validateAfterInactivity(validateAfterInactivity, TimeUnit.MILLISECONDS)
+                .buildClientWithFuture(executorService, new ResponseHandler<Integer>() {
+                    @Override
+                    public Integer handleResponse(HttpResponse response) throws IOException {
+                        EntityUtils.consume(response.getEntity());
+                        return response.getStatusLine().getStatusCode();
+                    }
+                });
+        url = "http://localhost:" + PORT + "/ping";
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        executorService.shutdownNow();
+        webServer.stop();
+    }
+
+    @Benchmark
+    public int sequentialRequest() throws Exception {
+        return client.execute(new HttpGet(url)).get(10, TimeUnit.SECONDS);
+    }
+}
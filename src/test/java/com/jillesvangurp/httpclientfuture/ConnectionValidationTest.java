@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class ConnectionValidationTest {
+    private ServerSocket serverSocket;
+
+    @BeforeMethod
+    public void beforeMethod() throws IOException {
+        serverSocket = new ServerSocket(0);
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        serverSocket.close();
+    }
+
+    public void shouldSkipCheckForRecentlyUsedConnection() throws Exception {
+        ValidatingClientConnection connection = connectAndCloseServerSide(TimeUnit.HOURS.toMillis(1));
+        try {
+            assertThat("a connection that was used a moment ago is not checked", connection.isStale(), is(false));
+        } finally {
+            connection.close();
+        }
+    }
+
+    public void shouldCheckConnectionIdleLongerThanThreshold() throws Exception {
+        ValidatingClientConnection connection = connectAndCloseServerSide(0);
+        try {
+            assertThat(connection.isStale(), is(true));
+        } finally {
+            connection.close();
+        }
+    }
+
+    public void shouldValidateAfterInactivityWithoutIdleConnectionMonitor() {
+        HttpClient httpClient = HttpClientBuilder.client().get();
+        try {
+            HttpParams params = httpClient.getParams();
+            assertThat(params.getBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, false), is(true));
+            assertThat(params.getLongParameter(ValidatingClientConnection.VALIDATE_AFTER_INACTIVITY, -1),
+                    is((long) HttpClientBuilder.DEFAULT_VALIDATE_AFTER_INACTIVITY_MILLIS));
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+    }
+
+    public void shouldNotValidateWithIdleConnectionMonitorUnlessConfigured() {
+        ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
+        HttpClient monitored = HttpClientBuilder.client().scheduleIdleConnectionMonitoring(scheduledExecutorService, 1, 5, TimeUnit.SECONDS).get();
+        HttpClient validated = HttpClientBuilder.client().scheduleIdleConnectionMonitoring(scheduledExecutorService, 1, 5, TimeUnit.SECONDS)
+                .validateAfterInactivity(500, TimeUnit.MILLISECONDS).get();
+        try {
+            assertThat(monitored.getParams().getBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, true), is(false));
+            assertThat(validated.getParams().getBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK, false), is(true));
+            assertThat(validated.getParams().getLongParameter(ValidatingClientConnection.VALIDATE_AFTER_INACTIVITY, -1), is(500l));
+        } finally {
+            monitored.getConnectionManager().shutdown();
+            validated.getConnectionManager().shutdown();
+            scheduledExecutorService.shutdownNow();
+        }
+    }
+
+    public void shouldKeepAliveShorterThanServerTimeout() {
+        KeepAliveStrategy strategy = new KeepAliveStrategy();
+        assertThat(strategy.getKeepAliveDuration(response("timeout=5"), new BasicHttpContext()), is(4500l));
+        assertThat(strategy.getKeepAliveDuration(response("timeout=60"), new BasicHttpContext()), is(59000l));
+        assertThat(strategy.getKeepAliveDuration(response(null), new BasicHttpContext()), is(-1l));
+    }
+
+    private static HttpResponse response(String keepAlive) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        if (keepAlive != null) {
+            response.setHeader("Keep-Alive", keepAlive);
+        }
+        return response;
+    }
+
+    private ValidatingClientConnection connectAndCloseServerSide(long validateAfterInactivity) throws Exception {
+        Socket socket = new Socket("localhost", serverSocket.getLocalPort());
+        Socket accepted = serverSocket.accept();
+        HttpParams params = new BasicHttpParams();
+        params.setLongParameter(ValidatingClientConnection.VALIDATE_AFTER_INACTIVITY, validateAfterInactivity);
+        ValidatingClientConnection connection = new ValidatingClientConnection();
+        connection.opening(socket, new HttpHost("localhost", serverSocket.getLocalPort()));
+        connection.openCompleted(false, params);
+        accepted.close();
+        // give the FIN time to arrive
+        Thread.sleep(50);
+        return connection;
+    }
+}
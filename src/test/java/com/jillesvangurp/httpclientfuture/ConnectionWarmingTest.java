@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.util.EntityUtils;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+@Test
+public class ConnectionWarmingTest {
+    private final int port = 6687;
+    private final HttpHost host = new HttpHost("localhost", port);
+    private final HttpRoute route = ConnectionWarmer.route(host);
+    private LocalWebServer webServer;
+
+    @BeforeClass
+    public void beforeClass() {
+        webServer = new LocalWebServer(port, 20).start();
+    }
+
+    @AfterClass
+    public void afterClass() {
+        webServer.stop();
+    }
+
+    public void shouldOpenConnectionsBeforeReturningClient() throws Exception {
+        HttpClientBuilder builder = HttpClientBuilder.client().warmConnections(3, false, host);
+        HttpClient httpClient = builder.get();
+        try {
+            assertThat(builder.warmedUp().isDone(), is(true));
+            assertThat(builder.warmedUp().get(), is(3));
+            assertThat(builder.connectionPool().getStats(route).getAvailable(), is(3));
+
+            EntityUtils.consume(httpClient.execute(host, new HttpGet("/ping")).getEntity());
+            assertThat("the request should reuse a warm connection", builder.connectionPool().getStats(route).getAvailable(), is(3));
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+    }
+
+    public void shouldOpenConnectionsInBackgroundWithNioEngine() throws Exception {
+        HttpClientBuilder builder = HttpClientBuilder.client().engine(HttpClientBuilder.Engine.NIO).ioThreads(1).warmConnections(3, true, host);
+        HttpAsyncClient httpClient = builder.getAsync();
+        try {
+            assertThat(builder.warmedUp().get(5, TimeUnit.SECONDS), is(3));
+            assertThat(builder.connectionPool().getStats(route).getAvailable(), is(3));
+        } finally {
+            httpClient.shutdown();
+        }
+    }
+
+    public void shouldNotOpenMoreThanMaximumPerRoute() throws Exception {
+        HttpClientBuilder builder = HttpClientBuilder.client().connections(10, 2).warmConnections(5, false, host);
+        HttpClient httpClient = builder.get();
+        try {
+            assertThat(builder.warmedUp().get(), is(2));
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+    }
+
+    public void shouldLeaveRoutesWithIdleConnectionsAlone() throws Exception {
+        InstrumentedConnectionManager connectionManager = new InstrumentedConnectionManager();
+        DefaultHttpClient httpClient = new DefaultHttpClient(connectionManager);
+        try {
+            EntityUtils.consume(httpClient.execute(host, new HttpGet("/ping")).getEntity());
+            assertThat(connectionManager.getStats(route).getAvailable(), is(1));
+
+            ConnectionWarmer warmer = ConnectionWarmer.blocking(Collections.singletonList(route), 3, connectionManager, httpClient.getParams(), 1000);
+            assertThat("leasing the idle connection would reset its keep alive time", warmer.warm(Runnable::run).get(), is(1));
+        } finally {
+            connectionManager.shutdown();
+        }
+    }
+
+    public void shouldTopUpConnectionsFromIdleConnectionMonitor() throws Exception {
+        ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
+        HttpClientBuilder builder = HttpClientBuilder.client().warmConnections(3, false, host)
+                .scheduleIdleConnectionMonitoring(scheduledExecutorService, 50, 3600000, TimeUnit.MILLISECONDS);
+        HttpClient httpClient = builder.get();
+        try {
+            httpClient.getConnectionManager().closeIdleConnections(0, TimeUnit.MILLISECONDS);
+            assertThat(builder.connectionPool().getStats(route).getAvailable(), is(0));
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (builder.connectionPool().getStats(route).getAvailable() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(builder.connectionPool().getStats(route).getAvailable(), is(3));
+        } finally {
+            scheduledExecutorService.shutdownNow();
+            httpClient.getConnectionManager().shutdown();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.jillesvangurp.urlbuilder.UrlBuilder;
+
+@Test
+public class DownloadTest {
+    private static final int SIZE = 1024 * 1024 + 17;
+
+    private final int port = 6686;
+    private LocalWebServer webServer;
+    private ExecutorService executorService;
+    private HttpClientWithFuture<Void> blockingClient;
+    private HttpClientWithFuture<Void> nioClient;
+    private Path file;
+
+    @BeforeClass
+    public void beforeClass() {
+        webServer = new LocalWebServer(port, 10).addServlet(RangeServlet.class, "/file").start();
+        executorService = Executors.newFixedThreadPool(10);
+        ResponseHandler<Void> handler = new ResponseHandler<Void>() {
+            @Override
+            public Void handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+                throw new IllegalStateException("downloads should not use the response handler");
+            }
+        };
+        blockingClient = HttpClientBuilder.client().disableCompression().buildClientWithFuture(executorService, handler);
+        nioClient = HttpClientBuilder.client().engine(HttpClientBuilder.Engine.NIO).ioThreads(2).buildClientWithFuture(handler);
+    }
+
+    @AfterClass
+    public void afterClass() throws IOException {
+        blockingClient.close();
+        nioClient.close();
+        executorService.shutdownNow();
+        webServer.stop();
+    }
+
+    @BeforeMethod
+    public void beforeMethod() throws IOException {
+        file = Files.createTempFile("download", ".bin");
+        Files.delete(file);
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    public void shouldDownloadToChannelWithBlockingEngine() throws Exception {
+        shouldDownloadToChannel(blockingClient);
+    }
+
+    public void shouldDownloadToChannelWithNioEngine() throws Exception {
+        shouldDownloadToChannel(nioClient);
+    }
+
+    public void shouldDownloadToMappedRegion() throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+            Download download = nioClient.download(new HttpGet(url(true)), region);
+            assertThat(download.get(5, TimeUnit.SECONDS), is((long) SIZE));
+        }
+        assertContent();
+    }
+
+    public void shouldFailWhenBodyDoesNotFitInRegion() throws Exception {
+        Download download = nioClient.download(new HttpGet(url(true)), ByteBuffer.allocateDirect(SIZE / 2));
+        assertThat(completedExceptionally(download), is(true));
+    }
+
+    public void shouldResumeDownloadWithBlockingEngine() throws Exception {
+        shouldResumeDownload(blockingClient);
+    }
+
+    public void shouldResumeDownloadWithNioEngine() throws Exception {
+        shouldResumeDownload(nioClient);
+    }
+
+    public void shouldNotDownloadAgainWhenFileIsComplete() throws Exception {
+        Files.write(file, RangeServlet.content(0, SIZE));
+        Download download = blockingClient.download(new HttpGet(url(true)), file);
+        assertThat(download.get(5, TimeUnit.SECONDS), is(0l));
+        assertContent();
+    }
+
+    public void shouldStartOverWhenServerIgnoresRange() throws Exception {
+        Files.write(file, new byte[] { 42, 42, 42 });
+        Download download = nioClient.download(new HttpGet(url(false)), file);
+        assertThat(download.get(5, TimeUnit.SECONDS), is((long) SIZE));
+        assertContent();
+    }
+
+    public void shouldDownloadInParallelWithBlockingEngine() throws Exception {
+        shouldDownloadInParallel(blockingClient);
+    }
+
+    public void shouldDownloadInParallelWithNioEngine() throws Exception {
+        shouldDownloadInParallel(nioClient);
+    }
+
+    public void shouldDownloadWithOneRequestWhenRangesAreNotAccepted() throws Exception {
+        Download download = nioClient.downloadInParallel(new HttpGet(url(false)), file, 4);
+        assertThat(download.get(5, TimeUnit.SECONDS), is((long) SIZE));
+        // the HEAD request and the download
+        assertThat(download.requests(), is(2));
+        assertContent();
+    }
+
+    private void shouldDownloadToChannel(HttpClientWithFuture<Void> client) throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            Download download = client.download(new HttpGet(url(true)), channel, 0);
+            assertThat(download.get(5, TimeUnit.SECONDS), is((long) SIZE));
+        }
+        assertContent();
+        assertThat(client.metrics().activeConnections(), is(0l));
+    }
+
+    private void shouldResumeDownload(HttpClientWithFuture<Void> client) throws Exception {
+        int existing = SIZE / 3;
+        Files.write(file, RangeServlet.content(0, existing));
+        Download download = client.download(new HttpGet(url(true)), file);
+        assertThat(download.get(5, TimeUnit.SECONDS), is((long) (SIZE - existing)));
+        assertContent();
+    }
+
+    private void shouldDownloadInParallel(HttpClientWithFuture<Void> client) throws Exception {
+        Download download = client.downloadInParallel(new HttpGet(url(true)), file, 4);
+        assertThat(download.get(5, TimeUnit.SECONDS), is((long) SIZE));
+        // the HEAD request and the parts
+        assertThat(download.requests(), is(5));
+        assertContent();
+    }
+
+    private void assertContent() throws IOException {
+        assertThat(Arrays.equals(Files.readAllBytes(file), RangeServlet.content(0, SIZE)), is(true));
+    }
+
+    private boolean completedExceptionally(Download download) throws InterruptedException {
+        try {
+            download.get(5, TimeUnit.SECONDS);
+            return false;
+        } catch (Exception e) {
+            return download.isCompletedExceptionally();
+        }
+    }
+
+    private String url(boolean ranges) {
+        return UrlBuilder.url("localhost", port).append("file").queryParam("size", SIZE).queryParam("ranges", String.valueOf(ranges)).build();
+    }
+
+    /**
+     * Serves a resource of the number of bytes in the size parameter and, unless the ranges parameter is false, the
+     * byte range in the Range header.
+     */
+    public static class RangeServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+
+        static byte[] content(int start, int end) {
+            byte[] content = new byte[end - start];
+            for (int i = 0; i < content.length; i++) {
+                content[i] = (byte) ((start + i) % 251);
+            }
+            return content;
+        }
+
+        @Override
+        protected void doHead(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            int size = Integer.valueOf(req.getParameter("size"));
+            if (Boolean.valueOf(req.getParameter("ranges"))) {
+                resp.setHeader("Accept-Ranges", "bytes");
+            }
+            resp.setContentLength(size);
+        }
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            int size = Integer.valueOf(req.getParameter("size"));
+            int start = 0;
+            int end = size;
+            String range = req.getHeader("Range");
+            if (range != null && Boolean.valueOf(req.getParameter("ranges"))) {
+                String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                start = Integer.valueOf(bounds[0]);
+                end = bounds[1].isEmpty() ? size : Integer.valueOf(bounds[1]) + 1;
+                if (start >= size) {
+                    resp.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    resp.setHeader("Content-Range", "bytes */" + size);
+                    return;
+                }
+                resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                resp.setHeader("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + size);
+            }
+            resp.setContentLength(end - start);
+            OutputStream out = resp.getOutputStream();
+            out.write(content(start, end));
+            out.flush();
+        }
+    }
+}
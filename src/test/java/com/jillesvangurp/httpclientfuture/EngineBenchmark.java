@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jillesvangurp.urlbuilder.UrlBuilder;
+
+/**
+ * Compares the blocking and the nio engine by firing batches of concurrent requests at a local Jetty server that
+ * responds after a short sleep. The blocking engine gets a thread per connection; the nio engine gets two I/O threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EngineBenchmark {
+    private static final int PORT = 6670;
+
+    @Param({ "BLOCKING", "NIO" })
+    public HttpClientBuilder.Engine engine;
+
+    @Param({ "200" })
+    public int concurrentRequests;
+
+    @Param({ "5" })
+    public int serverSleep;
+
+    private LocalWebServer webServer;
+    private ExecutorService executorService;
+    private HttpClientWithFuture<Integer> client;
+    private String url;
+
+    @Setup
+    public void setup() {
+        webServer = new LocalWebServer(PORT, concurrentRequests).start();
+        executorService = Executors.newFixedThreadPool(concurrentRequests);
+        client = HttpClientBuilder.client().engine(engine).ioThreads(2).connections(concurrentRequests, concurrentRequests)
+                .buildClientWithFuture(executorService, new ResponseHandler<Integer>() {
+                    @Override
+                    public Integer handleResponse(HttpResponse response) throws IOException {
+                        EntityUtils.consume(response.getEntity());
+                        return response.getStatusLine().getStatusCode();
+                    }
+                });
+        url = UrlBuilder.url("localhost", PORT).append("ping").queryParam("sleep", serverSleep).build();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        executorService.shutdownNow();
+        webServer.stop();
+    }
+
+    /**
+     * @return the number of requests that completed, one operation is a batch of concurrent requests
+     */
+    @Benchmark
+    public int concurrentBatch() throws Exception {
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Integer>[] futures = new CompletableFuture[concurrentRequests];
+        for (int i = 0; i < concurrentRequests; i++) {
+            futures[i] = client.executeAsync(new HttpGet(url));
+        }
+        CompletableFuture.allOf(futures).get(30, TimeUnit.SECONDS);
+        return futures.length;
+    }
+}
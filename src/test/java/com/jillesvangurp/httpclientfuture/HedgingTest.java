@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.util.EntityUtils;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.jillesvangurp.metrics.CounterRegistry;
+import com.jillesvangurp.urlbuilder.UrlBuilder;
+
+@Test
+public class HedgingTest {
+    private final int port = 6675;
+    private LocalWebServer webServer;
+    private ExecutorService executorService;
+    private ScheduledExecutorService scheduler;
+    private HttpClientWithFuture<String> client;
+
+    @BeforeClass
+    public void beforeClass() {
+        webServer = new LocalWebServer(port, 10).addServlet(SlowFirstServlet.class, "/slowfirst").start();
+        executorService = Executors.newFixedThreadPool(4);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterClass
+    public void afterClass() {
+        scheduler.shutdownNow();
+        executorService.shutdownNow();
+        webServer.stop();
+    }
+
+    @BeforeMethod
+    public void beforeMethod() throws Exception {
+        client = HttpClientBuilder.client().connections(4, 4).buildClientWithFuture(executorService, new ResponseHandler<String>() {
+            @Override
+            public String handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+                return EntityUtils.toString(response.getEntity());
+            }
+        }).scheduler(scheduler);
+        // latencies for the route so that the policy knows what is slow
+        for (int i = 0; i < 10; i++) {
+            client.execute(new HttpGet(url(null))).get(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        client.close();
+    }
+
+    public void shouldUseTheFirstResponse() throws Exception {
+        client.hedging(HedgingPolicy.hedging().minSamples(10).budget(1, 10).minDelay(20, TimeUnit.MILLISECONDS));
+        long start = System.nanoTime();
+        String result = client.execute(new HttpGet(url("first"))).get(2, TimeUnit.SECONDS);
+        assertThat(result, is("fast"));
+        assertThat(System.nanoTime() - start, lessThan(TimeUnit.MILLISECONDS.toNanos(500)));
+        assertThat(client.metrics().hedgesSent(), is(1l));
+        assertThat(client.metrics().hedgesWon(), is(1l));
+    }
+
+    public void shouldNotHedgeBeyondBudget() throws Exception {
+        // the ten eligible requests earned half a hedge
+        client.hedging(HedgingPolicy.hedging().minSamples(10).budget(0.05, 10).minDelay(20, TimeUnit.MILLISECONDS));
+        for (int i = 0; i < 10; i++) {
+            client.execute(new HttpGet(url(null))).get(1, TimeUnit.SECONDS);
+        }
+        String result = client.execute(new HttpGet(url("budget"))).get(2, TimeUnit.SECONDS);
+        assertThat(result, is("slow"));
+        assertThat(client.metrics().hedgesSent(), is(0l));
+    }
+
+    public void shouldNotHedgeNonIdempotentRequests() throws Exception {
+        client.hedging(HedgingPolicy.hedging().minSamples(10).budget(1, 10).minDelay(20, TimeUnit.MILLISECONDS));
+        String result = client.execute(new HttpPost(url("post"))).get(2, TimeUnit.SECONDS);
+        assertThat(result, is("slow"));
+        assertThat(client.metrics().hedgesSent(), is(0l));
+    }
+
+    public void shouldKeepADelayPerRouteBeyondTheMetricsCap() {
+        HedgingPolicy policy = HedgingPolicy.hedging().minSamples(10).minDelay(0, TimeUnit.MILLISECONDS);
+        RouteMetrics other = new ConnectionMetrics(new CounterRegistry(), 0).route(URI.create("http://fast.example.com/"));
+        String fast = RouteMetrics.key(URI.create("http://fast.example.com/"));
+        String slow = RouteMetrics.key(URI.create("http://slow.example.com/"));
+        for (int i = 0; i < 10; i++) {
+            policy.latencies(fast, other).record(TimeUnit.MILLISECONDS.toNanos(1));
+            policy.latencies(slow, other).record(TimeUnit.MILLISECONDS.toNanos(100));
+        }
+        assertThat(policy.delayNanos(fast, other), lessThan(TimeUnit.MILLISECONDS.toNanos(2)));
+        assertThat("a route sharing the other metrics hedges on its own latencies", policy.delayNanos(slow, other),
+                greaterThan(TimeUnit.MILLISECONDS.toNanos(90)));
+    }
+
+    public void shouldForgetIdleRoutes() {
+        HedgingPolicy policy = HedgingPolicy.hedging();
+        policy.idleNanos = 0;
+        RouteMetrics other = new ConnectionMetrics(new CounterRegistry(), 0).route(URI.create("http://a.example.com/"));
+        for (int i = 0; i < 10000; i++) {
+            policy.delayNanos(RouteMetrics.key(URI.create("http://host" + i + ".example.com/")), other);
+        }
+        assertThat(policy.routes.size(), lessThanOrEqualTo(2048));
+    }
+
+    private String url(String slow) {
+        UrlBuilder url = UrlBuilder.url("localhost", port).append("slowfirst");
+        if (slow != null) {
+            url.queryParam("slow", slow);
+        }
+        return url.build();
+    }
+
+    /**
+     * Responds slowly to the first request for every value of the slow parameter.
+     */
+    public static class SlowFirstServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+        static final Set<String> seen = ConcurrentHashMap.newKeySet();
+
+        @Override
+        protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            String slow = req.getParameter("slow");
+            if (slow != null && seen.add(slow)) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                resp.getWriter().print("slow");
+            } else {
+                resp.getWriter().print("fast");
+            }
+        }
+    }
+}
@@ -8,6 +8,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.params.ClientPNames;
 import org.apache.http.impl.client.DecompressingHttpClient;
 import org.apache.http.params.CoreConnectionPNames;
 import org.testng.annotations.Test;
@@ -27,4 +28,13 @@ public class HttpClientBuilderTest {
             scheduledExecutorService.shutdownNow();
         }
     }
+
+    public void shouldWaitForLeasesWithVirtualThreads() {
+        HttpClient httpClient = HttpClientBuilder.client().engine(HttpClientBuilder.Engine.VIRTUAL_THREADS).get();
+        try {
+            assertThat(httpClient.getParams().getLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, -1), is(0l));
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+    }
 }
@@ -22,12 +22,16 @@
 package com.jillesvangurp.httpclientfuture;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -45,8 +49,10 @@ import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.protocol.BasicHttpContext;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.util.thread.ExecutorThreadPool;
@@ -67,10 +73,12 @@ public class HttpClientWithFutureTest {
     private final int threads = 5;
 
     @BeforeClass
-    public void beforeClass() {
+    public void beforeClass() throws InterruptedException {
         webServerExecutor = Executors.newSingleThreadExecutor();
         webServer = new WebServer();
         webServerExecutor.execute(webServer);
+        // tests that run first would get connection refused
+        webServer.awaitStarted();
         clientThreadPool = Executors.newFixedThreadPool(threads);
         PoolingClientConnectionManager conman = new PoolingClientConnectionManager();
         conman.setDefaultMaxPerRoute(threads);
@@ -100,6 +108,8 @@ public class HttpClientWithFutureTest {
     @BeforeMethod
     public void beforeMethod() {
         awaitActiveConnectionsFinished();
+        // requests aborted by earlier tests may still be running server side and would be counted by the next test
+        awaitServerRequestsFinished();
     }
 
     @Test
@@ -145,6 +155,85 @@ public class HttpClientWithFutureTest {
         assertThat(after, is(before+2));
     }
 
+    @Test
+    public void shouldReturnInCompletionOrder() throws Exception {
+        HttpGet slow = new HttpGet(UrlBuilder.url("localhost", port).append("ping").queryParam("sleep", "300").queryParam("req", "slow").build());
+        HttpGet fast = new HttpGet(UrlBuilder.url("localhost", port).append("ping").queryParam("sleep", "10").queryParam("req", "fast").build());
+        HttpGet medium = new HttpGet(UrlBuilder.url("localhost", port).append("ping").queryParam("sleep", "150").queryParam("req", "medium").build());
+        List<HttpUriRequest> order = new ArrayList<>();
+        try (CompletionIterator<Boolean> completions = client.executeInCompletionOrder(null, -1, null, slow, fast, medium)) {
+            while (completions.hasNext()) {
+                HttpClientFutureTask<Boolean> task = completions.next();
+                assertThat(task.isDone(), is(true));
+                assertThat(task.get(), is(true));
+                order.add(task.request());
+            }
+        }
+        assertThat(order, contains((HttpUriRequest) fast, medium, slow));
+    }
+
+    @Test
+    public void shouldCancelOutstandingRequestsAtTheDeadline() throws Exception {
+        long before = SimpleServlet.counter.get();
+        HttpGet fast = new HttpGet(UrlBuilder.url("localhost", port).append("ping").queryParam("sleep", "10").queryParam("req", "fastBeforeDeadline").build());
+        HttpGet slow = new HttpGet(UrlBuilder.url("localhost", port).append("ping").queryParam("sleep", "3000").queryParam("req", "slowAfterDeadline").build());
+        CompletionIterator<Boolean> completions = client.executeInCompletionOrder(null, 100, TimeUnit.MILLISECONDS, slow, fast);
+        HttpClientFutureTask<Boolean> first = completions.stream().findFirst().get();
+        assertThat(first.request(), is((HttpUriRequest) fast));
+        HttpClientFutureTask<Boolean> second = completions.next();
+        assertThat(second.request(), is((HttpUriRequest) slow));
+        assertThat(second.isCancelled(), is(true));
+        assertThat(completions.hasNext(), is(false));
+        assertThat(SimpleServlet.counter.get(), is(before + 1));
+    }
+
+    @Test
+    public void shouldCompleteAsync() throws Exception {
+        CompletableFuture<Boolean> future = client.executeAsync(new HttpGet(UrlBuilder.url("localhost", port).append("ping").queryParam("sleep", "1").queryParam("req", "shouldCompleteAsync").build()));
+        CompletableFuture<String> composed = future.thenApply(ok -> ok ? "ok" : "failed");
+
+        assertThat(composed.get(1, TimeUnit.SECONDS), is("ok"));
+    }
+
+    @Test
+    public void shouldAbortWhenCompletableFutureIsCancelled() throws Exception {
+        HttpClientFutureTask<Boolean> task = client.execute(new HttpGet(UrlBuilder.url("localhost", port).append("ping").queryParam("sleep", "300").queryParam("req", "shouldAbortWhenCompletableFutureIsCancelled").build()));
+        CompletableFuture<Boolean> future = task.toCompletableFuture();
+        Thread.sleep(20);
+        future.cancel(true);
+
+        assertThat(future.isCancelled(), is(true));
+        assertThat(task.isCancelled(), is(true));
+        assertThat(task.cancelled().get(), is(true));
+    }
+
+    @Test
+    public void shouldReportCancelOnceWithoutAbortingWhenNotInterrupting() throws Exception {
+        CountingCallback callback = new CountingCallback();
+        HttpGet request = new HttpGet(UrlBuilder.url("localhost", port).append("ping").queryParam("sleep", "300").queryParam("req", "shouldReportCancelOnce").build());
+        HttpClientFutureTask<Boolean> task = client.execute(request, new BasicHttpContext(), callback);
+        Thread.sleep(20);
+        task.cancel(false);
+        task.cancel(false);
+
+        assertThat(task.toCompletableFuture().isCancelled(), is(true));
+        assertThat(callback.cancels.get(), is(1l));
+        assertThat("cancel(false) should let the request run", request.isAborted(), is(false));
+    }
+
+    @Test
+    public void shouldReportCancelOnceWhenCompletableFutureIsCancelled() throws Exception {
+        CountingCallback callback = new CountingCallback();
+        HttpGet request = new HttpGet(UrlBuilder.url("localhost", port).append("ping").queryParam("sleep", "300").queryParam("req", "shouldReportCancelOnceFuture").build());
+        HttpClientFutureTask<Boolean> task = client.execute(request, new BasicHttpContext(), callback);
+        Thread.sleep(20);
+        task.toCompletableFuture().cancel(false);
+
+        assertThat(task.isCancelled(), is(true));
+        assertThat(callback.cancels.get(), is(1l));
+        assertThat(request.isAborted(), is(true));
+    }
+
     @Test
     public void shouldCompleteServerSideAfterCancel() throws Exception {
         // this is quite sensitive to timings, therefore we try several requests and then assert that some requests were allowed to complete.
@@ -174,12 +263,32 @@ public class HttpClientWithFutureTest {
         }
     }
 
+    private void awaitServerRequestsFinished() {
+        while(SimpleServlet.inFlight.get() > 0) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
     public static class SimpleServlet extends HttpServlet {
         private static final long serialVersionUID = 3705413796805824807L;
         public static final AtomicLong counter = new AtomicLong(0);
+        public static final AtomicLong inFlight = new AtomicLong(0);
 
         @Override
         protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            inFlight.incrementAndGet();
+            try {
+                handle(req, resp);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        private void handle(HttpServletRequest req, HttpServletResponse resp) throws IOException {
             String sleep = req.getParameter("sleep");
             if(sleep != null) {
                 Long time = Long.valueOf(sleep);
@@ -199,6 +308,7 @@ public class HttpClientWithFutureTest {
 
     private final class WebServer implements Runnable {
         private Server server;
+        private final CountDownLatch started = new CountDownLatch(1);
 
         @Override
 		public void run() {
@@ -210,11 +320,30 @@ public class HttpClientWithFutureTest {
                 server.start();
             } catch (Exception e) {
                 e.printStackTrace();
+            } finally {
+                started.countDown();
             }
         }
 
+        public void awaitStarted() throws InterruptedException {
+            started.await(5, TimeUnit.SECONDS);
+        }
+
         public void shutDown() throws Exception {
             server.stop();
         }
     }
+
+    private static class CountingCallback extends LoggingHttpClientTaskLifecycleCallback {
+        final AtomicLong cancels = new AtomicLong();
+
+        CountingCallback() {
+            super("counting");
+        }
+
+        @Override
+        public void cancelled() {
+            cancels.incrementAndGet();
+        }
+    }
 }
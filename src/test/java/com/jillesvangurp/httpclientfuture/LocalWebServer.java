@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+
+/**
+ * Jetty server for tests and benchmarks. By default it serves {@link PingServlet} on /ping.
+ */
+public class LocalWebServer {
+    private final Server server;
+    private final ServletContextHandler servletContextHandler;
+
+    public LocalWebServer(int port, int threads) {
+        server = new Server(port);
+        servletContextHandler = new ServletContextHandler(server, "/", true, false);
+        servletContextHandler.addServlet(PingServlet.class, "/ping");
+        server.setThreadPool(new ExecutorThreadPool(threads, threads, 100, TimeUnit.SECONDS));
+    }
+
+    public LocalWebServer addServlet(Class<? extends HttpServlet> servlet, String path) {
+        servletContextHandler.addServlet(servlet, path);
+        return this;
+    }
+
+    public LocalWebServer start() {
+        try {
+            server.start();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        return this;
+    }
+
+    public void stop() {
+        try {
+            server.stop();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Responds with the request url after sleeping for the number of milliseconds in the sleep parameter.
+     */
+    public static class PingServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+        public static final AtomicLong counter = new AtomicLong(0);
+
+        @Override
+        protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            String sleep = req.getParameter("sleep");
+            if(sleep != null) {
+                try {
+                    Thread.sleep(Long.valueOf(sleep));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            String status = req.getParameter("status");
+            resp.setStatus(status != null ? Integer.valueOf(status) : 200);
+            PrintWriter writer = resp.getWriter();
+            writer.print(req.getRequestURL().toString());
+            writer.flush();
+            counter.getAndIncrement();
+        }
+    }
+}
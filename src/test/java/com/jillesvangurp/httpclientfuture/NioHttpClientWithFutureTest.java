@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.jillesvangurp.urlbuilder.UrlBuilder;
+
+@Test
+public class NioHttpClientWithFutureTest {
+    private final int port = 6667;
+    private LocalWebServer webServer;
+    private HttpClientWithFuture<Integer> client;
+
+    @BeforeClass
+    public void beforeClass() {
+        webServer = new LocalWebServer(port, 50).start();
+        client = HttpClientBuilder.client().engine(HttpClientBuilder.Engine.NIO).ioThreads(2).connections(50, 50).buildClientWithFuture(null, new ResponseHandler<Integer>() {
+            @Override
+            public Integer handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+                return response.getStatusLine().getStatusCode();
+            }
+        });
+    }
+
+    @AfterClass
+    public void afterClass() throws IOException {
+        client.close();
+        webServer.stop();
+    }
+
+    public void shouldExecuteWithoutExecutorThreads() throws Exception {
+        HttpClientFutureTask<Integer> future = client.execute(new HttpGet(url(1)));
+
+        assertThat(future.get(1, TimeUnit.SECONDS), is(200));
+        assertThat(client.metrics().activeConnections(), is(0l));
+    }
+
+    public void shouldRunManyConcurrentRequestsOnFewIoThreads() throws Exception {
+        List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+        for(int i=0;i<200;i++) {
+            futures.add(client.executeAsync(new HttpGet(url(20))));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        for (CompletableFuture<Integer> future : futures) {
+            assertThat(future.get(), is(200));
+        }
+    }
+
+    @Test(expectedExceptions=TimeoutException.class)
+    public void shouldCancel() throws Exception {
+        HttpClientFutureTask<Integer> future = client.execute(new HttpGet(url(300)));
+        try {
+            future.get(50, TimeUnit.MILLISECONDS);
+        } finally {
+            future.cancel(true);
+            assertThat(future.isCancelled(), is(true));
+        }
+    }
+
+    private String url(int sleep) {
+        return UrlBuilder.url("localhost", port).append("ping").queryParam("sleep", sleep).build();
+    }
+}
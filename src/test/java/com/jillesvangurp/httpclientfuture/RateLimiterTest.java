@@ -0,0 +1,188 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.jillesvangurp.urlbuilder.UrlBuilder;
+
+@Test
+public class RateLimiterTest {
+    private final int port = 6682;
+    private LocalWebServer webServer;
+    private ExecutorService executorService;
+    private ScheduledExecutorService scheduler;
+    private final ResponseHandler<String> handler = new ResponseHandler<String>() {
+        @Override
+        public String handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+            return EntityUtils.toString(response.getEntity());
+        }
+    };
+
+    @BeforeClass
+    public void beforeClass() {
+        webServer = new LocalWebServer(port, 10).addServlet(OkServlet.class, "/ok").start();
+        // a single thread, so that a delayed request that blocked it would block every other request
+        executorService = Executors.newFixedThreadPool(1);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterClass
+    public void afterClass() {
+        scheduler.shutdownNow();
+        executorService.shutdownNow();
+        webServer.stop();
+    }
+
+    public void shouldRejectRequestsOverTheRate() throws Exception {
+        try (HttpClientWithFuture<String> client = HttpClientBuilder.client().rateLimiter(RateLimiter.rateLimiter().rate(1, 2), null)
+                .buildClientWithFuture(executorService, handler)) {
+            assertThat(client.execute(new HttpGet(url("localhost"))).get(1, TimeUnit.SECONDS), is("ok"));
+            assertThat(client.execute(new HttpGet(url("localhost"))).get(1, TimeUnit.SECONDS), is("ok"));
+            HttpClientFutureTask<String> rejected = client.execute(new HttpGet(url("localhost")));
+            assertThat(rejected.isDone(), is(true));
+            try {
+                rejected.get();
+                throw new AssertionError("should have been rejected");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause(), instanceOf(RejectedExecutionException.class));
+            }
+            assertThat(client.metrics().rateLimitedRequests(), is(1l));
+            assertThat(client.metrics().scheduledConnections(), is(0l));
+        }
+    }
+
+    public void shouldDelayRequestsWithoutBlockingAThread() throws Exception {
+        RateLimiter limiter = RateLimiter.rateLimiter().rate(URI.create(url("localhost")), 10, 1).maxDelay(1, TimeUnit.SECONDS);
+        try (HttpClientWithFuture<String> client = HttpClientBuilder.client().rateLimiter(limiter, scheduler).buildClientWithFuture(executorService,
+                handler)) {
+            long start = System.nanoTime();
+            List<HttpClientFutureTask<String>> tasks = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                tasks.add(client.execute(new HttpGet(url("localhost"))));
+            }
+            // another route has no rate of its own, so it is not held up by the throttled requests
+            assertThat(client.execute(new HttpGet(url("127.0.0.1"))).get(1, TimeUnit.SECONDS), is("ok"));
+            assertThat(tasks.get(4).isDone(), is(false));
+            for (HttpClientFutureTask<String> task : tasks) {
+                assertThat(task.get(2, TimeUnit.SECONDS), is("ok"));
+            }
+            assertThat(System.nanoTime() - start, greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(390)));
+            assertThat(client.metrics().throttledRequests(), is(4l));
+            // the fifth request waited for four intervals, counted from when the first one was sent
+            assertThat(tasks.get(4).timings().queueNanos(), greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(350)));
+            assertThat(client.metrics().throttleLatencies().max(), greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(350)));
+        }
+    }
+
+    public void shouldNotHandOutMoreTokensThanTheRateUnderContention() throws Exception {
+        final RateLimiter limiter = RateLimiter.rateLimiter().rate(1000, 100);
+        final String route = "http://localhost:" + port;
+        final AtomicLong granted = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(8);
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        long start = System.nanoTime();
+        for (int t = 0; t < 8; t++) {
+            threads.execute(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    if (limiter.acquire(route) == 0) {
+                        granted.incrementAndGet();
+                    }
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        threads.shutdown();
+        assertThat(granted.get(), greaterThan(99l));
+        assertThat((double) granted.get(), lessThanOrEqualTo(100 + 1000 * elapsedSeconds + 1));
+        assertThat(elapsedSeconds, lessThan(5.0));
+    }
+
+    public void shouldKeepABucketPerRoute() {
+        RateLimiter limiter = RateLimiter.rateLimiter().rate(1, 1).rate(URI.create("http://api.example.com"), 1000, 5);
+        assertThat(limiter.acquire("http://a.example.com:80"), is(0l));
+        assertThat("another route has a bucket of its own", limiter.acquire("http://b.example.com:80"), is(0l));
+        assertThat(limiter.acquire("http://a.example.com:80"), is(-1l));
+        for (int i = 0; i < 5; i++) {
+            assertThat("the route uses its own rate", limiter.acquire(RouteMetrics.key(URI.create("http://API.example.com/path"))), is(0l));
+        }
+    }
+
+    public void shouldForgetFullBuckets() {
+        RateLimiter limiter = RateLimiter.rateLimiter().rate(1000000, 1).rate(URI.create("http://busy.example.com"), 1, 1);
+        String busy = RouteMetrics.key(URI.create("http://busy.example.com"));
+        assertThat(limiter.acquire(busy), is(0l));
+        for (int i = 0; i < 10000; i++) {
+            limiter.acquire(RouteMetrics.key(URI.create("http://host" + i + ".example.com")));
+        }
+        assertThat(limiter.buckets.size(), lessThanOrEqualTo(2048));
+        assertThat("a bucket that is not full is kept", limiter.acquire(busy), is(-1l));
+    }
+
+    private String url(String host) {
+        return UrlBuilder.url(host, port).append("ok").build();
+    }
+
+    public static class OkServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            resp.getWriter().write("ok");
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.jillesvangurp.urlbuilder.UrlBuilder;
+
+@Test
+public class RequestQueueTest {
+    private final int port = 6674;
+    private LocalWebServer webServer;
+    private ExecutorService executorService;
+    private HttpClientWithFuture<String> client;
+
+    @BeforeClass
+    public void beforeClass() {
+        webServer = new LocalWebServer(port, 5).start();
+        executorService = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterClass
+    public void afterClass() {
+        executorService.shutdownNow();
+        webServer.stop();
+    }
+
+    @BeforeMethod
+    public void beforeMethod() {
+        client = HttpClientBuilder.client().connections(5, 5).buildClientWithFuture(executorService, new ResponseHandler<String>() {
+            @Override
+            public String handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+                return EntityUtils.toString(response.getEntity());
+            }
+        });
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        client.close();
+    }
+
+    public void shouldRejectNewRequestsWhenFull() throws Exception {
+        client.requestQueue(RequestQueue.bounded(2, 1));
+        HttpClientFutureTask<String> slow = client.execute(new HttpGet(url(100)));
+        HttpClientFutureTask<String> first = client.execute(new HttpGet(url(0)));
+        HttpClientFutureTask<String> second = client.execute(new HttpGet(url(0)));
+        HttpClientFutureTask<String> shed = client.execute(new HttpGet(url(0)));
+        assertThat(client.metrics().queuedRequests(), is(2));
+
+        assertFailsWith(shed, RejectedExecutionException.class);
+        slow.get(1, TimeUnit.SECONDS);
+        first.get(1, TimeUnit.SECONDS);
+        second.get(1, TimeUnit.SECONDS);
+        assertThat(client.metrics().shedRequests(), is(1l));
+        assertThat(client.metrics().scheduledConnections(), is(0l));
+    }
+
+    public void shouldDropOldestWhenFull() throws Exception {
+        client.requestQueue(RequestQueue.bounded(2, 1).rejectionPolicy(RequestQueue.RejectionPolicy.DROP_OLDEST));
+        HttpClientFutureTask<String> slow = client.execute(new HttpGet(url(100)));
+        HttpClientFutureTask<String> oldest = client.execute(new HttpGet(url(0)));
+        HttpClientFutureTask<String> second = client.execute(new HttpGet(url(0)));
+        HttpClientFutureTask<String> newest = client.execute(new HttpGet(url(0)));
+
+        assertFailsWith(oldest, RejectedExecutionException.class);
+        slow.get(1, TimeUnit.SECONDS);
+        second.get(1, TimeUnit.SECONDS);
+        newest.get(1, TimeUnit.SECONDS);
+        assertThat(client.metrics().shedRequests(), is(1l));
+    }
+
+    public void shouldDropExpiredRequestsBeforeSendingThem() throws Exception {
+        client.requestQueue(RequestQueue.bounded(10, 1));
+        HttpClientFutureTask<String> slow = client.execute(new HttpGet(url(100)));
+        long served = LocalWebServer.PingServlet.counter.get();
+        HttpClientFutureTask<String> expired = client.execute(new HttpGet(url(0)), RequestOptions.options().deadline(20, TimeUnit.MILLISECONDS));
+        HttpClientFutureTask<String> inTime = client.execute(new HttpGet(url(0)), RequestOptions.options().deadline(1, TimeUnit.SECONDS));
+
+        slow.get(1, TimeUnit.SECONDS);
+        assertFailsWith(expired, TimeoutException.class);
+        inTime.get(1, TimeUnit.SECONDS);
+        assertThat(LocalWebServer.PingServlet.counter.get(), is(served + 2));
+        assertThat(client.metrics().expiredRequests(), is(1l));
+        assertThat(client.metrics().requestLatencies().count(), is(2l));
+    }
+
+    public void shouldDropExpiredRequestsWaitingForTheExecutor() throws Exception {
+        HttpClientFutureTask<String> slow = client.execute(new HttpGet(url(100)));
+        HttpClientFutureTask<String> expired = client.execute(new HttpGet(url(0)), RequestOptions.options().deadline(20, TimeUnit.MILLISECONDS));
+
+        slow.get(1, TimeUnit.SECONDS);
+        assertFailsWith(expired, TimeoutException.class);
+        assertThat(client.metrics().expiredRequests(), is(1l));
+        assertThat(client.metrics().scheduledConnections(), is(0l));
+    }
+
+    public void shouldSendInteractiveRequestsBeforeBatchRequests() throws Exception {
+        client.requestQueue(RequestQueue.bounded(10, 1));
+        HttpClientFutureTask<String> slow = client.execute(new HttpGet(url(100)));
+        HttpClientFutureTask<String> firstBatch = client.execute(new HttpGet(url(50)), Priority.BATCH);
+        HttpClientFutureTask<String> secondBatch = client.execute(new HttpGet(url(50)), Priority.BATCH);
+        HttpClientFutureTask<String> interactive = client.execute(new HttpGet(url(0)), Priority.INTERACTIVE);
+        assertThat(client.metrics().queuedRequests(Priority.BATCH), is(2));
+        assertThat(client.metrics().queuedRequests(Priority.INTERACTIVE), is(1));
+
+        interactive.get(1, TimeUnit.SECONDS);
+        assertThat(firstBatch.isDone(), is(false));
+        slow.get(1, TimeUnit.SECONDS);
+        firstBatch.get(1, TimeUnit.SECONDS);
+        secondBatch.get(1, TimeUnit.SECONDS);
+        assertThat(client.metrics().queueLatencies(Priority.BATCH).count(), is(2l));
+        assertThat(client.metrics().queueLatencies(Priority.INTERACTIVE).count(), is(1l));
+    }
+
+    public void shouldSendAgedRequestsFirst() throws Exception {
+        client.requestQueue(RequestQueue.bounded(10, 1).aging(0, TimeUnit.MILLISECONDS));
+        HttpClientFutureTask<String> slow = client.execute(new HttpGet(url(100)));
+        HttpClientFutureTask<String> batch = client.execute(new HttpGet(url(50)), Priority.BATCH);
+        HttpClientFutureTask<String> interactive = client.execute(new HttpGet(url(0)), Priority.INTERACTIVE);
+
+        batch.get(1, TimeUnit.SECONDS);
+        assertThat(interactive.isDone(), is(false));
+        interactive.get(1, TimeUnit.SECONDS);
+        slow.get(1, TimeUnit.SECONDS);
+    }
+
+    public void shouldShedLowerPriorityRequestsWhenFull() throws Exception {
+        client.requestQueue(RequestQueue.bounded(1, 1));
+        HttpClientFutureTask<String> slow = client.execute(new HttpGet(url(100)));
+        HttpClientFutureTask<String> batch = client.execute(new HttpGet(url(0)), Priority.BATCH);
+        HttpClientFutureTask<String> interactive = client.execute(new HttpGet(url(0)), Priority.INTERACTIVE);
+
+        assertFailsWith(batch, RejectedExecutionException.class);
+        slow.get(1, TimeUnit.SECONDS);
+        interactive.get(1, TimeUnit.SECONDS);
+        assertThat(client.metrics().shedRequests(), is(1l));
+    }
+
+    private void assertFailsWith(Future<String> future, Class<? extends Exception> type) throws Exception {
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            throw new AssertionError("expected " + type.getSimpleName());
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(type));
+        }
+    }
+
+    private String url(int sleep) {
+        return UrlBuilder.url("localhost", port).append("ping").queryParam("sleep", sleep).build();
+    }
+}
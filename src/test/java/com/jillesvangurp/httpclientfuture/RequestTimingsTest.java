@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.jillesvangurp.urlbuilder.UrlBuilder;
+
+@Test
+public class RequestTimingsTest {
+    private final int port = 6669;
+    private LocalWebServer webServer;
+    private ExecutorService executorService;
+    private HttpClientWithFuture<String> client;
+
+    @BeforeClass
+    public void beforeClass() {
+        webServer = new LocalWebServer(port, 5).start();
+        executorService = Executors.newSingleThreadExecutor();
+        client = HttpClientBuilder.client().connections(1, 1).buildClientWithFuture(executorService, new ResponseHandler<String>() {
+            @Override
+            public String handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+                return EntityUtils.toString(response.getEntity());
+            }
+        });
+    }
+
+    @AfterClass
+    public void afterClass() throws IOException {
+        client.close();
+        executorService.shutdownNow();
+        webServer.stop();
+    }
+
+    public void shouldBreakDownRequestDuration() throws Exception {
+        HttpClientFutureTask<String> first = client.execute(new HttpGet(url(50)));
+        HttpClientFutureTask<String> second = client.execute(new HttpGet(url(0)));
+        first.get(1, TimeUnit.SECONDS);
+        second.get(1, TimeUnit.SECONDS);
+
+        RequestTimings timings = first.timings();
+        assertThat(timings.measured(RequestPhase.connect), is(true));
+        assertThat(timings.timeToFirstByteNanos(), greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50)));
+        assertThat(timings.requestNanos(), greaterThanOrEqualTo(timings.leaseNanos() + timings.connectNanos() + timings.timeToFirstByteNanos()));
+
+        // the single executor thread was busy with the first request, the connection is reused
+        RequestTimings secondTimings = second.timings();
+        assertThat(secondTimings.queueNanos(), greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50)));
+        assertThat(secondTimings.measured(RequestPhase.connect), is(false));
+        assertThat(secondTimings.measured(RequestPhase.bodyRead), is(true));
+
+        assertThat(client.metrics().phaseLatencies(RequestPhase.timeToFirstByte).count(), is(2l));
+        assertThat(client.metrics().phaseLatencies(RequestPhase.connect).count(), is(1l));
+        assertThat(client.metrics().phaseLatencies(RequestPhase.queueWait).max(), greaterThan(TimeUnit.MILLISECONDS.toNanos(50)));
+    }
+
+    private String url(int sleep) {
+        return UrlBuilder.url("localhost", port).append("ping").queryParam("sleep", sleep).build();
+    }
+}
@@ -0,0 +1,319 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.util.EntityUtils;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.jillesvangurp.urlbuilder.UrlBuilder;
+
+@Test
+public class ResponseCacheTest {
+    private final int port = 6677;
+    private LocalWebServer webServer;
+    private ExecutorService executorService;
+    private ResponseCache cache;
+    private HttpClientWithFuture<String> client;
+
+    @BeforeClass
+    public void beforeClass() {
+        webServer = new LocalWebServer(port, 10).addServlet(CacheServlet.class, "/cached").start();
+        executorService = Executors.newFixedThreadPool(5);
+    }
+
+    @AfterClass
+    public void afterClass() {
+        executorService.shutdownNow();
+        webServer.stop();
+    }
+
+    @BeforeMethod
+    public void beforeMethod() {
+        cache = ResponseCache.bounded(20000);
+        client = HttpClientBuilder.client().connections(5, 5).buildClientWithFuture(executorService, new ResponseHandler<String>() {
+            @Override
+            public String handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+                return response.getStatusLine().getStatusCode() + ":" + EntityUtils.toString(response.getEntity());
+            }
+        }).responseCache(cache);
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        client.close();
+    }
+
+    public void shouldServeFreshResponsesFromCache() throws Exception {
+        long served = CacheServlet.served.get();
+        String url = url("fresh", "max-age=60", null, 10);
+        assertThat(client.execute(new HttpGet(url)).get(1, TimeUnit.SECONDS), is("200:xxxxxxxxxx"));
+        HttpClientFutureTask<String> hit = client.execute(new HttpGet(url));
+        assertThat(hit.isDone(), is(true));
+        assertThat(hit.get(), is("200:xxxxxxxxxx"));
+        assertThat(CacheServlet.served.get(), is(served + 1));
+        assertThat(client.metrics().cacheHits(), is(1l));
+        assertThat(client.metrics().cacheMisses(), is(1l));
+
+        // a successful POST invalidates the response
+        client.execute(new HttpPost(url)).get(1, TimeUnit.SECONDS);
+        client.execute(new HttpGet(url)).get(1, TimeUnit.SECONDS);
+        assertThat(CacheServlet.served.get(), is(served + 3));
+    }
+
+    public void shouldRevalidateStaleResponses() throws Exception {
+        long served = CacheServlet.served.get();
+        long notModified = CacheServlet.notModified.get();
+        String url = url("stale", "max-age=0", "v1", 10);
+        client.execute(new HttpGet(url)).get(1, TimeUnit.SECONDS);
+        HttpGet request = new HttpGet(url);
+        assertThat(client.execute(request).get(1, TimeUnit.SECONDS), is("200:xxxxxxxxxx"));
+        assertThat(CacheServlet.notModified.get(), is(notModified + 1));
+        assertThat(CacheServlet.served.get(), is(served + 1));
+        assertThat(client.metrics().cacheRevalidations(), is(1l));
+
+        // executing the same request again should not leave the validators of the previous execution in place
+        assertThat(client.execute(request).get(1, TimeUnit.SECONDS), is("200:xxxxxxxxxx"));
+        assertThat(CacheServlet.notModified.get(), is(notModified + 2));
+    }
+
+    public void shouldNotStoreNoStoreResponses() throws Exception {
+        long served = CacheServlet.served.get();
+        String url = url("nostore", "no-store", null, 10);
+        client.execute(new HttpGet(url)).get(1, TimeUnit.SECONDS);
+        client.execute(new HttpGet(url)).get(1, TimeUnit.SECONDS);
+        assertThat(CacheServlet.served.get(), is(served + 2));
+        assertThat(cache.size(), is(0));
+    }
+
+    public void shouldKeepPopularResponsesDuringScan() throws Exception {
+        String popular = url("popular", "max-age=60", null, 1000);
+        for (int i = 0; i < 5; i++) {
+            client.execute(new HttpGet(popular)).get(1, TimeUnit.SECONDS);
+        }
+        for (int i = 0; i < 100; i++) {
+            client.execute(new HttpGet(url("scan" + i, "max-age=60", null, 1000))).get(1, TimeUnit.SECONDS);
+        }
+        assertThat(cache.bytes(), lessThanOrEqualTo(20000l));
+        long served = CacheServlet.served.get();
+        client.execute(new HttpGet(popular)).get(1, TimeUnit.SECONDS);
+        assertThat(CacheServlet.served.get(), is(served));
+    }
+
+    public void shouldNotBufferChunkedResponsesLargerThanTheCache() throws Exception {
+        String url = url("chunked", "max-age=60", null, 50000) + "&chunked=true";
+        assertThat(client.execute(new HttpGet(url)).get(1, TimeUnit.SECONDS).length(), is(50004));
+        long served = CacheServlet.served.get();
+        client.execute(new HttpGet(url)).get(1, TimeUnit.SECONDS);
+        assertThat(CacheServlet.served.get(), is(served + 1));
+        assertThat(cache.size(), is(0));
+    }
+
+    public void shouldCloseTheBodyOfSmallResponsesOfUnknownLength() throws Exception {
+        File directory = Files.createTempDirectory("cache").toFile();
+        try {
+            ResponseCache persistent = ResponseCache.bounded(20000).persistent(directory, 1000000).minDiskBytes(1000);
+            final AtomicBoolean closed = new AtomicBoolean();
+            InputStream body = new ByteArrayInputStream("small".getBytes("UTF-8")) {
+                @Override
+                public void close() {
+                    closed.set(true);
+                }
+            };
+            HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+            response.setHeader("Cache-Control", "max-age=60");
+            response.setEntity(new InputStreamEntity(body, -1));
+            response = persistent.handle(new HttpGet("http://localhost/small"), response, System.currentTimeMillis(), true);
+            assertThat(EntityUtils.toString(response.getEntity()), is("small"));
+            assertThat(closed.get(), is(true));
+            assertThat(persistent.size(), is(1));
+            persistent.close();
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    public void shouldServeLargeResponsesFromDiskAfterRestart() throws Exception {
+        File directory = Files.createTempDirectory("cache").toFile();
+        String url = url("large", "max-age=60", null, 5000);
+        try {
+            ResponseCache persistent = ResponseCache.bounded(20000).persistent(directory, 1000000).minDiskBytes(1000);
+            HttpClientWithFuture<String> diskClient = diskClient(persistent);
+            assertThat(diskClient.execute(new HttpGet(url)).get(1, TimeUnit.SECONDS), is("mapped:5000"));
+            assertThat(persistent.bytes(), is(0l));
+            diskClient.close();
+            persistent.close();
+
+            long served = CacheServlet.served.get();
+            persistent = ResponseCache.bounded(20000).persistent(directory, 1000000).minDiskBytes(1000);
+            diskClient = diskClient(persistent);
+            HttpClientFutureTask<String> hit = diskClient.execute(new HttpGet(url));
+            assertThat(hit.isDone(), is(true));
+            assertThat(hit.get(), is("mapped:5000"));
+            assertThat(CacheServlet.served.get(), is(served));
+            diskClient.close();
+            persistent.close();
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    public void shouldRevalidateLargeResponsesOnDiskWithoutCopyingThem() throws Exception {
+        File directory = Files.createTempDirectory("cache").toFile();
+        String url = url("largestale", "max-age=0", "v1", 50000);
+        try {
+            ResponseCache persistent = ResponseCache.bounded(20000).persistent(directory, 1000000).minDiskBytes(1000);
+            HttpClientWithFuture<String> diskClient = diskClient(persistent);
+            assertThat(diskClient.execute(new HttpGet(url)).get(1, TimeUnit.SECONDS), is("mapped:50000"));
+            long diskBytes = persistent.diskBytes();
+            long notModified = CacheServlet.notModified.get();
+            assertThat(diskClient.execute(new HttpGet(url)).get(1, TimeUnit.SECONDS), is("mapped:50000"));
+            assertThat(CacheServlet.notModified.get(), is(notModified + 1));
+            assertThat("only the headers are written again", persistent.diskBytes() - diskBytes, lessThanOrEqualTo(5000l));
+            diskClient.close();
+            persistent.close();
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    public void shouldNotWriteToDiskOnTheReactorThread() throws Exception {
+        File directory = Files.createTempDirectory("cache").toFile();
+        String url = url("async", "max-age=60", null, 5000);
+        HttpAsyncClient asyncClient = HttpClientBuilder.client().engine(HttpClientBuilder.Engine.NIO).ioThreads(1).getAsync();
+        try {
+            ResponseCache persistent = ResponseCache.bounded(20000).persistent(directory, 1000000).minDiskBytes(1000);
+            HttpClientWithFuture<String> nioClient = new HttpClientWithFuture<String>(asyncClient, new ResponseHandler<String>() {
+                @Override
+                public String handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+                    return response.getStatusLine().getStatusCode() + ":" + EntityUtils.toByteArray(response.getEntity()).length;
+                }
+            }).responseCache(persistent);
+            assertThat(nioClient.execute(new HttpGet(url)).get(1, TimeUnit.SECONDS), is("200:5000"));
+            assertThat(persistent.diskBytes(), is(0l));
+            assertThat(persistent.size(), is(1));
+            nioClient.close();
+            persistent.close();
+        } finally {
+            asyncClient.shutdown();
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private HttpClientWithFuture<String> diskClient(ResponseCache persistent) {
+        return HttpClientBuilder.client().connections(5, 5).buildClientWithFuture(executorService, new ResponseHandler<String>() {
+            @Override
+            public String handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+                HttpEntity entity = response.getEntity();
+                return (entity instanceof ByteBufferEntity ? "mapped:" : "heap:") + EntityUtils.toByteArray(entity).length;
+            }
+        }).responseCache(persistent);
+    }
+
+    private String url(String id, String cacheControl, String etag, int size) {
+        UrlBuilder builder = UrlBuilder.url("localhost", port).append("cached").queryParam("id", id).queryParam("cacheControl", cacheControl)
+                .queryParam("size", size);
+        if (etag != null) {
+            builder.queryParam("etag", etag);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Responds with size x's and the Cache-Control header and ETag in the parameters; chunked sends the body without a length.
+     */
+    public static class CacheServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+        static final AtomicLong served = new AtomicLong();
+        static final AtomicLong notModified = new AtomicLong();
+
+        @Override
+        protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            resp.setHeader("Cache-Control", req.getParameter("cacheControl"));
+            String etag = req.getParameter("etag");
+            if (etag != null) {
+                resp.setHeader("ETag", "\"" + etag + "\"");
+                if (("\"" + etag + "\"").equals(req.getHeader("If-None-Match"))) {
+                    notModified.incrementAndGet();
+                    resp.setStatus(304);
+                    return;
+                }
+            }
+            if (req.getParameter("chunked") != null) {
+                // committing the headers before the body leaves the length unknown
+                resp.flushBuffer();
+            }
+            StringBuilder body = new StringBuilder();
+            for (int i = 0; i < Integer.valueOf(req.getParameter("size")); i++) {
+                body.append('x');
+            }
+            resp.getWriter().print(body);
+            served.incrementAndGet();
+        }
+    }
+}
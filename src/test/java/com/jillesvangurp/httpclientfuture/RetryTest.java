@@ -0,0 +1,202 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.util.EntityUtils;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.jillesvangurp.urlbuilder.UrlBuilder;
+
+@Test
+public class RetryTest {
+    private final int port = 6678;
+    // nothing listens here
+    private final int closedPort = 6679;
+    private LocalWebServer webServer;
+    private ExecutorService executorService;
+    private ScheduledExecutorService scheduler;
+    private HttpClientWithFuture<String> client;
+
+    @BeforeClass
+    public void beforeClass() {
+        webServer = new LocalWebServer(port, 10).addServlet(FlakyServlet.class, "/flaky").start();
+        // a single thread, so that a retry that blocked it would block every other request
+        executorService = Executors.newFixedThreadPool(1);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterClass
+    public void afterClass() {
+        scheduler.shutdownNow();
+        executorService.shutdownNow();
+        webServer.stop();
+    }
+
+    @BeforeMethod
+    public void beforeMethod() {
+        client = HttpClientBuilder.client().connections(2, 2).buildClientWithFuture(executorService, new ResponseHandler<String>() {
+            @Override
+            public String handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+                return response.getStatusLine().getStatusCode() + ":" + EntityUtils.toString(response.getEntity());
+            }
+        }).scheduler(scheduler);
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        client.close();
+    }
+
+    public void shouldRetryWithoutBlockingAThread() throws Exception {
+        client.retrying(RetryPolicy.retrying().backoff(200, 400, TimeUnit.MILLISECONDS));
+        HttpClientFutureTask<String> flaky = client.execute(new HttpGet(url("recovers", 2)));
+        FlakyServlet.await("recovers", 1);
+        // the only thread is free while the flaky request waits for its retry
+        long start = System.nanoTime();
+        assertThat(client.execute(new HttpGet(url("healthy", 0))).get(1, TimeUnit.SECONDS), is("200:ok"));
+        assertThat(System.nanoTime() - start, lessThan(TimeUnit.MILLISECONDS.toNanos(100)));
+
+        assertThat(flaky.get(3, TimeUnit.SECONDS), is("200:ok"));
+        assertThat(FlakyServlet.attempts("recovers"), is(3));
+        assertThat(client.metrics().retries(), is(2l));
+    }
+
+    public void shouldHandTheLastResponseToTheHandler() throws Exception {
+        client.retrying(RetryPolicy.retrying().maxAttempts(3).backoff(10, 20, TimeUnit.MILLISECONDS));
+        assertThat(client.execute(new HttpGet(url("down", 100))).get(1, TimeUnit.SECONDS), is("503:unavailable"));
+        assertThat(FlakyServlet.attempts("down"), is(3));
+    }
+
+    public void shouldOnlyRetryIdempotentRequests() throws Exception {
+        client.retrying(RetryPolicy.retrying().backoff(10, 20, TimeUnit.MILLISECONDS));
+        assertThat(client.execute(new HttpPost(url("post", 1))).get(1, TimeUnit.SECONDS), is("503:unavailable"));
+        assertThat(FlakyServlet.attempts("post"), is(1));
+
+        assertThat(client.execute(new HttpPost(url("idempotentpost", 1)), RequestOptions.options().retryable(true)).get(1, TimeUnit.SECONDS), is("200:ok"));
+        assertThat(FlakyServlet.attempts("idempotentpost"), is(2));
+    }
+
+    public void shouldNotRetryBeyondBudget() throws Exception {
+        client.retrying(RetryPolicy.retrying().maxAttempts(5).backoff(10, 20, TimeUnit.MILLISECONDS).budget(0.1, 1));
+        assertThat(client.execute(new HttpGet(url("storm", 100))).get(1, TimeUnit.SECONDS), is("503:unavailable"));
+        assertThat(FlakyServlet.attempts("storm"), is(2));
+        assertThat(client.metrics().retries(), is(1l));
+        assertThat(client.metrics().retryBudgetExhausted(), is(1l));
+    }
+
+    public void shouldRetryConnectionFailures() throws Exception {
+        client.retrying(RetryPolicy.retrying().backoff(10, 20, TimeUnit.MILLISECONDS));
+        try {
+            client.execute(new HttpPost(UrlBuilder.url("localhost", closedPort).build())).get(1, TimeUnit.SECONDS);
+            throw new AssertionError("should have failed");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(ConnectException.class));
+        }
+        // a refused connection means the request was not sent, so even a POST is retried
+        assertThat(client.metrics().retries(), is(2l));
+    }
+
+    public void shouldNotRetryPoolTimeoutsByDefault() {
+        RetryPolicy policy = RetryPolicy.retrying();
+        assertThat(policy.retryable(new ConnectTimeoutException(), false), is(true));
+        // waiting for a pooled connection is not a connect timeout, a retry would only wait for the same pool
+        assertThat(policy.retryable(new ConnectionPoolTimeoutException(), true), is(false));
+        policy.retryOn(ConnectionPoolTimeoutException.class);
+        assertThat(policy.retryable(new ConnectionPoolTimeoutException(), true), is(true));
+        assertThat(policy.retryable(new ConnectionPoolTimeoutException(), false), is(false));
+    }
+
+    public void shouldNotRetryAfterCancel() throws Exception {
+        client.retrying(RetryPolicy.retrying().backoff(300, 300, TimeUnit.MILLISECONDS));
+        HttpClientFutureTask<String> task = client.execute(new HttpGet(url("cancelled", 100)));
+        FlakyServlet.await("cancelled", 1);
+        task.cancel(true);
+        Thread.sleep(500);
+        assertThat(FlakyServlet.attempts("cancelled"), is(1));
+    }
+
+    private String url(String id, int failures) {
+        return UrlBuilder.url("localhost", port).append("flaky").queryParam("id", id).queryParam("failures", failures).build();
+    }
+
+    /**
+     * Responds with 503 to the first failures requests for an id and with ok after that.
+     */
+    public static class FlakyServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+        private static final ConcurrentHashMap<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+
+        @Override
+        protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            int attempt = attempts.computeIfAbsent(req.getParameter("id"), id -> new AtomicInteger()).incrementAndGet();
+            if (attempt <= Integer.valueOf(req.getParameter("failures"))) {
+                resp.setStatus(503);
+                resp.getWriter().print("unavailable");
+            } else {
+                resp.getWriter().print("ok");
+            }
+        }
+
+        static int attempts(String id) {
+            AtomicInteger count = attempts.get(id);
+            return count == null ? 0 : count.get();
+        }
+
+        static void await(String id, int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 1000;
+            while (attempts(id) < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.jillesvangurp.urlbuilder.UrlBuilder;
+
+@Test
+public class ScatterGatherTest {
+    private final int port = 6681;
+    private LocalWebServer webServer;
+    private ExecutorService executorService;
+    private ScheduledExecutorService scheduler;
+    private HttpClientWithFuture<String> client;
+
+    @BeforeClass
+    public void beforeClass() {
+        webServer = new LocalWebServer(port, 10).addServlet(ShardServlet.class, "/shard").start();
+        executorService = Executors.newFixedThreadPool(4);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterClass
+    public void afterClass() {
+        scheduler.shutdownNow();
+        executorService.shutdownNow();
+        webServer.stop();
+    }
+
+    @BeforeMethod
+    public void beforeMethod() {
+        client = HttpClientBuilder.client().connections(4, 4).buildClientWithFuture(executorService, new ResponseHandler<String>() {
+            @Override
+            public String handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+                String body = EntityUtils.toString(response.getEntity());
+                if (response.getStatusLine().getStatusCode() >= 500) {
+                    throw new HttpResponseException(response.getStatusLine().getStatusCode(), body);
+                }
+                return body;
+            }
+        }).scheduler(scheduler);
+    }
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        client.close();
+    }
+
+    public void shouldSettleForTheFirstSuccessAndAbortTheRest() throws Exception {
+        long start = System.nanoTime();
+        GatherResult<String> result = client.gatherFirst(null, -1, null, shard("a", 2000, 200), shard("b", 20, 200), shard("c", 2000, 200)).get(1,
+                TimeUnit.SECONDS);
+        assertThat(System.nanoTime() - start, lessThan(TimeUnit.MILLISECONDS.toNanos(1000)));
+        assertThat(result.outcome(), is(GatherResult.Outcome.QUORUM));
+        assertThat(result.values(), contains("b"));
+        assertThat(result.status(0), is(GatherResult.Status.CANCELLED));
+        assertThat(result.status(1), is(GatherResult.Status.SUCCEEDED));
+        assertThat(result.value(1), is("b"));
+        assertThat(result.status(2), is(GatherResult.Status.CANCELLED));
+        awaitNoActiveConnections();
+    }
+
+    public void shouldFailFastWhenOneOfAllFails() throws Exception {
+        long start = System.nanoTime();
+        GatherResult<String> result = client.gatherAll(null, -1, null, shard("a", 10, 200), shard("b", 30, 500), shard("c", 2000, 200)).get(1,
+                TimeUnit.SECONDS);
+        assertThat(System.nanoTime() - start, lessThan(TimeUnit.MILLISECONDS.toNanos(1000)));
+        assertThat(result.outcome(), is(GatherResult.Outcome.FAILED));
+        assertThat(result.status(0), is(GatherResult.Status.SUCCEEDED));
+        assertThat(result.status(1), is(GatherResult.Status.FAILED));
+        assertThat(result.failure(1), instanceOf(HttpResponseException.class));
+        assertThat(result.status(2), is(GatherResult.Status.CANCELLED));
+        awaitNoActiveConnections();
+    }
+
+    public void shouldReachAQuorum() throws Exception {
+        GatherResult<String> result = client.gatherQuorum(2, null, -1, null, shard("a", 10, 500), shard("b", 30, 200), shard("c", 60, 200),
+                shard("d", 2000, 200)).get(1, TimeUnit.SECONDS);
+        assertThat(result.succeeded(), is(true));
+        assertThat(result.values(), contains("b", "c"));
+        assertThat(result.status(0), is(GatherResult.Status.FAILED));
+        assertThat(result.status(3), is(GatherResult.Status.CANCELLED));
+    }
+
+    public void shouldReturnPartialResultsAtTheDeadline() throws Exception {
+        long start = System.nanoTime();
+        GatherResult<String> result = client.gatherQuorum(2, null, 200, TimeUnit.MILLISECONDS, shard("a", 10, 200), shard("b", 2000, 200),
+                shard("c", 2000, 200)).get(1, TimeUnit.SECONDS);
+        assertThat(System.nanoTime() - start, lessThan(TimeUnit.MILLISECONDS.toNanos(1000)));
+        assertThat(result.outcome(), is(GatherResult.Outcome.DEADLINE));
+        assertThat(result.values(), contains("a"));
+        assertThat(result.status(1), is(GatherResult.Status.CANCELLED));
+        assertThat(result.status(2), is(GatherResult.Status.CANCELLED));
+        awaitNoActiveConnections();
+    }
+
+    public void shouldCancelOutstandingRequestsWithTheResult() throws Exception {
+        client.gatherAll(null, -1, null, shard("a", 2000, 200), shard("b", 2000, 200)).cancel(true);
+        awaitNoActiveConnections();
+    }
+
+    private void awaitNoActiveConnections() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+        while (client.metrics().activeConnections() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        // the aborted requests no longer hold a thread or connection
+        assertThat(client.metrics().activeConnections(), is(0l));
+    }
+
+    private HttpGet shard(String name, int sleep, int status) {
+        return new HttpGet(UrlBuilder.url("localhost", port).append("shard").queryParam("name", name).queryParam("sleep", "" + sleep)
+                .queryParam("status", "" + status).build());
+    }
+
+    public static class ShardServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            try {
+                Thread.sleep(Long.parseLong(req.getParameter("sleep")));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            resp.setStatus(Integer.parseInt(req.getParameter("status")));
+            resp.getWriter().write(req.getParameter("name"));
+        }
+    }
+}
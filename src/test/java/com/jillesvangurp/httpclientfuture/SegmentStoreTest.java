@@ -0,0 +1,210 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class SegmentStoreTest {
+    private File directory;
+
+    @BeforeMethod
+    public void beforeMethod() throws IOException {
+        directory = Files.createTempDirectory("segments").toFile();
+    }
+
+    @AfterMethod
+    public void afterMethod() {
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    public void shouldKeepRecordsAcrossRestarts() throws IOException {
+        SegmentStore store = SegmentStore.open(directory, 1000000, 100000);
+        store.append("a", metadata("a"), body("first"));
+        store.append("b", metadata("b"), body("second"));
+        store.append("a", metadata("a2"), body("third"));
+        store.remove("b");
+        store.close();
+
+        store = SegmentStore.open(directory, 1000000, 100000);
+        try {
+            assertThat(content(store.get("a").body()), is("third"));
+            assertThat(new String(store.get("a").metadata, StandardCharsets.UTF_8), is("a2"));
+            assertThat(store.get("b"), nullValue());
+            assertThat(store.size(), is(1));
+        } finally {
+            store.close();
+        }
+    }
+
+    public void shouldUpdateMetadataWithoutCopyingTheBody() throws IOException {
+        SegmentStore store = SegmentStore.open(directory, 1000000, 100000);
+        store.append("a", metadata("a"), ByteBuffer.wrap(new byte[50000]));
+        long bytes = store.bytes();
+        SegmentStore.Record updated = store.update("a", metadata("a2"), null);
+        assertThat(updated.body().remaining(), is(50000));
+        assertThat(store.bytes() - bytes, lessThanOrEqualTo(100l));
+        assertThat(store.update("b", metadata("b"), null), nullValue());
+        store.close();
+
+        store = SegmentStore.open(directory, 1000000, 100000);
+        try {
+            assertThat(new String(store.get("a").metadata, StandardCharsets.UTF_8), is("a2"));
+            assertThat(store.get("a").body().remaining(), is(50000));
+        } finally {
+            store.close();
+        }
+    }
+
+    public void shouldDropIncompleteRecordsAfterCrash() throws IOException {
+        SegmentStore store = SegmentStore.open(directory, 1000000, 100000);
+        store.append("a", metadata("a"), body("complete"));
+        store.append("b", metadata("b"), body("torn"));
+        long size = store.bytes();
+        store.close();
+
+        // the last record loses its last bytes, as if the process died while writing it
+        File segment = segment();
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.setLength(size - 2);
+        } finally {
+            file.close();
+        }
+
+        store = SegmentStore.open(directory, 1000000, 100000);
+        assertThat(content(store.get("a").body()), is("complete"));
+        assertThat(store.get("b"), nullValue());
+        long recovered = store.bytes();
+        assertThat(segment.length(), is(recovered));
+        store.append("c", metadata("c"), body("after"));
+        store.close();
+
+        // garbage at the end, e.g. a header that was written while its record was not
+        file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(file.length());
+            file.write(new byte[] { 0x48, 0x43, 0x46, 0x53, 0, 0, 0, 1, 0, 0 });
+        } finally {
+            file.close();
+        }
+        store = SegmentStore.open(directory, 1000000, 100000);
+        try {
+            assertThat(content(store.get("a").body()), is("complete"));
+            assertThat(content(store.get("c").body()), is("after"));
+        } finally {
+            store.close();
+        }
+    }
+
+    public void shouldDropCorruptRecords() throws IOException {
+        SegmentStore store = SegmentStore.open(directory, 1000000, 100000);
+        store.append("a", metadata("a"), body("intact"));
+        long offset = store.bytes();
+        store.append("b", metadata("b"), body("corrupt"));
+        store.close();
+
+        RandomAccessFile file = new RandomAccessFile(segment(), "rw");
+        try {
+            file.seek(file.length() - 1);
+            file.write('X');
+        } finally {
+            file.close();
+        }
+        store = SegmentStore.open(directory, 1000000, 100000);
+        try {
+            assertThat(content(store.get("a").body()), is("intact"));
+            assertThat(store.get("b"), nullValue());
+            assertThat(store.bytes(), is(offset));
+        } finally {
+            store.close();
+        }
+    }
+
+    public void shouldEvictOldestSegmentsOverBudget() throws IOException {
+        SegmentStore store = SegmentStore.open(directory, 5000, 1000);
+        try {
+            byte[] kilobyte = new byte[900];
+            for (int i = 0; i < 20; i++) {
+                store.append("key" + i, metadata("m"), ByteBuffer.wrap(kilobyte));
+                assertThat(store.bytes(), lessThanOrEqualTo(5000l));
+            }
+            assertThat(store.get("key0"), nullValue());
+            assertThat(store.get("key19"), notNullValue());
+            assertThat(store.append("huge", metadata("m"), ByteBuffer.wrap(new byte[6000])), nullValue());
+        } finally {
+            store.close();
+        }
+    }
+
+    public void shouldLockTheDirectory() throws IOException {
+        SegmentStore store = SegmentStore.open(directory, 1000000, 100000);
+        try {
+            SegmentStore.open(directory, 1000000, 100000);
+            throw new AssertionError("directory should be locked");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            store.close();
+        }
+        SegmentStore.open(directory, 1000000, 100000).close();
+    }
+
+    private File segment() {
+        File[] segments = directory.listFiles((dir, name) -> name.endsWith(".segment"));
+        assertThat(segments.length, is(1));
+        return segments[0];
+    }
+
+    private static byte[] metadata(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer body(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String content(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
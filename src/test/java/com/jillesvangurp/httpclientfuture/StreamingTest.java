@@ -0,0 +1,194 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.jillesvangurp.urlbuilder.UrlBuilder;
+
+@Test
+public class StreamingTest {
+    private static final int SIZE = 1024 * 1024;
+    private static final int WINDOW = 8192;
+
+    private final int port = 6683;
+    private LocalWebServer webServer;
+    private ExecutorService executorService;
+    private HttpClientWithFuture<Long> blockingClient;
+    private HttpClientWithFuture<Long> nioClient;
+
+    @BeforeClass
+    public void beforeClass() {
+        webServer = new LocalWebServer(port, 10).addServlet(BigServlet.class, "/big").start();
+        executorService = Executors.newFixedThreadPool(5);
+        ResponseHandler<Long> handler = new ResponseHandler<Long>() {
+            @Override
+            public Long handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+                throw new IllegalStateException("streaming requests should not use the response handler");
+            }
+        };
+        blockingClient = HttpClientBuilder.client().disableCompression().buildClientWithFuture(executorService, handler).streamingWindow(WINDOW);
+        nioClient = HttpClientBuilder.client().engine(HttpClientBuilder.Engine.NIO).ioThreads(1).buildClientWithFuture(handler).streamingWindow(WINDOW);
+    }
+
+    @AfterClass
+    public void afterClass() throws IOException {
+        blockingClient.close();
+        nioClient.close();
+        executorService.shutdownNow();
+        webServer.stop();
+    }
+
+    public void shouldStreamBodyInChunksWithBlockingEngine() throws Exception {
+        shouldStreamBodyInChunks(blockingClient);
+    }
+
+    public void shouldStreamBodyInChunksWithNioEngine() throws Exception {
+        shouldStreamBodyInChunks(nioClient);
+    }
+
+    public void shouldHoldBackSlowSubscriberWithBlockingEngine() throws Exception {
+        shouldHoldBackSlowSubscriber(blockingClient);
+    }
+
+    public void shouldHoldBackSlowSubscriberWithNioEngine() throws Exception {
+        shouldHoldBackSlowSubscriber(nioClient);
+    }
+
+    public void shouldCancelTaskWhenSubscriptionIsCancelled() throws Exception {
+        CountingSubscriber subscriber = new CountingSubscriber(1, false);
+        HttpClientFutureTask<Long> task = blockingClient.executeStreaming(new HttpGet(url()), subscriber);
+        subscriber.awaitChunks(1);
+
+        subscriber.subscription.cancel();
+        assertThat(task.isCancelled(), is(true));
+    }
+
+    private void shouldStreamBodyInChunks(HttpClientWithFuture<Long> client) throws Exception {
+        CountingSubscriber subscriber = new CountingSubscriber(1, true);
+        HttpClientFutureTask<Long> task = client.executeStreaming(new HttpGet(url()), subscriber);
+
+        assertThat(task.get(5, TimeUnit.SECONDS), is((long) SIZE));
+        assertThat(subscriber.maxChunk.get(), lessThanOrEqualTo((long) WINDOW));
+        assertThat(client.metrics().activeConnections(), is(0l));
+    }
+
+    private void shouldHoldBackSlowSubscriber(HttpClientWithFuture<Long> client) throws Exception {
+        CountingSubscriber subscriber = new CountingSubscriber(2, false);
+        HttpClientFutureTask<Long> task = client.executeStreaming(new HttpGet(url()), subscriber);
+        subscriber.awaitChunks(2);
+        Thread.sleep(100);
+        assertThat(subscriber.chunks.get(), is(2l));
+        assertThat(task.isDone(), is(false));
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertThat(task.get(5, TimeUnit.SECONDS), is((long) SIZE));
+    }
+
+    private String url() {
+        return UrlBuilder.url("localhost", port).append("big").queryParam("size", SIZE).build();
+    }
+
+    private static class CountingSubscriber implements BodySubscriber<Long> {
+        private final int initialDemand;
+        private final boolean requestMore;
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong chunks = new AtomicLong();
+        final AtomicLong maxChunk = new AtomicLong();
+        volatile BodySubscription subscription;
+
+        CountingSubscriber(int initialDemand, boolean requestMore) {
+            this.initialDemand = initialDemand;
+            this.requestMore = requestMore;
+        }
+
+        @Override
+        public void onResponse(HttpResponse response, BodySubscription subscription) {
+            this.subscription = subscription;
+            subscription.request(initialDemand);
+        }
+
+        @Override
+        public void onChunk(ByteBuffer chunk) {
+            bytes.addAndGet(chunk.remaining());
+            maxChunk.set(Math.max(maxChunk.get(), chunk.remaining()));
+            chunks.incrementAndGet();
+            if (requestMore) {
+                subscription.request(1);
+            }
+        }
+
+        @Override
+        public Long onComplete() {
+            return bytes.get();
+        }
+
+        void awaitChunks(long count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (chunks.get() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+        }
+    }
+
+    /**
+     * Responds with the number of bytes in the size parameter.
+     */
+    public static class BigServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            int size = Integer.valueOf(req.getParameter("size"));
+            resp.setContentLength(size);
+            OutputStream out = resp.getOutputStream();
+            byte[] chunk = new byte[4096];
+            for (int written = 0; written < size; written += chunk.length) {
+                out.write(chunk, 0, Math.min(chunk.length, size - written));
+            }
+            out.flush();
+        }
+    }
+}
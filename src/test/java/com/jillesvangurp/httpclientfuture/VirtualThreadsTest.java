@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2012, Jilles van Gurp
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.jillesvangurp.httpclientfuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.testng.SkipException;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.jillesvangurp.urlbuilder.UrlBuilder;
+
+@Test
+public class VirtualThreadsTest {
+    private final int port = 6668;
+    private final int connections = 50;
+    private LocalWebServer webServer;
+    private HttpClientWithFuture<Integer> client;
+
+    @BeforeClass
+    public void beforeClass() {
+        if(!VirtualThreads.supported()) {
+            throw new SkipException("virtual threads are not supported by " + System.getProperty("java.version"));
+        }
+        webServer = new LocalWebServer(port, connections).addServlet(ConcurrencyServlet.class, "/concurrency").start();
+        client = HttpClientBuilder.client().engine(HttpClientBuilder.Engine.VIRTUAL_THREADS).connections(connections, connections).buildClientWithFuture(new ResponseHandler<Integer>() {
+            @Override
+            public Integer handleResponse(HttpResponse response) throws ClientProtocolException, IOException {
+                EntityUtils.consume(response.getEntity());
+                return response.getStatusLine().getStatusCode();
+            }
+        });
+    }
+
+    @AfterClass(alwaysRun=true)
+    public void afterClass() throws IOException {
+        if(client != null) {
+            client.close();
+        }
+        if(webServer != null) {
+            webServer.stop();
+        }
+    }
+
+    public void shouldExecuteThousandsOfConcurrentRequests() throws Exception {
+        int platformThreadsBefore = Thread.activeCount();
+        List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+        for(int i=0;i<3000;i++) {
+            futures.add(client.executeAsync(new HttpGet(UrlBuilder.url("localhost", port).append("concurrency").build())));
+        }
+        // all requests are in flight, most of them waiting for a connection, without a platform thread each
+        assertThat(Thread.activeCount() - platformThreadsBefore, lessThan(connections * 2));
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+        for (CompletableFuture<Integer> future : futures) {
+            assertThat(future.get(), is(200));
+        }
+        assertThat(ConcurrencyServlet.maxConcurrent.get(), lessThanOrEqualTo(connections));
+        assertThat(client.metrics().activeConnections(), is(0l));
+    }
+
+    public static class ConcurrencyServlet extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+        static final AtomicInteger concurrent = new AtomicInteger();
+        static final AtomicInteger maxConcurrent = new AtomicInteger();
+
+        @Override
+        protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            int now = concurrent.incrementAndGet();
+            try {
+                int max;
+                while(now > (max = maxConcurrent.get()) && !maxConcurrent.compareAndSet(max, now)) {
+                    // retry
+                }
+                Thread.sleep(5);
+                resp.setStatus(200);
+                resp.getWriter().print("ok");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrent.decrementAndGet();
+            }
+        }
+    }
+}
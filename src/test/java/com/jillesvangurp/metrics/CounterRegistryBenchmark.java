@@ -0,0 +1,67 @@
+package com.jillesvangurp.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures how shared counters scale with the number of threads that update them. Run main to get results for 1
+ * thread up to twice the number of processors, or run it with the benchmark profile and pass -t for a single thread
+ * count.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CounterRegistryBenchmark {
+    private enum Counters implements Countable {
+        atomic, striped, duration;
+    }
+
+    private final CounterRegistry registry = new CounterRegistry();
+    private final AtomicLong atomic = registry.getCounter(Counters.atomic);
+    private final LongAdder striped = registry.getStripedCounter(Counters.striped);
+    private final DurationCounter duration = registry.getDurationCounter(Counters.duration);
+
+    @Benchmark
+    public long atomicCounter() {
+        return atomic.incrementAndGet();
+    }
+
+    @Benchmark
+    public void stripedCounter() {
+        striped.increment();
+    }
+
+    @Benchmark
+    public void durationCounter() {
+        duration.recordNanos(1500000);
+    }
+
+    @Benchmark
+    public LongAdder registryLookup() {
+        return registry.getStripedCounter(Counters.striped);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        int maxThreads = Runtime.getRuntime().availableProcessors() * 2;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            new Runner(new OptionsBuilder().include(CounterRegistryBenchmark.class.getSimpleName()).threads(threads).build()).run();
+        }
+    }
+}
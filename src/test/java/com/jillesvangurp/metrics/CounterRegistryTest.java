@@ -4,6 +4,7 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -38,4 +39,37 @@ public final class CounterRegistryTest {
         assertThat(registry.getDurationCounter(TestCounters.foo).count(), is(2l));
         assertThat(registry.getDurationCounter(TestCounters.foo).averageDuration(), is(1000l));
     }
+
+    @Test
+    public void shouldMeasureDurationsRecordedConcurrently() throws Exception {
+        final DurationCounter counter = registry.getDurationCounter(TestCounters.foo);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    counter.recordNanos(1500000);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(counter.count(), is(800000l));
+        assertThat(counter.histogram().count(), is(800000l));
+        assertThat(counter.averageDuration(), is(1l));
+    }
+
+    @Test
+    public void shouldRegisterStripedCounter() {
+        LongAdder counter = registry.getStripedCounter(TestCounters.foo);
+        counter.increment();
+        assertThat(registry.getStripedCounter(TestCounters.foo).sum(), is(1l));
+    }
+
+    @Test(expectedExceptions=IllegalArgumentException.class)
+    public void shouldNotRegisterCountableTwice() {
+        registry.getCounter(TestCounters.bar);
+        registry.getDurationCounter(TestCounters.bar);
+    }
 }
@@ -0,0 +1,85 @@
+package com.jillesvangurp.metrics;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import org.testng.annotations.Test;
+
+@Test
+public class LatencyHistogramTest {
+
+    public void shouldMapValuesToBucketsContainingThem() {
+        for (long value : new long[] { 0, 1, 127, 128, 129, 255, 256, 1000, 123456789, LatencyHistogram.HIGHEST_TRACKABLE_VALUE }) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertThat(LatencyHistogram.lowestValue(index) <= value, is(true));
+            assertThat(LatencyHistogram.highestValue(index) >= value, is(true));
+        }
+        assertThat(LatencyHistogram.bucketIndex(LatencyHistogram.HIGHEST_TRACKABLE_VALUE), is(LatencyHistogram.BUCKETS - 1));
+    }
+
+    public void shouldReportPercentilesWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 10000; i++) {
+            histogram.record(i * 1000);
+        }
+        HistogramSnapshot snapshot = histogram.snapshot();
+
+        assertThat(snapshot.count(), is(10000l));
+        assertThat(snapshot.min(), is(1000l));
+        assertThat(snapshot.max(), is(10000000l));
+        assertThat((double) snapshot.valueAtPercentile(50), closeTo(5000000, 5000000 / 64.0));
+        assertThat((double) snapshot.valueAtPercentile(99), closeTo(9900000, 9900000 / 64.0));
+        assertThat((double) snapshot.valueAtPercentile(99.9), closeTo(9990000, 9990000 / 64.0));
+        assertThat(snapshot.valueAtPercentile(100), is(10000000l));
+        assertThat(snapshot.mean(), closeTo(5000500, 5000500 / 64.0));
+    }
+
+    public void shouldMergeAndDiffSnapshots() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        HistogramSnapshot before = histogram.snapshot();
+        histogram.record(5000);
+        histogram.record(6000);
+        HistogramSnapshot diff = histogram.snapshot().diff(before);
+
+        assertThat(diff.count(), is(2l));
+        assertThat(diff.min() >= 4900, is(true));
+        assertThat(diff.max(), lessThanOrEqualTo(6000l));
+
+        HistogramSnapshot merged = before.merge(diff);
+        assertThat(merged.count(), is(3l));
+        assertThat(merged.min(), is(100l));
+        assertThat(merged.valueAtPercentile(100), is(diff.max()));
+    }
+
+    public void shouldNotLoseValuesRecordedConcurrently() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final long offset = t;
+            threads[t] = new Thread(() -> {
+                for (long i = 1; i <= 100000; i++) {
+                    histogram.record(i * 10 + offset);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        HistogramSnapshot snapshot = histogram.snapshot();
+
+        assertThat(snapshot.count(), is(800000l));
+        assertThat(snapshot.min(), is(10l));
+        assertThat(snapshot.max(), is(1000007l));
+    }
+
+    public void shouldHandleEmptyHistogram() {
+        HistogramSnapshot snapshot = new LatencyHistogram().snapshot();
+        assertThat(snapshot.count(), is(0l));
+        assertThat(snapshot.valueAtPercentile(99), is(0l));
+        assertThat(snapshot.max(), is(0l));
+    }
+}